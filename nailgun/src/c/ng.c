@@ -28,8 +28,12 @@
 	#include <arpa/inet.h>
 	#include <netdb.h>
 	#include <netinet/in.h>
+	#include <netinet/tcp.h>
+	#include <pthread.h>
+	#include <signal.h>
 	#include <sys/socket.h>
 	#include <sys/types.h>
+	#include <sys/un.h>
 #endif
 
 #include <stdio.h>
@@ -37,6 +41,7 @@
 #include <string.h>
 #include <unistd.h>
 #include <fcntl.h>
+#include <zlib.h>
 
 #define NAILGUN_VERSION "0.9.0"
 
@@ -95,6 +100,36 @@
 #define CHUNKTYPE_CMD 'C'
 #define CHUNKTYPE_EXIT 'X'
 #define CHUNKTYPE_STARTINPUT 'S'
+#define CHUNKTYPE_ENVDIGEST 'H'
+#define CHUNKTYPE_COMPRESSION 'z'
+#define CHUNKTYPE_COMPRESSED 'Z'
+#define CHUNKTYPE_CREDIT 'W'
+#define CHUNKTYPE_HEARTBEAT 'B'
+#define CHUNKTYPE_SIGNAL 'G'
+
+/* the compression we offer the server when NAILGUN_COMPRESS is set */
+#define COMPRESSION_DEFLATE "deflate"
+
+/* with eager stdin, the most we send before the server asks for it */
+#define EAGER_STDIN_WINDOW (65536)
+
+/* with flow control, the most stdout and stderr we let the server send
+   before we have written it out */
+#define FLOW_WINDOW (262144)
+
+/* how often, in milliseconds, we offer to send heartbeats, so that the
+   server can cancel our command if we go away */
+#define HEARTBEAT_INTERVAL_MS (1000)
+
+/* the shortest stdin chunk worth compressing */
+#define COMPRESS_THRESHOLD (512)
+
+/* how long to wait, in milliseconds, for the server to say whether it
+   already has our environment.  digests are only offered when
+   NAILGUN_ENVDIGEST asks for them, as servers that predate environment
+   digests never answer, and would get the environment only after this
+   delay. */
+#define ENVDIGEST_TIMEOUT_MS (250)
 
 /*
    the following is required to compile for hp-ux
@@ -113,6 +148,49 @@ char buf[BUFSIZE];
 /* track whether or not we've been told to send stdin to server */
 int startedInput = 0;
 
+/* with NAILGUN_EAGER_STDIN set, stdin is sent without waiting to be told,
+   up to EAGER_STDIN_WINDOW bytes */
+int eagerInput = 0;
+unsigned long eagerCredit = EAGER_STDIN_WINDOW;
+
+/* the NAILGUN_TTY_<fd>=0|1 environment variables, telling the server
+   whether each of the standard streams is a terminal */
+char ttyHints[3][16];
+
+/* nonzero once the server has agreed to deflate compression */
+int compressing = 0;
+
+/* nonzero once the server has agreed to flow control, after which we send
+   stdin only as far as the server's credit allows, and grant the server
+   credit for output as we write it out.  stdin sent eagerly before the
+   server's first grant is counted against it. */
+volatile int flowControl = 0;
+volatile long stdinCredit = 0;
+unsigned long outputConsumed = 0;
+
+/* held while sending a chunk, as the main thread (granting credit), the
+   heartbeat thread and, on Windows, the stdin thread all send.  also held
+   while updating stdinCredit, which on Windows the stdin thread uses up
+   while the main thread adds the server's grants to it */
+#ifdef WIN32
+CRITICAL_SECTION sendLock;
+#else
+pthread_mutex_t sendLock = PTHREAD_MUTEX_INITIALIZER;
+#endif
+
+/* the interval, in milliseconds, at which we send heartbeats once the
+   server has agreed to them */
+int heartbeatInterval = 0;
+
+/* nonzero if we offered to forward signals, and once we have forwarded a
+   SIGINT or SIGTERM, after which another ends the client as usual */
+int forwardSignals = 0;
+volatile int forwardedStop = 0;
+
+/* compressed chunk payloads, grown as needed */
+char *zbuf = NULL;
+unsigned long zbufLen = 0;
+
 /**
  * Clean up the application.
  */
@@ -210,6 +288,29 @@ void sendHeader(unsigned int size, char chunkType) {
   sendAll(nailgunsocket, header, CHUNK_HEADER_LEN);
 }
 
+/**
+ * Claims the socket for sending a whole chunk.  Only needed once the stdin
+ * thread (on Windows) or the heartbeat thread is running.
+ */
+void lockSend() {
+  #ifdef WIN32
+    EnterCriticalSection(&sendLock);
+  #else
+    pthread_mutex_lock(&sendLock);
+  #endif
+}
+
+/**
+ * Releases the socket claimed by lockSend().
+ */
+void unlockSend() {
+  #ifdef WIN32
+    LeaveCriticalSection(&sendLock);
+  #else
+    pthread_mutex_unlock(&sendLock);
+  #endif
+}
+
 /**
  * Sends the contents of the specified file as a long argument (--nailgun-filearg)
  * This is sent as one or more chunks of type CHUNK_LONGARG.  The end of the argument
@@ -254,6 +355,189 @@ void sendText(char chunkType, char *text) {
   sendAll(nailgunsocket, text, len);
 }
 
+/**
+ * Notes whether each of the standard streams is a terminal, as the
+ * environment variables NAILGUN_TTY_<fd>=0|1, so that the server can
+ * choose how to buffer output to it.
+ */
+void initTtyHints() {
+  int fd;
+  for (fd = 0; fd < 3; ++fd) {
+    strcpy(ttyHints[fd], "NAILGUN_TTY_0=0");
+    ttyHints[fd][12] = '0' + fd;
+    ttyHints[fd][14] = isatty(fd) ? '1' : '0';
+  }
+}
+
+/**
+ * Returns one of the environment variables to send to the server: the
+ * separators and terminal hints, followed by the client's own.
+ *
+ * @param env the client's environment
+ * @param i the index of the variable
+ * @return the variable, or NULL if there are no more
+ */
+char *envEntry(char *env[], int i) {
+  switch(i) {
+    case 0: return (NAILGUN_FILESEPARATOR);
+    case 1: return (NAILGUN_PATHSEPARATOR);
+    case 2:
+    case 3:
+    case 4: return (ttyHints[i - 2]);
+    default: return (env[i - 5]);
+  }
+}
+
+/**
+ * Sends the environment to the server.
+ *
+ * @param env the client's environment
+ */
+void sendEnvironment(char *env[]) {
+  int i;
+  char *text;
+  for (i = 0; (text = envEntry(env, i)) != NULL; ++i) {
+    sendText(CHUNKTYPE_ENV, text);
+  }
+}
+
+/* the state of a SHA-256 digest.  its 32-bit words are kept in unsigned
+   longs, which are at least that long, and masked to 32 bits. */
+typedef struct {
+  unsigned long h[8];
+  unsigned long long length;
+  unsigned char block[64];
+  int used;
+} Sha256;
+
+#define ROTR32(x, n) ((((x) >> (n)) | ((x) << (32 - (n)))) & 0xffffffffUL)
+
+/* the SHA-256 round constants */
+static const unsigned long sha256K[64] = {
+  0x428a2f98UL, 0x71374491UL, 0xb5c0fbcfUL, 0xe9b5dba5UL, 0x3956c25bUL, 0x59f111f1UL, 0x923f82a4UL, 0xab1c5ed5UL,
+  0xd807aa98UL, 0x12835b01UL, 0x243185beUL, 0x550c7dc3UL, 0x72be5d74UL, 0x80deb1feUL, 0x9bdc06a7UL, 0xc19bf174UL,
+  0xe49b69c1UL, 0xefbe4786UL, 0x0fc19dc6UL, 0x240ca1ccUL, 0x2de92c6fUL, 0x4a7484aaUL, 0x5cb0a9dcUL, 0x76f988daUL,
+  0x983e5152UL, 0xa831c66dUL, 0xb00327c8UL, 0xbf597fc7UL, 0xc6e00bf3UL, 0xd5a79147UL, 0x06ca6351UL, 0x14292967UL,
+  0x27b70a85UL, 0x2e1b2138UL, 0x4d2c6dfcUL, 0x53380d13UL, 0x650a7354UL, 0x766a0abbUL, 0x81c2c92eUL, 0x92722c85UL,
+  0xa2bfe8a1UL, 0xa81a664bUL, 0xc24b8b70UL, 0xc76c51a3UL, 0xd192e819UL, 0xd6990624UL, 0xf40e3585UL, 0x106aa070UL,
+  0x19a4c116UL, 0x1e376c08UL, 0x2748774cUL, 0x34b0bcb5UL, 0x391c0cb3UL, 0x4ed8aa4aUL, 0x5b9cca4fUL, 0x682e6ff3UL,
+  0x748f82eeUL, 0x78a5636fUL, 0x84c87814UL, 0x8cc70208UL, 0x90befffaUL, 0xa4506cebUL, 0xbef9a3f7UL, 0xc67178f2UL
+};
+
+/**
+ * Starts a SHA-256 digest.
+ *
+ * @param s the digest's state
+ */
+void sha256Init(Sha256 *s) {
+  static const unsigned long initial[8] = {
+    0x6a09e667UL, 0xbb67ae85UL, 0x3c6ef372UL, 0xa54ff53aUL, 0x510e527fUL, 0x9b05688cUL, 0x1f83d9abUL, 0x5be0cd19UL
+  };
+  memcpy(s->h, initial, sizeof(initial));
+  s->length = 0;
+  s->used = 0;
+}
+
+/**
+ * Adds a full block to a SHA-256 digest.
+ *
+ * @param s the digest's state
+ */
+void sha256Block(Sha256 *s) {
+  unsigned long w[64], a, b, c, d, e, f, g, h, t1, t2;
+  int i;
+
+  for (i = 0; i < 16; ++i) {
+    w[i] = ((unsigned long) s->block[4 * i] << 24) | ((unsigned long) s->block[4 * i + 1] << 16)
+      | ((unsigned long) s->block[4 * i + 2] << 8) | (unsigned long) s->block[4 * i + 3];
+  }
+  for (i = 16; i < 64; ++i) {
+    t1 = ROTR32(w[i - 15], 7) ^ ROTR32(w[i - 15], 18) ^ (w[i - 15] >> 3);
+    t2 = ROTR32(w[i - 2], 17) ^ ROTR32(w[i - 2], 19) ^ (w[i - 2] >> 10);
+    w[i] = (w[i - 16] + t1 + w[i - 7] + t2) & 0xffffffffUL;
+  }
+  a = s->h[0]; b = s->h[1]; c = s->h[2]; d = s->h[3];
+  e = s->h[4]; f = s->h[5]; g = s->h[6]; h = s->h[7];
+  for (i = 0; i < 64; ++i) {
+    t1 = (h + (ROTR32(e, 6) ^ ROTR32(e, 11) ^ ROTR32(e, 25)) + ((e & f) ^ (~e & g)) + sha256K[i] + w[i]) & 0xffffffffUL;
+    t2 = ((ROTR32(a, 2) ^ ROTR32(a, 13) ^ ROTR32(a, 22)) + ((a & b) ^ (a & c) ^ (b & c))) & 0xffffffffUL;
+    h = g; g = f; f = e; e = (d + t1) & 0xffffffffUL;
+    d = c; c = b; b = a; a = (t1 + t2) & 0xffffffffUL;
+  }
+  s->h[0] = (s->h[0] + a) & 0xffffffffUL; s->h[1] = (s->h[1] + b) & 0xffffffffUL;
+  s->h[2] = (s->h[2] + c) & 0xffffffffUL; s->h[3] = (s->h[3] + d) & 0xffffffffUL;
+  s->h[4] = (s->h[4] + e) & 0xffffffffUL; s->h[5] = (s->h[5] + f) & 0xffffffffUL;
+  s->h[6] = (s->h[6] + g) & 0xffffffffUL; s->h[7] = (s->h[7] + h) & 0xffffffffUL;
+}
+
+/**
+ * Adds bytes to a SHA-256 digest.
+ *
+ * @param s the digest's state
+ * @param data the bytes to add
+ * @param len the number of bytes
+ */
+void sha256Update(Sha256 *s, const unsigned char *data, unsigned long len) {
+  while (len-- > 0) {
+    s->block[s->used++] = *data++;
+    ++s->length;
+    if (s->used == 64) {
+      sha256Block(s);
+      s->used = 0;
+    }
+  }
+}
+
+/**
+ * Finishes a SHA-256 digest.
+ *
+ * @param s the digest's state
+ * @param hex receives the digest as 64 lowercase hex digits and a null
+ */
+void sha256Final(Sha256 *s, char *hex) {
+  unsigned long long bits = s->length * 8;
+  unsigned char pad = 0x80;
+  int i;
+
+  sha256Update(s, &pad, 1);
+  pad = 0;
+  while (s->used != 56) {
+    sha256Update(s, &pad, 1);
+  }
+  for (i = 7; i >= 0; --i) {
+    pad = (unsigned char) (bits >> (8 * i));
+    sha256Update(s, &pad, 1);
+  }
+  for (i = 0; i < 32; ++i) {
+    pad = (unsigned char) (s->h[i / 4] >> (24 - 8 * (i % 4)));
+    hex[2 * i] = "0123456789abcdef"[pad >> 4];
+    hex[2 * i + 1] = "0123456789abcdef"[pad & 0xf];
+  }
+  hex[64] = 0;
+}
+
+/**
+ * Offers the server a digest of the environment: the SHA-256 hash of
+ * every variable, including its terminating null, as 64 hex digits.
+ * If the server has seen the same environment before, it need not be
+ * sent again.
+ *
+ * @param env the client's environment
+ */
+void sendEnvDigest(char *env[]) {
+  Sha256 sha;
+  char digest[65];
+  char *text;
+  int i;
+
+  sha256Init(&sha);
+  for (i = 0; (text = envEntry(env, i)) != NULL; ++i) {
+    sha256Update(&sha, (unsigned char *) text, strlen(text) + 1);
+  }
+  sha256Final(&sha, digest);
+  sendText(CHUNKTYPE_ENVDIGEST, digest);
+}
+
 /**
  * Exits the client if the nailgun server ungracefully shut down the connection.
  */
@@ -261,6 +545,62 @@ void handleSocketClose() {
   cleanUpAndExit(NAILGUN_CONNECTION_BROKEN);
 }
 
+/**
+ * Writes len bytes from buf to the specified file descriptor.
+ *
+ * @param destFD the destination file descriptor (stdout or stderr)
+ * @param buf the bytes to write
+ * @param len the number of bytes to write
+ */
+void writeToFD(HANDLE destFD, char *buf, int len) {
+  int bytesCopied = 0;
+
+  while(bytesCopied < len) {
+    #ifdef WIN32
+      DWORD thisWrite =  0;
+
+      WriteFile(destFD, buf + bytesCopied, len - bytesCopied,
+        &thisWrite, NULL);
+
+      if (thisWrite < 0) {
+        break;
+      }
+
+      bytesCopied += thisWrite;
+    #else
+      bytesCopied += write(destFD, buf + bytesCopied, len - bytesCopied);
+    #endif
+  }
+}
+
+/**
+ * Sends a credit chunk granting the server the specified number of bytes.
+ *
+ * @param credit the number of bytes to grant
+ */
+void sendCredit(unsigned long credit) {
+  char text[24];
+  sprintf(text, "%lu", credit);
+  lockSend();
+  sendText(CHUNKTYPE_CREDIT, text);
+  unlockSend();
+}
+
+/**
+ * Notes output written to stdout or stderr, granting the server more
+ * credit once we have written half the window.
+ *
+ * @param len the number of bytes written
+ */
+void outputWritten(int len) {
+  if (!flowControl) return;
+  outputConsumed += len;
+  if (outputConsumed >= FLOW_WINDOW / 2) {
+    sendCredit(outputConsumed);
+    outputConsumed = 0;
+  }
+}
+
 /**
  * Receives len bytes from the nailgun socket and copies them to the specified file descriptor.
  * Used to route data to stdout or stderr on the client.
@@ -270,7 +610,6 @@ void handleSocketClose() {
  */
 void recvToFD(HANDLE destFD, char *buf, unsigned long len) {
   unsigned long bytesRead = 0;
-  int bytesCopied;
   
   while (bytesRead < len) {
     unsigned long bytesRemaining = len - bytesRead;
@@ -283,25 +622,62 @@ void recvToFD(HANDLE destFD, char *buf, unsigned long len) {
    
     bytesRead += thisPass;
 
-    bytesCopied = 0;
-
-    while(bytesCopied < thisPass) {
-      #ifdef WIN32
-        DWORD thisWrite =  0;
+    writeToFD(destFD, buf, thisPass);
+    outputWritten(thisPass);
+  }
+}
 
-        WriteFile(destFD, buf + bytesCopied, thisPass - bytesCopied,
-          &thisWrite, NULL);
+/**
+ * Receives a compressed chunk from the nailgun server, and writes the
+ * decompressed output to stdout or stderr as the chunk says.
+ *
+ * @param len the length of the compressed chunk's payload
+ */
+void recvCompressed(unsigned long len) {
+  z_stream zs;
+  HANDLE destFD;
+  int result;
+
+  if (len < 1) handleSocketClose();
+  if (len > zbufLen) {
+    zbuf = realloc(zbuf, len);
+    if (zbuf == NULL) {
+      perror("realloc");
+      cleanUpAndExit(NAILGUN_CONNECTION_BROKEN);
+    }
+    zbufLen = len;
+  }
+  if (recv(nailgunsocket, zbuf, len, MSG_WAITALL) < (int) len) {
+    handleSocketClose();
+  }
 
-        if (thisWrite < 0) {
+  switch(zbuf[0]) {
+    case CHUNKTYPE_STDOUT: destFD = NG_STDOUT_FILENO;
+          break;
+    case CHUNKTYPE_STDERR: destFD = NG_STDERR_FILENO;
           break;
-        }
+    default:  fprintf(stderr, "Unexpected compressed chunk type %d ('%c')\n", zbuf[0], zbuf[0]);
+        cleanUpAndExit(NAILGUN_UNEXPECTED_CHUNKTYPE);
+  }
 
-        bytesCopied += thisWrite;
-      #else
-        bytesCopied += write(destFD, buf + bytesCopied, thisPass - bytesCopied);
-      #endif
-    }  
+  memset(&zs, 0, sizeof(zs));
+  if (inflateInit2(&zs, -MAX_WBITS) != Z_OK) {
+    cleanUpAndExit(NAILGUN_CONNECTION_BROKEN);
   }
+  zs.next_in = (Bytef *) zbuf + 1;
+  zs.avail_in = len - 1;
+  do {
+    zs.next_out = (Bytef *) buf;
+    zs.avail_out = BUFSIZE;
+    result = inflate(&zs, Z_NO_FLUSH);
+    if (result != Z_OK && result != Z_STREAM_END) {
+      fprintf(stderr, "Invalid compressed chunk from server\n");
+      cleanUpAndExit(NAILGUN_CONNECTION_BROKEN);
+    }
+    writeToFD(destFD, buf, BUFSIZE - zs.avail_out);
+    outputWritten(BUFSIZE - zs.avail_out);
+  } while (result != Z_STREAM_END);
+  inflateEnd(&zs);
 }
 
 
@@ -329,6 +705,47 @@ void processExit(char *buf, unsigned long len) {
 }
 
 
+/**
+ * Sends len bytes from buf to the nailgun server in a compressed stdin
+ * chunk, if compressing them makes them smaller.
+ *
+ * @param buf the bytes to send
+ * @param len the number of bytes to send
+ * @return nonzero if the chunk was sent
+ */
+int sendCompressed(char *buf, unsigned int len) {
+  /* room for the inner chunk type and a compressed payload shorter than the original */
+  char cbuf[CHUNK_HEADER_LEN + 1 + BUFSIZE];
+  z_stream zs;
+  int result;
+  unsigned int clen;
+
+  memset(&zs, 0, sizeof(zs));
+  if (deflateInit2(&zs, Z_BEST_SPEED, Z_DEFLATED, -MAX_WBITS, 8, Z_DEFAULT_STRATEGY) != Z_OK) {
+    return 0;
+  }
+  zs.next_in = (Bytef *) buf;
+  zs.avail_in = len;
+  zs.next_out = (Bytef *) cbuf + CHUNK_HEADER_LEN + 1;
+  zs.avail_out = len - 2;
+  result = deflate(&zs, Z_FINISH);
+  clen = len - 2 - zs.avail_out;
+  deflateEnd(&zs);
+  if (result != Z_STREAM_END) {
+    return 0;
+  }
+
+  ++clen;
+  cbuf[0] = (clen >> 24) & 0xff;
+  cbuf[1] = (clen >> 16) & 0xff;
+  cbuf[2] = (clen >> 8) & 0xff;
+  cbuf[3] = clen & 0xff;
+  cbuf[4] = CHUNKTYPE_COMPRESSED;
+  cbuf[5] = CHUNKTYPE_STDIN;
+  sendAll(nailgunsocket, cbuf, CHUNK_HEADER_LEN + clen);
+  return 1;
+}
+
 /**
  * Sends len bytes from buf to the nailgun server in a stdin chunk.
  *
@@ -336,15 +753,41 @@ void processExit(char *buf, unsigned long len) {
  * @param len the number of bytes to send
  */
 void sendStdin(char *buf, unsigned int len) {
-  sendHeader(len, CHUNKTYPE_STDIN);
-  sendAll(nailgunsocket, buf, len);
+  /* counted even before the server agrees to flow control, as its first
+     grant includes anything sent eagerly */
+  lockSend();
+  stdinCredit -= len;
+  if (!compressing || len < COMPRESS_THRESHOLD || !sendCompressed(buf, len)) {
+    sendHeader(len, CHUNKTYPE_STDIN);
+    sendAll(nailgunsocket, buf, len);
+  }
+  unlockSend();
+}
+
+/**
+ * Returns how much stdin we may read and send now, as limited by the
+ * eager window and by the server's credit.
+ *
+ * @return the number of bytes we may send, or zero to wait
+ */
+long stdinAllowance() {
+  long result = BUFSIZE;
+  if (!startedInput) {
+    result = MIN(result, (long) eagerCredit);
+  }
+  if (flowControl) {
+    result = MIN(result, stdinCredit);
+  }
+  return (result > 0 ? result : 0);
 }
 
 /**
  * Sends a stdin-eof chunk to the nailgun server
  */
 void processEof() {
+  lockSend();
   sendHeader(0, CHUNKTYPE_STDIN_EOF);
+  unlockSend();
 }
 
 
@@ -358,14 +801,24 @@ DWORD WINAPI processStdin (LPVOID lpParameter) {
 
   for (;;) {
     DWORD numberOfBytes = 0;
+    DWORD bytesToRead;
+
+    /* eager input waits here once the window is used up, as does any
+       input once the server's credit is */
+    while ((bytesToRead = stdinAllowance()) == 0) {
+      Sleep(10);
+    }
 
-    if (!ReadFile(NG_STDIN_FILENO, wbuf, BUFSIZE, &numberOfBytes, NULL)) {
+    if (!ReadFile(NG_STDIN_FILENO, wbuf, bytesToRead, &numberOfBytes, NULL)) {
       if (numberOfBytes != 0) {
         handleError();
       }
     }
 
     if (numberOfBytes > 0) {
+      if (!startedInput) {
+        eagerCredit -= numberOfBytes;
+      }
       sendStdin(wbuf, numberOfBytes);
     } else {
       processEof();
@@ -383,8 +836,12 @@ DWORD WINAPI processStdin (LPVOID lpParameter) {
  * @return zero if eof has been reached.
  */
 int processStdin() {
-	int bytesread = read(STDIN_FILENO, buf, BUFSIZE);
+	int bytesToRead = stdinAllowance();
+	int bytesread = read(STDIN_FILENO, buf, bytesToRead);
 	if (bytesread > 0) {
+		if (!startedInput) {
+			eagerCredit -= bytesread;
+		}
 		sendStdin(buf, bytesread);
 	} else if (bytesread == 0) {
 		processEof();
@@ -401,6 +858,7 @@ void initSockets () {
   WSADATA win_socket_data;     /* required to initialise winsock */
   
   WSAStartup(2, &win_socket_data);
+  InitializeCriticalSection(&sendLock);
 }
 #endif
 
@@ -437,28 +895,186 @@ void winStartInput () {
 #endif
 
 /**
- * Processes data from the nailgun server.
+ * Sends a forwarded signal to the server.
+ *
+ * @param name the signal's name
  */
-void processnailgunstream() {
+void sendSignal(char *name) {
+  lockSend();
+  sendText(CHUNKTYPE_SIGNAL, name);
+  unlockSend();
+}
 
-  /*for (;;) {*/
-    int bytesRead = 0;
-    unsigned long len;
-    char chunkType;
+#ifdef WIN32
+/**
+ * Console control handler forwarding Ctrl-C, Ctrl-Break and the closing of
+ * the console to the server as SIGINT, SIGQUIT and SIGTERM.
+ */
+BOOL WINAPI forwardConsoleSignal (DWORD ctrlType) {
+  switch (ctrlType) {
+    case CTRL_BREAK_EVENT:
+          sendSignal("QUIT");
+          return TRUE;
+    case CTRL_C_EVENT:
+    case CTRL_CLOSE_EVENT:
+          /* asked twice, we end as we would have */
+          if (forwardedStop) {
+            return FALSE;
+          }
+          forwardedStop = 1;
+          sendSignal((ctrlType == CTRL_C_EVENT) ? "INT" : "TERM");
+          return TRUE;
+  }
+  return FALSE;
+}
+#else
+/**
+ * Fills in the set of signals we forward.
+ */
+void forwardedSignalSet(sigset_t *signals) {
+  sigemptyset(signals);
+  sigaddset(signals, SIGINT);
+  sigaddset(signals, SIGTERM);
+  sigaddset(signals, SIGQUIT);
+}
 
-    bytesRead = recv(nailgunsocket, buf, CHUNK_HEADER_LEN, MSG_WAITALL);
+/**
+ * Blocks the signals we forward in the calling thread, so that once they
+ * are forwarded only the signal thread takes them.
+ */
+void blockForwardedSignals() {
+  sigset_t signals;
+  forwardedSignalSet(&signals);
+  pthread_sigmask(SIG_BLOCK, &signals, NULL);
+}
+
+/**
+ * Thread main for forwarding signals.  The signals are blocked in every
+ * other thread, and taken here with sigwait(), so that they are sent
+ * outside any signal handler.
+ */
+void *sendSignals (void *arg) {
+  sigset_t signals;
+  int sig = 0;
 
-    if (bytesRead < CHUNK_HEADER_LEN) {
-      handleSocketClose();
+  forwardedSignalSet(&signals);
+  for (;;) {
+    if (sigwait(&signals, &sig) != 0) {
+      continue;
     }
-  
-    len = ((buf[0] << 24) & 0xff000000)
-      | ((buf[1] << 16) & 0x00ff0000)
-      | ((buf[2] << 8) & 0x0000ff00)
-      | ((buf[3]) & 0x000000ff);
-  
-    chunkType = buf[4];
-  
+    if (sig == SIGQUIT) {
+      sendSignal("QUIT");
+    } else if (!forwardedStop) {
+      forwardedStop = 1;
+      sendSignal((sig == SIGINT) ? "INT" : "TERM");
+    } else {
+      /* asked twice, we end as the signal would have ended us */
+      signal(sig, SIG_DFL);
+      sigemptyset(&signals);
+      sigaddset(&signals, sig);
+      pthread_sigmask(SIG_UNBLOCK, &signals, NULL);
+      raise(sig);
+    }
+  }
+  return NULL;
+}
+#endif
+
+/**
+ * Starts forwarding signals, once the server has agreed to them.
+ */
+void startSignals() {
+  #ifdef WIN32
+    SetConsoleCtrlHandler(&forwardConsoleSignal, TRUE);
+  #else
+    pthread_t thread;
+
+    blockForwardedSignals();
+    if (pthread_create(&thread, NULL, &sendSignals, NULL) == 0) {
+      pthread_detach(thread);
+    }
+  #endif
+}
+
+/**
+ * Thread main for sending heartbeats.  A thread of its own, so that
+ * heartbeats go on while the main thread waits to write output (to a
+ * paused pager, say).
+ */
+#ifdef WIN32
+DWORD WINAPI sendHeartbeats (LPVOID lpParameter) {
+#else
+void *sendHeartbeats (void *arg) {
+  blockForwardedSignals();
+#endif
+  for (;;) {
+    #ifdef WIN32
+      Sleep(heartbeatInterval);
+    #else
+      usleep(heartbeatInterval * 1000);
+    #endif
+    lockSend();
+    sendHeader(0, CHUNKTYPE_HEARTBEAT);
+    unlockSend();
+  }
+  return 0;
+}
+
+/**
+ * Starts sending heartbeats, once the server has agreed to them.
+ *
+ * @param timeout the longest silence, in milliseconds, the server allows
+ */
+void startHeartbeats(long timeout) {
+  #ifdef WIN32
+    DWORD threadId = 0;
+  #else
+    pthread_t thread;
+  #endif
+
+  /* a few chances to be heard within the timeout */
+  if (timeout / 3 > 0 && timeout / 3 < heartbeatInterval) {
+    heartbeatInterval = timeout / 3;
+  }
+  #ifdef WIN32
+    if (!CreateThread(NULL, 0, &sendHeartbeats, NULL, 0, &threadId)) {
+      handleError();
+    }
+  #else
+    if (pthread_create(&thread, NULL, &sendHeartbeats, NULL) == 0) {
+      pthread_detach(thread);
+    }
+  #endif
+}
+
+/**
+ * Receives a chunk header from the nailgun server.
+ *
+ * @param len used to return the payload length
+ * @return the chunk type
+ */
+char recvHeader(unsigned long *len) {
+  int bytesRead = recv(nailgunsocket, buf, CHUNK_HEADER_LEN, MSG_WAITALL);
+
+  if (bytesRead < CHUNK_HEADER_LEN) {
+    handleSocketClose();
+  }
+
+  *len = ((buf[0] << 24) & 0xff000000)
+    | ((buf[1] << 16) & 0x00ff0000)
+    | ((buf[2] << 8) & 0x0000ff00)
+    | ((buf[3]) & 0x000000ff);
+
+  return (buf[4]);
+}
+
+/**
+ * Processes a chunk from the nailgun server whose header has been read.
+ *
+ * @param chunkType the chunk type
+ * @param len the payload length
+ */
+void processChunk(char chunkType, unsigned long len) {
     switch(chunkType) {
       case CHUNKTYPE_STDOUT: recvToFD(NG_STDOUT_FILENO, buf, len);
             break;
@@ -469,17 +1085,183 @@ void processnailgunstream() {
       case CHUNKTYPE_STARTINPUT:
             if (!startedInput) {
                 #ifdef WIN32
-                winStartInput();
+                /* with eager input, the thread is already running */
+                if (!eagerInput) {
+                  winStartInput();
+                }
                 #endif
       		startedInput = 1;
       	    }
             break;
+      case CHUNKTYPE_COMPRESSED: recvCompressed(len);
+            break;
+      case CHUNKTYPE_COMPRESSION:
+            /* the server names the compression it agreed to */
+            if (len > BUFSIZE - 1 || recv(nailgunsocket, buf, len, MSG_WAITALL) < (int) len) {
+              handleSocketClose();
+            }
+            buf[len] = 0;
+            compressing = !strcmp(buf, COMPRESSION_DEFLATE);
+            break;
+      case CHUNKTYPE_CREDIT:
+            /* the server agreed to flow control, or read more stdin */
+            if (len > BUFSIZE - 1 || recv(nailgunsocket, buf, len, MSG_WAITALL) < (int) len) {
+              handleSocketClose();
+            }
+            buf[len] = 0;
+            lockSend();
+            stdinCredit += atol(buf);
+            unlockSend();
+            flowControl = 1;
+            break;
+      case CHUNKTYPE_HEARTBEAT:
+            /* the server agreed to heartbeats, naming its timeout */
+            if (len > BUFSIZE - 1 || recv(nailgunsocket, buf, len, MSG_WAITALL) < (int) len) {
+              handleSocketClose();
+            }
+            buf[len] = 0;
+            if (heartbeatInterval > 0) {
+              startHeartbeats(atol(buf));
+            }
+            break;
+      case CHUNKTYPE_SIGNAL:
+            /* the server agreed to forwarded signals.  there is normally no
+               payload, and a recv() of nothing would wait for the next chunk */
+            if (len > BUFSIZE || (len > 0 && recv(nailgunsocket, buf, len, MSG_WAITALL) < (int) len)) {
+              handleSocketClose();
+            }
+            if (forwardSignals) {
+              startSignals();
+            }
+            break;
+      case CHUNKTYPE_ENVDIGEST:
+            /* a reply that came too late; we sent the environment anyway */
+            if (len > BUFSIZE || (len > 0 && recv(nailgunsocket, buf, len, MSG_WAITALL) < (int) len)) {
+              handleSocketClose();
+            }
+            break;
       default:  fprintf(stderr, "Unexpected chunk type %d ('%c')\n", chunkType, chunkType);
           cleanUpAndExit(NAILGUN_UNEXPECTED_CHUNKTYPE);
     }
-  /*}*/
 }
 
+/**
+ * Processes data from the nailgun server.
+ */
+void processnailgunstream() {
+  unsigned long len;
+  char chunkType = recvHeader(&len);
+  processChunk(chunkType, len);
+}
+
+/**
+ * Waits briefly for the server's reply to our environment digest.
+ *
+ * @return nonzero if the server already has our environment
+ */
+int serverHasEnvironment() {
+  fd_set readfds;
+  struct timeval timeout;
+  unsigned long len;
+  char chunkType;
+
+  FD_ZERO(&readfds);
+  FD_SET(nailgunsocket, &readfds);
+  timeout.tv_sec = 0;
+  timeout.tv_usec = ENVDIGEST_TIMEOUT_MS * 1000;
+  if (select(nailgunsocket + 1, &readfds, NULL, NULL, &timeout) <= 0) {
+    return 0;
+  }
+
+  chunkType = recvHeader(&len);
+  if (chunkType != CHUNKTYPE_ENVDIGEST || len > BUFSIZE) {
+    /* such as the exit chunk of a server too busy to run the command */
+    processChunk(chunkType, len);
+    return 0;
+  }
+  if (len > 0 && recv(nailgunsocket, buf, len, MSG_WAITALL) < (int) len) {
+    handleSocketClose();
+  }
+  return (len > 0 && buf[0] == '1');
+}
+
+/**
+ * Connects to a nailgun server listening on TCP.
+ *
+ * @param nailgun_server the host name or address of the server
+ * @param nailgun_port the port on which the server is listening
+ */
+void connectTcp(char *nailgun_server, char *nailgun_port) {
+  struct sockaddr_in server_addr;
+  struct hostent *hostinfo;
+  u_short port;
+  int noDelay = 1;
+
+  /* jump through a series of connection hoops */  
+  hostinfo = gethostbyname(nailgun_server);
+
+  if (hostinfo == NULL) {
+    fprintf(stderr, "Unknown host: %s\n", nailgun_server);
+    cleanUpAndExit(NAILGUN_CONNECT_FAILED);
+  }
+ 
+  port = atoi(nailgun_port);
+
+  if ((nailgunsocket = socket(AF_INET, SOCK_STREAM, 0)) == -1) {
+    perror("socket");
+    cleanUpAndExit(NAILGUN_SOCKET_FAILED);
+  }
+
+  server_addr.sin_family = AF_INET;    
+  server_addr.sin_port = htons(port);
+  server_addr.sin_addr = *(struct in_addr *) hostinfo->h_addr;
+  
+  memset(&(server_addr.sin_zero), '\0', 8);
+
+  if (connect(nailgunsocket, (struct sockaddr *)&server_addr,
+    sizeof(struct sockaddr)) == -1) {
+    perror("connect");
+    cleanUpAndExit(NAILGUN_CONNECT_FAILED);
+  } 
+
+  /* a chunk's header and payload are sent separately, and credit must not
+     wait for the server to acknowledge the header first */
+  setsockopt(nailgunsocket, IPPROTO_TCP, TCP_NODELAY, (char *) &noDelay, sizeof(noDelay));
+}
+
+#ifndef WIN32
+/**
+ * Connects to a nailgun server listening on a unix domain socket.  This
+ * avoids the cost of setting up and tearing down a TCP connection for
+ * every command when the server is on the local machine.
+ *
+ * @param path the filesystem path of the server's socket
+ */
+void connectUnix(char *path) {
+  struct sockaddr_un server_addr;
+
+  if (strlen(path) >= sizeof(server_addr.sun_path)) {
+    fprintf(stderr, "Socket path too long: %s\n", path);
+    cleanUpAndExit(NAILGUN_CONNECT_FAILED);
+  }
+
+  if ((nailgunsocket = socket(AF_UNIX, SOCK_STREAM, 0)) == -1) {
+    perror("socket");
+    cleanUpAndExit(NAILGUN_SOCKET_FAILED);
+  }
+
+  memset(&server_addr, 0, sizeof(server_addr));
+  server_addr.sun_family = AF_UNIX;
+  strcpy(server_addr.sun_path, path);
+
+  if (connect(nailgunsocket, (struct sockaddr *)&server_addr,
+    sizeof(server_addr)) == -1) {
+    perror("connect");
+    cleanUpAndExit(NAILGUN_CONNECT_FAILED);
+  }
+}
+#endif
+
 /**
  * Trims any path info from the beginning of argv[0] to determine
  * the name used to launch the client.
@@ -526,7 +1308,9 @@ void usage(int exitcode) {
   fprintf(stderr, "   --nailgun-showversion       print product version and continue\n");
   fprintf(stderr, "   --nailgun-server            to specify the address of the nailgun server\n");
   fprintf(stderr, "                               (default is NAILGUN_SERVER environment variable\n");
-  fprintf(stderr, "                               if set, otherwise localhost)\n");
+  fprintf(stderr, "                               if set, otherwise localhost).  If this is a path\n");
+  fprintf(stderr, "                               (i.e., contains a '/'), the server is reached\n");
+  fprintf(stderr, "                               via the unix domain socket at that path\n");
   fprintf(stderr, "   --nailgun-port              to specify the port of the nailgun server\n");
   fprintf(stderr, "                               (default is NAILGUN_PORT environment variable\n");
   fprintf(stderr, "                               if set, otherwise 2113)\n");  
@@ -541,14 +1325,19 @@ void usage(int exitcode) {
 
 int main(int argc, char *argv[], char *env[]) {
   int i;
-  struct sockaddr_in server_addr;
   char *nailgun_server;        /* server as specified by user */
   char *nailgun_port;          /* port as specified by user */
   char *cwd;
-  u_short port;                /* port */
-  struct hostent *hostinfo;
   char *cmd;
   int firstArgIndex;           /* the first argument _to pass to the server_ */
+  char *envDigestSetting;      /* NAILGUN_ENVDIGEST, to offer a digest of the environment first */
+  int useEnvDigest;
+  char *compressSetting;       /* NAILGUN_COMPRESS, to compress stdin, stdout and stderr */
+  char *eagerSetting;          /* NAILGUN_EAGER_STDIN, to send stdin without waiting to be asked */
+  char *flowControlSetting;    /* NAILGUN_FLOWCONTROL, "0" to send and accept as much as we can */
+  char *heartbeatSetting;      /* NAILGUN_HEARTBEAT, the heartbeat interval in milliseconds, or "0" for none */
+  char heartbeatText[16];
+  char *signalsSetting;        /* NAILGUN_SIGNALS, "0" to let signals end the client rather than forwarding them */
 
   #ifndef WIN32
     fd_set readfds;
@@ -631,34 +1420,26 @@ int main(int argc, char *argv[], char *env[]) {
     usage(NAILGUN_BAD_ARGUMENTS);
   }
   
-  /* jump through a series of connection hoops */  
-  hostinfo = gethostbyname(nailgun_server);
-
-  if (hostinfo == NULL) {
-    fprintf(stderr, "Unknown host: %s\n", nailgun_server);
-    cleanUpAndExit(NAILGUN_CONNECT_FAILED);
-  }
- 
-  port = atoi(nailgun_port);
-
-  if ((nailgunsocket = socket(AF_INET, SOCK_STREAM, 0)) == -1) {
-    perror("socket");
-    cleanUpAndExit(NAILGUN_SOCKET_FAILED);
+  /* a server that looks like a path is a unix domain socket */
+  #ifndef WIN32
+  if (strchr(nailgun_server, '/') != NULL) {
+    connectUnix(nailgun_server);
+  } else
+  #endif
+  connectTcp(nailgun_server, nailgun_port);
+    
+  /* ok, now we're connected.  if asked to, offer the server a digest of
+     the environment first, so that its reply has arrived by the time we've
+     sent the arguments.  only servers that support digests reply, so this
+     is left to those who know theirs does. */
+  initTtyHints();
+  envDigestSetting = getenv("NAILGUN_ENVDIGEST");
+  useEnvDigest = (envDigestSetting != NULL && strcmp(envDigestSetting, "0"));
+  if (useEnvDigest) {
+    sendEnvDigest(env);
   }
 
-  server_addr.sin_family = AF_INET;    
-  server_addr.sin_port = htons(port);
-  server_addr.sin_addr = *(struct in_addr *) hostinfo->h_addr;
-  
-  memset(&(server_addr.sin_zero), '\0', 8);
-
-  if (connect(nailgunsocket, (struct sockaddr *)&server_addr,
-    sizeof(struct sockaddr)) == -1) {
-    perror("connect");
-    cleanUpAndExit(NAILGUN_CONNECT_FAILED);
-  } 
-    
-  /* ok, now we're connected.  first send all of the command line
+  /* then send all of the command line
      arguments for the server, if any.  remember that we may have
      marked some arguments NULL if we read them to specify the
      nailgun server and/or port */
@@ -670,11 +1451,9 @@ int main(int argc, char *argv[], char *env[]) {
     }
   }
 
-  /* now send environment */  
-  sendText(CHUNKTYPE_ENV, NAILGUN_FILESEPARATOR);
-  sendText(CHUNKTYPE_ENV, NAILGUN_PATHSEPARATOR);
-  for(i = 0; env[i]; ++i) {
-    sendText(CHUNKTYPE_ENV, env[i]);
+  /* now send environment, unless the server already has it */  
+  if (!useEnvDigest || !serverHasEnvironment()) {
+    sendEnvironment(env);
   }
   
   /* now send the working directory */
@@ -682,14 +1461,49 @@ int main(int argc, char *argv[], char *env[]) {
   sendText(CHUNKTYPE_DIR, cwd);
   free(cwd);
   
+  /* offer to compress the streams, worthwhile over slow links */
+  compressSetting = getenv("NAILGUN_COMPRESS");
+  if (compressSetting != NULL && strcmp(compressSetting, "0")) {
+    sendText(CHUNKTYPE_COMPRESSION, COMPRESSION_DEFLATE);
+  }
+
+  /* offer the server credit for output, so that neither side buffers more
+     than a window of the other's data */
+  flowControlSetting = getenv("NAILGUN_FLOWCONTROL");
+  if (flowControlSetting == NULL || strcmp(flowControlSetting, "0")) {
+    sendCredit(FLOW_WINDOW);
+
+    /* and heartbeats, so that the server can tell if we go away */
+    heartbeatSetting = getenv("NAILGUN_HEARTBEAT");
+    heartbeatInterval = (heartbeatSetting == NULL) ? HEARTBEAT_INTERVAL_MS : atoi(heartbeatSetting);
+    if (heartbeatInterval > 0) {
+      sprintf(heartbeatText, "%d", heartbeatInterval);
+      sendText(CHUNKTYPE_HEARTBEAT, heartbeatText);
+
+      /* and to forward signals to the nail, rather than dying of them */
+      signalsSetting = getenv("NAILGUN_SIGNALS");
+      forwardSignals = (signalsSetting == NULL || strcmp(signalsSetting, "0"));
+      if (forwardSignals) {
+        sendText(CHUNKTYPE_SIGNAL, NULL);
+      }
+    }
+  }
+
   /* and finally send the command.  this marks the point at which
      streams are linked between client and server. */
   sendText(CHUNKTYPE_CMD, cmd);
 
   
+  /* with eager input, stdin follows the command straight away */
+  eagerSetting = getenv("NAILGUN_EAGER_STDIN");
+  eagerInput = (eagerSetting != NULL && strcmp(eagerSetting, "0"));
+
   /* initialise the std-* handles and the thread to send stdin to the server */ 
   #ifdef WIN32
   initIo();
+  if (eagerInput) {
+    winStartInput();
+  }
   #endif
 
   /* stream forwarding loop */	
@@ -697,8 +1511,10 @@ int main(int argc, char *argv[], char *env[]) {
     #ifndef WIN32
       FD_ZERO(&readfds);
 
-      /* don't select on stdin if we've already reached its end */
-      if (startedInput && !eof) {
+      /* don't select on stdin until the server asks for it (or, with eager
+         input, beyond the window), beyond the server's credit, or if we've
+         already reached its end */
+      if ((startedInput || eagerInput) && stdinAllowance() > 0 && !eof) {
 	FD_SET(NG_STDIN_FILENO, &readfds);
       }
 
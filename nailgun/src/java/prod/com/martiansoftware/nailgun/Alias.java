@@ -19,11 +19,17 @@
 package com.martiansoftware.nailgun;
 
 /**
- * Provides a means to map memorable, short names to classes in order
+ * <p>Provides a means to map memorable, short names to classes in order
  * to make the issuing of commands more convenient.  For example, an
  * Alias can map the "<code>mycommand</code>" command to the <code>com.yourdomain.yourpackage.YourClass</code>
  * class.  Obviously, it's a lot easier to type "<code>ng mycommand</code>" than the fully
- * qualified class name.
+ * qualified class name.</p>
+ * 
+ * <p>An Alias may be created with the name of its class rather than the
+ * class itself, in which case the class is loaded (and initialized) the
+ * first time it is needed: by the server's warm-up after it starts (see
+ * <code>NGServer.setWarmupThreads()</code>), or else by the first command
+ * to use the alias.  The time taken to load it is recorded.</p>
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
@@ -40,9 +46,39 @@ public class Alias implements Comparable {
 	private String description;
 	
 	/**
-	 * The class providing a <code>main()</code> or <code>nailMain()</code> method
+	 * The class providing a <code>main()</code> or <code>nailMain()</code> method,
+	 * once it has been loaded
+	 */
+	private volatile Class clazz;
+	
+	/**
+	 * The fully qualified name of the class
+	 */
+	private String className;
+	
+	/**
+	 * The time in nanoseconds taken to load the class, or -1 if it has not
+	 * been loaded
+	 */
+	private volatile long loadNanos = -1;
+	
+	/**
+	 * The bulkhead limiting how many instances of the command may run at
+	 * once, or <code>null</code> if there is no limit
 	 */
-	private Class clazz;
+	private Bulkhead bulkhead;
+	
+	/**
+	 * When the command's output is sent to the client, or <code>null</code>
+	 * to use the server's policy
+	 */
+	private FlushPolicy flushPolicy;
+	
+	/**
+	 * True if the client is asked for stdin as soon as the command
+	 * arrives, rather than when the nail first reads
+	 */
+	private boolean eagerStdin;
 	
 	/**
 	 * Creates a new Alias with the specified properties.
@@ -51,23 +87,149 @@ public class Alias implements Comparable {
 	 * @param clazz the class implementing the command
 	 */
 	public Alias(String name, String description, Class clazz) {
+		this(name, description, clazz, null);
+	}
+	
+	/**
+	 * Creates a new Alias with the specified properties, whose command runs
+	 * within the specified bulkhead.  Several aliases may share a bulkhead.
+	 * @param name the alias name (short command)
+	 * @param description a description of the command
+	 * @param clazz the class implementing the command
+	 * @param bulkhead the bulkhead in which the command runs, or
+	 * <code>null</code> if it may run without limit
+	 */
+	public Alias(String name, String description, Class clazz, Bulkhead bulkhead) {
+		this(name, description, clazz, bulkhead, null);
+	}
+	
+	/**
+	 * Creates a new Alias with the specified properties, whose command runs
+	 * within the specified bulkhead and sends its output according to the
+	 * specified flush policy.
+	 * @param name the alias name (short command)
+	 * @param description a description of the command
+	 * @param clazz the class implementing the command
+	 * @param bulkhead the bulkhead in which the command runs, or
+	 * <code>null</code> if it may run without limit
+	 * @param flushPolicy when the command's output is sent to the client,
+	 * or <code>null</code> to use the server's policy
+	 */
+	public Alias(String name, String description, Class clazz, Bulkhead bulkhead, FlushPolicy flushPolicy) {
+		this(name, description, clazz, bulkhead, flushPolicy, false);
+	}
+	
+	/**
+	 * Creates a new Alias with the specified properties, whose command runs
+	 * within the specified bulkhead, sends its output according to the
+	 * specified flush policy, and optionally asks the client for stdin as
+	 * soon as the command arrives.  That saves filter-style commands the
+	 * round trip to the client otherwise made when the nail first reads.
+	 * @param name the alias name (short command)
+	 * @param description a description of the command
+	 * @param clazz the class implementing the command
+	 * @param bulkhead the bulkhead in which the command runs, or
+	 * <code>null</code> if it may run without limit
+	 * @param flushPolicy when the command's output is sent to the client,
+	 * or <code>null</code> to use the server's policy
+	 * @param eagerStdin true if the client should start sending stdin as
+	 * soon as the command arrives
+	 */
+	public Alias(String name, String description, Class clazz, Bulkhead bulkhead, FlushPolicy flushPolicy, boolean eagerStdin) {
+		this(name, description, (clazz == null) ? null : clazz.getName(), bulkhead, flushPolicy, eagerStdin);
+		this.clazz = clazz;
+		this.loadNanos = 0;
+	}
+	
+	/**
+	 * Creates a new Alias with the specified properties, whose class is
+	 * loaded the first time it is needed.  The command runs within the
+	 * specified bulkhead, sends its output according to the specified
+	 * flush policy, and optionally asks the client for stdin as soon as
+	 * the command arrives.
+	 * @param name the alias name (short command)
+	 * @param description a description of the command
+	 * @param className the fully qualified name of the class implementing
+	 * the command
+	 * @param bulkhead the bulkhead in which the command runs, or
+	 * <code>null</code> if it may run without limit
+	 * @param flushPolicy when the command's output is sent to the client,
+	 * or <code>null</code> to use the server's policy
+	 * @param eagerStdin true if the client should start sending stdin as
+	 * soon as the command arrives
+	 */
+	public Alias(String name, String description, String className, Bulkhead bulkhead, FlushPolicy flushPolicy, boolean eagerStdin) {
 		if (name == null) throw (new IllegalArgumentException("Alias must have a name."));
 		this.name = name.trim();
 		if (this.name.length() == 0) throw (new IllegalArgumentException("Alias must have a name."));
 		
-		if (clazz == null) throw (new IllegalArgumentException("Alias must have an associated class."));
+		if (className == null || className.trim().length() == 0) {
+			throw (new IllegalArgumentException("Alias must have an associated class."));
+		}
 		this.description = description;
-		this.clazz = clazz;
+		this.className = className.trim();
+		this.bulkhead = bulkhead;
+		this.flushPolicy = flushPolicy;
+		this.eagerStdin = eagerStdin;
 	}
 	
 	/**
 	 * Returns the <code>Class</code> object providing a static <code>main()</code> or <code>nailMain()</code> method
-	 * for this command.
+	 * for this command, loading it if it has not been loaded.
 	 * @return the <code>Class</code> object providing a static <code>main()</code> or <code>nailMain()</code> method
 	 * for this command.
+	 * @throws NoClassDefFoundError if the class cannot be found
 	 */
 	public Class getAliasedClass() {
-		return(clazz);
+		Class result = clazz;
+		return ((result != null) ? result : load());
+	}
+	
+	/**
+	 * Loads the aliased class, once, recording how long that took
+	 */
+	private synchronized Class load() {
+		if (clazz == null) {
+			long start = System.nanoTime();
+			try {
+				Class loaded = Class.forName(className);
+				loadNanos = System.nanoTime() - start;
+				clazz = loaded;
+			} catch (ClassNotFoundException e) {
+				NoClassDefFoundError error = new NoClassDefFoundError("Unable to locate class " + className + " for alias " + name);
+				error.initCause(e);
+				throw (error);
+			}
+		}
+		return (clazz);
+	}
+	
+	/**
+	 * Returns the fully qualified name of the aliased class, without
+	 * loading it
+	 * @return the fully qualified name of the aliased class
+	 */
+	public String getAliasedClassName() {
+		return (className);
+	}
+	
+	/**
+	 * Returns true if the aliased class has been loaded
+	 * @return true if the aliased class has been loaded
+	 */
+	public boolean isLoaded() {
+		return (clazz != null);
+	}
+	
+	/**
+	 * Returns the time taken to load the aliased class, including its
+	 * static initialization
+	 * @return the time in nanoseconds taken to load the aliased class, zero
+	 * if the class was given when the Alias was created, or -1 if it has
+	 * not been loaded
+	 */
+	public long getLoadNanos() {
+		return (loadNanos);
 	}
 	
 	/**
@@ -86,6 +248,34 @@ public class Alias implements Comparable {
 		return (description);
 	}
 	
+	/**
+	 * Returns the bulkhead in which the aliased command runs
+	 * @return the bulkhead in which the aliased command runs, or
+	 * <code>null</code> if it may run without limit
+	 */
+	public Bulkhead getBulkhead() {
+		return (bulkhead);
+	}
+	
+	/**
+	 * Returns the policy that determines when the aliased command's output
+	 * is sent to the client
+	 * @return the policy for the aliased command's output, or
+	 * <code>null</code> to use the server's policy
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return (flushPolicy);
+	}
+	
+	/**
+	 * Returns true if the client is asked for stdin as soon as the aliased
+	 * command arrives, rather than when the nail first reads
+	 * @return true if the aliased command takes stdin eagerly
+	 */
+	public boolean isEagerStdin() {
+		return (eagerStdin);
+	}
+	
 	/**
 	 * @see Object#hashCode()
 	 */
@@ -18,30 +18,50 @@
 
 package com.martiansoftware.nailgun;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
- * An AliasManager is used to store and lookup command Aliases by name.
- * See <a href="Alias.html">Alias</a> for more details.
+ * <p>An AliasManager is used to store and lookup command Aliases by name.
+ * See <a href="Alias.html">Alias</a> for more details.</p>
+ *
+ * <p>Aliases are looked up on every command, and changed rarely, so they
+ * are kept in an <code>AliasTable</code> that is never modified: a
+ * change copies the table and publishes the copy in its place.  Lookups
+ * and listings therefore take no lock, and always see a consistent set
+ * of aliases.</p>
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 public class AliasManager {
 	
 	/**
-	 * actual alias storage
+	 * actual alias storage, replaced whole on every change
 	 */
-	private Map aliases;
+	private volatile AliasTable aliases = new AliasTable(new HashMap());
+	
+	/**
+	 * held while the aliases are changed, so that no change is lost
+	 */
+	private final Object aliasLock = new Object();
+	
+	/**
+	 * bulkhead storage, keyed by bulkhead name
+	 */
+	private Map bulkheads;
 	
 	/**
 	 * Creates a new AliasManager, populating it with
 	 * default Aliases.
 	 */
 	public AliasManager() {
-		aliases = new java.util.HashMap();
+		bulkheads = new java.util.TreeMap();
 		
 		try {
 			Properties props = new Properties();
@@ -66,21 +86,107 @@ public class AliasManager {
 	 * <pre><code>myprog=com.mydomain.myapp.MyProg
 	 *myprog.desc=Runs my program.
 	 * </code></pre>
+	 * 
+	 * The number of instances of a command that may run at once can be
+	 * limited by placing it in a <a href="Bulkhead.html">Bulkhead</a>.  A
+	 * bulkhead is defined with
+	 * <pre><code>bulkhead.[bulkhead name]=[maximum concurrent nails]</code></pre>
+	 * and an optional
+	 * <pre><code>bulkhead.[bulkhead name].dedicated=true</code></pre>
+	 * to give it threads of its own.  Aliases are placed in it with
+	 * <pre><code>[alias name].bulkhead=[bulkhead name]</code></pre>
+	 * As a shortcut, 
+	 * <pre><code>[alias name].limit=[maximum concurrent nails]</code></pre>
+	 * gives an alias a bulkhead of its own, named after the alias.
+	 * 
+	 * When the command's output is sent to the client may be set with
+	 * <pre><code>[alias name].flush=[immediate|line|block|N ms]</code></pre>
+	 * (see <a href="FlushPolicy.html">FlushPolicy</a>), and a command that
+	 * reads its stdin from the start, such as a filter, may ask the client
+	 * for it as soon as the command arrives with
+	 * <pre><code>[alias name].stdin=eager</code></pre>
+	 * 
+	 * The aliased classes are not loaded here, but when they are first
+	 * needed (see <a href="Alias.html">Alias</a>), so a class that cannot be
+	 * found is reported then.
+	 * 
 	 * @param properties the Properties to load.
 	 */
 	public void loadFromProperties(java.util.Properties properties) {
+		Collection loaded = new java.util.ArrayList();
+		
+		// bulkheads first, so that the aliases can find them
 		for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
 			String key = (String) i.next();
-			if (!key.endsWith(".desc")) {
+			String bulkheadName = null;
+			if (key.startsWith("bulkhead.") && !key.endsWith(".dedicated")) {
+				bulkheadName = key.substring("bulkhead.".length());
+			} else if (key.endsWith(".limit")) {
+				bulkheadName = key.substring(0, key.length() - ".limit".length());
+			}
+			if (bulkheadName != null) {
 				try {
-					Class clazz = Class.forName(properties.getProperty(key));
+					int limit = Integer.parseInt(properties.getProperty(key).trim());
+					boolean dedicated = Boolean.valueOf(properties.getProperty("bulkhead." + bulkheadName + ".dedicated", "false").trim()).booleanValue();
+					addBulkhead(new Bulkhead(bulkheadName, limit, dedicated));
+				} catch (IllegalArgumentException e) {
+					System.err.println("Invalid bulkhead limit " + key + "=" + properties.getProperty(key));
+				}
+			}
+		}
+		
+		for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
+			String key = (String) i.next();
+			if (!isAttributeKey(key)) {
+				try {
+					String className = properties.getProperty(key);
 					String desc = properties.getProperty(key + ".desc", "");
-					addAlias(new Alias(key, desc, clazz));
-				} catch (ClassNotFoundException e) {
-					System.err.println("Unable to locate class " + properties.getProperty(key));
+					Bulkhead bulkhead = null;
+					String bulkheadName = properties.getProperty(key + ".bulkhead");
+					if (bulkheadName == null && properties.getProperty(key + ".limit") != null) {
+						bulkheadName = key;
+					}
+					if (bulkheadName != null) {
+						bulkhead = getBulkhead(bulkheadName.trim());
+						if (bulkhead == null) {
+							System.err.println("Unknown bulkhead " + bulkheadName + " for alias " + key);
+						}
+					}
+					FlushPolicy flushPolicy = null;
+					String flushName = properties.getProperty(key + ".flush");
+					if (flushName != null) {
+						try {
+							flushPolicy = FlushPolicy.forName(flushName);
+						} catch (IllegalArgumentException e) {
+							System.err.println("Invalid flush policy " + flushName + " for alias " + key);
+						}
+					}
+					String stdin = properties.getProperty(key + ".stdin");
+					boolean eagerStdin = (stdin != null && stdin.trim().equals("eager"));
+					if (stdin != null && !eagerStdin && !stdin.trim().equals("lazy")) {
+						System.err.println("Invalid stdin mode " + stdin + " for alias " + key);
+					}
+					loaded.add(new Alias(key, desc, className, bulkhead, flushPolicy, eagerStdin));
+				} catch (IllegalArgumentException e) {
+					System.err.println("Invalid alias " + key + ": " + e.getMessage());
 				}
 			}
 		}
+		// all at once, so that no command sees half of them
+		publish(loaded, null);
+	}
+	
+	/**
+	 * Returns true if the specified property key describes an alias or a
+	 * bulkhead rather than defining an alias
+	 */
+	private static boolean isAttributeKey(String key) {
+		return (key.endsWith(".desc")
+				|| key.endsWith(".bulkhead")
+				|| key.endsWith(".limit")
+				|| key.endsWith(".flush")
+				|| key.endsWith(".stdin")
+				|| key.startsWith("bulkhead."));
 	}
 	
 	/**
@@ -89,9 +195,7 @@ public class AliasManager {
 	 * @param alias the Alias to add
 	 */
 	public void addAlias(Alias alias) {
-		synchronized (aliases) {
-			aliases.put(alias.getName(), alias);
-		}
+		publish(Collections.singleton(alias), null);
 	}
 	
 	/**
@@ -101,11 +205,18 @@ public class AliasManager {
 	 * @return a Set that is a snapshot of the Alias list.
 	 */
 	public Set getAliases() {
-		Set result = new java.util.TreeSet();
-		synchronized(aliases) {
-			result.addAll(aliases.values());
-		}
-		return (result);
+		return (new TreeSet(aliases.sorted));
+	}
+
+	/**
+	 * Returns an unmodifiable Set that is a snapshot of the Alias list,
+	 * in order of name.  Unlike <code>getAliases()</code> it is not
+	 * copied, so it is cheap to call; later changes to the AliasManager
+	 * are not reflected in it.
+	 * @return an unmodifiable Set that is a snapshot of the Alias list.
+	 */
+	public Set getAliasSnapshot() {
+		return (aliases.sorted);
 	}
 
 	/**
@@ -114,9 +225,7 @@ public class AliasManager {
 	 * @param aliasName the name of the Alias to remove
 	 */
 	public void removeAlias(String aliasName) {
-		synchronized (aliases) {
-			aliases.remove(aliasName);
-		}
+		publish(Collections.EMPTY_SET, aliasName);
 	}
 
 	/**
@@ -126,7 +235,95 @@ public class AliasManager {
 	 * is defined in this AliasManager.
 	 */
 	public Alias getAlias(String aliasName) {
-		return ((Alias) aliases.get(aliasName));
+		return ((Alias) aliases.byName.get(aliasName));
+	}
+
+	/**
+	 * Replaces the aliases with a copy to which the specified changes have
+	 * been made
+	 * @param added the Aliases to add, replacing any with the same names
+	 * @param removedName the name of an Alias to remove, or null
+	 */
+	private void publish(Collection added, String removedName) {
+		synchronized (aliasLock) {
+			Map byName = new HashMap(aliases.byName);
+			if (removedName != null && byName.remove(removedName) == null && added.isEmpty()) return;
+			for (Iterator i = added.iterator(); i.hasNext();) {
+				Alias alias = (Alias) i.next();
+				byName.put(alias.getName(), alias);
+			}
+			aliases = new AliasTable(byName);
+		}
+	}
+
+	/**
+	 * Adds a Bulkhead, replacing any previous bulkhead with the same name.
+	 * Aliases already placed in the previous bulkhead remain there.
+	 * @param bulkhead the Bulkhead to add
+	 */
+	public void addBulkhead(Bulkhead bulkhead) {
+		synchronized (bulkheads) {
+			bulkheads.put(bulkhead.getName(), bulkhead);
+		}
+	}
+
+	/**
+	 * Returns the Bulkhead with the specified name
+	 * @param bulkheadName the name of the Bulkhead to retrieve
+	 * @return the requested Bulkhead, or null if no such Bulkhead
+	 * is defined in this AliasManager.
+	 */
+	public Bulkhead getBulkhead(String bulkheadName) {
+		synchronized (bulkheads) {
+			return ((Bulkhead) bulkheads.get(bulkheadName));
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the Bulkheads defined in this AliasManager,
+	 * in order of name.
+	 * @return a Collection that is a snapshot of the Bulkhead list.
+	 */
+	public Collection getBulkheads() {
+		synchronized (bulkheads) {
+			return (new java.util.ArrayList(bulkheads.values()));
+		}
+	}
+
+	/**
+	 * Turns away the commands waiting in any Bulkheads, and stops the
+	 * threads of any that have their own.
+	 */
+	void shutdown() {
+		// including those given to aliases without being added here
+		Set all = new java.util.HashSet(getBulkheads());
+		for (Iterator i = getAliasSnapshot().iterator(); i.hasNext();) {
+			Bulkhead bulkhead = ((Alias) i.next()).getBulkhead();
+			if (bulkhead != null) all.add(bulkhead);
+		}
+		for (Iterator i = all.iterator(); i.hasNext();) {
+			((Bulkhead) i.next()).shutdown();
+		}
+	}
+
+	/**
+	 * A set of aliases that is never modified once published
+	 */
+	private static class AliasTable {
+		/**
+		 * the aliases by name
+		 */
+		final Map byName;
+
+		/**
+		 * the aliases in order of name, for listings
+		 */
+		final Set sorted;
+
+		AliasTable(Map byName) {
+			this.byName = byName;
+			this.sorted = Collections.unmodifiableSet(new TreeSet(byName.values()));
+		}
 	}
 
 }
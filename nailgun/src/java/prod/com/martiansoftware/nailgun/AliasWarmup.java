@@ -0,0 +1,384 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Loads the classes of a server's aliases in the background once the
+ * server has started, several at a time, so that neither the server's
+ * start nor the first command to use each alias waits for them.  The
+ * aliases' classes are otherwise loaded, and their static initializers
+ * run, by the first command to use them (see <a href="Alias.html">Alias</a>).</p>
+ *
+ * <p>Any aliased class that provides a
+ * <pre><code>public static void nailWarmup(NGServer)</code></pre>
+ * method has it called, once, after the class is loaded, with the server
+ * as its sole parameter.  A nail can use it to do ahead of time what its
+ * first command would otherwise do: fill caches, load the classes it
+ * uses, and run its busiest code until the JIT has compiled it.</p>
+ *
+ * <p>The warm-up has a budget (see <code>NGServer.setWarmupBudget()</code>).
+ * Classes not yet loaded, and hooks not yet called, when it runs out are
+ * left to the first command that needs them; hooks already running are
+ * left to finish.  The server listens while the warm-up runs, unless it
+ * is told to wait for it (see <code>NGServer.setWaitForWarmup()</code>);
+ * a command whose class is still loading waits for it, as it would have
+ * anyway.  The warm-up's progress, and the slowest class and hook, are
+ * shown by ng-stats.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class AliasWarmup {
+
+	private NGServer server;
+
+	/**
+	 * Loads the classes, once the warm-up has started
+	 */
+	private ExecutorService executor = null;
+
+	/**
+	 * The number of classes to load, the numbers loaded and not loaded,
+	 * and the number left for want of time
+	 */
+	private int total = 0;
+	private int loaded = 0;
+	private int failed = 0;
+	private int skipped = 0;
+
+	/**
+	 * The number of warm-up hooks called, and the number that threw
+	 */
+	private int hooks = 0;
+	private int hooksFailed = 0;
+
+	/**
+	 * The classes whose hooks have been, or are being, called
+	 */
+	private Set hooked = new HashSet();
+
+	/**
+	 * When, by <code>System.nanoTime()</code>, the warm-up started and
+	 * finished, and when its budget runs out
+	 */
+	private long startedAt = 0;
+	private long finishedAt = 0;
+	private long deadline = 0;
+
+	/**
+	 * True once the server has shut down
+	 */
+	private boolean done = false;
+
+	/**
+	 * The alias whose class took longest to load
+	 */
+	private Alias slowest = null;
+
+	/**
+	 * The class whose warm-up hook took longest, and how long it took in
+	 * nanoseconds
+	 */
+	private Class slowestHook = null;
+	private long slowestHookNanos = 0;
+
+	/**
+	 * Creates a new AliasWarmup for the specified server
+	 * @param server the server whose aliases are warmed up
+	 */
+	AliasWarmup(NGServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Starts loading the classes of the specified aliases that have not
+	 * been loaded, and calling their warm-up hooks, returning at once
+	 * @param aliases the aliases to warm up
+	 * @param threads the most classes to warm up at once; zero leaves every
+	 * class to be loaded by the first command to use it
+	 * @param budget the time in milliseconds after which no more classes
+	 * are loaded, and no more hooks called, or zero for no limit
+	 */
+	synchronized void start(Collection aliases, int threads, int budget) {
+		if (threads <= 0 || executor != null || done) return;
+		startedAt = System.nanoTime();
+		deadline = startedAt + ((budget > 0) ? budget * 1000000L : Long.MAX_VALUE / 2);
+		for (Iterator i = aliases.iterator(); i.hasNext();) {
+			final Alias alias = (Alias) i.next();
+			// a class already loaded may still have a hook to call
+			if (alias.isLoaded() && findHook(alias.getAliasedClass()) == null) continue;
+			if (executor == null) executor = Executors.newFixedThreadPool(threads, new WarmupThreadFactory());
+			++total;
+			executor.execute(new Runnable() {
+				public void run() {
+					load(alias);
+				}
+			});
+		}
+		if (executor == null) {
+			finishedAt = startedAt;
+		} else {
+			// the threads finish with the work
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Loads one alias's class and calls its hook, if the budget allows,
+	 * reporting any failure
+	 */
+	private void load(Alias alias) {
+		if (outOfTime()) {
+			finish(null, false, true);
+			return;
+		}
+		Class nailClass = null;
+		try {
+			nailClass = alias.getAliasedClass();
+		} catch (NoClassDefFoundError e) {
+			server.err.println(e.getMessage());
+		} catch (Throwable t) {
+			server.err.println("Unable to load class " + alias.getAliasedClassName() + " for alias " + alias.getName() + ": " + t);
+		}
+		if (nailClass != null) callHook(nailClass);
+		finish(alias, nailClass != null, false);
+	}
+
+	/**
+	 * Records the end of one alias's warm-up
+	 */
+	private synchronized void finish(Alias alias, boolean ok, boolean outOfTime) {
+		if (outOfTime) {
+			++skipped;
+		} else if (ok) {
+			++loaded;
+			if (slowest == null || alias.getLoadNanos() > slowest.getLoadNanos()) slowest = alias;
+		} else {
+			++failed;
+		}
+		if (loaded + failed + skipped == total) {
+			finishedAt = System.nanoTime();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns true if the budget has run out, or the server has shut down
+	 */
+	private synchronized boolean outOfTime() {
+		return (done || System.nanoTime() - deadline >= 0);
+	}
+
+	/**
+	 * Returns a class's <code>nailWarmup(NGServer)</code> method, or
+	 * <code>null</code> if it has none
+	 */
+	private static Method findHook(Class nailClass) {
+		try {
+			Method result = nailClass.getMethod("nailWarmup", new Class[] {NGServer.class});
+			return (Modifier.isStatic(result.getModifiers()) ? result : null);
+		} catch (NoSuchMethodException e) {
+			return (null);
+		}
+	}
+
+	/**
+	 * Calls a class's warm-up hook, if it has one that has not been
+	 * called and the budget allows, reporting anything it throws
+	 */
+	private void callHook(Class nailClass) {
+		Method hook = findHook(nailClass);
+		if (hook == null) return;
+		synchronized(this) {
+			// several aliases may share a class
+			if (!hooked.add(nailClass) || outOfTime()) return;
+			++hooks;
+		}
+		long start = System.nanoTime();
+		try {
+			hook.invoke(null, new Object[] {server});
+		} catch (InvocationTargetException e) {
+			server.err.println("Warm-up of " + nailClass.getName() + " failed: " + e.getCause());
+			synchronized(this) {
+				++hooksFailed;
+			}
+		} catch (IllegalAccessException e) {
+			server.err.println("Warm-up of " + nailClass.getName() + " failed: " + e);
+			synchronized(this) {
+				++hooksFailed;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		synchronized(this) {
+			if (slowestHook == null || elapsed > slowestHookNanos) {
+				slowestHook = nailClass;
+				slowestHookNanos = elapsed;
+			}
+		}
+	}
+
+	/**
+	 * Waits until the warm-up has finished, its budget has run out, or the
+	 * server has shut down
+	 * @throws InterruptedException if the thread is interrupted while
+	 * waiting
+	 */
+	synchronized void awaitCompletion() throws InterruptedException {
+		if (startedAt == 0) return;
+		while (finishedAt == 0 && !done) {
+			long remaining = (deadline - System.nanoTime()) / 1000000;
+			if (remaining <= 0) return;
+			wait(remaining);
+		}
+	}
+
+	/**
+	 * Abandons any classes not yet loaded, and hooks not yet called
+	 */
+	synchronized void shutdown() {
+		done = true;
+		notifyAll();
+		if (executor != null) executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of classes the warm-up is to load
+	 * @return the number of classes the warm-up is to load
+	 */
+	public synchronized int getTotal() {
+		return (total);
+	}
+
+	/**
+	 * Returns the number of classes the warm-up has loaded
+	 * @return the number of classes the warm-up has loaded
+	 */
+	public synchronized int getLoaded() {
+		return (loaded);
+	}
+
+	/**
+	 * Returns the number of classes the warm-up could not load
+	 * @return the number of classes the warm-up could not load
+	 */
+	public synchronized int getFailed() {
+		return (failed);
+	}
+
+	/**
+	 * Returns the number of classes left unloaded because the warm-up's
+	 * budget ran out
+	 * @return the number of classes the warm-up had no time for
+	 */
+	public synchronized int getSkipped() {
+		return (skipped);
+	}
+
+	/**
+	 * Returns the number of warm-up hooks called
+	 * @return the number of warm-up hooks called
+	 */
+	public synchronized int getHooks() {
+		return (hooks);
+	}
+
+	/**
+	 * Returns the number of warm-up hooks that threw an exception
+	 * @return the number of warm-up hooks that failed
+	 */
+	public synchronized int getHooksFailed() {
+		return (hooksFailed);
+	}
+
+	/**
+	 * Returns true if the warm-up has started and loaded, failed to load,
+	 * or skipped every class
+	 * @return true if the warm-up has finished
+	 */
+	public synchronized boolean isFinished() {
+		return (finishedAt != 0);
+	}
+
+	/**
+	 * Returns a summary of the warm-up suitable for ng-stats, in the form
+	 * "Alias warm-up: N/N classes loaded, N failed, N skipped, N hooks
+	 * called (N failed) in Nms (slowest alias, Nms; slowest hook class,
+	 * Nms)"
+	 * @return a summary of the warm-up
+	 */
+	public synchronized String toString() {
+		if (startedAt == 0) return ("Alias warm-up: not started");
+		StringBuffer buf = new StringBuffer("Alias warm-up: ");
+		buf.append(loaded);
+		buf.append("/");
+		buf.append(total);
+		buf.append(" classes loaded, ");
+		buf.append(failed);
+		buf.append(" failed, ");
+		buf.append(skipped);
+		buf.append(" skipped, ");
+		buf.append(hooks);
+		buf.append(" hooks called (");
+		buf.append(hooksFailed);
+		buf.append(" failed) ");
+		buf.append((finishedAt != 0) ? "in " : "so far, running for ");
+		buf.append((((finishedAt != 0) ? finishedAt : System.nanoTime()) - startedAt) / 1000000);
+		buf.append("ms");
+		if (slowest != null) {
+			buf.append(" (slowest ");
+			buf.append(slowest.getName());
+			buf.append(", ");
+			buf.append(slowest.getLoadNanos() / 1000000);
+			buf.append("ms");
+			if (slowestHook != null) {
+				buf.append("; slowest hook ");
+				buf.append(slowestHook.getName());
+				buf.append(", ");
+				buf.append(slowestHookNanos / 1000000);
+				buf.append("ms");
+			}
+			buf.append(")");
+		}
+		return (buf.toString());
+	}
+
+	/**
+	 * Names the warm-up threads, and makes them daemons so that they do
+	 * not keep the JVM alive
+	 */
+	private static class WarmupThreadFactory implements ThreadFactory {
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread result = new Thread(r, "NGServer warm-up " + (++count));
+			result.setDaemon(true);
+			return (result);
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Limits the number of nails that may run at once for an alias or a
+ * group of aliases, so that a burst of one kind of command cannot occupy
+ * every session in the server.  Commands started while the bulkhead is
+ * full wait, in the order they arrived, for a running nail to finish.  A
+ * waiting command holds no session: its connection is queued here and
+ * its session given back to the pool, and the connection is handed to a
+ * session again once the bulkhead has room for it.  So a full bulkhead
+ * never keeps other commands from running.</p>
+ *
+ * <p>A bulkhead may also have threads of its own, in which case its nails
+ * run on those threads rather than on the session threads.  This isolates
+ * anything the nails leave behind on their threads (thread locals, context
+ * class loaders, priorities) from all other commands.</p>
+ *
+ * <p>Bulkheads are assigned to aliases either programmatically (see
+ * <a href="Alias.html">Alias</a>) or via the properties loaded by
+ * <a href="AliasManager.html">AliasManager</a>.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class Bulkhead {
+
+	/**
+	 * The bulkhead name
+	 */
+	private String name;
+
+	/**
+	 * The maximum number of nails that may run in this bulkhead at once
+	 */
+	private int maxConcurrent;
+
+	/**
+	 * The threads on which this bulkhead's nails run, or <code>null</code>
+	 * if they run on their session threads
+	 */
+	private ExecutorService executor = null;
+
+	/**
+	 * The waiting commands, longest waiting first
+	 */
+	private LinkedList waiting = new LinkedList();
+
+	/**
+	 * The number of nails currently running
+	 */
+	private int active = 0;
+
+	/**
+	 * synchronization object
+	 */
+	private Object lock = new Object();
+
+	/**
+	 * statistics, guarded by <code>lock</code>
+	 */
+	private long runCount = 0;
+	private long queuedCount = 0;
+	private long queueNanos = 0;
+	private long maxQueueNanos = 0;
+	private int maxQueueDepth = 0;
+
+	/**
+	 * Creates a new Bulkhead whose nails run on their session threads.
+	 * @param name the bulkhead name
+	 * @param maxConcurrent the maximum number of nails that may run at once
+	 */
+	public Bulkhead(String name, int maxConcurrent) {
+		this(name, maxConcurrent, false);
+	}
+
+	/**
+	 * Creates a new Bulkhead.
+	 * @param name the bulkhead name
+	 * @param maxConcurrent the maximum number of nails that may run at once
+	 * @param dedicatedThreads if true, the bulkhead's nails run on
+	 * <code>maxConcurrent</code> threads of its own
+	 */
+	public Bulkhead(String name, int maxConcurrent, boolean dedicatedThreads) {
+		if (name == null || name.trim().length() == 0) throw (new IllegalArgumentException("Bulkhead must have a name."));
+		if (maxConcurrent < 1) throw (new IllegalArgumentException("Bulkhead must allow at least one nail to run."));
+		this.name = name.trim();
+		this.maxConcurrent = maxConcurrent;
+		if (dedicatedThreads) {
+			executor = Executors.newFixedThreadPool(maxConcurrent, new BulkheadThreadFactory(this.name));
+		}
+	}
+
+	/**
+	 * Returns the name of this bulkhead
+	 * @return the name of this bulkhead
+	 */
+	public String getName() {
+		return (name);
+	}
+
+	/**
+	 * Returns the maximum number of nails that may run in this bulkhead at once
+	 * @return the maximum number of nails that may run in this bulkhead at once
+	 */
+	public int getMaxConcurrent() {
+		return (maxConcurrent);
+	}
+
+	/**
+	 * Returns true if this bulkhead's nails run on threads of its own
+	 * @return true if this bulkhead's nails run on threads of its own
+	 */
+	public boolean hasDedicatedThreads() {
+		return (executor != null);
+	}
+
+	/**
+	 * Claims a place in this bulkhead for a command, or, if the bulkhead is
+	 * full, queues the command's connection to be handed to a session once
+	 * it has room.  The connection is then the bulkhead's until it is
+	 * handed on, and the caller must not use it again.
+	 * @param connection the connection whose command is to run
+	 * @param preamble the command's preamble, which the connection keeps
+	 * if it is queued
+	 * @param sessionPool the pool to which the connection is to be handed
+	 * if it is queued
+	 * @return true if the command may run now, false if it has been queued
+	 */
+	boolean admit(NGConnection connection, NGPreamble preamble, NGSessionPool sessionPool) {
+		synchronized(lock) {
+			if (active < maxConcurrent && waiting.isEmpty()) {
+				++active;
+				++runCount;
+				return (true);
+			}
+			connection.setPreamble(preamble);
+			waiting.addLast(new Waiting(connection, sessionPool));
+			maxQueueDepth = Math.max(maxQueueDepth, waiting.size());
+			return (false);
+		}
+	}
+
+	/**
+	 * Runs a nail admitted to this bulkhead, on this bulkhead's own threads if
+	 * it has any.  Returns once the nail has finished, whichever thread it
+	 * ran on.  The caller still holds its place in the bulkhead afterwards.
+	 * @param nail the nail invocation to run.  It must not throw; any
+	 * outcome is for the caller to collect from it afterwards.
+	 */
+	void execute(Runnable nail) {
+		if (executor == null) {
+			nail.run();
+		} else {
+			awaitOnExecutor(nail);
+		}
+	}
+
+	/**
+	 * Runs a nail on this bulkhead's threads and waits for it to finish.  The
+	 * wait cannot be interrupted, as the calling session must not move on to
+	 * another connection while the nail is still using this one.
+	 */
+	private void awaitOnExecutor(Runnable nail) {
+		FutureTask task = new FutureTask(nail, null);
+		executor.execute(task);
+		boolean interrupted = false;
+		while (true) {
+			try {
+				task.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				// the nail invocation records its own failures
+				break;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Gives up a place in this bulkhead.  If a command is waiting, the place
+	 * passes to it, and its connection is handed to a session; this never
+	 * waits for one, as the caller may be a session itself.
+	 */
+	void release() {
+		Waiting next;
+		synchronized(lock) {
+			if (waiting.isEmpty()) {
+				--active;
+				return;
+			}
+			next = (Waiting) waiting.removeFirst();
+			++runCount;
+
+			long waited = System.nanoTime() - next.since;
+			++queuedCount;
+			queueNanos += waited;
+			maxQueueNanos = Math.max(maxQueueNanos, waited);
+		}
+		next.connection.setAdmission(this);
+		next.sessionPool.dispatchAdmitted(next.connection);
+	}
+
+	/**
+	 * Returns the number of nails currently running in this bulkhead
+	 * @return the number of nails currently running in this bulkhead
+	 */
+	public int getActiveCount() {
+		synchronized(lock) {
+			return (active);
+		}
+	}
+
+	/**
+	 * Returns the number of commands currently waiting to run in this bulkhead
+	 * @return the number of commands currently waiting to run in this bulkhead
+	 */
+	public int getQueueDepth() {
+		synchronized(lock) {
+			return (waiting.size());
+		}
+	}
+
+	/**
+	 * Returns the greatest number of nails that have waited at once
+	 * @return the greatest number of nails that have waited at once
+	 */
+	public int getMaxQueueDepth() {
+		synchronized(lock) {
+			return (maxQueueDepth);
+		}
+	}
+
+	/**
+	 * Returns the number of nails that have been admitted to this bulkhead
+	 * @return the number of nails that have been admitted to this bulkhead
+	 */
+	public long getRunCount() {
+		synchronized(lock) {
+			return (runCount);
+		}
+	}
+
+	/**
+	 * Returns the number of nails that had to wait before being admitted
+	 * @return the number of nails that had to wait before being admitted
+	 */
+	public long getQueuedCount() {
+		synchronized(lock) {
+			return (queuedCount);
+		}
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that nails have waited to be
+	 * admitted to this bulkhead
+	 * @return the total wait time in nanoseconds
+	 */
+	public long getQueueNanos() {
+		synchronized(lock) {
+			return (queueNanos);
+		}
+	}
+
+	/**
+	 * Returns the longest time, in nanoseconds, that any nail has waited to
+	 * be admitted to this bulkhead
+	 * @return the longest wait time in nanoseconds
+	 */
+	public long getMaxQueueNanos() {
+		synchronized(lock) {
+			return (maxQueueNanos);
+		}
+	}
+
+	/**
+	 * Turns away the commands still waiting, and stops this bulkhead's own
+	 * threads, if it has any, once their nails have finished
+	 */
+	void shutdown() {
+		List turnedAway;
+		synchronized(lock) {
+			turnedAway = new java.util.ArrayList(waiting);
+			waiting.clear();
+		}
+		for (Iterator i = turnedAway.iterator(); i.hasNext();) {
+			((Waiting) i.next()).connection.reject(NGConstants.EXIT_OVERLOADED);
+		}
+		if (executor != null) executor.shutdown();
+	}
+
+	/**
+	 * Returns a String representation of this <code>Bulkhead</code>, in the
+	 * form "Bulkhead name: active/max running, N queued (max N), N waited
+	 * (avg Nus, max Nus)".
+	 * @return a String representation of this <code>Bulkhead</code>
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		synchronized(lock) {
+			buf.append("Bulkhead ");
+			buf.append(name);
+			buf.append(": ");
+			buf.append(active);
+			buf.append("/");
+			buf.append(maxConcurrent);
+			buf.append(" running, ");
+			buf.append(waiting.size());
+			buf.append(" queued (max ");
+			buf.append(maxQueueDepth);
+			buf.append("), ");
+			buf.append(queuedCount);
+			buf.append(" of ");
+			buf.append(runCount);
+			buf.append(" waited");
+			if (queuedCount > 0) {
+				buf.append(" (avg ");
+				buf.append(queueNanos / queuedCount / 1000);
+				buf.append("us, max ");
+				buf.append(maxQueueNanos / 1000);
+				buf.append("us)");
+			}
+		}
+		return (buf.toString());
+	}
+
+	/**
+	 * A command waiting for room in the bulkhead
+	 */
+	private static class Waiting {
+		final NGConnection connection;
+		final NGSessionPool sessionPool;
+		final long since = System.nanoTime();
+
+		Waiting(NGConnection connection, NGSessionPool sessionPool) {
+			this.connection = connection;
+			this.sessionPool = sessionPool;
+		}
+	}
+
+	/**
+	 * Names a bulkhead's own threads after it, and makes them daemons so
+	 * that they do not keep the JVM alive
+	 */
+	private static class BulkheadThreadFactory implements ThreadFactory {
+		private String name;
+		private int count = 0;
+
+		BulkheadThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread result = new Thread(r, "NGBulkhead " + name + "-" + (++count));
+			result.setDaemon(true);
+			return (result);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads NailGun chunks from a client through a buffer, so that a header and
+ * any short chunks following it arrive with a single read from the socket
+ * rather than one read per byte.  There must be exactly one ChunkReader per
+ * connection, as it may hold bytes the client sent beyond the chunk being
+ * read; everything that reads from the connection (the preamble, the stdin
+ * stream, and the multiplexer) must read through it.
+ *
+ * <p>A ChunkReader is also an InputStream of the raw bytes, for those that
+ * need to interpret the stream themselves.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class ChunkReader extends InputStream {
+
+	/**
+	 * The default buffer size
+	 */
+	static final int DEFAULT_BUFFERSIZE = 8192;
+
+	/**
+	 * The stream from the client
+	 */
+	private InputStream in;
+
+	/**
+	 * Bytes read from the client and not yet consumed are
+	 * <code>buf[pos]</code> through <code>buf[count - 1]</code>
+	 */
+	private byte[] buf;
+	private int pos = 0;
+	private int count = 0;
+
+	/**
+	 * The payload length of the chunk whose header was last read
+	 */
+	private int chunkLength = 0;
+
+	/**
+	 * The type of the chunk whose header was last read
+	 */
+	private byte chunkType = 0;
+
+	/**
+	 * Creates a new ChunkReader with the default buffer size
+	 * @param in the stream from the client
+	 */
+	ChunkReader(InputStream in) {
+		this(in, DEFAULT_BUFFERSIZE);
+	}
+
+	/**
+	 * Creates a new ChunkReader
+	 * @param in the stream from the client
+	 * @param bufferSize the size of the read buffer
+	 */
+	ChunkReader(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buf = new byte[Math.max(bufferSize, 16)];
+	}
+
+	/**
+	 * Reads more bytes from the client into the buffer, compacting it first
+	 * if necessary, until at least <code>needed</code> bytes are buffered.
+	 * @throws EOFException if the client closes the stream first
+	 */
+	private void fill(int needed) throws IOException {
+		if (count - pos >= needed) return;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, count - pos);
+			count -= pos;
+			pos = 0;
+		}
+		while (count < needed) {
+			int bytesRead = in.read(buf, count, buf.length - count);
+			if (bytesRead == -1) throw (new EOFException());
+			count += bytesRead;
+		}
+	}
+
+	/**
+	 * Reads the header of the next chunk.  Its type and payload length are
+	 * then available from <code>getChunkType()</code> and
+	 * <code>getChunkLength()</code>; the payload must be consumed before the
+	 * next header is read.
+	 * @return the chunk type
+	 * @throws EOFException if the client closes the stream before a whole
+	 * header arrives
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	byte readHeader() throws IOException {
+		fill(5);
+		chunkLength = ((buf[pos] & 0xff) << 24)
+					| ((buf[pos + 1] & 0xff) << 16)
+					| ((buf[pos + 2] & 0xff) << 8)
+					| (buf[pos + 3] & 0xff);
+		chunkType = buf[pos + 4];
+		pos += 5;
+		return (chunkType);
+	}
+
+	/**
+	 * Returns the type of the chunk whose header was last read
+	 * @return the type of the chunk whose header was last read
+	 */
+	byte getChunkType() {
+		return (chunkType);
+	}
+
+	/**
+	 * Returns the payload length of the chunk whose header was last read
+	 * @return the payload length of the chunk whose header was last read
+	 */
+	int getChunkLength() {
+		return (chunkLength);
+	}
+
+	/**
+	 * Reads exactly <code>len</code> bytes
+	 * @param b the buffer into which to read
+	 * @param offset the offset within <code>b</code> at which to start
+	 * @param len the number of bytes to read
+	 * @throws EOFException if the client closes the stream first
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	void readFully(byte[] b, int offset, int len) throws IOException {
+		while (len > 0) {
+			int bytesRead = read(b, offset, len);
+			if (bytesRead == -1) throw (new EOFException());
+			offset += bytesRead;
+			len -= bytesRead;
+		}
+	}
+
+	/**
+	 * Reads a big-endian four-byte integer
+	 * @return the integer read
+	 * @throws EOFException if the client closes the stream first
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	int readInt() throws IOException {
+		fill(4);
+		int result = ((buf[pos] & 0xff) << 24)
+					| ((buf[pos + 1] & 0xff) << 16)
+					| ((buf[pos + 2] & 0xff) << 8)
+					| (buf[pos + 3] & 0xff);
+		pos += 4;
+		return (result);
+	}
+
+	/**
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		if (pos == count) {
+			try {
+				fill(1);
+			} catch (EOFException e) {
+				return (-1);
+			}
+		}
+		return (buf[pos++] & 0xff);
+	}
+
+	/**
+	 * Reads from the buffer if it holds anything, and otherwise from the
+	 * client.  Reads at least as large as the buffer bypass it.
+	 * @see java.io.InputStream#read(byte[],int,int)
+	 */
+	public int read(byte[] b, int offset, int len) throws IOException {
+		if (len == 0) return (0);
+		if (pos == count) {
+			if (len >= buf.length) return (in.read(b, offset, len));
+			pos = 0;
+			count = 0;
+			int bytesRead = in.read(buf, 0, buf.length);
+			if (bytesRead == -1) return (-1);
+			count = bytesRead;
+		}
+		int result = Math.min(len, count - pos);
+		System.arraycopy(buf, pos, b, offset, result);
+		pos += result;
+		return (result);
+	}
+
+	/**
+	 * Returns the number of bytes that can be read without blocking
+	 * @see java.io.InputStream#available()
+	 */
+	public int available() throws IOException {
+		return ((count - pos) + in.available());
+	}
+
+	/**
+	 * Returns the number of bytes held in the buffer
+	 * @return the number of bytes held in the buffer
+	 */
+	int buffered() {
+		return (count - pos);
+	}
+
+	/**
+	 * Removes and returns the bytes held in the buffer, such as when the
+	 * connection is handed to another reader
+	 * @return the bytes held in the buffer
+	 */
+	byte[] drainBuffer() {
+		byte[] result = new byte[count - pos];
+		System.arraycopy(buf, pos, result, 0, result.length);
+		pos = 0;
+		count = 0;
+		return (result);
+	}
+
+	/**
+	 * @see java.io.InputStream#close()
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
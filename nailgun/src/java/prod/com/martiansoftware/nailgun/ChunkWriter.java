@@ -0,0 +1,383 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Writes NailGun chunks to a client, assembling each chunk's header and
+ * payload in a buffer so that the whole chunk goes out with a single write
+ * to the socket.  Payloads larger than the buffer are split into several
+ * chunks of the same type, which clients treat no differently.
+ *
+ * <p>All output to a connection goes through its one ChunkWriter, whose
+ * methods are synchronized so that chunks from several streams (stdout,
+ * stderr, exit) are never interleaved.</p>
+ *
+ * <p>If the client has agreed to compression, stdout and stderr chunks at
+ * least as long as the compression threshold are sent as
+ * <code>NGConstants.CHUNKTYPE_COMPRESSED</code> chunks instead, each
+ * compressed by itself, provided that makes them smaller.  Shorter
+ * chunks, such as interactive output, are never delayed or compressed.</p>
+ *
+ * <p>Output from a file (see <code>transferFrom()</code>) is sent in
+ * chunks of up to <code>MAX_TRANSFER_PAYLOAD</code> bytes whose payloads
+ * go straight from the file to the connection's channel with
+ * <code>FileChannel.transferTo()</code>, where the connection has a
+ * channel and the client has not agreed to compression.  Otherwise it is
+ * copied through a small buffer that is reused.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class ChunkWriter {
+
+	/**
+	 * The default buffer size, which is also the largest payload sent in a
+	 * single chunk
+	 */
+	static final int DEFAULT_BUFFERSIZE = 8192;
+
+	/**
+	 * The largest payload sent in a single chunk from a file, which is
+	 * large enough that the chunk headers cost next to nothing
+	 */
+	static final int MAX_TRANSFER_PAYLOAD = 1024 * 1024;
+
+	/**
+	 * The size of the buffer through which output from a file is copied
+	 * where it cannot be transferred directly
+	 */
+	private static final int TRANSFER_BUFFERSIZE = 65536;
+
+	/**
+	 * The size of a chunk header
+	 */
+	private static final int HEADER_SIZE = 5;
+
+	/**
+	 * The stream to the client
+	 */
+	private OutputStream out;
+
+	/**
+	 * The channel underlying <code>out</code>, if any, to which payloads
+	 * from files are transferred directly
+	 */
+	private WritableByteChannel channel = null;
+
+	/**
+	 * Buffer in which each chunk is assembled
+	 */
+	private byte[] buf;
+
+	/**
+	 * Buffer through which output from a file is copied, created when
+	 * first needed
+	 */
+	private ByteBuffer transferBuffer = null;
+
+	/**
+	 * The shortest stdout or stderr payload to compress, or zero if the
+	 * client has not agreed to compression
+	 */
+	private int compressionThreshold = 0;
+
+	/**
+	 * Compresses payloads, created when first needed
+	 */
+	private Deflater deflater = null;
+
+	/**
+	 * The credit for stdout and stderr, if the client asked for flow
+	 * control
+	 */
+	private volatile FlowControl flowControl = null;
+
+	/**
+	 * Creates a new ChunkWriter with the default buffer size
+	 * @param out the stream to the client
+	 */
+	ChunkWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFERSIZE);
+	}
+
+	/**
+	 * Creates a new ChunkWriter
+	 * @param out the stream to the client
+	 * @param maxPayload the largest payload to send in a single chunk
+	 */
+	ChunkWriter(OutputStream out, int maxPayload) {
+		this.out = out;
+		this.buf = new byte[HEADER_SIZE + Math.max(1, maxPayload)];
+	}
+
+	/**
+	 * Sends a chunk with no payload
+	 * @param chunkType the chunk type
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	synchronized void writeChunk(byte chunkType) throws IOException {
+		writeHeader(0, chunkType);
+		out.write(buf, 0, HEADER_SIZE);
+	}
+
+	/**
+	 * Sends a payload as one or more chunks of the specified type.  Under
+	 * flow control, stdout and stderr are sent only as the client grants
+	 * credit, which is waited for without holding up other chunks.  A
+	 * client may send its next command as soon as it has the exit chunk,
+	 * so no other thread (the ClientMonitor, say) reads from it under flow
+	 * control once that is sent.
+	 * @param chunkType the chunk type
+	 * @param b the buffer containing the payload
+	 * @param offset the offset of the payload within <code>b</code>
+	 * @param len the length of the payload
+	 * @throws IOException if thrown by the underlying stream, or if the
+	 * client closes the connection while output waits for credit
+	 */
+	void writeChunk(byte chunkType, byte[] b, int offset, int len) throws IOException {
+		FlowControl flow = flowControl;
+		if (flow != null && chunkType == NGConstants.CHUNKTYPE_EXIT) flow.close();
+		if (flow == null || len == 0
+			|| (chunkType != NGConstants.CHUNKTYPE_STDOUT && chunkType != NGConstants.CHUNKTYPE_STDERR)) {
+			write(chunkType, b, offset, len);
+			return;
+		}
+		while (len > 0) {
+			int credit = flow.acquireOutput(len);
+			write(chunkType, b, offset, credit);
+			offset += credit;
+			len -= credit;
+		}
+	}
+
+	/**
+	 * Sends as much of a payload as the client's credit allows within the
+	 * specified time, as one or more chunks of the specified type.  Credit
+	 * is waited for without reading from the client (see
+	 * <code>FlowControl.tryAcquireOutput()</code>).
+	 * @param chunkType the chunk type
+	 * @param b the buffer containing the payload
+	 * @param offset the offset of the payload within <code>b</code>
+	 * @param len the length of the payload
+	 * @param timeout the longest time, in milliseconds, to wait for credit,
+	 * or zero not to wait
+	 * @return the number of bytes sent, which is all of them unless the
+	 * output is under flow control
+	 * @throws IOException if thrown by the underlying stream, or if the
+	 * client has closed the connection
+	 */
+	int tryWriteChunk(byte chunkType, byte[] b, int offset, int len, long timeout) throws IOException {
+		if (len == 0) return (0);
+		FlowControl flow = flowControl;
+		if (flow == null || (chunkType != NGConstants.CHUNKTYPE_STDOUT && chunkType != NGConstants.CHUNKTYPE_STDERR)) {
+			write(chunkType, b, offset, len);
+			return (len);
+		}
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		int sent = 0;
+		while (sent < len) {
+			int credit = flow.tryAcquireOutput(len - sent, Math.max(0, (deadline - System.nanoTime()) / 1000000));
+			if (credit == 0) break;
+			write(chunkType, b, offset + sent, credit);
+			sent += credit;
+		}
+		return (sent);
+	}
+
+	/**
+	 * Sends a payload as one or more chunks of the specified type,
+	 * regardless of credit
+	 */
+	private synchronized void write(byte chunkType, byte[] b, int offset, int len) throws IOException {
+		int maxPayload = buf.length - HEADER_SIZE;
+		do {
+			int chunkLen = Math.min(len, maxPayload);
+			if (compressionThreshold == 0 || chunkLen < compressionThreshold
+				|| (chunkType != NGConstants.CHUNKTYPE_STDOUT && chunkType != NGConstants.CHUNKTYPE_STDERR)
+				|| !writeCompressed(chunkType, b, offset, chunkLen)) {
+				writeHeader(chunkLen, chunkType);
+				System.arraycopy(b, offset, buf, HEADER_SIZE, chunkLen);
+				out.write(buf, 0, HEADER_SIZE + chunkLen);
+			}
+			offset += chunkLen;
+			len -= chunkLen;
+		} while (len > 0);
+	}
+
+	/**
+	 * Sends a payload as a compressed chunk, if compressing it makes it
+	 * smaller
+	 * @return true if the chunk was sent
+	 */
+	private boolean writeCompressed(byte chunkType, byte[] b, int offset, int len) throws IOException {
+		// with the type byte, nothing this short can come out any shorter
+		if (len < 3) return (false);
+		if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED, true);
+		deflater.reset();
+		deflater.setInput(b, offset, len);
+		deflater.finish();
+		// the compressed chunk must come out shorter than the original
+		int compressedLen = deflater.deflate(buf, HEADER_SIZE + 1, len - 2);
+		if (!deflater.finished()) return (false);
+		writeHeader(compressedLen + 1, NGConstants.CHUNKTYPE_COMPRESSED);
+		buf[HEADER_SIZE] = chunkType;
+		out.write(buf, 0, HEADER_SIZE + 1 + compressedLen);
+		return (true);
+	}
+
+	/**
+	 * Sends part of a file as chunks of the specified type (stdout or
+	 * stderr), subject to flow control like any other output.  The file's
+	 * position is not changed.
+	 * @param chunkType the chunk type
+	 * @param file the file to send
+	 * @param position the position in the file of the first byte to send
+	 * @param count the most bytes to send; fewer are sent if the file ends
+	 * first
+	 * @return the number of bytes sent
+	 * @throws IOException if the file cannot be read, or if thrown by the
+	 * underlying stream.  If the file is truncated while it is being
+	 * transferred directly, the connection is closed, as the chunk whose
+	 * length has been sent cannot be completed.
+	 */
+	long transferFrom(byte chunkType, FileChannel file, long position, long count) throws IOException {
+		count = Math.max(0, Math.min(count, file.size() - position));
+		if (!canTransfer()) return (copyFrom(chunkType, file, position, count));
+		long sent = 0;
+		while (sent < count) {
+			int len = (int) Math.min(count - sent, MAX_TRANSFER_PAYLOAD);
+			FlowControl flow = flowControl;
+			if (flow != null) len = flow.acquireOutput(len);
+			transferChunk(chunkType, file, position + sent, len);
+			sent += len;
+		}
+		flush();
+		return (sent);
+	}
+
+	/**
+	 * Returns true if payloads from files can go straight to the channel
+	 */
+	private synchronized boolean canTransfer() {
+		return (channel != null && compressionThreshold == 0);
+	}
+
+	/**
+	 * Sends a single chunk whose payload is transferred from a file
+	 */
+	private synchronized void transferChunk(byte chunkType, FileChannel file, long position, int len) throws IOException {
+		writeHeader(len, chunkType);
+		out.write(buf, 0, HEADER_SIZE);
+		long transferred = 0;
+		while (transferred < len) {
+			long n = file.transferTo(position + transferred, len - transferred, channel);
+			if (n <= 0 && position + transferred >= file.size()) {
+				channel.close();
+				throw (new IOException("File was truncated while being sent"));
+			}
+			transferred += n;
+		}
+	}
+
+	/**
+	 * Sends part of a file by copying it through the transfer buffer
+	 */
+	private long copyFrom(byte chunkType, FileChannel file, long position, long count) throws IOException {
+		ByteBuffer copyBuffer;
+		synchronized(this) {
+			if (transferBuffer == null) transferBuffer = ByteBuffer.allocate(TRANSFER_BUFFERSIZE);
+			copyBuffer = transferBuffer;
+			// another thread copying a file at the same time gets its own
+			transferBuffer = null;
+		}
+		long sent = 0;
+		try {
+			while (sent < count) {
+				copyBuffer.clear();
+				copyBuffer.limit((int) Math.min(copyBuffer.capacity(), count - sent));
+				int bytesRead = file.read(copyBuffer, position + sent);
+				if (bytesRead <= 0) break;
+				writeChunk(chunkType, copyBuffer.array(), 0, bytesRead);
+				sent += bytesRead;
+			}
+		} finally {
+			synchronized(this) {
+				transferBuffer = copyBuffer;
+			}
+		}
+		flush();
+		return (sent);
+	}
+
+	/**
+	 * Sets the channel underlying the stream to the client, to which
+	 * payloads from files may be transferred directly
+	 * @param channel the channel, which must be in blocking mode whenever
+	 * output is sent
+	 */
+	synchronized void setChannel(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Sets the shortest stdout or stderr payload to compress, once the
+	 * client has agreed to compression
+	 * @param compressionThreshold the threshold in bytes, or zero to stop
+	 * compressing
+	 */
+	synchronized void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = Math.max(0, compressionThreshold);
+		if (this.compressionThreshold == 0 && deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	/**
+	 * Sets the credit that limits stdout and stderr, once the client has
+	 * asked for flow control
+	 * @param flowControl the command's credit, or <code>null</code> to send
+	 * output without limit
+	 */
+	void setFlowControl(FlowControl flowControl) {
+		this.flowControl = flowControl;
+	}
+
+	private void writeHeader(int len, byte chunkType) {
+		buf[0] = (byte) (len >>> 24);
+		buf[1] = (byte) (len >>> 16);
+		buf[2] = (byte) (len >>> 8);
+		buf[3] = (byte) len;
+		buf[4] = chunkType;
+	}
+
+	/**
+	 * Flushes the underlying stream, in case it is buffered
+	 * @throws IOException if thrown by the underlying stream
+	 */
+	synchronized void flush() throws IOException {
+		out.flush();
+	}
+}
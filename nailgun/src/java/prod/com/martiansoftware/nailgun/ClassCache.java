@@ -0,0 +1,235 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Remembers the classes recently run by name (see
+ * <code>NGServer.allowsNailsByClassName()</code>), and the names recently
+ * found not to be classes, so that neither is looked for again on every
+ * command.  Looking for a class that is not there searches the whole
+ * classpath, which a mistyped or probing command would otherwise do each
+ * time it is sent.</p>
+ *
+ * <p>Classes are remembered until the cache is full, when the least
+ * recently used are forgotten.  Unknown names are remembered for a short
+ * time only (see <code>NGServer.setClassCacheTtl()</code>), so that a
+ * class added to the classpath by other means is soon found.  Both are
+ * forgotten whenever <code>ng-cp</code> adds to the classpath.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class ClassCache {
+
+	/**
+	 * The classes found, by name, most recently used last
+	 */
+	private Map classes = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return (size() > capacity);
+		}
+	};
+
+	/**
+	 * When, by <code>System.nanoTime()</code>, each name found not to be a
+	 * class should be looked for again, oldest first
+	 */
+	private Map unknown = new LinkedHashMap(16, 0.75f, false) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return (size() > capacity);
+		}
+	};
+
+	/**
+	 * The most classes, and the most unknown names, to remember
+	 */
+	private int capacity;
+
+	/**
+	 * How long, in milliseconds, to remember that a name is not a class
+	 */
+	private int ttl;
+
+	/**
+	 * Counts the invalidations, so that a class looked for before one is
+	 * not remembered after it
+	 */
+	private int generation = 0;
+
+	/**
+	 * The number of lookups answered from the cache for classes and for
+	 * unknown names, and the number that searched the classpath
+	 */
+	private long hits = 0;
+	private long negativeHits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a new ClassCache
+	 * @param capacity the most classes, and the most unknown names, to
+	 * remember; zero disables the cache
+	 * @param ttl how long, in milliseconds, to remember that a name is not
+	 * a class; zero remembers only classes
+	 */
+	ClassCache(int capacity, int ttl) {
+		this.capacity = Math.max(0, capacity);
+		this.ttl = Math.max(0, ttl);
+	}
+
+	/**
+	 * Changes the number of classes and unknown names remembered,
+	 * forgetting the least recently used if there are now too many
+	 * @param capacity the most classes, and the most unknown names, to
+	 * remember; zero disables the cache
+	 */
+	synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		while (classes.size() > this.capacity) {
+			classes.remove(classes.keySet().iterator().next());
+		}
+		while (unknown.size() > this.capacity) {
+			unknown.remove(unknown.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Changes how long names found not to be classes are remembered
+	 * @param ttl how long, in milliseconds, to remember that a name is not
+	 * a class; zero remembers only classes
+	 */
+	synchronized void setTtl(int ttl) {
+		this.ttl = Math.max(0, ttl);
+		if (this.ttl == 0) unknown.clear();
+	}
+
+	/**
+	 * Returns the named class, looking for it only if it is not cached
+	 * @param name the fully qualified name of the class
+	 * @return the class
+	 * @throws ClassNotFoundException if there is no such class
+	 */
+	Class forName(String name) throws ClassNotFoundException {
+		int lookupGeneration;
+		synchronized(this) {
+			Class result = (Class) classes.get(name);
+			if (result != null) {
+				++hits;
+				return (result);
+			}
+			Long expiry = (Long) unknown.get(name);
+			if (expiry != null) {
+				if (System.nanoTime() - expiry.longValue() < 0) {
+					++negativeHits;
+					// thrown afresh, so the stack trace is the caller's
+					throw (new ClassNotFoundException(name));
+				}
+				unknown.remove(name);
+			}
+			++misses;
+			lookupGeneration = generation;
+		}
+		// the search is made without the lock, so that one slow search
+		// does not hold up the others
+		try {
+			Class result = Class.forName(name);
+			synchronized(this) {
+				if (lookupGeneration == generation && capacity > 0) classes.put(name, result);
+			}
+			return (result);
+		} catch (ClassNotFoundException e) {
+			synchronized(this) {
+				if (lookupGeneration == generation && capacity > 0 && ttl > 0) {
+					unknown.put(name, Long.valueOf(System.nanoTime() + ttl * 1000000L));
+				}
+			}
+			throw (e);
+		}
+	}
+
+	/**
+	 * Forgets every class and unknown name, so that each is looked for
+	 * again: after the classpath has changed, say
+	 */
+	public synchronized void invalidate() {
+		classes.clear();
+		unknown.clear();
+		++generation;
+	}
+
+	/**
+	 * Returns the number of classes currently remembered
+	 * @return the number of classes currently remembered
+	 */
+	public synchronized int size() {
+		return (classes.size());
+	}
+
+	/**
+	 * Returns the number of names currently remembered as not being classes
+	 * @return the number of unknown names currently remembered
+	 */
+	public synchronized int unknownSize() {
+		return (unknown.size());
+	}
+
+	/**
+	 * Returns the most classes, and the most unknown names, that will be
+	 * remembered
+	 * @return the cache's capacity
+	 */
+	public synchronized int getCapacity() {
+		return (capacity);
+	}
+
+	/**
+	 * Returns the number of lookups answered with a cached class
+	 * @return the number of cache hits
+	 */
+	public synchronized long getHits() {
+		return (hits);
+	}
+
+	/**
+	 * Returns the number of lookups answered with a cached unknown name
+	 * @return the number of negative cache hits
+	 */
+	public synchronized long getNegativeHits() {
+		return (negativeHits);
+	}
+
+	/**
+	 * Returns the number of lookups that had to search the classpath
+	 * @return the number of cache misses
+	 */
+	public synchronized long getMisses() {
+		return (misses);
+	}
+
+	/**
+	 * Returns a summary of the cache suitable for ng-stats
+	 * @return a summary of the cache
+	 */
+	public synchronized String toString() {
+		return ("Class cache: " + classes.size() + "/" + capacity + " classes, "
+				+ unknown.size() + " unknown names, " + hits + " hits, "
+				+ negativeHits + " negative hits, " + misses + " misses");
+	}
+}
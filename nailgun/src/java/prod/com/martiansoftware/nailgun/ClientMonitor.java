@@ -0,0 +1,309 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Watches the clients of running commands that send heartbeats (see
+ * <code>NGConstants.CHUNKTYPE_HEARTBEAT</code>), and cancels the commands
+ * of clients that have gone: those that have closed or reset the
+ * connection, and those that have been silent for longer than the
+ * server's heartbeat timeout (see <code>NGServer.setHeartbeatTimeout()</code>).
+ * Such a client has usually been interrupted or killed, and would
+ * otherwise leave its nail running until the nail happened to write to
+ * the dead connection.</p>
+ *
+ * <p>A single thread checks each watched command every disconnect check
+ * interval (see <code>NGServer.setDisconnectCheckInterval()</code>).
+ * Where no other thread is reading from the client, it reads whatever
+ * the client has sent (holding any stdin for the nail, as a thread
+ * waiting for flow control credit would), without waiting for any.
+ * Whether a client has closed its end can only be told by waiting
+ * briefly to read from it, so only the clients that have sent nothing
+ * are waited on, for no more than half the interval in all: first those
+ * that have missed a heartbeat, then the rest in turn.  A closed
+ * connection is therefore noticed within about one check interval while
+ * there are few commands, and within about one heartbeat interval
+ * however many there are; a silent client is noticed within the
+ * heartbeat timeout.</p>
+ *
+ * <p>Signals forwarded by watched clients are delivered on threads of
+ * their own (see <code>execute()</code>), not on the checking thread, as
+ * a nail's signal listener, or its output, can take any time at all.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class ClientMonitor implements Runnable {
+
+	/**
+	 * The longest time, in milliseconds, spent checking whether a client
+	 * has closed its end of the connection
+	 */
+	private static final int POLL_TIMEOUT = 1;
+
+	/**
+	 * What a check found: that the client was heard from (or that its
+	 * command is over), that it had sent nothing, or that it had sent
+	 * nothing and has missed a heartbeat
+	 */
+	private static final int HEARD = 0;
+	private static final int QUIET = 1;
+	private static final int OVERDUE = 2;
+
+	private NGServer server;
+
+	/**
+	 * The watched commands, by their FlowControl
+	 */
+	private Map watches = new HashMap();
+
+	/**
+	 * Runs the checks, once there is something to watch
+	 */
+	private ScheduledExecutorService checker = null;
+
+	/**
+	 * Delivers forwarded signals, once there are any
+	 */
+	private ExecutorService deliverer = null;
+
+	/**
+	 * True once the server has shut down
+	 */
+	private boolean done = false;
+
+	/**
+	 * Where among the quiet clients that have not missed a heartbeat the
+	 * next check starts waiting, so that each is waited on in turn.  Used
+	 * only by the checking thread.
+	 */
+	private int nextWait = 0;
+
+	/**
+	 * Creates a new ClientMonitor for the specified server
+	 * @param server the server whose commands are watched
+	 */
+	ClientMonitor(NGServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Starts watching a command's client
+	 * @param flowControl the command's credit, which notes when the client
+	 * was last heard from
+	 * @param connection the command's connection
+	 * @param session the session running the command, which is asked to
+	 * cancel it if the client goes
+	 * @param heartbeatInterval the interval, in milliseconds, at which the
+	 * client offered to send heartbeats
+	 */
+	synchronized void watch(FlowControl flowControl, NGConnection connection, NGSession session, int heartbeatInterval) {
+		if (done) return;
+		// a client whose interval is too long for the server's timeout
+		// is allowed to miss one heartbeat
+		long timeout = Math.max(server.getHeartbeatTimeout(), 2L * heartbeatInterval);
+		long overdue = (long) heartbeatInterval + server.getDisconnectCheckInterval();
+		watches.put(flowControl, new Watch(flowControl, connection, session, flowControl.getGeneration(),
+											timeout * 1000000L, overdue * 1000000L));
+		if (checker == null) {
+			checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread result = new Thread(r, "NGServer client monitor");
+					result.setDaemon(true);
+					return (result);
+				}
+			});
+			long interval = server.getDisconnectCheckInterval();
+			checker.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops watching a command's client
+	 * @param flowControl the command's credit
+	 */
+	synchronized void unwatch(FlowControl flowControl) {
+		watches.remove(flowControl);
+	}
+
+	/**
+	 * Runs a task on a thread of its own, apart from the checks, unless the
+	 * server has shut down: the delivery of signals forwarded by a watched
+	 * client, say.  Threads are reused once their tasks are done.
+	 * @param task the task to run
+	 * @return true if the task will be run
+	 */
+	synchronized boolean execute(Runnable task) {
+		if (done) return (false);
+		if (deliverer == null) {
+			deliverer = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+
+				public Thread newThread(Runnable r) {
+					Thread result = new Thread(r, "NGServer signal delivery " + (++count));
+					result.setDaemon(true);
+					return (result);
+				}
+			});
+		}
+		deliverer.execute(task);
+		return (true);
+	}
+
+	/**
+	 * Stops the checks for good
+	 */
+	synchronized void shutdown() {
+		done = true;
+		watches.clear();
+		if (checker != null) checker.shutdownNow();
+		if (deliverer != null) deliverer.shutdownNow();
+	}
+
+	/**
+	 * Checks each watched command once, and then waits on the quiet
+	 * clients for as long as half the check interval allows
+	 */
+	public void run() {
+		Watch[] toCheck;
+		synchronized(this) {
+			toCheck = (Watch[]) watches.values().toArray(new Watch[watches.size()]);
+		}
+		long start = System.nanoTime();
+		// the overdue first, then the rest from nextWait on
+		Watch[] toWait = new Watch[toCheck.length];
+		int overdue = 0;
+		int quiet = 0;
+		for (int i = 0; i < toCheck.length; ++i) {
+			try {
+				int state = check(toCheck[i], start);
+				if (state == OVERDUE) {
+					toWait[overdue++] = toCheck[i];
+				} else if (state == QUIET) {
+					toWait[toWait.length - ++quiet] = toCheck[i];
+				}
+			} catch (Throwable t) {
+				// one bad command must not stop the checks
+				t.printStackTrace();
+			}
+		}
+
+		long deadline = start + server.getDisconnectCheckInterval() * 500000L;
+		int rest = toWait.length - quiet;
+		if (quiet > 0) nextWait %= quiet;
+		for (int i = 0; i < overdue + quiet && System.nanoTime() - deadline < 0; ++i) {
+			Watch watch = (i < overdue) ? toWait[i] : toWait[rest + (nextWait++ % quiet)];
+			try {
+				waitFor(watch);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Checks, without waiting, whether a command's client has gone, reading
+	 * whatever it has sent, and cancels the command if it has
+	 * @param watch the command
+	 * @param now the time of the check, by <code>System.nanoTime()</code>
+	 * @return <code>QUIET</code> or <code>OVERDUE</code> if the client had
+	 * sent nothing, and may have closed its end, or <code>HEARD</code>
+	 */
+	private int check(Watch watch, long now) {
+		FlowControl flowControl = watch.flowControl;
+		// the session reuses its FlowControl for its next command
+		if (flowControl.getGeneration() != watch.generation) return (HEARD);
+		long goneSince = flowControl.getFailedAt();
+		if (goneSince != 0) {
+			cancel(watch, goneSince, "closed the connection");
+			return (HEARD);
+		}
+		long lastHeard = flowControl.getLastHeard();
+		if (now - lastHeard > watch.timeoutNanos) {
+			cancel(watch, lastHeard, "stopped sending heartbeats");
+			return (HEARD);
+		}
+		try {
+			if (flowControl.poll(watch.connection, 0, watch.generation)) return (HEARD);
+		} catch (IOException e) {
+			cancel(watch, flowControl.getFailedAt(), "closed the connection");
+			return (HEARD);
+		}
+		return ((now - lastHeard > watch.overdueNanos) ? OVERDUE : QUIET);
+	}
+
+	/**
+	 * Waits briefly to read from a quiet client, and cancels its command if
+	 * it has closed its end
+	 */
+	private void waitFor(Watch watch) {
+		FlowControl flowControl = watch.flowControl;
+		try {
+			flowControl.poll(watch.connection, POLL_TIMEOUT, watch.generation);
+		} catch (IOException e) {
+			cancel(watch, flowControl.getFailedAt(), "closed the connection");
+		}
+	}
+
+	/**
+	 * Stops watching a command whose client has gone, and asks its session
+	 * to cancel it
+	 */
+	private void cancel(Watch watch, long goneSince, String reason) {
+		synchronized(this) {
+			if (watches.get(watch.flowControl) != watch) return;
+			watches.remove(watch.flowControl);
+		}
+		watch.session.cancel(watch.flowControl, watch.generation, goneSince, reason);
+	}
+
+	/**
+	 * A watched command
+	 */
+	private static class Watch {
+		FlowControl flowControl;
+		NGConnection connection;
+		NGSession session;
+		int generation;
+		long timeoutNanos;
+
+		/**
+		 * How long the client may be silent before it has missed a
+		 * heartbeat, in nanoseconds
+		 */
+		long overdueNanos;
+
+		Watch(FlowControl flowControl, NGConnection connection, NGSession session, int generation, long timeoutNanos, long overdueNanos) {
+			this.flowControl = flowControl;
+			this.connection = connection;
+			this.session = session;
+			this.generation = generation;
+			this.timeoutNanos = timeoutNanos;
+			this.overdueNanos = overdueNanos;
+		}
+	}
+}
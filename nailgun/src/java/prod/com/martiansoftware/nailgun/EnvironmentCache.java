@@ -0,0 +1,215 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Remembers the environments clients have recently sent, keyed by
+ * digest, so that a client whose environment the server has already seen
+ * need not send it again.  A client offers the digest of its environment
+ * in a <code>NGConstants.CHUNKTYPE_ENVDIGEST</code> chunk; the server
+ * replies whether it has that environment, and the client sends its
+ * environment variables only if it does not.</p>
+ *
+ * <p>The digest is the SHA-256 hash of the environment variables, each
+ * followed by a zero byte, in the order they are sent, written as 64
+ * lowercase hexadecimal digits.  The server checks it against the
+ * variables it receives before remembering them.  The cache is shared by
+ * every client, so the hash must resist collisions: a client that could
+ * find an environment with the same digest as another's could otherwise
+ * have its own environment given to the other's commands.</p>
+ *
+ * <p>The least recently used environments are forgotten once the cache
+ * is full.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class EnvironmentCache {
+
+	/**
+	 * The hash of which digests are made
+	 */
+	private static final String ALGORITHM = "SHA-256";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The environments, most recently used last
+	 */
+	private Map entries = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return (size() > capacity);
+		}
+	};
+
+	/**
+	 * The most environments to remember
+	 */
+	private int capacity;
+
+	/**
+	 * The number of digests offered that were and were not cached
+	 */
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a new EnvironmentCache
+	 * @param capacity the most environments to remember; zero disables
+	 * the cache
+	 */
+	EnvironmentCache(int capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * Changes the number of environments remembered, forgetting the least
+	 * recently used if there are now too many
+	 * @param capacity the most environments to remember; zero disables
+	 * the cache
+	 */
+	synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		while (entries.size() > this.capacity) {
+			entries.remove(entries.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Looks up an environment by digest
+	 * @param digest the digest offered by the client
+	 * @return the environment variable names and values, as two arrays of
+	 * the same length, or <code>null</code> if the environment is not
+	 * cached
+	 */
+	synchronized String[][] get(String digest) {
+		String[][] result = (String[][]) entries.get(digest);
+		if (result == null) {
+			++misses;
+		} else {
+			++hits;
+		}
+		return (result);
+	}
+
+	/**
+	 * Remembers an environment.  The arrays are copied.
+	 * @param digest the environment's digest
+	 * @param keys the environment variable names
+	 * @param values the environment variable values
+	 * @param count the number of variables
+	 */
+	void put(String digest, String[] keys, String[] values, int count) {
+		String[][] entry = new String[2][count];
+		System.arraycopy(keys, 0, entry[0], 0, count);
+		System.arraycopy(values, 0, entry[1], 0, count);
+		synchronized(this) {
+			if (capacity > 0) entries.put(digest, entry);
+		}
+	}
+
+	/**
+	 * Returns a new hash with which to check a client's digest
+	 * @return a new hash
+	 */
+	static MessageDigest newHash() {
+		try {
+			return (MessageDigest.getInstance(ALGORITHM));
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support it
+			throw (new IllegalStateException(ALGORITHM + " is not available"));
+		}
+	}
+
+	/**
+	 * Adds one environment variable to a running hash
+	 * @param hash the hash so far
+	 * @param b the buffer containing the variable
+	 * @param offset the offset of the variable within <code>b</code>
+	 * @param len the length of the variable
+	 */
+	static void hash(MessageDigest hash, byte[] b, int offset, int len) {
+		hash.update(b, offset, len);
+		// each variable is followed by its C string terminator
+		hash.update((byte) 0);
+	}
+
+	/**
+	 * Returns true if a digest, as sent by a client, names the specified
+	 * hash
+	 * @param digest the digest
+	 * @param hash the finished hash
+	 * @return true if the digest is the hash in hexadecimal
+	 */
+	static boolean matches(String digest, byte[] hash) {
+		if (digest.length() != hash.length * 2) return (false);
+		for (int i = 0; i < hash.length; ++i) {
+			if (digest.charAt(2 * i) != HEX[(hash[i] >> 4) & 0xf]
+				|| digest.charAt(2 * i + 1) != HEX[hash[i] & 0xf]) return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * Returns the number of environments currently remembered
+	 * @return the number of environments currently remembered
+	 */
+	public synchronized int size() {
+		return (entries.size());
+	}
+
+	/**
+	 * Returns the most environments that will be remembered
+	 * @return the most environments that will be remembered
+	 */
+	public synchronized int getCapacity() {
+		return (capacity);
+	}
+
+	/**
+	 * Returns the number of digests offered by clients whose environment
+	 * was cached
+	 * @return the number of cache hits
+	 */
+	public synchronized long getHits() {
+		return (hits);
+	}
+
+	/**
+	 * Returns the number of digests offered by clients whose environment
+	 * had to be sent
+	 * @return the number of cache misses
+	 */
+	public synchronized long getMisses() {
+		return (misses);
+	}
+
+	/**
+	 * Returns a summary of the cache suitable for ng-stats
+	 * @return a summary of the cache
+	 */
+	public synchronized String toString() {
+		return ("Environment cache: " + entries.size() + "/" + capacity + " entries, "
+				+ hits + " hits, " + misses + " misses");
+	}
+}
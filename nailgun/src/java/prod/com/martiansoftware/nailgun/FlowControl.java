@@ -0,0 +1,451 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * <p>Keeps the credit for a command whose client asked for flow control
+ * (see <code>NGConstants.CHUNKTYPE_CREDIT</code>).  The client grants
+ * credit for stdout and stderr as it writes them out, and the server
+ * grants credit for stdin as the nail reads it, so that neither side ever
+ * has more than a window's worth of the other's data to hold.</p>
+ *
+ * <p>A nail thread with output to send and no credit waits here, rather
+ * than in a write to the socket while holding the connection's
+ * ChunkWriter, so that the command's other streams are not held up behind
+ * it.  Credit arrives in chunks from the client, which are read by
+ * whichever thread is reading from the client: the nail, if it is waiting
+ * for stdin, or else the waiting thread itself, which holds any stdin it
+ * finds for the nail (see <code>NGInputStream.pump()</code>).  Only one
+ * thread reads from the client at a time.</p>
+ *
+ * <p>A session keeps one FlowControl for all of its commands, and it
+ * reports the command's buffer occupancy to ng-stats while it runs.  It
+ * also notes when the client was last heard from, and whether the
+ * connection has failed, for the <code>ClientMonitor</code>, and passes
+ * on any signals the client forwards to the session.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class FlowControl {
+
+	/**
+	 * The stream that reads from the client, and holds any stdin read on
+	 * behalf of a thread waiting for credit
+	 */
+	private NGInputStream input = null;
+
+	/**
+	 * The command's session, named in statistics
+	 */
+	private String sessionName = null;
+
+	/**
+	 * The command's alias or class name, named in statistics
+	 */
+	private String command = null;
+
+	/**
+	 * The client's output window, and the output it has yet to
+	 * acknowledge, in bytes
+	 */
+	private long outputWindow = 0;
+	private long outputCredit = 0;
+	private long peakOutputUnacknowledged = 0;
+
+	/**
+	 * The server's stdin window, the stdin received and not yet read by the
+	 * nail, and the stdin read and not yet granted back to the client, in
+	 * bytes
+	 */
+	private int inputWindow = 0;
+	private long inputBuffered = 0;
+	private long peakInputBuffered = 0;
+	private long inputUngranted = 0;
+
+	/**
+	 * The number of times, and the total time in nanoseconds, that output
+	 * waited for credit
+	 */
+	private long creditWaits = 0;
+	private long creditWaitNanos = 0;
+
+	/**
+	 * True while a thread is reading from the client
+	 */
+	private boolean reading = false;
+
+	/**
+	 * Why the client can no longer grant credit, once it cannot
+	 */
+	private IOException failure = null;
+
+	/**
+	 * When, by <code>System.nanoTime()</code>, the client was last heard
+	 * from, and when the connection failed
+	 */
+	private volatile long lastHeard = 0;
+	private long failedAt = 0;
+
+	/**
+	 * Counts the commands this FlowControl has served, so that a
+	 * <code>ClientMonitor</code> check begun for one command is not
+	 * applied to the next
+	 */
+	private int generation = 0;
+
+	/**
+	 * True once the command has finished, after which the
+	 * <code>ClientMonitor</code> must not read from its client
+	 */
+	private boolean closed = false;
+
+	/**
+	 * The session to which signals forwarded by the client are passed
+	 */
+	private NGSession session = null;
+
+	/**
+	 * Prepares for a command
+	 * @param input the command's stdin stream, which reads from the client
+	 * @param sessionName the name of the command's session
+	 * @param command the command's alias or class name
+	 * @param outputWindow the client's output window in bytes
+	 * @param inputWindow the server's stdin window in bytes
+	 */
+	synchronized void reset(NGInputStream input, String sessionName, String command, long outputWindow, int inputWindow) {
+		this.input = input;
+		this.sessionName = sessionName;
+		this.command = command;
+		this.outputWindow = outputWindow;
+		this.outputCredit = outputWindow;
+		this.peakOutputUnacknowledged = 0;
+		this.inputWindow = inputWindow;
+		this.inputBuffered = 0;
+		this.peakInputBuffered = 0;
+		this.inputUngranted = 0;
+		this.creditWaits = 0;
+		this.creditWaitNanos = 0;
+		this.reading = false;
+		this.failure = null;
+		this.lastHeard = System.nanoTime();
+		this.failedAt = 0;
+		++this.generation;
+		this.closed = false;
+	}
+
+	/**
+	 * Sets the session to which signals forwarded by the client are passed
+	 * @param session the session using this FlowControl
+	 */
+	synchronized void setSession(NGSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Passes on a signal forwarded by the client to the session, if the
+	 * command is still running
+	 * @param signal the signal's name
+	 */
+	void signalled(String signal) {
+		NGSession target;
+		int forGeneration;
+		synchronized(this) {
+			if (closed) return;
+			target = session;
+			forGeneration = generation;
+		}
+		if (target != null) target.signalled(this, forGeneration, signal);
+	}
+
+	/**
+	 * Returns the number of the command this FlowControl is serving
+	 * @return the number of the current command
+	 */
+	synchronized int getGeneration() {
+		return (generation);
+	}
+
+	/**
+	 * Marks the command finished, waiting for any <code>ClientMonitor</code>
+	 * check to give up the connection first
+	 */
+	synchronized void close() {
+		boolean interrupted = false;
+		while (reading) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		closed = true;
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Returns the server's stdin window
+	 * @return the server's stdin window in bytes
+	 */
+	synchronized int getInputWindow() {
+		return (inputWindow);
+	}
+
+	/**
+	 * Takes credit to send output, waiting for the client to grant more if
+	 * there is none
+	 * @param len the length of the output to send
+	 * @return the number of bytes that may be sent, between one and
+	 * <code>len</code> (or zero if <code>len</code> is zero)
+	 * @throws IOException if the client closes the connection, or the
+	 * thread is interrupted, before granting credit
+	 */
+	int acquireOutput(int len) throws IOException {
+		if (len == 0) return (0);
+		long waitStart = 0;
+		while (true) {
+			synchronized(this) {
+				if (outputCredit > 0) {
+					int result = (int) Math.min(len, outputCredit);
+					outputCredit -= result;
+					peakOutputUnacknowledged = Math.max(peakOutputUnacknowledged, outputWindow - outputCredit);
+					if (waitStart != 0) {
+						++creditWaits;
+						creditWaitNanos += System.nanoTime() - waitStart;
+					}
+					return (result);
+				}
+				if (failure != null) throw (failure);
+				if (waitStart == 0) waitStart = System.nanoTime();
+				if (reading) {
+					// the reader will see the credit arrive
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw (new InterruptedIOException("Interrupted while waiting for the client"));
+					}
+					continue;
+				}
+				reading = true;
+			}
+			try {
+				input.pump();
+			} catch (IOException e) {
+				fail(e);
+				throw (e);
+			} finally {
+				endReading();
+			}
+		}
+	}
+
+	/**
+	 * Takes credit to send output if the client has granted some, waiting
+	 * at most the specified time for it.  Unlike
+	 * <code>acquireOutput()</code>, this never waits for the client to
+	 * send anything: it takes whatever the client has already sent, if no
+	 * other thread is reading from it, and otherwise relies on whichever
+	 * thread is (or on the <code>ClientMonitor</code>), so that it cannot
+	 * be held up by a client that has stopped sending.
+	 * @param len the length of the output to send
+	 * @param timeout the longest time, in milliseconds, to wait for credit,
+	 * or zero not to wait
+	 * @return the number of bytes that may be sent, at most
+	 * <code>len</code>, or zero if there was no credit in time
+	 * @throws IOException if the client has closed the connection, or the
+	 * thread is interrupted while waiting
+	 */
+	int tryAcquireOutput(int len, long timeout) throws IOException {
+		if (len == 0) return (0);
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		boolean polled = false;
+		while (true) {
+			synchronized(this) {
+				if (outputCredit > 0) {
+					int result = (int) Math.min(len, outputCredit);
+					outputCredit -= result;
+					peakOutputUnacknowledged = Math.max(peakOutputUnacknowledged, outputWindow - outputCredit);
+					return (result);
+				}
+				if (failure != null) throw (failure);
+				if (polled || reading || closed) {
+					long remaining = (deadline - System.nanoTime()) / 1000000;
+					if (remaining <= 0) return (0);
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						throw (new InterruptedIOException("Interrupted while waiting for the client"));
+					}
+					continue;
+				}
+				reading = true;
+				polled = true;
+			}
+			try {
+				input.pumpAvailable();
+			} catch (IOException e) {
+				fail(e);
+				throw (e);
+			} finally {
+				endReading();
+			}
+		}
+	}
+
+	/**
+	 * Adds credit granted by the client for output
+	 * @param credit the number of bytes granted
+	 */
+	synchronized void grantOutput(long credit) {
+		outputCredit = Math.min(outputCredit + credit, outputWindow);
+		notifyAll();
+	}
+
+	/**
+	 * Waits until no other thread is reading from the client, and then
+	 * claims the connection for the calling thread
+	 * @throws IOException if the thread is interrupted while waiting
+	 */
+	synchronized void beginReading() throws IOException {
+		while (reading) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw (new InterruptedIOException("Interrupted while waiting for stdin"));
+			}
+		}
+		reading = true;
+	}
+
+	/**
+	 * Gives up the connection claimed by <code>beginReading()</code>
+	 */
+	synchronized void endReading() {
+		reading = false;
+		notifyAll();
+	}
+
+	/**
+	 * Records that the client can no longer grant credit, so that threads
+	 * waiting for it give up
+	 * @param e the reason
+	 */
+	synchronized void fail(IOException e) {
+		if (failure == null) {
+			failure = (e instanceof EOFException) ? new EOFException("Client closed the connection") : e;
+			failedAt = System.nanoTime();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Returns when, by <code>System.nanoTime()</code>, the connection
+	 * failed, if it has
+	 * @return when the connection failed, or zero if it has not
+	 */
+	synchronized long getFailedAt() {
+		return (failedAt);
+	}
+
+	/**
+	 * Records that a chunk has arrived from the client
+	 */
+	void heard() {
+		lastHeard = System.nanoTime();
+	}
+
+	/**
+	 * Returns when, by <code>System.nanoTime()</code>, a chunk last
+	 * arrived from the client
+	 * @return when the client was last heard from
+	 */
+	long getLastHeard() {
+		return (lastHeard);
+	}
+
+	/**
+	 * Reads whatever the client has sent, on behalf of the
+	 * <code>ClientMonitor</code>, if no other thread is reading from it:
+	 * heartbeats and credit are taken, and stdin held for the nail.
+	 * @param connection the command's connection
+	 * @param timeout the longest time, in milliseconds, to wait for the
+	 * client, or zero not to wait
+	 * @param generation the number of the command whose client is to be
+	 * read, which must still be running
+	 * @return false if the client had sent nothing, and no other thread
+	 * was reading from it
+	 * @throws IOException if the client has closed or reset the connection
+	 */
+	boolean poll(NGConnection connection, int timeout, int generation) throws IOException {
+		synchronized(this) {
+			if (reading || closed || generation != this.generation) return (true);
+			reading = true;
+		}
+		try {
+			int state = connection.pollInput(timeout);
+			if (state < 0) throw (new EOFException());
+			if (state > 0) input.pump();
+			return (state > 0);
+		} catch (IOException e) {
+			fail(e);
+			throw (e);
+		} finally {
+			endReading();
+		}
+	}
+
+	/**
+	 * Records stdin received from the client and held until the nail reads
+	 * it
+	 * @param len the number of bytes received
+	 */
+	synchronized void inputReceived(long len) {
+		inputBuffered += len;
+		peakInputBuffered = Math.max(peakInputBuffered, inputBuffered);
+	}
+
+	/**
+	 * Records stdin read by the nail
+	 * @param len the number of bytes read
+	 * @return the credit to grant the client now, or zero to wait until
+	 * the nail has read more
+	 */
+	synchronized long inputConsumed(long len) {
+		inputBuffered = Math.max(0, inputBuffered - len);
+		inputUngranted += len;
+		if (inputUngranted < inputWindow / 2) return (0);
+		long result = inputUngranted;
+		inputUngranted = 0;
+		return (result);
+	}
+
+	/**
+	 * Returns a snapshot of this command's buffer occupancy
+	 * @return a snapshot of this command's buffer occupancy
+	 */
+	synchronized FlowControlStats getStats() {
+		return (new FlowControlStats(sessionName, command,
+									inputBuffered, peakInputBuffered, inputWindow,
+									outputWindow - outputCredit, peakOutputUnacknowledged, outputWindow,
+									creditWaits, creditWaitNanos));
+	}
+}
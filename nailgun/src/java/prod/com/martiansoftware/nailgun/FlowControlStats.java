@@ -0,0 +1,173 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+/**
+ * <p>A snapshot of the buffer occupancy of a running command whose client
+ * asked for flow control: how much of the server's stdin window holds
+ * input the nail has yet to read, and how much of the client's output
+ * window holds output the client has yet to write out.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class FlowControlStats {
+
+	private String sessionName;
+	private String command;
+	private long inputBuffered;
+	private long peakInputBuffered;
+	private int inputWindow;
+	private long outputUnacknowledged;
+	private long peakOutputUnacknowledged;
+	private long outputWindow;
+	private long creditWaits;
+	private long creditWaitNanos;
+
+	FlowControlStats(String sessionName, String command,
+					long inputBuffered, long peakInputBuffered, int inputWindow,
+					long outputUnacknowledged, long peakOutputUnacknowledged, long outputWindow,
+					long creditWaits, long creditWaitNanos) {
+		this.sessionName = sessionName;
+		this.command = command;
+		this.inputBuffered = inputBuffered;
+		this.peakInputBuffered = peakInputBuffered;
+		this.inputWindow = inputWindow;
+		this.outputUnacknowledged = outputUnacknowledged;
+		this.peakOutputUnacknowledged = peakOutputUnacknowledged;
+		this.outputWindow = outputWindow;
+		this.creditWaits = creditWaits;
+		this.creditWaitNanos = creditWaitNanos;
+	}
+
+	/**
+	 * Returns the name of the session running the command
+	 * @return the name of the session running the command
+	 */
+	public String getSessionName() {
+		return (sessionName);
+	}
+
+	/**
+	 * Returns the command's alias or class name
+	 * @return the command's alias or class name
+	 */
+	public String getCommand() {
+		return (command);
+	}
+
+	/**
+	 * Returns the number of bytes of stdin the server holds that the nail
+	 * has yet to read
+	 * @return the stdin held for the nail, in bytes
+	 */
+	public long getInputBuffered() {
+		return (inputBuffered);
+	}
+
+	/**
+	 * Returns the most stdin the server has held for the nail at once
+	 * @return the most stdin held for the nail at once, in bytes
+	 */
+	public long getPeakInputBuffered() {
+		return (peakInputBuffered);
+	}
+
+	/**
+	 * Returns the most stdin the client may send before the nail reads it
+	 * @return the server's stdin window in bytes
+	 */
+	public int getInputWindow() {
+		return (inputWindow);
+	}
+
+	/**
+	 * Returns the number of bytes of output sent that the client has yet
+	 * to acknowledge
+	 * @return the output the client has yet to acknowledge, in bytes
+	 */
+	public long getOutputUnacknowledged() {
+		return (outputUnacknowledged);
+	}
+
+	/**
+	 * Returns the most output the client has had yet to acknowledge at once
+	 * @return the most output unacknowledged at once, in bytes
+	 */
+	public long getPeakOutputUnacknowledged() {
+		return (peakOutputUnacknowledged);
+	}
+
+	/**
+	 * Returns the most output the server may send before the client
+	 * acknowledges it
+	 * @return the client's output window in bytes
+	 */
+	public long getOutputWindow() {
+		return (outputWindow);
+	}
+
+	/**
+	 * Returns the number of times the command's output waited for credit
+	 * @return the number of times output waited for credit
+	 */
+	public long getCreditWaits() {
+		return (creditWaits);
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that the command's output
+	 * waited for credit
+	 * @return the total time output waited for credit, in nanoseconds
+	 */
+	public long getCreditWaitNanos() {
+		return (creditWaitNanos);
+	}
+
+	/**
+	 * Returns a String representation of this <code>FlowControlStats</code>
+	 * object, in the form "session (command): stdin buffered/window (peak
+	 * N), output unacknowledged/window (peak N), N credit waits (avg Nus)".
+	 * @return a String representation of this <code>FlowControlStats</code>
+	 * object.
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		buf.append(sessionName);
+		buf.append(" (");
+		buf.append(command);
+		buf.append("): stdin ");
+		buf.append(inputBuffered);
+		buf.append("/");
+		buf.append(inputWindow);
+		buf.append(" (peak ");
+		buf.append(peakInputBuffered);
+		buf.append("), output ");
+		buf.append(outputUnacknowledged);
+		buf.append("/");
+		buf.append(outputWindow);
+		buf.append(" (peak ");
+		buf.append(peakOutputUnacknowledged);
+		buf.append("), ");
+		buf.append(creditWaits);
+		buf.append(" credit waits (avg ");
+		buf.append((creditWaits == 0) ? 0 : creditWaitNanos / creditWaits / 1000);
+		buf.append("us)");
+		return (buf.toString());
+	}
+}
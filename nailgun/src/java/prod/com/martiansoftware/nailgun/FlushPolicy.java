@@ -0,0 +1,209 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.Properties;
+
+/**
+ * <p>Determines when a nail's output to stdout and stderr is sent to the
+ * client.  Output is collected in a buffer and sent as a single chunk when
+ * the buffer fills, when the nail calls <code>flush()</code>, when the nail
+ * exits, and additionally:</p>
+ *
+ * <ul>
+ *   <li><b>immediate</b>: after every write (NailGun's original
+ *       behavior)</li>
+ *   <li><b>line</b>: after every write that contains a newline, as for a
+ *       terminal</li>
+ *   <li><b>block</b>: never</li>
+ *   <li><b><i>N</i>ms</b>: once the oldest unsent output is <i>N</i>
+ *       milliseconds old, so that output is coalesced without ever being
+ *       held for long</li>
+ * </ul>
+ *
+ * <p>A policy may be set for the whole server (see
+ * <code>NGServer.setFlushPolicy()</code>), for an alias (see
+ * <a href="Alias.html">Alias</a>), or for a single command by the client
+ * setting the <code>NAILGUN_FLUSH</code> environment variable to one of the
+ * names above.  The most specific applies.  If none is set, the policy is
+ * chosen by whether the client reports that the stream is a terminal.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class FlushPolicy {
+
+	/**
+	 * Sends every write as soon as it is made
+	 */
+	public static final FlushPolicy IMMEDIATE = new FlushPolicy("immediate", false, 0);
+
+	/**
+	 * Sends output at the end of each line
+	 */
+	public static final FlushPolicy LINE = new FlushPolicy("line", true, 0);
+
+	/**
+	 * Sends output only when the buffer fills or is flushed
+	 */
+	public static final FlushPolicy BLOCK = new FlushPolicy("block", false, 0);
+
+	/**
+	 * The delay, in milliseconds, within which output is sent to a client
+	 * that reports the stream is not a terminal, if no policy is set
+	 */
+	public static final int DEFAULT_MAXDELAY = 10;
+
+	/**
+	 * The policy for a client that reports the stream is not a terminal
+	 */
+	private static final FlushPolicy NOT_TERMINAL = new FlushPolicy(DEFAULT_MAXDELAY + "ms", false, DEFAULT_MAXDELAY);
+
+	/**
+	 * The client environment variable that chooses the policy for a single
+	 * command
+	 */
+	public static final String ENV_FLUSH = "NAILGUN_FLUSH";
+
+	/**
+	 * The prefix of the client environment variables, followed by a file
+	 * descriptor number, that report whether a stream is a terminal
+	 * ("1") or not ("0")
+	 */
+	public static final String ENV_TTY_PREFIX = "NAILGUN_TTY_";
+
+	/**
+	 * The terminal hint variables for stdin, stdout and stderr
+	 */
+	private static final String[] ENV_TTY = {ENV_TTY_PREFIX + 0, ENV_TTY_PREFIX + 1, ENV_TTY_PREFIX + 2};
+
+	/**
+	 * The policy name
+	 */
+	private String name;
+
+	/**
+	 * True if output is sent at the end of each line
+	 */
+	private boolean lineBuffered;
+
+	/**
+	 * The time, in milliseconds, within which output is sent, or zero
+	 */
+	private int maxDelay;
+
+	private FlushPolicy(String name, boolean lineBuffered, int maxDelay) {
+		this.name = name;
+		this.lineBuffered = lineBuffered;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Returns a policy that coalesces output but sends it within the
+	 * specified time
+	 * @param millis the time, in milliseconds, within which output is sent
+	 * @return a policy that sends output within the specified time
+	 */
+	public static FlushPolicy within(int millis) {
+		if (millis < 1) throw (new IllegalArgumentException("Flush delay must be at least 1ms."));
+		return (new FlushPolicy(millis + "ms", false, millis));
+	}
+
+	/**
+	 * Returns the policy with the specified name: "immediate", "line",
+	 * "block", or a number of milliseconds optionally followed by "ms"
+	 * @param name the policy name
+	 * @return the named policy
+	 * @throws IllegalArgumentException if there is no such policy
+	 */
+	public static FlushPolicy forName(String name) {
+		String s = name.trim().toLowerCase();
+		if (s.equals(IMMEDIATE.name)) return (IMMEDIATE);
+		if (s.equals(LINE.name)) return (LINE);
+		if (s.equals(BLOCK.name)) return (BLOCK);
+		if (s.endsWith("ms")) s = s.substring(0, s.length() - 2).trim();
+		try {
+			return (within(Integer.parseInt(s)));
+		} catch (NumberFormatException e) {
+			throw (new IllegalArgumentException("Unknown flush policy: " + name));
+		}
+	}
+
+	/**
+	 * Chooses the policy for one of a command's output streams.  A valid
+	 * <code>NAILGUN_FLUSH</code> in the client environment applies first,
+	 * then the configured policy.  Failing those, output to a terminal is
+	 * line buffered and other output is sent within
+	 * <code>DEFAULT_MAXDELAY</code>; a client that does not say whether the
+	 * stream is a terminal gets <code>IMMEDIATE</code>.
+	 * @param configured the policy for the alias or server, or
+	 * <code>null</code> if none is set
+	 * @param env the client environment
+	 * @param fd the client's file descriptor for the stream (1 for stdout,
+	 * 2 for stderr)
+	 * @return the policy to use
+	 */
+	static FlushPolicy forClient(FlushPolicy configured, Properties env, int fd) {
+		String requested = env.getProperty(ENV_FLUSH);
+		if (requested != null) {
+			try {
+				return (forName(requested));
+			} catch (IllegalArgumentException e) {
+				// ignore, as for any other environment variable
+			}
+		}
+		if (configured != null) return (configured);
+
+		String tty = env.getProperty((fd < ENV_TTY.length) ? ENV_TTY[fd] : ENV_TTY_PREFIX + fd);
+		if (tty == null) return (IMMEDIATE);
+		return (tty.trim().equals("1") ? LINE : NOT_TERMINAL);
+	}
+
+	/**
+	 * Returns true if every write is sent as soon as it is made
+	 * @return true if every write is sent as soon as it is made
+	 */
+	public boolean isImmediate() {
+		return (this == IMMEDIATE);
+	}
+
+	/**
+	 * Returns true if output is sent at the end of each line
+	 * @return true if output is sent at the end of each line
+	 */
+	public boolean isLineBuffered() {
+		return (lineBuffered);
+	}
+
+	/**
+	 * Returns the time, in milliseconds, within which output is sent
+	 * @return the time, in milliseconds, within which output is sent, or
+	 * zero if output may be held until the buffer fills
+	 */
+	public int getMaxDelay() {
+		return (maxDelay);
+	}
+
+	/**
+	 * Returns the name of this policy, as accepted by <code>forName()</code>
+	 * @return the name of this policy
+	 */
+	public String toString() {
+		return (name);
+	}
+}
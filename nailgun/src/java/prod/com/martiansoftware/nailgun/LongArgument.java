@@ -0,0 +1,303 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>A command line argument sent by the client as a series of
+ * <code>NGConstants.CHUNKTYPE_LONGARG</code> chunks, as ng does for the
+ * contents of a <code>--nailgun-filearg</code> file.  Such arguments may be
+ * many megabytes long, so they are not decoded into a String unless a nail
+ * asks for one.  Instead the bytes are held in memory up to the server's
+ * long argument threshold (see
+ * <code>NGServer.setLongArgThreshold()</code>), and beyond that are written
+ * to a temporary file.</p>
+ *
+ * <p>Nails get a LongArgument from
+ * <code>NGContext.getLongArg()</code> and may read it as often as they
+ * like as a stream, a channel, or a (memory-mapped, where the argument was
+ * written to a file) buffer.  Everything is discarded, and any temporary
+ * file deleted, when the command finishes; the streams, channels and
+ * buffers must not be used after the nail returns.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class LongArgument {
+
+	/**
+	 * The largest argument held in memory rather than written to a file
+	 */
+	private int threshold;
+
+	/**
+	 * Until the argument is written to a file, its bytes are
+	 * <code>buf[0]</code> through <code>buf[length - 1]</code>
+	 */
+	private byte[] buf = new byte[256];
+
+	/**
+	 * The file to which the argument was written, or <code>null</code>
+	 */
+	private File file = null;
+
+	/**
+	 * The stream writing to <code>file</code> while the argument arrives
+	 */
+	private OutputStream fileOut = null;
+
+	/**
+	 * The length of the argument in bytes
+	 */
+	private long length = 0;
+
+	/**
+	 * True once the client has sent the whole argument
+	 */
+	private boolean complete = false;
+
+	/**
+	 * The argument decoded as a String, once asked for
+	 */
+	private String string = null;
+
+	/**
+	 * Streams and channels handed out, to be closed when the command
+	 * finishes
+	 */
+	private List opened = new ArrayList();
+
+	/**
+	 * Creates a new, empty LongArgument
+	 * @param threshold the largest argument to hold in memory
+	 */
+	LongArgument(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Adds the payload of a long argument chunk
+	 * @param b the buffer containing the payload
+	 * @param offset the offset of the payload within <code>b</code>
+	 * @param len the length of the payload
+	 * @throws IOException if the temporary file cannot be written
+	 */
+	void append(byte[] b, int offset, int len) throws IOException {
+		if (file == null && length + len > threshold) {
+			file = File.createTempFile("nailgun-arg", null);
+			fileOut = new BufferedOutputStream(new FileOutputStream(file), 65536);
+			fileOut.write(buf, 0, (int) length);
+			buf = null;
+		}
+		if (file != null) {
+			fileOut.write(b, offset, len);
+		} else {
+			if (length + len > buf.length) {
+				byte[] newBuf = new byte[(int) Math.min(threshold, Math.max(length + len, buf.length * 2L))];
+				System.arraycopy(buf, 0, newBuf, 0, (int) length);
+				buf = newBuf;
+			}
+			System.arraycopy(b, offset, buf, (int) length, len);
+		}
+		length += len;
+	}
+
+	/**
+	 * Marks the argument complete, once the client has sent all of it
+	 * @throws IOException if the temporary file cannot be written
+	 */
+	void finish() throws IOException {
+		complete = true;
+		if (fileOut != null) {
+			fileOut.close();
+			fileOut = null;
+		}
+	}
+
+	/**
+	 * Discards the argument, closing anything handed out to the nail and
+	 * deleting its temporary file, if any.
+	 */
+	void delete() {
+		for (Iterator i = opened.iterator(); i.hasNext();) {
+			try {
+				((Closeable) i.next()).close();
+			} catch (IOException toDiscard) {}
+		}
+		opened.clear();
+		if (fileOut != null) {
+			try {
+				fileOut.close();
+			} catch (IOException toDiscard) {}
+			fileOut = null;
+		}
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+		buf = null;
+		string = null;
+		complete = false;
+	}
+
+	private void checkComplete() throws IOException {
+		if (!complete) throw (new IOException("Long argument is incomplete or has been discarded"));
+	}
+
+	/**
+	 * Returns the length of the argument in bytes
+	 * @return the length of the argument in bytes
+	 */
+	public long length() {
+		return (length);
+	}
+
+	/**
+	 * Returns true if the argument was too long to be held in memory, and
+	 * was written to a temporary file
+	 * @return true if the argument was written to a temporary file
+	 */
+	public boolean isSpilled() {
+		return (file != null);
+	}
+
+	/**
+	 * Returns a new stream of the argument's bytes
+	 * @return a new stream of the argument's bytes
+	 * @throws IOException if the temporary file cannot be read
+	 */
+	public InputStream getInputStream() throws IOException {
+		checkComplete();
+		if (file == null) return (new ByteArrayInputStream(buf, 0, (int) length));
+		InputStream result = new FileInputStream(file);
+		opened.add(result);
+		return (result);
+	}
+
+	/**
+	 * Returns a new channel of the argument's bytes.  Where the argument
+	 * was written to a temporary file, this is a <code>FileChannel</code>
+	 * (which may, for example, be passed to another channel's
+	 * <code>transferFrom()</code>).
+	 * @return a new channel of the argument's bytes
+	 * @throws IOException if the temporary file cannot be read
+	 */
+	public ReadableByteChannel getChannel() throws IOException {
+		checkComplete();
+		if (file == null) return (Channels.newChannel(getInputStream()));
+		FileChannel result = new RandomAccessFile(file, "r").getChannel();
+		opened.add(result);
+		return (result);
+	}
+
+	/**
+	 * Returns a read-only buffer of the argument's bytes.  Where the
+	 * argument was written to a temporary file, the buffer is mapped from
+	 * the file rather than read into memory.
+	 * @return a read-only buffer of the argument's bytes
+	 * @throws IOException if the temporary file cannot be mapped, as it
+	 * cannot if it is longer than <code>Integer.MAX_VALUE</code> bytes
+	 */
+	public ByteBuffer map() throws IOException {
+		checkComplete();
+		if (file == null) return (ByteBuffer.wrap(buf, 0, (int) length).slice().asReadOnlyBuffer());
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			return (channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Decodes the argument using the server's default character set, as
+	 * ng specifies for <code>--nailgun-filearg</code>.
+	 * @return the argument as a String
+	 * @throws IOException if the temporary file cannot be read, or is too
+	 * long to decode
+	 */
+	String decode() throws IOException {
+		if (string != null) return (string);
+		checkComplete();
+		if (file == null) {
+			string = new String(buf, 0, (int) length);
+		} else {
+			if (length > Integer.MAX_VALUE) throw (new IOException("Long argument is too long to decode: " + length + " bytes"));
+			byte[] b = new byte[(int) length];
+			InputStream in = new FileInputStream(file);
+			try {
+				int offset = 0;
+				while (offset < b.length) {
+					int bytesRead = in.read(b, offset, b.length - offset);
+					if (bytesRead == -1) throw (new IOException("Long argument file was truncated"));
+					offset += bytesRead;
+				}
+			} finally {
+				in.close();
+			}
+			string = new String(b);
+		}
+		return (string);
+	}
+
+	/**
+	 * Replaces the placeholders for long arguments in an argument array
+	 * with the decoded arguments.
+	 * @param args the command line arguments, with <code>null</code> in
+	 * place of each long argument not yet decoded
+	 * @param longArgs the long arguments at their positions in
+	 * <code>args</code>
+	 * @throws IOException if a long argument cannot be decoded
+	 */
+	static void decodeInto(String[] args, LongArgument[] longArgs) throws IOException {
+		for (int i = 0; i < args.length && i < longArgs.length; ++i) {
+			if (args[i] == null && longArgs[i] != null) args[i] = longArgs[i].decode();
+		}
+	}
+
+	/**
+	 * Returns the argument decoded using the server's default character
+	 * set, as it is passed to <code>main(String[])</code>.
+	 * @return the argument as a String
+	 * @throws IllegalStateException if the argument cannot be decoded
+	 */
+	public String toString() {
+		try {
+			return (decode());
+		} catch (IOException e) {
+			throw (new IllegalStateException(e.getMessage()));
+		}
+	}
+}
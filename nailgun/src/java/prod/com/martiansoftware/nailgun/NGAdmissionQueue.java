@@ -0,0 +1,271 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>Holds the connections waiting for a free session when every session in
+ * a pool is busy, and decides which of them to turn away.  Two limits
+ * apply:</p>
+ *
+ * <ul>
+ *   <li>The queue is bounded; a connection arriving while it is full is
+ *       rejected at once.</li>
+ *   <li>Connections are shed as they leave the queue, following the CoDel
+ *       ("controlled delay") algorithm, when the time spent queued has stayed
+ *       above a <b>target</b> for at least an <b>interval</b>.  Once
+ *       shedding, the queue drops connections at a rate that rises with the
+ *       square root of the number dropped, until the time spent queued falls
+ *       below the target again.  A short burst is therefore absorbed, while a
+ *       standing queue is drained to the target however long it has got.</li>
+ * </ul>
+ *
+ * <p>Times are passed in by the caller (from <code>System.nanoTime()</code>)
+ * so that the algorithm may be tested without waiting.  This class is not
+ * thread-safe; the owning NGSessionPool guards it with its lock.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGAdmissionQueue {
+
+	/**
+	 * the maximum number of connections that may wait at once
+	 */
+	private int maxPending;
+
+	/**
+	 * the acceptable time, in nanoseconds, for a connection to wait, or
+	 * zero if connections are never shed
+	 */
+	private long targetNanos;
+
+	/**
+	 * the time, in nanoseconds, for which waits must exceed the target
+	 * before shedding starts
+	 */
+	private long intervalNanos;
+
+	/**
+	 * the waiting connections, oldest first
+	 */
+	private LinkedList queue = new LinkedList();
+
+	/**
+	 * CoDel state: the time at which waits will have been above the target
+	 * for a whole interval, or zero if the last wait was below it
+	 */
+	private long firstAboveTime = 0;
+
+	/**
+	 * CoDel state: true while shedding
+	 */
+	private boolean dropping = false;
+
+	/**
+	 * CoDel state: the time at which the next connection will be shed
+	 */
+	private long dropNext = 0;
+
+	/**
+	 * CoDel state: the number of connections shed since shedding started
+	 */
+	private int dropCount = 0;
+
+	/**
+	 * CoDel state: dropCount when shedding last stopped
+	 */
+	private int lastDropCount = 0;
+
+	/**
+	 * statistics
+	 */
+	private long queuedCount = 0;
+	private long queueNanos = 0;
+	private long rejectedCount = 0;
+	private long shedCount = 0;
+
+	/**
+	 * Creates a new NGAdmissionQueue
+	 * @param maxPending the maximum number of connections that may wait at
+	 * once
+	 * @param target the acceptable time, in milliseconds, for a connection
+	 * to wait, or zero if connections are never to be shed
+	 * @param interval the time, in milliseconds, for which waits must exceed
+	 * the target before shedding starts
+	 */
+	NGAdmissionQueue(int maxPending, int target, int interval) {
+		this.maxPending = Math.max(1, maxPending);
+		this.targetNanos = Math.max(0, target) * 1000000L;
+		this.intervalNanos = Math.max(1, interval) * 1000000L;
+	}
+
+	/**
+	 * Adds a connection to the end of the queue, unless the queue is full
+	 * @param connection the connection to add
+	 * @param now the current time, from <code>System.nanoTime()</code>
+	 * @return true if the connection was queued, false if it must be rejected
+	 */
+	boolean offer(NGConnection connection, long now) {
+		if (queue.size() >= maxPending) {
+			++rejectedCount;
+			return (false);
+		}
+		queue.addLast(new Entry(connection, now));
+		return (true);
+	}
+
+	/**
+	 * Removes and returns the connection at the head of the queue, shedding
+	 * any connections that CoDel decides should not be served.
+	 * @param now the current time, from <code>System.nanoTime()</code>
+	 * @param shed a list to which any shed connections are added, for the
+	 * caller to reject
+	 * @return the next connection to serve, or <code>null</code> if the
+	 * queue is empty
+	 */
+	NGConnection poll(long now, List shed) {
+		while (!queue.isEmpty()) {
+			Entry entry = (Entry) queue.removeFirst();
+			long sojourn = now - entry.enqueueTime;
+			boolean okToDrop = isAboveTarget(sojourn, now);
+
+			if (dropping) {
+				if (!okToDrop) {
+					dropping = false;
+				} else if (now - dropNext >= 0) {
+					drop(entry, shed);
+					++dropCount;
+					dropNext = controlLaw(dropNext);
+					continue;
+				}
+			} else if (okToDrop) {
+				drop(entry, shed);
+				dropping = true;
+				// if shedding stopped only recently, resume near the old rate
+				int delta = dropCount - lastDropCount;
+				dropCount = (delta > 1 && now - dropNext < 16 * intervalNanos) ? delta : 1;
+				lastDropCount = dropCount;
+				dropNext = controlLaw(now);
+				continue;
+			}
+
+			++queuedCount;
+			queueNanos += sojourn;
+			return (entry.connection);
+		}
+		// an empty queue means the backlog is gone
+		firstAboveTime = 0;
+		dropping = false;
+		return (null);
+	}
+
+	/**
+	 * Tracks whether waits have been above the target for a whole interval
+	 */
+	private boolean isAboveTarget(long sojourn, long now) {
+		if (targetNanos == 0 || sojourn < targetNanos || queue.isEmpty()) {
+			// below target, or the last one out, in which case there is
+			// no backlog left to drain
+			firstAboveTime = 0;
+			return (false);
+		}
+		if (firstAboveTime == 0) {
+			firstAboveTime = now + intervalNanos;
+			return (false);
+		}
+		return (now - firstAboveTime >= 0);
+	}
+
+	/**
+	 * Returns the time at which to shed the next connection
+	 */
+	private long controlLaw(long t) {
+		return (t + (long) (intervalNanos / Math.sqrt(dropCount)));
+	}
+
+	private void drop(Entry entry, List shed) {
+		++shedCount;
+		shed.add(entry.connection);
+	}
+
+	/**
+	 * Removes every waiting connection, such as when the server shuts down
+	 * @param removed a list to which the removed connections are added
+	 */
+	void clear(List removed) {
+		while (!queue.isEmpty()) {
+			removed.add(((Entry) queue.removeFirst()).connection);
+		}
+	}
+
+	/**
+	 * Returns the number of connections waiting
+	 * @return the number of connections waiting
+	 */
+	int size() {
+		return (queue.size());
+	}
+
+	/**
+	 * Returns the number of connections that have waited and then been served
+	 * @return the number of connections that have waited and then been served
+	 */
+	long getQueuedCount() {
+		return (queuedCount);
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that served connections waited
+	 * @return the total time, in nanoseconds, that served connections waited
+	 */
+	long getQueueNanos() {
+		return (queueNanos);
+	}
+
+	/**
+	 * Returns the number of connections rejected because the queue was full
+	 * @return the number of connections rejected because the queue was full
+	 */
+	long getRejectedCount() {
+		return (rejectedCount);
+	}
+
+	/**
+	 * Returns the number of connections shed after waiting too long
+	 * @return the number of connections shed after waiting too long
+	 */
+	long getShedCount() {
+		return (shedCount);
+	}
+
+	/**
+	 * A waiting connection and the time it started to wait
+	 */
+	private static class Entry {
+		NGConnection connection;
+		long enqueueTime;
+
+		Entry(NGConnection connection, long enqueueTime) {
+			this.connection = connection;
+			this.enqueueTime = enqueueTime;
+		}
+	}
+}
@@ -0,0 +1,686 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * A connection from a NailGun client, accepted either as a plain
+ * <code>Socket</code> or as a <code>SocketChannel</code> (TCP or Unix
+ * domain).  Connections accepted by the
+ * <a href="NGSelectorAcceptor.html">NGSelectorAcceptor</a> arrive with
+ * their preamble already read, and may be handed back to it to wait for
+ * the next command when the client has asked for keep-alive.
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGConnection {
+
+	/**
+	 * The longest time, in milliseconds, spent waiting for a rejected or
+	 * finished client to finish sending and close its end of the connection
+	 */
+	private static final int REJECT_LINGER = 250;
+
+	/**
+	 * When, by <code>System.currentTimeMillis()</code>, the reaper closes
+	 * this connection if the client has not closed its end first
+	 */
+	private long lingerDeadline = 0;
+
+	/**
+	 * The client socket, if this connection was accepted by a
+	 * <code>ServerSocket</code>
+	 */
+	private Socket socket = null;
+
+	/**
+	 * The client channel, if this connection was accepted by a
+	 * <code>ServerSocketChannel</code>
+	 */
+	private SocketChannel channel = null;
+
+	/**
+	 * The preamble, if it has already been read from the client
+	 */
+	private NGPreamble preamble = null;
+
+	/**
+	 * The bulkhead that has kept a place for this connection's command,
+	 * which waited there for room, if any
+	 */
+	private Bulkhead admission = null;
+
+	/**
+	 * Bytes that were read from the channel beyond the end of the preamble
+	 */
+	private ByteBuffer leftover = null;
+
+	/**
+	 * The index of the shard that accepted this connection
+	 */
+	private int shard = 0;
+
+	/**
+	 * The acceptor that read this connection's preamble, if any
+	 */
+	private NGSelectorAcceptor acceptor = null;
+
+	/**
+	 * The client's address.  Clients connected via a Unix domain socket
+	 * are reported at the loopback address.
+	 */
+	private InetAddress remoteHost = null;
+
+	/**
+	 * The client's port, or zero for Unix domain socket clients
+	 */
+	private int remotePort = 0;
+
+	private InputStream in = null;
+	private OutputStream out = null;
+
+	/**
+	 * The selector on which <code>awaitInput()</code> is waiting, if it is
+	 */
+	private Selector awaiting = null;
+
+	/**
+	 * True once the connection has been closed by <code>abandon()</code>
+	 */
+	private volatile boolean abandoned = false;
+
+	/**
+	 * The codec through which all chunks are read from and written to the
+	 * client, created on first use
+	 */
+	private ChunkReader chunkReader = null;
+	private ChunkWriter chunkWriter = null;
+
+	/**
+	 * Creates a new NGConnection for a socket accepted in blocking mode
+	 * @param socket the connected socket
+	 * @param shard the index of the shard that accepted the connection
+	 */
+	NGConnection(Socket socket, int shard) {
+		this.socket = socket;
+		this.shard = shard;
+		this.remoteHost = socket.getInetAddress();
+		this.remotePort = socket.getPort();
+	}
+
+	/**
+	 * Creates a new NGConnection for a channel.  The channel must be in
+	 * blocking mode.
+	 * @param channel the connected channel
+	 * @param preamble the preamble read from the channel, or <code>null</code>
+	 * if it has yet to be read
+	 * @param leftover any bytes read from the channel after the preamble
+	 * (may be <code>null</code>)
+	 * @param shard the index of the shard that accepted the connection
+	 * @param acceptor the acceptor that read the preamble, or <code>null</code>
+	 * @throws IOException if the channel's remote address cannot be determined
+	 */
+	NGConnection(SocketChannel channel, NGPreamble preamble, ByteBuffer leftover, int shard, NGSelectorAcceptor acceptor) throws IOException {
+		this.channel = channel;
+		this.preamble = preamble;
+		this.leftover = leftover;
+		this.shard = shard;
+		this.acceptor = acceptor;
+
+		SocketAddress remote = channel.getRemoteAddress();
+		if (remote instanceof InetSocketAddress) {
+			remoteHost = ((InetSocketAddress) remote).getAddress();
+			remotePort = ((InetSocketAddress) remote).getPort();
+		} else {
+			remoteHost = InetAddress.getLoopbackAddress();
+		}
+	}
+
+	/**
+	 * Creates a new NGConnection that is not backed by its own socket, such
+	 * as one of the streams of a multiplexed connection.  Subclasses must
+	 * override the stream, close and keep-alive methods.
+	 * @param preamble the preamble already read from the client
+	 * @param shard the index of the shard that accepted the connection
+	 * @param remoteHost the address of the client
+	 * @param remotePort the port on the client
+	 */
+	NGConnection(NGPreamble preamble, int shard, InetAddress remoteHost, int remotePort) {
+		this.preamble = preamble;
+		this.shard = shard;
+		this.remoteHost = remoteHost;
+		this.remotePort = remotePort;
+	}
+
+	/**
+	 * Returns the preamble read from the client before this connection was
+	 * handed to a session, or <code>null</code> if it has yet to be read.
+	 * @return the preamble read from the client, or <code>null</code>
+	 */
+	NGPreamble getPreamble() {
+		return (preamble);
+	}
+
+	/**
+	 * Gives this connection the preamble of its next command, already read
+	 * by the session that is handing the connection on
+	 * @param preamble the preamble read from the client
+	 */
+	void setPreamble(NGPreamble preamble) {
+		this.preamble = preamble;
+	}
+
+	/**
+	 * Records that a bulkhead has kept a place for this connection's
+	 * command.  Called by the bulkhead before it hands the connection to a
+	 * session.
+	 * @param bulkhead the bulkhead
+	 */
+	void setAdmission(Bulkhead bulkhead) {
+		this.admission = bulkhead;
+	}
+
+	/**
+	 * Returns the bulkhead that has kept a place for this connection's
+	 * command, if any, which the caller must then give up once the command
+	 * has run
+	 * @return the bulkhead, or <code>null</code>
+	 */
+	Bulkhead takeAdmission() {
+		Bulkhead result = admission;
+		admission = null;
+		return (result);
+	}
+
+	/**
+	 * Returns the index of the shard that accepted this connection
+	 * @return the index of the shard that accepted this connection
+	 */
+	int getShard() {
+		return (shard);
+	}
+
+	/**
+	 * Returns a stream of the bytes sent by the client
+	 * @return a stream of the bytes sent by the client
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	synchronized InputStream getInputStream() throws IOException {
+		if (in == null) {
+			in = (channel == null) ? new PushbackInputStream(socket.getInputStream()) : new ChannelInputStream();
+		}
+		return (in);
+	}
+
+	/**
+	 * Returns a stream to the client
+	 * @return a stream to the client
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	synchronized OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = (channel == null) ? socket.getOutputStream() : new ChannelOutputStream();
+		}
+		return (out);
+	}
+
+	/**
+	 * Returns the reader through which all chunks from the client must be
+	 * read
+	 * @return the reader for chunks from the client
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	synchronized ChunkReader getChunkReader() throws IOException {
+		if (chunkReader == null) {
+			chunkReader = new ChunkReader(getInputStream());
+		}
+		return (chunkReader);
+	}
+
+	/**
+	 * Returns the writer through which all chunks to the client must be
+	 * written
+	 * @return the writer for chunks to the client
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	synchronized ChunkWriter getChunkWriter() throws IOException {
+		if (chunkWriter == null) {
+			chunkWriter = new ChunkWriter(getOutputStream());
+			if (channel != null) chunkWriter.setChannel(channel);
+		}
+		return (chunkWriter);
+	}
+
+	/**
+	 * Returns the address of the client
+	 * @return the address of the client
+	 */
+	InetAddress getInetAddress() {
+		return (remoteHost);
+	}
+
+	/**
+	 * Returns the port on the client
+	 * @return the port on the client
+	 */
+	int getPort() {
+		return (remotePort);
+	}
+
+	/**
+	 * Hands this connection back to the acceptor that read its preamble, so
+	 * that it may wait for the client's next command without occupying a
+	 * session.  After a successful call this NGConnection must not be used
+	 * again.
+	 * @return true if the connection was handed back, false if it was not
+	 * accepted by an NGSelectorAcceptor
+	 */
+	boolean resume() {
+		if (acceptor == null) return (false);
+		ByteBuffer unread = leftover;
+		if (chunkReader != null && chunkReader.buffered() > 0) {
+			// the chunk reader has already taken these from leftover or the
+			// channel, so they come first
+			byte[] buffered = chunkReader.drainBuffer();
+			int leftoverSize = (leftover == null) ? 0 : leftover.remaining();
+			unread = ByteBuffer.allocate(buffered.length + leftoverSize);
+			unread.put(buffered);
+			if (leftover != null) unread.put(leftover);
+			unread.flip();
+		}
+		acceptor.resume(channel, unread);
+		return (true);
+	}
+
+	/**
+	 * Waits for the client to send more data, such as the preamble of its
+	 * next command on a kept-alive connection.  Any data received is held
+	 * for the input stream.
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return true if data has arrived, false if the timeout elapsed, the
+	 * client closed the connection or the connection was abandoned
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	boolean awaitInput(int timeout) throws IOException {
+		if (chunkReader != null && chunkReader.buffered() > 0) return (true);
+		try {
+			if (channel == null) return (pollSocket(timeout) > 0);
+			return (awaitChannelInput(timeout));
+		} catch (IOException e) {
+			// closed under us, which is no error
+			if (abandoned) return (false);
+			throw (e);
+		}
+	}
+
+	/**
+	 * Waits for the client to send more data on the channel.  See
+	 * <code>awaitInput()</code>.
+	 */
+	private boolean awaitChannelInput(int timeout) throws IOException {
+		if (leftover != null && leftover.hasRemaining()) return (true);
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		long deadline = System.currentTimeMillis() + timeout;
+		Selector selector = Selector.open();
+		synchronized(this) {
+			awaiting = selector;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+			int bytesRead = 0;
+			while (bytesRead == 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || abandoned) return (false);
+				selector.select(remaining);
+				bytesRead = channel.read(buf);
+			}
+			if (bytesRead == -1) return (false);
+		} finally {
+			synchronized(this) {
+				awaiting = null;
+			}
+			// closing the selector deregisters the channel, which must be
+			// done before it can be returned to blocking mode
+			selector.close();
+			if (channel.isOpen()) channel.configureBlocking(true);
+		}
+		buf.flip();
+		leftover = buf;
+		return (true);
+	}
+
+	/**
+	 * Closes the connection while a session waits in
+	 * <code>awaitInput()</code> for the client's next command, so that the
+	 * wait ends at once.  Called when the server shuts down.
+	 */
+	void abandon() {
+		abandoned = true;
+		Selector selector;
+		synchronized(this) {
+			selector = awaiting;
+		}
+		if (selector != null) selector.wakeup();
+		closeQuietly();
+	}
+
+	/**
+	 * Checks, without taking anything from the client, whether it has sent
+	 * more data or closed its end of the connection, while a command runs.
+	 * Only the thread reading from the client may call this.  Whether the
+	 * client has closed its end can only be told by waiting to read from
+	 * it, so a timeout of zero sees only data that has arrived.  A channel
+	 * cannot be waited on without taking it out of blocking mode, which
+	 * would disturb the nail's writes, so it is never waited on.
+	 * @param timeout the longest time, in milliseconds, to wait, or zero
+	 * not to wait
+	 * @return a positive number if data has arrived, zero if not, or a
+	 * negative number if the client has closed its end
+	 * @throws IOException if thrown by the underlying socket, as when the
+	 * client has reset the connection
+	 */
+	int pollInput(int timeout) throws IOException {
+		if (chunkReader != null && chunkReader.buffered() > 0) return (1);
+		if (getInputStream().available() > 0) return (1);
+		if (socket == null || timeout <= 0) return (0);
+		return (pollSocket(timeout));
+	}
+
+	/**
+	 * Waits for the client to send more data, holding the first byte to
+	 * arrive for the input stream
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return a positive number if data has arrived, zero if the timeout
+	 * elapsed, or a negative number if the client closed the connection
+	 */
+	private int pollSocket(int timeout) throws IOException {
+		PushbackInputStream pin = (PushbackInputStream) getInputStream();
+		if (pin.available() > 0) return (1);
+		socket.setSoTimeout(timeout);
+		try {
+			int b = pin.read();
+			if (b == -1) return (-1);
+			pin.unread(b);
+			return (1);
+		} catch (SocketTimeoutException e) {
+			return (0);
+		} finally {
+			socket.setSoTimeout(0);
+		}
+	}
+
+	/**
+	 * Turns the client away without running its command: sends it an exit
+	 * chunk with the specified status and closes the connection.  The
+	 * command's long arguments are deleted, and any place a bulkhead kept
+	 * for it is given up.  Any errors are ignored.
+	 * @param exitCode the exit status to send
+	 */
+	void reject(int exitCode) {
+		try {
+			byte[] status = String.valueOf(exitCode).getBytes("US-ASCII");
+			getChunkWriter().writeChunk(NGConstants.CHUNKTYPE_EXIT, status, 0, status.length);
+			getChunkWriter().flush();
+
+		} catch (IOException toDiscard) {}
+		// closing with unread input would reset the connection, which
+		// would fail the client's writes of the rest of its preamble and
+		// might destroy the exit chunk before the client has read it
+		closeGracefully();
+		// its command will never run
+		if (preamble != null) preamble.releaseLongArgs();
+		Bulkhead bulkhead = takeAdmission();
+		if (bulkhead != null) bulkhead.release();
+	}
+
+	/**
+	 * Closes the connection after a command whose client may still be
+	 * sending (stdin the nail did not read, or flow control credit), which
+	 * would otherwise reset the connection and might destroy the end of
+	 * the command's output before the client has read it.  Output to the
+	 * client is ended at once, and the connection handed to the reaper,
+	 * which discards the client's input until it closes its end, but only
+	 * briefly; the caller, which may be the acceptor, does not wait.  Any
+	 * errors are ignored.
+	 */
+	void closeGracefully() {
+		try {
+			if (channel != null) {
+				channel.socket().shutdownOutput();
+				channel.configureBlocking(false);
+			} else {
+				socket.shutdownOutput();
+			}
+		} catch (IOException e) {
+			closeQuietly();
+			return;
+		}
+		lingerDeadline = System.currentTimeMillis() + REJECT_LINGER;
+		Reaper.getInstance().add(this);
+	}
+
+	/**
+	 * Discards whatever the client has sent, without waiting for more.
+	 * The channel, if any, must be in non-blocking mode.
+	 * @param buf a buffer into which to read
+	 * @return true if the client has closed its end of the connection (which
+	 * can only be told for channels)
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	private boolean discardInput(byte[] buf) throws IOException {
+		if (channel != null) {
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			int bytesRead;
+			do {
+				bb.clear();
+				bytesRead = channel.read(bb);
+			} while (bytesRead > 0);
+			return (bytesRead == -1);
+		}
+		InputStream in = getInputStream();
+		for (int n = in.available(); n > 0; n = in.available()) {
+			in.read(buf, 0, Math.min(n, buf.length));
+		}
+		return (false);
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException toDiscard) {}
+	}
+
+	/**
+	 * Closes the connection
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		} else {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Reads directly from the channel.  The streams provided by
+	 * <code>Socket</code> adaptors and <code>java.nio.channels.Channels</code>
+	 * serialize reads and writes on the channel's blocking lock, which would
+	 * prevent a nail from writing output while another thread waits for stdin.
+	 */
+	private class ChannelInputStream extends InputStream {
+		private byte[] oneByteBuffer = new byte[1];
+
+		/**
+		 * The socket adaptor's stream, used only to count what has arrived
+		 */
+		private InputStream counter = null;
+
+		public int read() throws IOException {
+			return ((read(oneByteBuffer, 0, 1) == -1) ? -1 : (oneByteBuffer[0] & 0xff));
+		}
+
+		public int read(byte[] b, int offset, int len) throws IOException {
+			if (len == 0) return (0);
+			if (leftover != null && leftover.hasRemaining()) {
+				int result = Math.min(len, leftover.remaining());
+				leftover.get(b, offset, result);
+				return (result);
+			}
+			return (channel.read(ByteBuffer.wrap(b, offset, len)));
+		}
+
+		/**
+		 * Counts what has arrived on the channel as well as what is left
+		 * over.  The socket adaptor's stream counts it without waiting for
+		 * a thread blocked reading from the channel, on Java 13 and later;
+		 * earlier ones count nothing.
+		 */
+		public int available() throws IOException {
+			int result = (leftover == null) ? 0 : leftover.remaining();
+			if (counter == null) counter = channel.socket().getInputStream();
+			return (result + counter.available());
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes directly to the channel.  See ChannelInputStream.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+		private byte[] oneByteBuffer = new byte[1];
+
+		public void write(int b) throws IOException {
+			oneByteBuffer[0] = (byte) b;
+			write(oneByteBuffer, 0, 1);
+		}
+
+		public void write(byte[] b, int offset, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, offset, len);
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+	/**
+	 * Closes connections handed to it by <code>closeGracefully()</code>
+	 * once their clients have closed their ends, or the linger time has
+	 * passed, discarding whatever the clients send meanwhile.  A single
+	 * thread checks every lingering connection in turn, without waiting
+	 * on any, so that a burst of rejections costs the acceptor nothing.
+	 * If too many connections are lingering at once the oldest are closed
+	 * at once, so that a flood of rejections cannot run the server out
+	 * of file descriptors.
+	 */
+	private static class Reaper implements Runnable {
+
+		/**
+		 * The time, in milliseconds, between checks
+		 */
+		private static final int INTERVAL = 10;
+
+		/**
+		 * The most connections to keep lingering
+		 */
+		private static final int MAX_LINGERING = 1024;
+
+		private static Reaper instance = null;
+
+		/**
+		 * The lingering connections, oldest first
+		 */
+		private LinkedList lingering = new LinkedList();
+
+		/**
+		 * Returns the reaper, starting it if necessary
+		 */
+		static synchronized Reaper getInstance() {
+			if (instance == null) {
+				instance = new Reaper();
+				Thread t = new Thread(instance, "NGServer connection reaper");
+				t.setDaemon(true);
+				t.start();
+			}
+			return (instance);
+		}
+
+		synchronized void add(NGConnection connection) {
+			lingering.add(connection);
+			if (lingering.size() > MAX_LINGERING) {
+				((NGConnection) lingering.removeFirst()).closeQuietly();
+			}
+			notify();
+		}
+
+		public void run() {
+			byte[] buf = new byte[4096];
+			while (true) {
+				NGConnection[] toCheck;
+				synchronized(this) {
+					while (lingering.isEmpty()) {
+						try {
+							wait();
+						} catch (InterruptedException toDiscard) {}
+					}
+					toCheck = (NGConnection[]) lingering.toArray(new NGConnection[lingering.size()]);
+				}
+				long now = System.currentTimeMillis();
+				for (int i = 0; i < toCheck.length; ++i) {
+					boolean done;
+					try {
+						done = toCheck[i].discardInput(buf) || now >= toCheck[i].lingerDeadline;
+					} catch (IOException e) {
+						done = true;
+					}
+					if (done) {
+						synchronized(this) {
+							lingering.remove(toCheck[i]);
+						}
+						toCheck[i].closeQuietly();
+					}
+				}
+				try {
+					Thread.sleep(INTERVAL);
+				} catch (InterruptedException toDiscard) {}
+			}
+		}
+	}
+}
@@ -42,6 +42,13 @@ public class NGConstants {
 	 */
 	public static final int EXIT_NOSUCHCOMMAND = 898;
 
+	/**
+	 * The exit code sent to clients that the server turned away because it
+	 * was too busy to run their command.  The command was not started, so
+	 * it is safe to retry, perhaps against another server.
+	 */
+	public static final int EXIT_OVERLOADED = 897;
+
 	/**
 	 * Chunk type marker for command line arguments
 	 */
@@ -96,6 +103,120 @@ public class NGConstants {
      */
     public static final byte CHUNKTYPE_STARTINPUT = 'S';
 
+	/**
+	 * The client environment variable that, set to anything but "0", asks
+	 * for eager stdin: the client starts sending stdin as soon as it has
+	 * sent the command, without waiting for a
+	 * <code>CHUNKTYPE_STARTINPUT</code> chunk, and the server sends that
+	 * chunk as soon as it has the command rather than when the nail first
+	 * reads.  An alias may ask for the latter for all of its clients (see
+	 * <code>AliasManager.loadFromProperties()</code>).
+	 */
+	public static final String ENV_EAGER_STDIN = "NAILGUN_EAGER_STDIN";
+
+	/**
+	 * The most stdin, in bytes, that a client using eager stdin sends
+	 * before it receives a <code>CHUNKTYPE_STARTINPUT</code> chunk.  Until
+	 * the nail reads it, that input waits in the server's socket buffer
+	 * (or, for a multiplexed connection, the stream's input queue), so
+	 * the client may be no further ahead of a nail that never reads than
+	 * this.
+	 */
+	public static final int EAGER_STDIN_WINDOW = 65536;
+
+	/**
+	 * Chunk type marker for a "keepalive" chunk.  A client sends this
+	 * chunk as part of its preamble to ask that the connection be kept
+	 * open after the exit chunk so that it may send another command.  The
+	 * server acknowledges by sending an empty keepalive chunk before any
+	 * output; if it does not, the connection will be closed as usual.
+	 */
+	public static final byte CHUNKTYPE_KEEPALIVE = 'K';
+
+	/**
+	 * Chunk type marker for a "multiplex" chunk.  A client sends this as
+	 * the first chunk on a connection to run any number of commands over
+	 * it concurrently.  The server acknowledges with an empty multiplex
+	 * chunk, after which every chunk in either direction carries a stream
+	 * id (see <code>NGMultiplexer</code>).
+	 */
+	public static final byte CHUNKTYPE_MULTIPLEX = 'M';
+
+	/**
+	 * Chunk type marker for part of a long command line argument.  A client
+	 * sends an argument too long for a single chunk (such as the contents
+	 * of a file) as any number of these chunks followed by an empty one,
+	 * in its place among the other arguments.  See
+	 * <code>LongArgument</code>.
+	 */
+	public static final byte CHUNKTYPE_LONGARG = 'L';
+
+	/**
+	 * Chunk type marker for an environment digest.  A client may send
+	 * this, with the digest of its environment as the payload (see
+	 * <code>EnvironmentCache</code>), before the rest of its preamble.  The
+	 * server replies with a chunk of the same type whose payload is "1" if
+	 * it already has that environment, in which case the client need not
+	 * send its environment chunks, or "0" if it does not.
+	 */
+	public static final byte CHUNKTYPE_ENVDIGEST = 'H';
+
+	/**
+	 * Chunk type marker for compression negotiation.  A client sends this
+	 * in its preamble, with the compression it accepts ("deflate") as the
+	 * payload.  A server willing to compress replies with a chunk of the
+	 * same type naming the compression it chose, before any output, after
+	 * which either side may send <code>CHUNKTYPE_COMPRESSED</code> chunks.
+	 */
+	public static final byte CHUNKTYPE_COMPRESSION = 'z';
+
+	/**
+	 * Chunk type marker for a compressed chunk.  The payload is the type of
+	 * the chunk it stands for (stdin, stdout or stderr), followed by that
+	 * chunk's payload compressed by itself with raw Deflate (RFC 1951).
+	 */
+	public static final byte CHUNKTYPE_COMPRESSED = 'Z';
+
+	/**
+	 * Chunk type marker for flow control credit.  The payload is a number
+	 * of bytes, in decimal.  A client sends one in its preamble to ask for
+	 * flow control, granting the server that much stdout and stderr; a
+	 * server that agrees replies with one, before any output, granting the
+	 * client that much stdin.  Each side then sends more as it consumes
+	 * what it was sent, and never sends the other more stdin, stdout or
+	 * stderr (counted before any compression) than it has been granted.
+	 */
+	public static final byte CHUNKTYPE_CREDIT = 'W';
+
+	/**
+	 * Chunk type marker for a heartbeat.  A client that asks for flow
+	 * control may also send one in its preamble, with the interval in
+	 * milliseconds at which it will send heartbeats as the payload.  A
+	 * server that agrees replies with one, before any output, naming the
+	 * longest silence in milliseconds it allows, after which the client
+	 * sends an empty heartbeat at least every interval until the command
+	 * exits, and must not close its end of the connection before then.
+	 * A command whose client falls silent for longer, or closes or resets
+	 * the connection, is cancelled (see <code>ClientMonitor</code>).
+	 */
+	public static final byte CHUNKTYPE_HEARTBEAT = 'B';
+
+	/**
+	 * Chunk type marker for a forwarded signal.  A client that offers
+	 * heartbeats may also send an empty one in its preamble, offering to
+	 * forward signals; a server that agrees replies with an empty one,
+	 * before any output, after which the client may send one whenever it
+	 * receives a signal, with the signal's name ("INT", "TERM" or "QUIT")
+	 * as the payload.  The signal is passed to the nail's listeners, if
+	 * any (see <code>NGContext.addSignalListener()</code>).
+	 */
+	public static final byte CHUNKTYPE_SIGNAL = 'G';
+
+	/**
+	 * The name of Deflate compression in compression negotiation
+	 */
+	public static final String COMPRESSION_DEFLATE = "deflate";
+
 
 	/**
 	 * Server version number
@@ -18,10 +18,16 @@
 
 package com.martiansoftware.nailgun;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -65,6 +71,12 @@ public class NGContext {
 	 */
 	private String[] args = null;
 
+	/**
+	 * The long arguments among <code>args</code>, at the same positions,
+	 * or <code>null</code> if there are none
+	 */
+	private LongArgument[] longArgs = null;
+
 	/**
 	 * A stream to which a client exit code can be printed
 	 */
@@ -81,6 +93,17 @@ public class NGContext {
 	private String command = null;
 
 	private String workingDirectory = null;
+
+	/**
+	 * The writer for all chunks to the client, through which files are
+	 * sent
+	 */
+	private ChunkWriter chunkWriter = null;
+
+	/**
+	 * The nail's signal listeners, if it has added any
+	 */
+	private List signalListeners = null;
 	
 	/**
 	 * The client's stdin
@@ -152,10 +175,34 @@ public class NGContext {
 		this.args = args;
 	}
 
+	void setLongArgs(LongArgument[] longArgs) {
+		this.longArgs = longArgs;
+	}
+
 	void setNGServer(NGServer server) {
 		this.server = server;
 	}
 
+	void setChunkWriter(ChunkWriter chunkWriter) {
+		this.chunkWriter = chunkWriter;
+	}
+
+	/**
+	 * Returns the nail's signal listeners
+	 * @return the nail's signal listeners, in the order they were added
+	 */
+	synchronized NGSignalListener[] getSignalListeners() {
+		if (signalListeners == null) return (new NGSignalListener[0]);
+		return ((NGSignalListener[]) signalListeners.toArray(new NGSignalListener[signalListeners.size()]));
+	}
+
+	/**
+	 * Forgets the nail's signal listeners, once it has finished
+	 */
+	synchronized void clearSignalListeners() {
+		signalListeners = null;
+	}
+
 	/**
 	 * Returns a <code>java.util.Properties</code> object containing a copy
 	 * of the client's environment variables
@@ -193,14 +240,41 @@ public class NGContext {
 
 	/**
 	 * Returns the command line arguments for the command
-	 * implementation (nail) on the server.
+	 * implementation (nail) on the server.  Any long arguments (see
+	 * <code>getLongArg()</code>) are decoded into Strings the first time
+	 * this is called.
 	 * @return the command line arguments for the command
 	 * implementation (nail) on the server.
+	 * @throws IllegalStateException if a long argument cannot be decoded
 	 */
 	public String[] getArgs() {
+		if (longArgs != null) {
+			try {
+				LongArgument.decodeInto(args, longArgs);
+			} catch (java.io.IOException e) {
+				throw (new IllegalStateException(e.getMessage()));
+			}
+		}
 		return (args);
 	}
 
+	/**
+	 * Returns the long argument at the specified position among the command
+	 * line arguments, if the client sent it as one (as ng does for
+	 * <code>--nailgun-filearg</code>).  Nails expecting large arguments
+	 * can read them through the returned
+	 * <a href="LongArgument.html">LongArgument</a> without their ever
+	 * being decoded into Strings, provided they do not call
+	 * <code>getArgs()</code>.
+	 * @param index the position of the argument
+	 * @return the long argument at that position, or <code>null</code> if
+	 * the argument there is an ordinary one (or there is none)
+	 */
+	public LongArgument getLongArg(int index) {
+		if (longArgs == null || index < 0 || index >= longArgs.length) return (null);
+		return (longArgs[index]);
+	}
+
 	/**
 	 * Returns the NGServer that accepted this connection
 	 * @return the NGServer that accepted this connection
@@ -222,6 +296,63 @@ public class NGContext {
 		exitStream.println(exitCode);
 	}
 
+	/**
+	 * Sends the contents of a file to the client's stdout.  See
+	 * <code>transferFrom(FileChannel, long, long)</code>.
+	 * @param file the file to send
+	 * @return the number of bytes sent
+	 * @throws IOException if the file cannot be read, or the output cannot
+	 * be sent
+	 */
+	public long sendFile(File file) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			return (transferFrom(channel, 0, channel.size()));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Sends the rest of a file, from its current position, to the client's
+	 * stdout, and advances its position past what was sent.  See
+	 * <code>transferFrom(FileChannel, long, long)</code>.
+	 * @param file the file to send
+	 * @return the number of bytes sent
+	 * @throws IOException if the file cannot be read, or the output cannot
+	 * be sent
+	 */
+	public long transferFrom(FileChannel file) throws IOException {
+		long position = file.position();
+		long result = transferFrom(file, position, file.size() - position);
+		file.position(position + result);
+		return (result);
+	}
+
+	/**
+	 * Sends part of a file to the client's stdout, after anything already
+	 * printed to <code>out</code>.  Where the server accepted the
+	 * connection as a channel (as it does for Unix domain sockets, and for
+	 * TCP when it uses a selector) and the client has not asked for
+	 * compression, the file is sent in large chunks whose payloads go
+	 * straight from the file to the connection with
+	 * <code>FileChannel.transferTo()</code>, without passing through the
+	 * heap.  Otherwise it is copied through a small, reused buffer.  Either
+	 * way, sending a large file takes little memory, and the file's
+	 * position is not changed.
+	 * @param file the file to send
+	 * @param position the position in the file of the first byte to send
+	 * @param count the most bytes to send; fewer are sent if the file ends
+	 * first
+	 * @return the number of bytes sent
+	 * @throws IOException if the file cannot be read, or the output cannot
+	 * be sent
+	 */
+	public long transferFrom(FileChannel file, long position, long count) throws IOException {
+		out.flush();
+		return (chunkWriter.transferFrom(NGConstants.CHUNKTYPE_STDOUT, file, position, count));
+	}
+
 	/**
 	 * Returns the port on the client connected to the NailGun
 	 * server.
@@ -232,6 +363,36 @@ public class NGContext {
 		return (remotePort);
 	}
 	
+	/**
+	 * Adds a listener to be called when the client forwards a signal, as ng
+	 * does for SIGINT, SIGTERM and SIGQUIT.  Without listeners (or if they
+	 * all return false) the server applies its default policy: "INT" and
+	 * "TERM" interrupt the nail's thread and any threads it has started,
+	 * and the client exits with status 128 plus the signal's number unless
+	 * the nail exits otherwise; "QUIT" prints the stacks of those threads
+	 * to the client's stderr.  Listeners are forgotten when the nail
+	 * returns.
+	 *
+	 * <p>Clients only forward signals to servers that watch them for
+	 * disconnection (see <code>NGServer.setHeartbeatTimeout()</code>), and
+	 * ng only if <code>NAILGUN_SIGNALS</code> is not "0".  Other clients'
+	 * signals simply end the client.</p>
+	 *
+	 * @param listener the listener to add
+	 */
+	public synchronized void addSignalListener(NGSignalListener listener) {
+		if (signalListeners == null) signalListeners = new ArrayList();
+		signalListeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener added by <code>addSignalListener()</code>
+	 * @param listener the listener to remove
+	 */
+	public synchronized void removeSignalListener(NGSignalListener listener) {
+		if (signalListeners != null) signalListeners.remove(listener);
+	}
+
 	/**
 	 * Throws a <code>java.lang.SecurityException</code> if the client is not
 	 * connected via the loopback address.
@@ -18,38 +18,147 @@
 
 package com.martiansoftware.nailgun;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * A FilterInputStream that is able to read the chunked stdin stream
  * from a NailGun client.
  * 
+ * <p>Under flow control (see <a href="FlowControl.html">FlowControl</a>)
+ * this stream also takes the client's credit chunks, grants the client
+ * credit for stdin as the nail reads it, and reads ahead on behalf of
+ * nail threads waiting for credit to send output, holding any stdin it
+ * finds until the nail reads it.  Heartbeats and signals from the client
+ * are taken here too, the signals being passed on to the FlowControl.</p>
+ * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 class NGInputStream extends FilterInputStream {
 
-    private DataInputStream din;
+    private ChunkReader reader;
 	private boolean eof = false;
 	private long remaining = 0;
     private byte[] oneByteBuffer = null;
-    private final DataOutputStream out;
+    private ChunkWriter out;
     private boolean started = false;
+    private NGOutputStream[] outputStreams = null;
+
+	/**
+	 * True if the rest of the current chunk is
+	 * <code>inflated[inflatedPos]</code> onwards, rather than still on
+	 * the connection
+	 */
+	private boolean inflating = false;
+	private byte[] inflated = null;
+	private int inflatedPos = 0;
+
+	/**
+	 * The payload of the last compressed chunk, and its decompressor, both
+	 * created when first needed
+	 */
+	private byte[] compressed = null;
+	private Inflater inflater = null;
+
+	/**
+	 * The command's credit, if the client asked for flow control
+	 */
+	private FlowControl flowControl = null;
+
+	/**
+	 * Stdin read ahead by <code>pump()</code> is
+	 * <code>held[heldPos]</code> through <code>held[heldCount - 1]</code>,
+	 * and comes after the rest of the current chunk.  The buffer is
+	 * allocated when first needed.
+	 */
+	private byte[] held = null;
+	private int heldPos = 0;
+	private int heldCount = 0;
+
+	/**
+	 * True if <code>pump()</code> has read the end of stdin, which comes
+	 * after the held stdin
+	 */
+	private boolean heldEof = false;
+
+	/**
+	 * The payload of credit chunks, sent and received, and of signal chunks
+	 */
+	private byte[] creditBuffer = null;
         
 	/**
-	 * Creates a new NGInputStream wrapping the specified InputStream
-	 * @param in the InputStream to wrap
-         * @param out the OutputStream to which a STARTINPUT chunk should
+	 * Creates a new NGInputStream reading from the specified ChunkReader
+	 * @param in the ChunkReader for the client connection
+         * @param out the ChunkWriter to which a STARTINPUT chunk should
          * be sent prior to the first read.
 	 */
-	public NGInputStream(java.io.InputStream in, DataOutputStream out) {
+	public NGInputStream(ChunkReader in, ChunkWriter out) {
 		super(in);
-        din = (DataInputStream) this.in;
+        reader = in;
         this.out = out;
 	}
 
+	/**
+	 * Prepares this stream for another command, rather than allocating a
+	 * new one
+	 * @param in the ChunkReader for the command's connection
+	 * @param out the ChunkWriter for the command's connection
+	 */
+	void reset(ChunkReader in, ChunkWriter out) {
+		this.in = in;
+		reader = in;
+		this.out = out;
+		eof = false;
+		remaining = 0;
+		started = false;
+		inflating = false;
+		flowControl = null;
+		heldPos = 0;
+		heldCount = 0;
+		heldEof = false;
+	}
+
+	/**
+	 * Sets the command's credit, once the client has asked for flow
+	 * control
+	 * @param flowControl the command's credit
+	 */
+	void setFlowControl(FlowControl flowControl) {
+		this.flowControl = flowControl;
+	}
+
+	/**
+	 * Returns true if the client may still send stdin the nail has not
+	 * read, in which case closing the connection without reading it might
+	 * reset the connection before the client reads the last of the output
+	 * @return true if the client may still send stdin
+	 */
+	boolean mayHaveUnreadInput() {
+		return ((started || flowControl != null) && !eof && !heldEof);
+	}
+
+	/**
+	 * Sets the command's output streams.  Those that are line buffered are
+	 * flushed before waiting for more input from the client, so that a
+	 * prompt without a newline is seen before the nail waits for the reply.
+	 * @param outputStreams the command's stdout and stderr streams
+	 */
+	void setOutputStreams(NGOutputStream[] outputStreams) {
+		this.outputStreams = outputStreams;
+	}
+
+	/**
+	 * Flushes the line buffered output streams
+	 */
+	private void flushOutput() throws IOException {
+		if (outputStreams == null) return;
+		for (int i = 0; i < outputStreams.length; ++i) {
+			if (outputStreams[i].getFlushPolicy().isLineBuffered()) outputStreams[i].flush();
+		}
+	}
+
 	/**
 	 * Reads a NailGun chunk header from the underlying InputStream.
 	 * 
@@ -59,27 +168,252 @@ class NGInputStream extends FilterInputStream {
 	private void readHeader() throws IOException {
 		if (eof) return;
 
-        int hlen = din.readInt();
-        byte chunkType = din.readByte();
+        byte chunkType = reader.readHeader();
+		if (flowControl != null) flowControl.heard();
 		switch(chunkType) {
 			case NGConstants.CHUNKTYPE_STDIN:
-						remaining = hlen;
+						remaining = reader.getChunkLength();
+						inflating = false;
+						if (flowControl != null) flowControl.inputReceived(remaining);
+						break;
+
+			case NGConstants.CHUNKTYPE_COMPRESSED:
+						inflate(reader.getChunkLength());
+						if (flowControl != null) flowControl.inputReceived(remaining);
 						break;
 						
 			case NGConstants.CHUNKTYPE_STDIN_EOF:
 						eof = true;
 						break;
 						
+			case NGConstants.CHUNKTYPE_CREDIT:
+			case NGConstants.CHUNKTYPE_HEARTBEAT:
+			case NGConstants.CHUNKTYPE_SIGNAL:
+						readControl(chunkType);
+						break;
+						
 			default:	throw(new IOException("Unknown stream type: " + (char) chunkType));
 		}		
 	}
+
+	/**
+	 * Returns true for the chunks that carry no stdin, but may arrive
+	 * among it under flow control
+	 */
+	private static boolean isControl(byte chunkType) {
+		return (chunkType == NGConstants.CHUNKTYPE_CREDIT
+				|| chunkType == NGConstants.CHUNKTYPE_HEARTBEAT
+				|| chunkType == NGConstants.CHUNKTYPE_SIGNAL);
+	}
+
+	/**
+	 * Takes a credit, heartbeat or signal chunk, none of which is expected
+	 * without flow control
+	 * @param chunkType the chunk's type
+	 * @throws IOException if thrown by the underlying InputStream, or if
+	 * the chunk is not valid
+	 */
+	private void readControl(byte chunkType) throws IOException {
+		if (flowControl == null) throw (new IOException("Unexpected chunk type: " + (char) chunkType));
+		if (chunkType == NGConstants.CHUNKTYPE_CREDIT) {
+			flowControl.grantOutput(readCredit(reader.getChunkLength()));
+		} else if (chunkType == NGConstants.CHUNKTYPE_SIGNAL) {
+			flowControl.signalled(readSignal(reader.getChunkLength()));
+		} else if (reader.getChunkLength() != 0) {
+			throw (new IOException("Invalid heartbeat chunk"));
+		}
+	}
+
+	/**
+	 * Reads the payload of a signal chunk
+	 * @param len the length of the payload
+	 * @return the signal's name
+	 * @throws IOException if thrown by the underlying InputStream, or if
+	 * the payload is empty or too long to be a signal's name
+	 */
+	private String readSignal(int len) throws IOException {
+		if (creditBuffer == null) creditBuffer = new byte[20];
+		if (len < 1 || len > creditBuffer.length) throw (new IOException("Invalid signal chunk"));
+		reader.readFully(creditBuffer, 0, len);
+		return (new String(creditBuffer, 0, len, "US-ASCII"));
+	}
+
+	/**
+	 * Reads the payload of a credit chunk
+	 * @param len the length of the payload
+	 * @return the credit granted
+	 * @throws IOException if thrown by the underlying InputStream, or if
+	 * the payload is not a number
+	 */
+	private long readCredit(int len) throws IOException {
+		if (creditBuffer == null) creditBuffer = new byte[20];
+		if (len < 1 || len > creditBuffer.length) throw (new IOException("Invalid credit chunk"));
+		reader.readFully(creditBuffer, 0, len);
+		long result = 0;
+		for (int i = 0; i < len; ++i) {
+			int digit = creditBuffer[i] - '0';
+			if (digit < 0 || digit > 9) throw (new IOException("Invalid credit chunk"));
+			result = result * 10 + digit;
+		}
+		return (result);
+	}
+
+	/**
+	 * Grants the client credit for stdin the nail has read, once there is
+	 * enough of it to be worth a chunk
+	 * @param len the number of bytes the nail has read
+	 * @throws IOException if thrown by the underlying ChunkWriter
+	 */
+	private void consumed(int len) throws IOException {
+		long credit = flowControl.inputConsumed(len);
+		if (credit == 0) return;
+		if (creditBuffer == null) creditBuffer = new byte[20];
+		int start = creditBuffer.length;
+		do {
+			creditBuffer[--start] = (byte) ('0' + credit % 10);
+			credit /= 10;
+		} while (credit > 0);
+		out.writeChunk(NGConstants.CHUNKTYPE_CREDIT, creditBuffer, start, creditBuffer.length - start);
+		out.flush();
+	}
+
+	/**
+	 * Reads the chunks the client has already sent, as
+	 * <code>pump()</code> does, for as long as it can do so without
+	 * waiting for the client: while a whole chunk header, at least, has
+	 * arrived and no stdin chunk is part read.  The caller must have
+	 * claimed the connection from the FlowControl.
+	 * @throws IOException if thrown by the underlying InputStream, or if
+	 * the client sends more stdin than its window allows
+	 */
+	void pumpAvailable() throws IOException {
+		while (remaining == 0 && reader.available() >= 5) {
+			pump();
+		}
+	}
+
+	/**
+	 * Reads the next chunk from the client on behalf of a thread waiting
+	 * for credit to send output, which must have claimed the connection
+	 * from the FlowControl.  Stdin is held until the nail reads it: the
+	 * rest of the current chunk first, so that the held stdin is in
+	 * order.
+	 * @throws IOException if thrown by the underlying InputStream, or if
+	 * the client sends more stdin than its window allows
+	 */
+	void pump() throws IOException {
+		if (eof || heldEof) {
+			// nothing further but credit, heartbeats and signals
+			byte chunkType = reader.readHeader();
+			flowControl.heard();
+			if (!isControl(chunkType)) {
+				throw (new IOException("Unexpected chunk after end of stdin: " + (char) chunkType));
+			}
+			readControl(chunkType);
+			return;
+		}
+		if (remaining > 0) {
+			if (inflating) {
+				hold(inflated, inflatedPos, (int) remaining);
+			} else {
+				holdFromReader((int) remaining);
+			}
+			remaining = 0;
+			inflating = false;
+		}
+		readHeader();
+		if (eof) {
+			eof = false;
+			heldEof = true;
+		} else if (remaining > 0) {
+			if (inflating) {
+				hold(inflated, 0, (int) remaining);
+			} else {
+				holdFromReader((int) remaining);
+			}
+			remaining = 0;
+			inflating = false;
+		}
+	}
+
+	/**
+	 * Makes room for <code>len</code> more bytes of held stdin
+	 */
+	private void makeRoom(int len) throws IOException {
+		// the client may have sent a window's worth before it was told the
+		// window's size, if it sent stdin eagerly
+		int limit = flowControl.getInputWindow() + NGConstants.EAGER_STDIN_WINDOW;
+		if (heldCount - heldPos + len > limit) throw (new IOException("Client sent more stdin than its window allows"));
+		if (held == null) held = new byte[Math.max(len, 8192)];
+		if (heldCount + len > held.length) {
+			byte[] newHeld = (heldCount - heldPos + len > held.length) ? new byte[Math.min(limit, Math.max(held.length * 2, heldCount - heldPos + len))] : held;
+			System.arraycopy(held, heldPos, newHeld, 0, heldCount - heldPos);
+			held = newHeld;
+			heldCount -= heldPos;
+			heldPos = 0;
+		}
+	}
+
+	private void hold(byte[] b, int offset, int len) throws IOException {
+		makeRoom(len);
+		System.arraycopy(b, offset, held, heldCount, len);
+		heldCount += len;
+	}
+
+	private void holdFromReader(int len) throws IOException {
+		makeRoom(len);
+		reader.readFully(held, heldCount, len);
+		heldCount += len;
+	}
 	
+	/**
+	 * Reads and decompresses a compressed stdin chunk
+	 * @param len the length of the compressed chunk's payload
+	 * @throws IOException if thrown by the underlying InputStream, or if
+	 * the chunk is not valid
+	 */
+	private void inflate(int len) throws IOException {
+		// Inflater wants a byte beyond the end of raw Deflate data
+		if (compressed == null || compressed.length < len + 1) compressed = new byte[Math.max(len + 1, 1024)];
+		reader.readFully(compressed, 0, len);
+		compressed[len] = 0;
+		if (len == 0 || compressed[0] != NGConstants.CHUNKTYPE_STDIN) {
+			throw (new IOException("Unexpected compressed chunk"));
+		}
+		if (inflater == null) inflater = new Inflater(true);
+		if (inflated == null) inflated = new byte[Math.max(4 * len, 8192)];
+		inflater.reset();
+		inflater.setInput(compressed, 1, len);
+		int count = 0;
+		try {
+			while (!inflater.finished()) {
+				if (count == inflated.length) {
+					byte[] newInflated = new byte[inflated.length * 2];
+					System.arraycopy(inflated, 0, newInflated, 0, count);
+					inflated = newInflated;
+				}
+				int n = inflater.inflate(inflated, count, inflated.length - count);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw (new IOException("Truncated compressed chunk"));
+				}
+				count += n;
+			}
+		} catch (DataFormatException e) {
+			throw (new IOException("Invalid compressed chunk: " + e.getMessage()));
+		}
+		inflating = true;
+		inflatedPos = 0;
+		remaining = count;
+	}
+
 	/**
 	 * @see java.io.InputStream#available()
 	 */
 	public int available() throws IOException {
 		if (eof) return(0);
-		if (remaining > 0) return (in.available());
+		if (remaining > 0) return (inflating ? (int) remaining : in.available());
+		if (heldCount > heldPos) return (heldCount - heldPos);
+		if (heldEof) return (0);
 		return (Math.max(0, in.available() - 5));
 	}
 	
@@ -95,7 +429,7 @@ class NGInputStream extends FilterInputStream {
 	 */
 	public int read() throws IOException {
         if (oneByteBuffer == null) oneByteBuffer = new byte[1];
-        return((read(oneByteBuffer, 0, 1) == -1) ? -1 : (int) oneByteBuffer[0]);
+        return((read(oneByteBuffer, 0, 1) == -1) ? -1 : (oneByteBuffer[0] & 0xff));
 	}
 	
 	/**
@@ -106,22 +440,77 @@ class NGInputStream extends FilterInputStream {
 	}
 	
 	/**
-	 * @see java.io.InputStream.read(byte[],offset,length)
+	 * Asks the client to start sending stdin, if it has not already been
+	 * asked.  This happens the first time the stream is read, or as soon
+	 * as the command arrives for commands that take stdin eagerly.
+	 * @throws IOException if thrown by the underlying ChunkWriter
 	 */
-	public int read(byte[] b, int offset, int length) throws IOException {
+	void startInput() throws IOException {
         if (!started) {
-            synchronized(out) {
-                out.writeInt(0);
-                out.writeByte(NGConstants.CHUNKTYPE_STARTINPUT);
-                out.flush();
-                started = true;
-            }
+            out.writeChunk(NGConstants.CHUNKTYPE_STARTINPUT);
+            out.flush();
+            started = true;
         }
-		if (remaining == 0) readHeader();
+	}
+
+	/**
+	 * @see java.io.InputStream.read(byte[],offset,length)
+	 */
+	public int read(byte[] b, int offset, int length) throws IOException {
+		startInput();
+		if (flowControl == null) return (readChunked(b, offset, length));
+
+		// before claiming the connection, as flushing may need to read
+		// credit from it
+		if (remaining == 0 && heldCount == heldPos && !eof && !heldEof && reader.buffered() == 0) flushOutput();
+		flowControl.beginReading();
+		int result;
+		try {
+			if (remaining == 0 && heldCount > heldPos) {
+				result = Math.min(length, heldCount - heldPos);
+				System.arraycopy(held, heldPos, b, offset, result);
+				heldPos += result;
+			} else if (remaining == 0 && heldEof) {
+				return (-1);
+			} else {
+				try {
+					result = readChunked(b, offset, length);
+				} catch (IOException e) {
+					// so that threads waiting for credit, and the
+					// ClientMonitor, know the client has gone
+					flowControl.fail(e);
+					throw (e);
+				}
+				if (result == -1) return (-1);
+			}
+		} finally {
+			flowControl.endReading();
+		}
+		consumed(result);
+		return (result);
+	}
+
+	/**
+	 * Reads stdin as it arrives in chunks from the client
+	 */
+	private int readChunked(byte[] b, int offset, int length) throws IOException {
+		if (remaining == 0 && !eof) {
+			if (flowControl == null && reader.buffered() == 0) flushOutput();
+			do {
+				readHeader();
+			} while (remaining == 0 && !eof && isControl(reader.getChunkType()));
+		}
 		if (eof) return(-1);
 
 		int bytesToRead = Math.min((int) remaining, length);
-		int result = in.read(b, offset, bytesToRead);
+		int result;
+		if (inflating) {
+			System.arraycopy(inflated, inflatedPos, b, offset, bytesToRead);
+			inflatedPos += bytesToRead;
+			result = bytesToRead;
+		} else {
+			result = in.read(b, offset, bytesToRead);
+		}
 		remaining -= result;
 		return (result);
 	}
@@ -0,0 +1,316 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ConnectException;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+
+/**
+ * A single listening socket together with the NGSessionPool that serves
+ * the connections it accepts.  An NGServer normally has exactly one
+ * NGListener; in sharded mode it has one per shard, all bound to the same
+ * port with <code>SO_REUSEPORT</code> so that the kernel spreads incoming
+ * connections across them.  A listener may also accept connections on a
+ * Unix domain socket.
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGListener implements Runnable {
+
+	/**
+	 * The server we're working for
+	 */
+	private NGServer server = null;
+
+	/**
+	 * The index of this listener's shard
+	 */
+	private int shard = 0;
+
+	/**
+	 * The pool of sessions that run nails for connections accepted here
+	 */
+	private NGSessionPool sessionPool = null;
+
+	/**
+	 * The socket doing the listening, if it's a TCP socket
+	 */
+	private ServerSocket serversocket = null;
+
+	/**
+	 * The channel doing the listening, if listening via a selector or on a
+	 * Unix domain socket
+	 */
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * The Unix domain socket file, if this listener created one
+	 */
+	private File socketFile = null;
+
+	/**
+	 * The selector-based acceptor, if one is in use
+	 */
+	private NGSelectorAcceptor selectorAcceptor = null;
+
+	/**
+	 * True once this listener has been told to stop
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Creates a new NGListener
+	 * @param server the server we're working for
+	 * @param shard the index of this listener's shard
+	 * @param sessionPool the pool of sessions that will run nails for
+	 * connections accepted here
+	 */
+	NGListener(NGServer server, int shard, NGSessionPool sessionPool) {
+		this.server = server;
+		this.shard = shard;
+		this.sessionPool = sessionPool;
+	}
+
+	/**
+	 * Opens and binds the listening socket.
+	 * @param addr the address at which to listen, or <code>null</code> to bind
+	 * to all local addresses
+	 * @param port the port on which to listen
+	 * @param reusePort if true, <code>SO_REUSEPORT</code> is enabled so that
+	 * other listeners may bind to the same port
+	 * @throws IOException if the socket cannot be bound, or if
+	 * <code>SO_REUSEPORT</code> was requested but is not supported
+	 */
+	void bind(InetAddress addr, int port, boolean reusePort) throws IOException {
+		if (server.usesSelector()) {
+			serverChannel = ServerSocketChannel.open();
+			if (reusePort) enableReusePort(ServerSocketChannel.class, serverChannel);
+			serverChannel.socket().bind(new InetSocketAddress(addr, port));
+			serversocket = serverChannel.socket();
+			selectorAcceptor = new NGSelectorAcceptor(server, serverChannel, sessionPool, shard);
+		} else {
+			serversocket = new ServerSocket();
+			if (reusePort) enableReusePort(ServerSocket.class, serversocket);
+			serversocket.bind(new InetSocketAddress(addr, port));
+		}
+	}
+
+	/**
+	 * Opens and binds a Unix domain socket at the specified path.  A socket
+	 * already at that path is deleted first if no server is listening on
+	 * it (as when a server did not shut down cleanly); anything else there,
+	 * including the socket of a server that is still running, is left
+	 * alone and the bind fails.  Unix domain socket channels were added in
+	 * Java 16, so they are created reflectively.
+	 * @param path the filesystem path of the socket
+	 * @throws IOException if the socket cannot be bound, if the path is
+	 * taken, or if Unix domain sockets are not supported
+	 */
+	void bindUnix(String path) throws IOException {
+		ProtocolFamily unix = null;
+		SocketAddress address = null;
+		try {
+			unix = (ProtocolFamily) StandardProtocolFamily.class.getField("UNIX").get(null);
+			Method open = ServerSocketChannel.class.getMethod("open", new Class[] {ProtocolFamily.class});
+			serverChannel = (ServerSocketChannel) open.invoke(null, new Object[] {unix});
+			Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", new Class[] {String.class});
+			address = (SocketAddress) of.invoke(null, new Object[] {path});
+		} catch (Exception e) {
+			throw (new IOException("Unix domain sockets are not supported by this JVM: " + e));
+		}
+
+		File file = new File(path);
+		try {
+			removeStaleSocket(file, unix, address);
+			serverChannel.bind(address);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw (e);
+		}
+		// only now is the file ours to delete
+		socketFile = file;
+		if (server.usesSelector()) {
+			selectorAcceptor = new NGSelectorAcceptor(server, serverChannel, sessionPool, shard);
+		}
+	}
+
+	/**
+	 * Deletes the Unix domain socket at the specified path if nothing is
+	 * listening on it, so that a new one may be bound there.  Does nothing
+	 * if there is no file at the path.
+	 * @throws IOException if the path is taken by something other than a
+	 * socket, or by a socket on which a server is listening
+	 */
+	private static void removeStaleSocket(File file, ProtocolFamily unix, SocketAddress address) throws IOException {
+		if (!Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) return;
+		if (!isSocket(file)) {
+			throw (new IOException("Cannot listen on " + file + ": it exists and is not a socket"));
+		}
+		SocketChannel probe;
+		try {
+			Method open = SocketChannel.class.getMethod("open", new Class[] {ProtocolFamily.class});
+			probe = (SocketChannel) open.invoke(null, new Object[] {unix});
+		} catch (Exception e) {
+			throw (new IOException("Unix domain sockets are not supported by this JVM: " + e));
+		}
+		try {
+			probe.connect(address);
+			throw (new IOException("Cannot listen on " + file + ": another server is listening there"));
+		} catch (ConnectException e) {
+			// refused, so left behind by a server that has gone
+		} finally {
+			probe.close();
+		}
+		if (!file.delete()) {
+			throw (new IOException("Cannot listen on " + file + ": unable to delete the stale socket"));
+		}
+	}
+
+	/**
+	 * Returns true if the specified file is a socket.  Where the file's
+	 * type cannot be read, anything other than a regular file, a directory
+	 * or a link counts as one.
+	 */
+	private static boolean isSocket(File file) throws IOException {
+		try {
+			int mode = ((Integer) Files.getAttribute(file.toPath(), "unix:mode", LinkOption.NOFOLLOW_LINKS)).intValue();
+			return ((mode & 0170000) == 0140000);
+		} catch (RuntimeException e) {
+			// no "unix" attribute view on this platform
+			return (!Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS)
+					&& !Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)
+					&& !Files.isSymbolicLink(file.toPath()));
+		}
+	}
+
+	/**
+	 * Sets <code>SO_REUSEPORT</code> on an unbound socket or channel.  The
+	 * option and the <code>ServerSocket.setOption()</code> method were only
+	 * added in Java 9, so both are looked up reflectively.
+	 */
+	private static void enableReusePort(Class socketClass, Object socket) throws IOException {
+		try {
+			SocketOption option = (SocketOption) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			Method setOption = socketClass.getMethod("setOption", new Class[] {SocketOption.class, Object.class});
+			setOption.invoke(socket, new Object[] {option, Boolean.TRUE});
+		} catch (Exception e) {
+			throw (new IOException("SO_REUSEPORT is not supported on this platform: " + e));
+		}
+	}
+
+	/**
+	 * Returns the port on which this listener is listening, or zero if
+	 * it is listening on a Unix domain socket
+	 * @return the port on which this listener is listening
+	 */
+	int getLocalPort() {
+		return ((serversocket == null) ? 0 : serversocket.getLocalPort());
+	}
+
+	/**
+	 * Returns the index of this listener's shard
+	 * @return the index of this listener's shard
+	 */
+	int getShard() {
+		return (shard);
+	}
+
+	/**
+	 * Returns the pool of sessions that run nails for this listener
+	 * @return the pool of sessions that run nails for this listener
+	 */
+	NGSessionPool getSessionPool() {
+		return (sessionPool);
+	}
+
+	/**
+	 * Stops accepting connections and shuts down this listener's session
+	 * pool.  Running nails are allowed to finish.
+	 */
+	void shutdown() {
+		done = true;
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			} else {
+				serversocket.close();
+			}
+		} catch (Throwable toDiscard) {}
+
+		if (socketFile != null) {
+			socketFile.delete();
+		}
+
+		if (selectorAcceptor != null) {
+			selectorAcceptor.shutdown();
+		}
+
+		sessionPool.shutdown();
+	}
+
+	/**
+	 * Accepts connections and hands them to sessions until shut down.
+	 */
+	public void run() {
+		sessionPool.prestart();
+		if (selectorAcceptor != null) {
+			if (!done) {
+				selectorAcceptor.run();
+			}
+			return;
+		}
+
+		try {
+			while (!done) {
+				if (serverChannel != null) {
+					SocketChannel channel = serverChannel.accept();
+					sessionPool.dispatch(new NGConnection(channel, null, null, shard, null));
+				} else {
+					Socket socket = serversocket.accept();
+					// kept-alive connections would otherwise stall on Nagle's
+					// algorithm, since the response is written in many pieces
+					socket.setTcpNoDelay(true);
+					sessionPool.dispatch(new NGConnection(socket, shard));
+				}
+			}
+		} catch (Throwable t) {
+			// if shutdown is called while the accept() method is blocking,
+			// an exception will be thrown that we don't care about.  filter
+			// those out.
+			if (!done) {
+				t.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,564 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Runs any number of commands concurrently over a single client connection.
+ * Once a client has sent a <code>CHUNKTYPE_MULTIPLEX</code> chunk, every
+ * chunk in either direction carries a four-byte stream id after its type
+ * byte:
+ *
+ * <pre>
+ *     [payload length (4)] [chunk type (1)] [stream id (4)] [payload]
+ * </pre>
+ *
+ * <p>A client starts a command by sending a preamble on an unused stream id.
+ * Each stream is presented to an ordinary NGSession as an NGConnection of
+ * its own, with chunks re-framed to and from the usual five-byte header, so
+ * nails cannot tell that they are sharing a socket.  A stream ends with its
+ * exit chunk, after which its id may be reused.  Only streams that are
+ * running a nail occupy a session thread; a thread of the multiplexer's
+ * own (see <code>start()</code>) reads from the socket on behalf of all of
+ * them, and never waits for a session, as the streams it would wait for
+ * may be the ones it must read for.  A stream started while every
+ * session is busy waits in the admission queue or is turned away, as a
+ * connection of its own would be.  A stream started while the connection
+ * already has as many open as the server allows (see
+ * <code>NGServer.setMaxStreams()</code>) is turned away with
+ * <code>NGConstants.EXIT_OVERLOADED</code> before any of its preamble is
+ * held.  A stream whose preamble cannot be read, as when it is too long,
+ * is turned away with <code>NGConstants.EXIT_EXCEPTION</code> and the
+ * rest of its preamble discarded; the other streams carry on.  Only a
+ * chunk that cannot be framed ends the whole connection.</p>
+ *
+ * <p>The stdin a stream's nail has yet to read is held apart from the
+ * other streams', so that no stream waits for another to read.  A stream
+ * may have no more unread than the larger of its stdin window (see
+ * <code>NGServer.setInputWindow()</code>) and
+ * <code>NGConstants.EAGER_STDIN_WINDOW</code>, plus
+ * <code>CONTROL_ALLOWANCE</code> for its chunk headers and control
+ * chunks.  A client using flow control never sends more; a stream that
+ * does has its input cut off, and its nail's next read fails.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGMultiplexer {
+
+	/**
+	 * The unread chunk headers and control chunks a stream may have over
+	 * and above its stdin window, in bytes
+	 */
+	static final int CONTROL_ALLOWANCE = 4096;
+
+	/**
+	 * Numbers the reader threads
+	 */
+	private static int threadCount = 0;
+
+	/**
+	 * The client connection carrying all of the streams
+	 */
+	private NGConnection connection = null;
+
+	/**
+	 * The pool that supplies sessions to run the nails
+	 */
+	private NGSessionPool sessionPool = null;
+
+	/**
+	 * Buffered stream to the client, so that each chunk is sent with a
+	 * single write.  Synchronized upon for every chunk.
+	 */
+	private DataOutputStream out = null;
+
+	/**
+	 * The streams that have not yet finished, keyed by stream id
+	 */
+	private Map streams = new java.util.HashMap();
+
+	/**
+	 * The id of the stream most recently turned away, for exceeding the
+	 * limit on open streams or for a preamble that cannot be read, until
+	 * its command chunk, so that the rest of its preamble is discarded
+	 * without another exit chunk for each
+	 */
+	private Integer refused = null;
+
+	/**
+	 * True once the client has stopped sending
+	 */
+	private boolean closed = false;
+
+	/**
+	 * The reader's buffer for preamble chunks, and for payloads it discards
+	 */
+	private byte[] scratch = new byte[1024];
+
+	/**
+	 * Creates a new NGMultiplexer
+	 * @param connection the client connection carrying all of the streams
+	 * @param sessionPool the pool that supplies sessions to run the nails
+	 * @throws IOException if thrown by the underlying connection
+	 */
+	NGMultiplexer(NGConnection connection, NGSessionPool sessionPool) throws IOException {
+		this.connection = connection;
+		this.sessionPool = sessionPool;
+		this.out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+	}
+
+	/**
+	 * Starts reading the client's chunks on a new thread, returning at once
+	 */
+	void start() {
+		int n;
+		synchronized(NGMultiplexer.class) {
+			n = ++threadCount;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				NGMultiplexer.this.run();
+			}
+		}, "NGServer multiplexer " + n + ": " + connection.getInetAddress().getHostAddress());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Reads chunks from the client and routes them to their streams, starting
+	 * a session for each stream whose preamble is complete.  Returns when the
+	 * client stops sending; the connection itself is closed once every
+	 * remaining stream has finished.
+	 */
+	void run() {
+		try {
+			ChunkReader in = connection.getChunkReader();
+			while (true) {
+				byte chunkType = in.readHeader();
+				int len = in.getChunkLength();
+				NGPreamble.checkChunkLength(chunkType, len);
+				Integer id = Integer.valueOf(in.readInt());
+
+				Stream stream = null;
+				boolean overloaded = false;
+				synchronized(streams) {
+					stream = (Stream) streams.get(id);
+					if (stream == null) {
+						if (chunkType == NGConstants.CHUNKTYPE_STDIN
+							|| chunkType == NGConstants.CHUNKTYPE_COMPRESSED
+							|| chunkType == NGConstants.CHUNKTYPE_CREDIT
+							|| chunkType == NGConstants.CHUNKTYPE_HEARTBEAT
+							|| chunkType == NGConstants.CHUNKTYPE_SIGNAL
+							|| chunkType == NGConstants.CHUNKTYPE_STDIN_EOF) {
+							// input or control chunks for a stream that has already finished
+						} else if (id.equals(refused) || streams.size() >= sessionPool.server.getMaxStreams()) {
+							overloaded = true;
+						} else {
+							stream = new Stream(id);
+							streams.put(id, stream);
+						}
+					}
+				}
+				if (overloaded) {
+					refuse(id, chunkType);
+				}
+				if (stream == null) {
+					skip(in, len);
+					continue;
+				}
+
+				if (!stream.getPreamble().isComplete()) {
+					// streams can be neither kept alive nor multiplexed themselves
+					if (chunkType == NGConstants.CHUNKTYPE_KEEPALIVE
+						|| chunkType == NGConstants.CHUNKTYPE_MULTIPLEX) {
+						skip(in, len);
+					} else if (!addPreambleChunk(in, stream, chunkType, len)) {
+						// turned away, and no longer among the streams
+						continue;
+					}
+					if (stream.getPreamble().isComplete()) {
+						// never waits, so the running streams are still read
+						sessionPool.dispatchNow(stream);
+					}
+				} else if (stream.input.hasRoom(5 + len)) {
+					byte[] chunk = new byte[len + 5];
+					in.readFully(chunk, 5, len);
+					writeHeader(chunk, len, chunkType);
+					stream.input.add(chunk);
+				} else {
+					// cut off, having sent more than its window
+					skip(in, len);
+				}
+			}
+		} catch (EOFException e) {
+			// client is done sending
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+
+		synchronized(streams) {
+			closed = true;
+			for (Iterator i = streams.values().iterator(); i.hasNext();) {
+				Stream stream = (Stream) i.next();
+				stream.input.finish();
+				if (!stream.getPreamble().isComplete()) {
+					// its command will never run
+					stream.getPreamble().releaseLongArgs();
+				}
+			}
+			closeIfDone();
+		}
+	}
+
+	/**
+	 * Reads a chunk of a stream's preamble into the preamble, a piece at a
+	 * time if it is part of a long argument, and sends any reply it
+	 * requires.  A stream whose preamble rejects the chunk is turned away,
+	 * and the rest of the chunk discarded.
+	 * @return false if the stream was turned away
+	 * @throws IOException if the chunk cannot be read from the client
+	 */
+	private boolean addPreambleChunk(ChunkReader in, Stream stream, byte chunkType, int len) throws IOException {
+		NGPreamble preamble = stream.getPreamble();
+		if (chunkType == NGConstants.CHUNKTYPE_LONGARG && len > scratch.length) {
+			// taken a piece at a time, as it's only appended
+			while (len > 0) {
+				int n = Math.min(len, scratch.length);
+				in.readFully(scratch, 0, n);
+				len -= n;
+				if (!addChunk(stream, chunkType, n)) {
+					skip(in, len);
+					return (false);
+				}
+			}
+			return (true);
+		}
+		if (len > scratch.length) {
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		}
+		in.readFully(scratch, 0, len);
+		if (!addChunk(stream, chunkType, len)) return (false);
+		byte[] reply = preamble.takeReply();
+		if (reply != null) {
+			send(stream.id, NGConstants.CHUNKTYPE_ENVDIGEST, reply, 0, reply.length);
+		}
+		return (true);
+	}
+
+	/**
+	 * Adds the start of the scratch buffer to a stream's preamble, or turns
+	 * the stream away if the preamble rejects it
+	 * @return false if the stream was turned away
+	 */
+	private boolean addChunk(Stream stream, byte chunkType, int len) throws IOException {
+		try {
+			stream.getPreamble().addChunk(chunkType, scratch, 0, len);
+			return (true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			synchronized(streams) {
+				remove(stream);
+			}
+			stream.getPreamble().releaseLongArgs();
+			byte[] status = String.valueOf(NGConstants.EXIT_EXCEPTION).getBytes("US-ASCII");
+			send(stream.id, NGConstants.CHUNKTYPE_EXIT, status, 0, status.length);
+			refused = (chunkType == NGConstants.CHUNKTYPE_COMMAND) ? null : stream.id;
+			return (false);
+		}
+	}
+
+	/**
+	 * Turns away a stream started while the connection has as many open as
+	 * the server allows, sending its exit chunk once, on the first chunk of
+	 * its preamble
+	 */
+	private void refuse(Integer id, byte chunkType) throws IOException {
+		if (!id.equals(refused)) {
+			byte[] status = String.valueOf(NGConstants.EXIT_OVERLOADED).getBytes("US-ASCII");
+			send(id, NGConstants.CHUNKTYPE_EXIT, status, 0, status.length);
+		}
+		refused = (chunkType == NGConstants.CHUNKTYPE_COMMAND) ? null : id;
+	}
+
+	/**
+	 * Reads and discards a chunk's payload
+	 */
+	private void skip(ChunkReader in, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, scratch.length);
+			in.readFully(scratch, 0, n);
+			len -= n;
+		}
+	}
+
+	/**
+	 * Sends a single chunk for the specified stream
+	 * @param id the stream id
+	 * @param chunkType the chunk type
+	 * @param b the buffer containing the payload
+	 * @param offset the offset of the payload within <code>b</code>
+	 * @param len the length of the payload
+	 * @throws IOException if thrown by the underlying connection
+	 */
+	private void send(Integer id, byte chunkType, byte[] b, int offset, int len) throws IOException {
+		synchronized(out) {
+			out.writeInt(len);
+			out.writeByte(chunkType);
+			out.writeInt(id.intValue());
+			out.write(b, offset, len);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Removes a finished stream.  Must be called while synchronized on
+	 * <code>streams</code>.
+	 */
+	private void remove(Stream stream) {
+		if (streams.get(stream.id) == stream) {
+			streams.remove(stream.id);
+		}
+	}
+
+	/**
+	 * Closes the client connection if the client has stopped sending and no
+	 * streams remain.  Must be called while synchronized on
+	 * <code>streams</code>.
+	 */
+	private void closeIfDone() {
+		if (closed && streams.isEmpty()) {
+			try {
+				connection.close();
+			} catch (IOException toDiscard) {}
+		}
+	}
+
+	/**
+	 * Writes a standard five-byte chunk header into the start of a buffer
+	 */
+	private static void writeHeader(byte[] b, int len, byte chunkType) {
+		b[0] = (byte) (len >>> 24);
+		b[1] = (byte) (len >>> 16);
+		b[2] = (byte) (len >>> 8);
+		b[3] = (byte) len;
+		b[4] = chunkType;
+	}
+
+	/**
+	 * One command's share of the multiplexed connection
+	 */
+	private class Stream extends NGConnection {
+		private final Integer id;
+		private final StreamInputStream input;
+		private final StreamOutputStream output = new StreamOutputStream(this);
+
+		Stream(Integer id) {
+			super(new NGPreamble(sessionPool.server), connection.getShard(), connection.getInetAddress(), connection.getPort());
+			this.id = id;
+			int window = Math.max(sessionPool.server.getInputWindow(), NGConstants.EAGER_STDIN_WINDOW);
+			this.input = new StreamInputStream(window + CONTROL_ALLOWANCE);
+		}
+
+		InputStream getInputStream() {
+			return (input);
+		}
+
+		OutputStream getOutputStream() {
+			return (output);
+		}
+
+		boolean resume() {
+			return (false);
+		}
+
+		boolean awaitInput(int timeout) {
+			return (false);
+		}
+
+		void closeGracefully() {
+			// the client's unread input is the multiplexer's to discard
+			close();
+		}
+
+		void close() {
+			input.finish();
+			synchronized(streams) {
+				remove(this);
+				closeIfDone();
+			}
+		}
+	}
+
+	/**
+	 * Supplies a stream's stdin chunks, already re-framed with standard
+	 * chunk headers, to the session running its nail.  Holds no more than
+	 * its limit; a stream that sends more is cut off.
+	 */
+	private static class StreamInputStream extends InputStream {
+		private LinkedList chunks = new LinkedList();
+		private byte[] current = null;
+		private int pos = 0;
+		private boolean eof = false;
+		private byte[] oneByteBuffer = new byte[1];
+
+		/**
+		 * The most bytes to hold, and the number held
+		 */
+		private final int limit;
+		private int queued = 0;
+
+		/**
+		 * True once the stream has sent more than it may
+		 */
+		private boolean overrun = false;
+
+		StreamInputStream(int limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * Returns true if a chunk of the specified length may be added,
+		 * or cuts the stream off, discarding everything held, and returns
+		 * false if it would take the stream past its limit.  Called by the
+		 * reader before it reads the chunk.
+		 */
+		synchronized boolean hasRoom(int len) {
+			if (overrun) return (false);
+			if (queued + len <= limit) return (true);
+			overrun = true;
+			chunks.clear();
+			current = null;
+			queued = 0;
+			notifyAll();
+			return (false);
+		}
+
+		synchronized void add(byte[] chunk) {
+			chunks.add(chunk);
+			queued += chunk.length;
+			notifyAll();
+		}
+
+		synchronized void finish() {
+			eof = true;
+			notifyAll();
+		}
+
+		public int read() throws IOException {
+			return ((read(oneByteBuffer, 0, 1) == -1) ? -1 : (oneByteBuffer[0] & 0xff));
+		}
+
+		public synchronized int read(byte[] b, int offset, int len) throws IOException {
+			if (len == 0) return (0);
+			while (current == null || pos == current.length) {
+				if (overrun) {
+					throw (new IOException("Client sent more input than its window"));
+				} else if (!chunks.isEmpty()) {
+					current = (byte[]) chunks.removeFirst();
+					pos = 0;
+				} else if (eof) {
+					return (-1);
+				} else {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw (new InterruptedIOException());
+					}
+				}
+			}
+			int result = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, offset, result);
+			pos += result;
+			queued -= result;
+			return (result);
+		}
+
+		public synchronized int available() {
+			return (queued);
+		}
+	}
+
+	/**
+	 * Collects the chunks written by a stream's session and sends each, with
+	 * the stream id added, once it is complete.  A stream is removed as soon
+	 * as its exit chunk is sent, so that the client may reuse its id
+	 * immediately.
+	 */
+	private class StreamOutputStream extends OutputStream {
+		private Stream stream = null;
+		private byte[] buf = new byte[1024];
+		private int count = 0;
+		private byte[] oneByteBuffer = new byte[1];
+
+		StreamOutputStream(Stream stream) {
+			this.stream = stream;
+		}
+
+		public void write(int b) throws IOException {
+			oneByteBuffer[0] = (byte) b;
+			write(oneByteBuffer, 0, 1);
+		}
+
+		public synchronized void write(byte[] b, int offset, int len) throws IOException {
+			if (count + len > buf.length) {
+				byte[] bigger = new byte[Math.max(buf.length * 2, count + len)];
+				System.arraycopy(buf, 0, bigger, 0, count);
+				buf = bigger;
+			}
+			System.arraycopy(b, offset, buf, count, len);
+			count += len;
+
+			int start = 0;
+			while (count - start >= 5) {
+				int chunkLen = ((buf[start] & 0xff) << 24)
+							| ((buf[start + 1] & 0xff) << 16)
+							| ((buf[start + 2] & 0xff) << 8)
+							| (buf[start + 3] & 0xff);
+				if (count - start < 5 + chunkLen) break;
+				byte chunkType = buf[start + 4];
+				if (chunkType == NGConstants.CHUNKTYPE_EXIT) {
+					synchronized(streams) {
+						remove(stream);
+					}
+				}
+				send(stream.id, chunkType, buf, start + 5, chunkLen);
+				if (chunkType == NGConstants.CHUNKTYPE_EXIT) {
+					synchronized(streams) {
+						closeIfDone();
+					}
+				}
+				start += 5 + chunkLen;
+			}
+			if (start > 0) {
+				System.arraycopy(buf, start, buf, 0, count - start);
+				count -= start;
+			}
+		}
+	}
+}
@@ -19,33 +19,169 @@
 package com.martiansoftware.nailgun;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Wraps an OutputStream to send writes in NailGun chunks.  Because
- * multiple NGOutputStreams wrap the same OutputStream (that is, 
- * the OutputStream obtained from the Socket connection with
- * the client), writes are synchronized on the underlying OutputStream.
- * If this were not the case, write interleaving could completely
- * break the NailGun protocol.
+ * Sends writes to a client as NailGun chunks.  Multiple NGOutputStreams
+ * share the connection's ChunkWriter, which sends each chunk whole with a
+ * single write; if it did not, write interleaving could completely break
+ * the NailGun protocol.
+ * 
+ * <p>Output is collected in a buffer and sent when the stream's
+ * <a href="FlushPolicy.html">FlushPolicy</a> says so, so that a nail
+ * printing many short lines does not cost a chunk (and a system call) for
+ * each <code>print()</code>.  Explicit calls to <code>flush()</code> are
+ * always honored.</p>
+ * 
+ * <p>A stream for exit chunks is never buffered, and sends only its first
+ * write, after first flushing the command's other output streams.  The
+ * client stops reading the command's output at that point, so anything
+ * further (such as the line separator from <code>println()</code>, or a
+ * second exit code from a nail that calls <code>System.exit()</code> from a
+ * spawned thread) would be mistaken for part of the next command on a
+ * kept-alive connection.  For the same reason, the other streams discard
+ * anything written to them once the exit code has been sent.</p>
+ * 
+ * <p>A session gives each of its commands the same NGOutputStreams, by
+ * way of <code>reset()</code>, rather than allocating new ones.</p>
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
-class NGOutputStream extends java.io.DataOutputStream {
+class NGOutputStream extends java.io.OutputStream {
+
+	/**
+	 * The size of the buffer, which is also the largest chunk the
+	 * ChunkWriter sends whole
+	 */
+	private static final int BUFFERSIZE = ChunkWriter.DEFAULT_BUFFERSIZE;
 
-	private final Object lock;
+	/**
+	 * Times the flushes of streams whose policy has a maximum delay, and
+	 * hands them to the <code>flushers</code>, shared by all streams and
+	 * created when first needed
+	 */
+	private static ScheduledExecutorService flushTimer = null;
+
+	/**
+	 * Sends the output of streams whose policy has a maximum delay, a
+	 * thread per stream at most, so that a stream whose nail is waiting
+	 * for credit (and holding the stream) holds up only its own flush
+	 */
+	private static ExecutorService flushers = null;
+
+	private ChunkWriter out;
     private byte streamCode;
+	private boolean exitSent = false;
+
+	/**
+	 * True once the command's exit code has been sent, after which writes
+	 * are discarded
+	 */
+	private boolean finished = false;
+
+	/**
+	 * True once <code>close()</code> has been called
+	 */
+	private boolean closed = false;
+
+	/**
+	 * When buffered output is sent
+	 */
+	private FlushPolicy flushPolicy;
+
+	/**
+	 * Output not yet sent is <code>buf[0]</code> through
+	 * <code>buf[count - 1]</code>.  The buffer is allocated on first use,
+	 * and is a single byte (for <code>write(int)</code>) for immediate
+	 * streams.
+	 */
+	private byte[] buf = null;
+	private int count = 0;
+
+	/**
+	 * True if the flusher will send this stream's output
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * For an exit stream, the streams to flush before sending the exit code
+	 */
+	private NGOutputStream[] precedingStreams = null;
 
 	/**
-	 * Creates a new NGOutputStream wrapping the specified
-	 * OutputStream and using the specified Nailgun chunk code.
-	 * @param out the OutputStream to wrap
+	 * Creates a new NGOutputStream writing to the specified
+	 * ChunkWriter and using the specified Nailgun chunk code, which
+	 * sends every write immediately.
+	 * @param out the ChunkWriter for the client connection
+	 * @param streamCode the NailGun chunk code associated with this
+	 * stream (i.e., '1' for stdout, '2' for stderr).
+	 */
+	public NGOutputStream(ChunkWriter out, byte streamCode) {
+		this(out, streamCode, FlushPolicy.IMMEDIATE);
+	}
+	
+	/**
+	 * Creates a new NGOutputStream writing to the specified
+	 * ChunkWriter and using the specified Nailgun chunk code.
+	 * @param out the ChunkWriter for the client connection
 	 * @param streamCode the NailGun chunk code associated with this
 	 * stream (i.e., '1' for stdout, '2' for stderr).
+	 * @param flushPolicy when buffered output is sent (ignored for
+	 * exit streams)
 	 */
-	public NGOutputStream(java.io.OutputStream out, byte streamCode) {
-		super(out);
-        this.lock = out;
+	public NGOutputStream(ChunkWriter out, byte streamCode, FlushPolicy flushPolicy) {
+        this.out = out;
         this.streamCode = streamCode;
+        this.flushPolicy = (streamCode == NGConstants.CHUNKTYPE_EXIT) ? FlushPolicy.IMMEDIATE : flushPolicy;
+	}
+	
+	/**
+	 * Prepares this stream for another command.  Anything still buffered
+	 * is discarded.
+	 * @param out the ChunkWriter for the command's connection
+	 * @param flushPolicy when buffered output is sent (ignored for
+	 * exit streams)
+	 */
+	synchronized void reset(ChunkWriter out, FlushPolicy flushPolicy) {
+		this.out = out;
+		if (streamCode != NGConstants.CHUNKTYPE_EXIT) {
+			if (buf != null && flushPolicy.isImmediate() != this.flushPolicy.isImmediate()) buf = null;
+			this.flushPolicy = flushPolicy;
+		}
+		count = 0;
+		exitSent = false;
+		finished = false;
+	}
+	
+	/**
+	 * Returns true if <code>close()</code> has been called, in which case
+	 * this stream should not be reused
+	 * @return true if <code>close()</code> has been called
+	 */
+	synchronized boolean isClosed() {
+		return (closed);
+	}
+	
+	/**
+	 * Returns the policy that determines when buffered output is sent
+	 * @return the policy that determines when buffered output is sent
+	 */
+	synchronized FlushPolicy getFlushPolicy() {
+		return (flushPolicy);
+	}
+	
+	/**
+	 * Sets the streams whose output must reach the client before this
+	 * (exit) stream's
+	 * @param precedingStreams the streams to flush before sending the
+	 * exit code
+	 */
+	void setPrecedingStreams(NGOutputStream[] precedingStreams) {
+		this.precedingStreams = precedingStreams;
 	}
 	
 	/**
@@ -59,19 +195,227 @@ class NGOutputStream extends java.io.DataOutputStream {
 	 * @see java.io.OutputStream.write(int)
 	 */
 	public void write(int b) throws IOException {
-		byte[] b2 = {(byte) b};
-		write(b2, 0, 1);
+		if (streamCode == NGConstants.CHUNKTYPE_EXIT) {
+			byte[] b2 = {(byte) b};
+			writeExit(b2, 0, 1);
+			return;
+		}
+		synchronized(this) {
+			if (finished) return;
+			if (buf == null) allocate();
+			if (count == buf.length) flushBuffer();
+			buf[count++] = (byte) b;
+			written(b == '\n');
+		}
 	}
 	
 	/**
 	 * @see java.io.OutputStream.write(byte[],int,int)
 	 */
 	public void write(byte[] b, int offset, int len) throws IOException {
-		synchronized(lock) {
-            writeInt(len);
-            writeByte(streamCode);
-			out.write(b, offset, len);
+		if (streamCode == NGConstants.CHUNKTYPE_EXIT) {
+			writeExit(b, offset, len);
+			return;
+		}
+		if (len == 0) return;
+		synchronized(this) {
+			if (finished) return;
+			if (buf == null) allocate();
+			if (len > buf.length - count) flushBuffer();
+			if (count == 0 && (len >= buf.length || flushPolicy.isImmediate())) {
+				// nothing to coalesce with, so no need to copy
+				out.writeChunk(streamCode, b, offset, len);
+			} else {
+				System.arraycopy(b, offset, buf, count, len);
+				count += len;
+			}
+			written(flushPolicy.isLineBuffered() && containsNewline(b, offset, len));
+		}
+	}
+	
+	/**
+	 * Sends output after any already buffered, without waiting longer than
+	 * the specified time for the client to grant credit, and without
+	 * reading from the client to find it.  Whatever cannot be sent in time
+	 * is discarded; this is for output that must not hold up the thread
+	 * writing it, such as a stack dump requested by a forwarded signal.
+	 * @param b the output
+	 * @param offset the offset of the output within <code>b</code>
+	 * @param len the length of the output
+	 * @param timeout the longest time, in milliseconds, to wait for credit
+	 * @return the number of bytes of <code>b</code> sent
+	 * @throws IOException if the output cannot be sent
+	 */
+	synchronized int tryWrite(byte[] b, int offset, int len, long timeout) throws IOException {
+		if (finished || streamCode == NGConstants.CHUNKTYPE_EXIT) return (0);
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		if (count > 0) {
+			int sent = out.tryWriteChunk(streamCode, buf, 0, count, timeout);
+			count -= sent;
+			if (count > 0) {
+				System.arraycopy(buf, sent, buf, 0, count);
+				return (0);
+			}
+		}
+		int result = out.tryWriteChunk(streamCode, b, offset, len, Math.max(0, (deadline - System.nanoTime()) / 1000000));
+		out.flush();
+		return (result);
+	}
+
+	/**
+	 * Sends the exit code, if it has not been sent already
+	 */
+	private void writeExit(byte[] b, int offset, int len) throws IOException {
+		synchronized(this) {
+			if (exitSent) return;
+			exitSent = true;
+		}
+		if (precedingStreams != null) {
+			for (int i = 0; i < precedingStreams.length; ++i) {
+				precedingStreams[i].finish();
+			}
+		}
+		out.writeChunk(streamCode, b, offset, len);
+		out.flush();
+	}
+	
+	/**
+	 * Sends any buffered output, and discards anything written afterwards
+	 */
+	private synchronized void finish() throws IOException {
+		flushBuffer();
+		finished = true;
+	}
+	
+	/**
+	 * Applies the flush policy after a write
+	 * @param newline true if the write included a newline
+	 */
+	private void written(boolean newline) throws IOException {
+		if (flushPolicy.isImmediate() || (newline && flushPolicy.isLineBuffered())) {
+			flushBuffer();
+			out.flush();
+		} else if (count > 0 && !flushScheduled && flushPolicy.getMaxDelay() > 0) {
+			scheduleFlush();
+		}
+	}
+	
+	/**
+	 * Has the buffered output sent once the policy's maximum delay has
+	 * passed
+	 */
+	private void scheduleFlush() {
+		flushScheduled = true;
+		getFlushTimer().schedule(new Runnable() {
+			public void run() {
+				getFlushers().execute(new Runnable() {
+					public void run() {
+						timedFlush();
+					}
+				});
+			}
+		}, flushPolicy.getMaxDelay(), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Sends buffered output on behalf of the flushers.  Output buffered
+	 * after the flush was scheduled is sent early, which does no harm.
+	 * Under flow control only what the client has already granted credit
+	 * for is sent, and the rest is tried again after another delay, so
+	 * that the flush never waits for a client that has stopped reading.
+	 */
+	private synchronized void timedFlush() {
+		flushScheduled = false;
+		if (count == 0) return;
+		try {
+			int sent = out.tryWriteChunk(streamCode, buf, 0, count, 0);
+			count -= sent;
+			if (count > 0) {
+				System.arraycopy(buf, sent, buf, 0, count);
+				scheduleFlush();
+			}
+			if (sent > 0) out.flush();
+		} catch (IOException e) {
+			// the nail's next write will fail in the same way
+		}
+	}
+	
+	private static boolean containsNewline(byte[] b, int offset, int len) {
+		for (int i = offset + len - 1; i >= offset; --i) {
+			if (b[i] == '\n') return (true);
+		}
+		return (false);
+	}
+	
+	private void allocate() {
+		buf = new byte[flushPolicy.isImmediate() ? 1 : BUFFERSIZE];
+	}
+	
+	/**
+	 * Sends any buffered output as a single chunk
+	 */
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			int len = count;
+			count = 0;
+			out.writeChunk(streamCode, buf, 0, len);
+		}
+	}
+	
+	/**
+	 * Sends any buffered output.
+	 * @see java.io.OutputStream.flush()
+	 */
+	public void flush() throws IOException {
+		synchronized(this) {
+			flushBuffer();
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Sends any buffered output.  The connection itself remains open.
+	 * @see java.io.OutputStream.close()
+	 */
+	public void close() throws IOException {
+		synchronized(this) {
+			closed = true;
 		}
 		flush();
 	}
+	
+	/**
+	 * Returns the flush timer, creating it if necessary
+	 */
+	private static synchronized ScheduledExecutorService getFlushTimer() {
+		if (flushTimer == null) {
+			flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread result = new Thread(r, "NGOutputStream flush timer");
+					result.setDaemon(true);
+					return (result);
+				}
+			});
+		}
+		return (flushTimer);
+	}
+	
+	/**
+	 * Returns the flushers, creating them if necessary.  Idle threads are
+	 * kept for a while, and then let go.
+	 */
+	private static synchronized ExecutorService getFlushers() {
+		if (flushers == null) {
+			flushers = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+
+				public Thread newThread(Runnable r) {
+					Thread result = new Thread(r, "NGOutputStream flusher " + (++count));
+					result.setDaemon(true);
+					return (result);
+				}
+			});
+		}
+		return (flushers);
+	}
 }
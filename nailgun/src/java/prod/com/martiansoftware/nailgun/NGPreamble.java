@@ -0,0 +1,740 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * Collects everything a client sends ahead of (and including) its command
+ * chunk: command line arguments, environment, working directory and the
+ * command itself.  Chunks may be supplied one at a time as they arrive,
+ * which allows the preamble to be read without blocking.
+ *
+ * <p>An NGPreamble may be <code>reset()</code> and used for the next
+ * command.  Clients usually send much the same preamble every time, so a
+ * reused NGPreamble remembers the strings it decoded for the previous
+ * command and returns the same String objects (and, if the nail left them
+ * unchanged, the same argument array and environment Properties) when the
+ * same bytes arrive again, rather than allocating them anew.</p>
+ *
+ * <p>Long arguments (see <a href="LongArgument.html">LongArgument</a>) are
+ * collected as they arrive, spilling to a temporary file once they pass
+ * the preamble's threshold, and have a <code>null</code> placeholder in the
+ * argument array until they are decoded.  They are not counted against
+ * <code>MAX_PREAMBLE_LENGTH</code>, but have a limit of their own, taken
+ * from the server (see <code>NGServer.setMaxLongArgLength()</code>).  They
+ * must be released with
+ * <code>releaseLongArgs()</code> once the command is finished with
+ * them.</p>
+ *
+ * <p>A client may offer the digest of its environment instead of sending
+ * it (see <a href="EnvironmentCache.html">EnvironmentCache</a>).  The
+ * reply owed to the client must then be sent by whoever is reading the
+ * preamble; see <code>takeReply()</code>.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGPreamble {
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * The longest preamble chunk accepted, other than a long argument's,
+	 * which is taken in pieces however long it is
+	 */
+	static final int MAX_CHUNK_LENGTH = 1024 * 1024;
+
+	/**
+	 * The most a preamble may take up, in bytes, counting each chunk's
+	 * header and payload, other than those of long arguments
+	 */
+	static final int MAX_PREAMBLE_LENGTH = 4 * MAX_CHUNK_LENGTH;
+
+	/**
+	 * The length of a chunk header
+	 */
+	private static final int HEADER_LENGTH = 5;
+
+	/**
+	 * The client's command line arguments are <code>args[0]</code> through
+	 * <code>args[argCount - 1]</code>
+	 */
+	private String[] args = new String[8];
+	private int argCount = 0;
+
+	/**
+	 * The bytes of this preamble counted against
+	 * <code>MAX_PREAMBLE_LENGTH</code> so far
+	 */
+	private int length = 0;
+
+	/**
+	 * The long arguments among <code>args</code>, at the same positions,
+	 * of which there are <code>longArgCount</code>
+	 */
+	private LongArgument[] longArgs = new LongArgument[8];
+	private int longArgCount = 0;
+
+	/**
+	 * The long argument still arriving, if any
+	 */
+	private LongArgument longArg = null;
+
+	/**
+	 * The largest long argument to hold in memory rather than write to a
+	 * temporary file
+	 */
+	private int longArgThreshold;
+
+	/**
+	 * The most bytes of long arguments a command may send, and the number
+	 * sent so far
+	 */
+	private long maxLongArgLength = NGServer.DEFAULT_MAXLONGARGLENGTH;
+	private long longArgLength = 0;
+
+	/**
+	 * The array last returned by <code>getArgs()</code>
+	 */
+	private String[] argsResult = null;
+
+	/**
+	 * The client's environment variables are <code>envKeys[i]</code> =
+	 * <code>envValues[i]</code> for i below <code>envCount</code>
+	 */
+	private String[] envKeys = new String[64];
+	private String[] envValues = new String[64];
+	private int envCount = 0;
+
+	/**
+	 * The Properties last returned by <code>getEnv()</code>, and the
+	 * variables it was built from
+	 */
+	private Properties env = null;
+	private String[] builtKeys = new String[0];
+	private String[] builtValues = new String[0];
+	private int builtCount = 0;
+
+	/**
+	 * The strings decoded from this command's text chunks, in the order
+	 * they arrived, followed by any left from the previous command.  For
+	 * environment chunks the variable name and value are kept as well.
+	 */
+	private byte[] lineTypes = new byte[64];
+	private String[] lines = new String[64];
+	private String[] lineKeys = new String[64];
+	private String[] lineValues = new String[64];
+	private int lineCount = 0;
+	private int previousLineCount = 0;
+
+	/**
+	 * Buffer into which chunk payloads are read
+	 */
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * The client's working directory
+	 */
+	private String cwd = null;
+
+	/**
+	 * The alias or class name requested by the client
+	 */
+	private String command = null;
+
+	/**
+	 * True if the client asked for the connection to be kept open
+	 */
+	private boolean keepAlive = false;
+
+	/**
+	 * True if the client asked for the connection to be multiplexed
+	 */
+	private boolean multiplex = false;
+
+	/**
+	 * The compression the client accepts, if any
+	 */
+	private String compression = null;
+
+	/**
+	 * The output the client will accept before granting more, in bytes, if
+	 * it asked for flow control, or zero
+	 */
+	private long outputWindow = 0;
+
+	/**
+	 * The interval, in milliseconds, at which the client offered to send
+	 * heartbeats, or zero
+	 */
+	private int heartbeatInterval = 0;
+
+	/**
+	 * True if the client offered to forward signals
+	 */
+	private boolean signals = false;
+
+	/**
+	 * Environments offered by digest are looked up in, and those sent
+	 * are added to, this cache, if any
+	 */
+	private EnvironmentCache envCache = null;
+
+	/**
+	 * The digest of its environment offered by the client, if any
+	 */
+	private String envDigest = null;
+
+	/**
+	 * The environment cached for <code>envDigest</code>, if any
+	 */
+	private String[][] cachedEnv = null;
+
+	/**
+	 * The running hash of the environment chunks received, once the
+	 * client has offered a digest, created when first needed
+	 */
+	private MessageDigest envHash = null;
+
+	/**
+	 * The payload of the reply owed to the client, if any
+	 */
+	private byte[] reply = null;
+
+	private static final byte[] ENV_CACHED = {'1'};
+	private static final byte[] ENV_NOT_CACHED = {'0'};
+
+	/**
+	 * Creates a new NGPreamble with the default long argument threshold
+	 * and no environment cache
+	 */
+	NGPreamble() {
+		this(NGServer.DEFAULT_LONGARGTHRESHOLD);
+	}
+
+	/**
+	 * Creates a new NGPreamble
+	 * @param longArgThreshold the largest long argument to hold in memory
+	 * rather than write to a temporary file
+	 */
+	NGPreamble(int longArgThreshold) {
+		this.longArgThreshold = longArgThreshold;
+	}
+
+	/**
+	 * Creates a new NGPreamble configured for the specified server
+	 * @param server the server that will run the command
+	 */
+	NGPreamble(NGServer server) {
+		configure(server);
+	}
+
+	/**
+	 * Adopts the long argument threshold and limit and the environment
+	 * cache of the specified server
+	 * @param server the server that will run the command
+	 */
+	void configure(NGServer server) {
+		this.longArgThreshold = server.getLongArgThreshold();
+		this.maxLongArgLength = server.getMaxLongArgLength();
+		this.envCache = server.getEnvironmentCache();
+	}
+
+	/**
+	 * Prepares to collect the preamble for another command
+	 */
+	void reset() {
+		releaseLongArgs();
+		previousLineCount = Math.max(lineCount, previousLineCount);
+		lineCount = 0;
+		argCount = 0;
+		length = 0;
+		longArgLength = 0;
+		envCount = 0;
+		cwd = null;
+		command = null;
+		keepAlive = false;
+		multiplex = false;
+		compression = null;
+		outputWindow = 0;
+		heartbeatInterval = 0;
+		signals = false;
+		envDigest = null;
+		cachedEnv = null;
+		if (envHash != null) envHash.reset();
+		reply = null;
+	}
+
+	/**
+	 * Processes a single preamble chunk.
+	 * @param chunkType the chunk type
+	 * @param b the buffer containing the chunk payload
+	 * @param offset the offset of the payload within <code>b</code>
+	 * @param len the length of the payload
+	 * @return true iff this chunk completed the preamble (i.e., it was
+	 * the command chunk)
+	 * @throws IOException if the payload cannot be decoded, if it would
+	 * make the preamble longer than <code>MAX_PREAMBLE_LENGTH</code>, or if
+	 * it would take the command's long arguments past their limit
+	 */
+	boolean addChunk(byte chunkType, byte[] b, int offset, int len) throws IOException {
+		if (chunkType != NGConstants.CHUNKTYPE_LONGARG) {
+			// so that a client cannot make the server hold an endless
+			// stream of arguments or environment variables
+			length += HEADER_LENGTH + len;
+			if (length > MAX_PREAMBLE_LENGTH) throw (new IOException("Preamble longer than " + MAX_PREAMBLE_LENGTH + " bytes"));
+		} else {
+			// nor fill the temporary directory with long arguments
+			longArgLength += len;
+			if (longArgLength > maxLongArgLength) throw (new IOException("Long arguments longer than " + maxLongArgLength + " bytes"));
+		}
+		switch(chunkType) {
+
+			case NGConstants.CHUNKTYPE_ARGUMENT:
+						//	command line argument
+						if (argCount == args.length) args = grow(args);
+						args[argCount++] = lines[decode(chunkType, b, offset, len)];
+						break;
+
+			case NGConstants.CHUNKTYPE_LONGARG:
+						//	part of a long command line argument; an empty
+						//	chunk ends it
+						if (longArg == null) {
+							if (argCount == args.length) args = grow(args);
+							if (longArgs.length < args.length) {
+								LongArgument[] newLongArgs = new LongArgument[args.length];
+								System.arraycopy(longArgs, 0, newLongArgs, 0, longArgs.length);
+								longArgs = newLongArgs;
+							}
+							longArg = new LongArgument(longArgThreshold);
+							longArgs[argCount] = longArg;
+							args[argCount++] = null;
+							++longArgCount;
+						}
+						if (len > 0) {
+							longArg.append(b, offset, len);
+						} else {
+							longArg.finish();
+							longArg = null;
+						}
+						break;
+
+			case NGConstants.CHUNKTYPE_ENVIRONMENT:
+						//	parse environment into property
+						int line = decode(chunkType, b, offset, len);
+						if (envDigest != null) EnvironmentCache.hash(envHash, b, offset, len);
+						if (lineKeys[line] != null) {
+							if (envCount == envKeys.length) {
+								envKeys = grow(envKeys);
+								envValues = grow(envValues);
+							}
+							envKeys[envCount] = lineKeys[line];
+							envValues[envCount++] = lineValues[line];
+						}
+						break;
+
+			case NGConstants.CHUNKTYPE_COMMAND:
+						// 	command (alias or classname)
+						command = lines[decode(chunkType, b, offset, len)];
+						if (longArg != null) {
+							// the client never ended it, but it's all there is
+							longArg.finish();
+							longArg = null;
+						}
+						if (envDigest != null) useEnvDigest();
+						break;
+
+			case NGConstants.CHUNKTYPE_COMPRESSION:
+						//	compression the client accepts
+						compression = lines[decode(chunkType, b, offset, len)];
+						break;
+
+			case NGConstants.CHUNKTYPE_CREDIT:
+						//	output the client will accept before it grants
+						//	more, asking for flow control
+						try {
+							outputWindow = Math.max(0, Long.parseLong(lines[decode(chunkType, b, offset, len)].trim()));
+						} catch (NumberFormatException e) {
+							outputWindow = 0;
+						}
+						break;
+
+			case NGConstants.CHUNKTYPE_HEARTBEAT:
+						//	interval at which the client will send
+						//	heartbeats, offering them.  an empty one is a
+						//	late heartbeat from the client's last command
+						if (len > 0) {
+							try {
+								heartbeatInterval = Math.max(0, Integer.parseInt(lines[decode(chunkType, b, offset, len)].trim()));
+							} catch (NumberFormatException e) {
+								heartbeatInterval = 0;
+							}
+						}
+						break;
+
+			case NGConstants.CHUNKTYPE_SIGNAL:
+						//	an empty one offers to forward signals.  any
+						//	other is a late signal for the client's last
+						//	command
+						if (len == 0) signals = true;
+						break;
+
+			case NGConstants.CHUNKTYPE_ENVDIGEST:
+						//	digest of the client's environment, which it
+						//	will send only if we don't already have it
+						envDigest = lines[decode(chunkType, b, offset, len)];
+						if (envHash == null) envHash = EnvironmentCache.newHash();
+						envHash.reset();
+						cachedEnv = (envCache == null) ? null : envCache.get(envDigest);
+						reply = (cachedEnv == null) ? ENV_NOT_CACHED : ENV_CACHED;
+						break;
+
+			case NGConstants.CHUNKTYPE_WORKINGDIRECTORY:
+						//	client working directory
+						cwd = lines[decode(chunkType, b, offset, len)];
+						break;
+
+			case NGConstants.CHUNKTYPE_KEEPALIVE:
+						//	client wants to send more commands afterwards
+						keepAlive = true;
+						break;
+
+			case NGConstants.CHUNKTYPE_MULTIPLEX:
+						//	client wants to run several commands at once;
+						//	there is no more preamble on this connection
+						multiplex = true;
+						break;
+
+			default:	// freakout?  stdin left over from a previous
+						// command on a kept-alive connection ends up here.
+		}
+		return (isComplete());
+	}
+
+	/**
+	 * Once the preamble is complete, takes the environment from the cache
+	 * if the client offered the digest of a cached environment and did
+	 * not send it anyway, or caches the environment the client sent if it
+	 * matches the digest.
+	 */
+	private void useEnvDigest() {
+		if (envCount == 0 && cachedEnv != null) {
+			int count = cachedEnv[0].length;
+			while (envKeys.length < count) {
+				envKeys = grow(envKeys);
+				envValues = grow(envValues);
+			}
+			System.arraycopy(cachedEnv[0], 0, envKeys, 0, count);
+			System.arraycopy(cachedEnv[1], 0, envValues, 0, count);
+			envCount = count;
+		} else if (envCount > 0 && envCache != null && EnvironmentCache.matches(envDigest, envHash.digest())) {
+			envCache.put(envDigest, envKeys, envValues, envCount);
+		}
+	}
+
+	/**
+	 * Checks the length a client gave for a preamble chunk, so that a
+	 * client that is confused, or is not a nailgun client at all, cannot
+	 * make the server allocate whatever it asks for.
+	 * @param chunkType the chunk type
+	 * @param len the length of the chunk's payload
+	 * @throws IOException if the length is negative, or longer than
+	 * <code>MAX_CHUNK_LENGTH</code> for a chunk that is not part of a long
+	 * argument
+	 */
+	static void checkChunkLength(byte chunkType, int len) throws IOException {
+		if (len < 0 || (len > MAX_CHUNK_LENGTH && chunkType != NGConstants.CHUNKTYPE_LONGARG)) {
+			throw (new IOException("Invalid chunk length " + len));
+		}
+	}
+
+	/**
+	 * Returns the payload of the chunk of type
+	 * <code>NGConstants.CHUNKTYPE_ENVDIGEST</code> owed to the client in
+	 * reply to the chunk just added, if any, and forgets it.  Whoever adds
+	 * chunks must send the reply before reading any more, as the client
+	 * may be waiting for it.
+	 * @return the reply payload, or <code>null</code> if none is owed
+	 */
+	byte[] takeReply() {
+		byte[] result = reply;
+		reply = null;
+		return (result);
+	}
+
+	/**
+	 * Decodes a text chunk into the next line, reusing the strings decoded
+	 * for the previous command if it sent the same chunk at the same point.
+	 * @return the index of the line
+	 */
+	private int decode(byte chunkType, byte[] b, int offset, int len) {
+		int line = lineCount++;
+		if (line < previousLineCount && lineTypes[line] == chunkType && matches(lines[line], b, offset, len)) {
+			return (line);
+		}
+		if (line == lines.length) {
+			byte[] newTypes = new byte[line * 2];
+			System.arraycopy(lineTypes, 0, newTypes, 0, line);
+			lineTypes = newTypes;
+			lines = grow(lines);
+			lineKeys = grow(lineKeys);
+			lineValues = grow(lineValues);
+		}
+		String text = new String(b, offset, len, US_ASCII);
+		lineTypes[line] = chunkType;
+		lines[line] = text;
+		lineKeys[line] = null;
+		lineValues[line] = null;
+		if (chunkType == NGConstants.CHUNKTYPE_ENVIRONMENT) {
+			int equalsIndex = text.indexOf('=');
+			if (equalsIndex > 0) {
+				lineKeys[line] = text.substring(0, equalsIndex);
+				lineValues[line] = text.substring(equalsIndex + 1);
+			}
+		}
+		return (line);
+	}
+
+	/**
+	 * Returns true if the specified bytes decode to the specified string
+	 */
+	private static boolean matches(String s, byte[] b, int offset, int len) {
+		if (s.length() != len) return (false);
+		for (int i = 0; i < len; ++i) {
+			byte c = b[offset + i];
+			// US-ASCII decodes anything else to the replacement character
+			if (s.charAt(i) != ((c < 0) ? '\uFFFD' : (char) c)) return (false);
+		}
+		return (true);
+	}
+
+	private static String[] grow(String[] a) {
+		String[] result = new String[a.length * 2];
+		System.arraycopy(a, 0, result, 0, a.length);
+		return (result);
+	}
+
+	/**
+	 * Reads chunks from the specified stream, blocking as necessary, until
+	 * the command chunk (or a multiplex chunk) has been received, and
+	 * sends any replies they require.
+	 * @param in the reader for chunks from the client
+	 * @param out the writer for chunks to the client
+	 * @throws IOException if thrown by the underlying streams
+	 */
+	void readFrom(ChunkReader in, ChunkWriter out) throws IOException {
+		try {
+			while (!isComplete()) {
+				byte chunkType = in.readHeader();
+				int bytesToRead = in.getChunkLength();
+				checkChunkLength(chunkType, bytesToRead);
+
+				if (chunkType == NGConstants.CHUNKTYPE_LONGARG && bytesToRead > scratch.length) {
+					// taken a piece at a time, as it's only appended
+					while (bytesToRead > 0) {
+						int n = Math.min(bytesToRead, scratch.length);
+						in.readFully(scratch, 0, n);
+						addChunk(chunkType, scratch, 0, n);
+						bytesToRead -= n;
+					}
+					continue;
+				}
+				if (bytesToRead > scratch.length) {
+					scratch = new byte[Math.max(bytesToRead, scratch.length * 2)];
+				}
+				in.readFully(scratch, 0, bytesToRead);
+				addChunk(chunkType, scratch, 0, bytesToRead);
+				byte[] reply = takeReply();
+				if (reply != null) {
+					out.writeChunk(NGConstants.CHUNKTYPE_ENVDIGEST, reply, 0, reply.length);
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			releaseLongArgs();
+			throw (e);
+		}
+	}
+
+	/**
+	 * Returns true iff the command chunk or a multiplex chunk has been
+	 * received.
+	 * @return true iff the command chunk or a multiplex chunk has been
+	 * received.
+	 */
+	boolean isComplete() {
+		return (command != null || multiplex);
+	}
+
+	/**
+	 * Returns the client's command line arguments.  The array returned for
+	 * the previous command is returned again if it has the same contents.
+	 * @return the client's command line arguments
+	 */
+	String[] getArgs() {
+		boolean same = (argsResult != null && argsResult.length == argCount);
+		for (int i = 0; same && i < argCount; ++i) {
+			same = (argsResult[i] == args[i]);
+		}
+		if (!same) {
+			argsResult = new String[argCount];
+			System.arraycopy(args, 0, argsResult, 0, argCount);
+		}
+		return (argsResult);
+	}
+
+	/**
+	 * Returns the client's long arguments at their positions among the
+	 * command line arguments (whose own entries for them are
+	 * <code>null</code>), or <code>null</code> if the client sent none.
+	 * @return the client's long arguments, or <code>null</code>
+	 */
+	LongArgument[] getLongArgs() {
+		if (longArgCount == 0) return (null);
+		LongArgument[] result = new LongArgument[argCount];
+		System.arraycopy(longArgs, 0, result, 0, argCount);
+		return (result);
+	}
+
+	/**
+	 * Discards the long arguments, deleting any temporary files.  Called
+	 * when the command has finished, or if the client goes away before
+	 * sending all of the preamble.
+	 */
+	void releaseLongArgs() {
+		if (longArgCount == 0) return;
+		for (int i = 0; i < longArgs.length; ++i) {
+			if (longArgs[i] != null) {
+				longArgs[i].delete();
+				longArgs[i] = null;
+			}
+		}
+		longArgCount = 0;
+		longArg = null;
+	}
+
+	/**
+	 * Returns the client's environment.  The Properties returned for the
+	 * previous command is returned again if it was built from the same
+	 * variables and has not since been changed.
+	 * @return the client's environment
+	 */
+	Properties getEnv() {
+		boolean same = (env != null && builtCount == envCount && env.size() == envCount);
+		for (int i = 0; same && i < envCount; ++i) {
+			same = (builtKeys[i] == envKeys[i] && builtValues[i] == envValues[i]
+					&& env.get(envKeys[i]) == envValues[i]);
+		}
+		if (!same) {
+			env = new Properties();
+			for (int i = 0; i < envCount; ++i) {
+				env.setProperty(envKeys[i], envValues[i]);
+			}
+			if (builtKeys.length < envCount) {
+				builtKeys = new String[envKeys.length];
+				builtValues = new String[envKeys.length];
+			}
+			System.arraycopy(envKeys, 0, builtKeys, 0, envCount);
+			System.arraycopy(envValues, 0, builtValues, 0, envCount);
+			builtCount = envCount;
+		}
+		return (env);
+	}
+
+	/**
+	 * Returns the client's working directory
+	 * @return the client's working directory
+	 */
+	String getWorkingDirectory() {
+		return (cwd);
+	}
+
+	/**
+	 * Returns the command (alias or class name) requested by the client
+	 * @return the command requested by the client
+	 */
+	String getCommand() {
+		return (command);
+	}
+
+	/**
+	 * Returns true iff the client accepts Deflate compression of its
+	 * stdin, stdout and stderr chunks
+	 * @return true iff the client accepts Deflate compression
+	 */
+	boolean acceptsDeflate() {
+		if (compression == null) return (false);
+		for (int start = 0; start <= compression.length();) {
+			int end = compression.indexOf(',', start);
+			if (end < 0) end = compression.length();
+			if (compression.substring(start, end).trim().equals(NGConstants.COMPRESSION_DEFLATE)) return (true);
+			start = end + 1;
+		}
+		return (false);
+	}
+
+	/**
+	 * Returns the output, in bytes, that the client will accept before it
+	 * grants more
+	 * @return the client's output window, or zero if it did not ask for
+	 * flow control
+	 */
+	long getOutputWindow() {
+		return (outputWindow);
+	}
+
+	/**
+	 * Returns the interval, in milliseconds, at which the client offered
+	 * to send heartbeats
+	 * @return the client's heartbeat interval, or zero if it did not offer
+	 * heartbeats
+	 */
+	int getHeartbeatInterval() {
+		return (heartbeatInterval);
+	}
+
+	/**
+	 * Returns true if the client offered to forward signals
+	 * @return true if the client offered to forward signals
+	 */
+	boolean offersSignals() {
+		return (signals);
+	}
+
+	/**
+	 * Returns true iff the client asked for the connection to be kept open
+	 * after this command
+	 * @return true iff the client asked for the connection to be kept open
+	 */
+	boolean isKeepAlive() {
+		return (keepAlive);
+	}
+
+	/**
+	 * Returns true iff the client asked for the connection to be
+	 * multiplexed, in which case there is no command
+	 * @return true iff the client asked for the connection to be multiplexed
+	 */
+	boolean isMultiplex() {
+		return (multiplex);
+	}
+}
@@ -0,0 +1,453 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Accepts client connections using a non-blocking
+ * <code>ServerSocketChannel</code> and reads each client's preamble
+ * (arguments, environment, working directory and command) without blocking.
+ * Every pending connection is accepted each time the selector wakes, and a
+ * connection is only handed to an NGSession once its command chunk has
+ * fully arrived, so slow clients never tie up a session thread or delay
+ * other clients' connections.  A new connection is closed if its preamble
+ * does not arrive in full within the server's preamble timeout.
+ * Kept-alive connections are handed back here between commands, so an
+ * idle client holds no session thread; such connections are closed if
+ * the next command does not arrive within the server's keep-alive
+ * timeout.
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGSelectorAcceptor implements Runnable {
+
+	/**
+	 * Initial size of the buffer used to read each client's preamble.  The
+	 * buffer grows as needed to hold the largest chunk.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	/**
+	 * Length of a chunk header
+	 */
+	private static final int HEADER_LEN = 5;
+
+	/**
+	 * The server we're working for
+	 */
+	private NGServer server = null;
+
+	/**
+	 * The channel on which we accept connections
+	 */
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * The pool that supplies sessions to run the nails
+	 */
+	private NGSessionPool sessionPool = null;
+
+	/**
+	 * The index of the shard this acceptor is working for
+	 */
+	private int shard = 0;
+
+	/**
+	 * True unless the server channel is a Unix domain socket
+	 */
+	private boolean tcp = true;
+
+	/**
+	 * The selector on which all channels are registered
+	 */
+	private Selector selector = null;
+
+	/**
+	 * True once this acceptor has been told to stop
+	 */
+	private volatile boolean done = false;
+
+	/**
+	 * Kept-alive connections handed back by sessions, waiting to be
+	 * registered with the selector
+	 */
+	private List resumed = new java.util.ArrayList();
+
+	/**
+	 * The earliest deadline of any registered connection, or zero if none
+	 * has one
+	 */
+	private long nextExpiry = 0;
+
+	/**
+	 * Creates a new NGSelectorAcceptor
+	 * @param server the server we're working for
+	 * @param serverChannel the bound channel on which to accept connections
+	 * @param sessionPool the pool that supplies sessions to run the nails
+	 * @param shard the index of the shard this acceptor is working for
+	 * @throws IOException if the selector cannot be opened
+	 */
+	NGSelectorAcceptor(NGServer server, ServerSocketChannel serverChannel, NGSessionPool sessionPool, int shard) throws IOException {
+		this.server = server;
+		this.serverChannel = serverChannel;
+		this.sessionPool = sessionPool;
+		this.shard = shard;
+		this.tcp = serverChannel.getLocalAddress() instanceof InetSocketAddress;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Stops accepting connections and closes any connections whose
+	 * preambles have not yet been received.
+	 */
+	void shutdown() {
+		done = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Takes back a kept-alive connection whose session has finished its
+	 * command, and waits (without blocking any thread) for the client's
+	 * next preamble.
+	 * @param channel the connection's channel, in blocking mode
+	 * @param leftover any unread bytes already received on the channel
+	 * (may be <code>null</code>)
+	 */
+	void resume(SocketChannel channel, ByteBuffer leftover) {
+		PendingConnection pending = new PendingConnection(channel, server);
+		pending.deadline = System.currentTimeMillis() + server.getKeepAliveTimeout();
+		if (leftover != null && leftover.hasRemaining()) {
+			pending.append(leftover);
+		}
+		synchronized(resumed) {
+			// nothing will register it once the accept loop has ended
+			if (done) {
+				pending.close();
+				return;
+			}
+			resumed.add(pending);
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * The accept loop.  Runs until shutdown() is called or the server
+	 * channel is closed.
+	 */
+	public void run() {
+		List ready = new java.util.ArrayList();
+		try {
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (!done) {
+				long timeout = 0;
+				if (nextExpiry != 0) {
+					timeout = Math.max(1, nextExpiry - System.currentTimeMillis());
+				}
+				selector.select(timeout);
+				registerResumed(ready);
+
+				for (Iterator i = selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = (SelectionKey) i.next();
+					i.remove();
+					if (!key.isValid()) continue;
+
+					if (key.isAcceptable()) {
+						acceptAll();
+					} else if (key.isReadable()) {
+						PendingConnection pending = (PendingConnection) key.attachment();
+						try {
+							if (pending.read()) {
+								key.cancel();
+								ready.add(pending);
+							}
+						} catch (Throwable t) {
+							// whatever goes wrong, it costs only this connection
+							key.cancel();
+							pending.close();
+						}
+					}
+				}
+
+				if (nextExpiry != 0 && System.currentTimeMillis() >= nextExpiry) {
+					closeExpiredConnections();
+				}
+
+				if (!ready.isEmpty()) {
+					// cancelled keys are only deregistered by the next selection
+					// operation, and a channel must be deregistered before it can
+					// be returned to blocking mode.
+					selector.selectNow();
+					for (Iterator i = ready.iterator(); i.hasNext();) {
+						dispatch((PendingConnection) i.next());
+					}
+					ready.clear();
+				}
+			}
+		} catch (Throwable t) {
+			// closing the server channel during shutdown will cause an
+			// exception here that we don't care about.
+			if (!done && !server.isShuttingDown()) {
+				t.printStackTrace();
+			}
+		}
+
+		for (Iterator i = selector.keys().iterator(); i.hasNext();) {
+			SelectionKey key = (SelectionKey) i.next();
+			if (key.attachment() instanceof PendingConnection) {
+				((PendingConnection) key.attachment()).close();
+			} else {
+				closeQuietly(key.channel());
+			}
+		}
+		synchronized(resumed) {
+			done = true;
+			for (Iterator i = resumed.iterator(); i.hasNext();) {
+				((PendingConnection) i.next()).close();
+			}
+			resumed.clear();
+		}
+		try {
+			selector.close();
+		} catch (IOException toDiscard) {}
+	}
+
+	/**
+	 * Accepts every connection currently pending on the server channel and
+	 * registers each for reading.
+	 */
+	private void acceptAll() throws IOException {
+		int timeout = server.getPreambleTimeout();
+		SocketChannel channel = serverChannel.accept();
+		while (channel != null) {
+			channel.configureBlocking(false);
+			if (tcp) channel.socket().setTcpNoDelay(true);
+			PendingConnection pending = new PendingConnection(channel, server);
+			if (timeout > 0) {
+				pending.deadline = System.currentTimeMillis() + timeout;
+				if (nextExpiry == 0 || pending.deadline < nextExpiry) nextExpiry = pending.deadline;
+			}
+			channel.register(selector, SelectionKey.OP_READ, pending);
+			channel = serverChannel.accept();
+		}
+	}
+
+	/**
+	 * Registers connections handed back by resume().  Any whose next preamble
+	 * has already been received in full are added to <code>ready</code>.
+	 */
+	private void registerResumed(List ready) {
+		synchronized(resumed) {
+			for (Iterator i = resumed.iterator(); i.hasNext();) {
+				PendingConnection pending = (PendingConnection) i.next();
+				try {
+					pending.channel.configureBlocking(false);
+					SelectionKey key = pending.channel.register(selector, SelectionKey.OP_READ, pending);
+					if (pending.parse()) {
+						key.cancel();
+						ready.add(pending);
+					} else if (nextExpiry == 0 || pending.deadline < nextExpiry) {
+						nextExpiry = pending.deadline;
+					}
+				} catch (Throwable t) {
+					pending.close();
+				}
+			}
+			resumed.clear();
+		}
+	}
+
+	/**
+	 * Closes every connection whose preamble has not arrived by its
+	 * deadline: new connections that have taken longer than the preamble
+	 * timeout, and kept-alive ones that have waited longer than the
+	 * keep-alive timeout for their next command.  Recomputes nextExpiry.
+	 */
+	private void closeExpiredConnections() {
+		long now = System.currentTimeMillis();
+		nextExpiry = 0;
+		for (Iterator i = selector.keys().iterator(); i.hasNext();) {
+			SelectionKey key = (SelectionKey) i.next();
+			PendingConnection pending = (PendingConnection) key.attachment();
+			if (pending == null || pending.deadline == 0 || !key.isValid()) continue;
+			if (pending.deadline <= now) {
+				key.cancel();
+				pending.close();
+			} else if (nextExpiry == 0 || pending.deadline < nextExpiry) {
+				nextExpiry = pending.deadline;
+			}
+		}
+	}
+
+	/**
+	 * Hands a connection whose preamble is complete to a session.
+	 */
+	private void dispatch(PendingConnection pending) {
+		try {
+			pending.channel.configureBlocking(true);
+			pending.buf.flip();
+			NGConnection connection = new NGConnection(pending.channel,
+													pending.preamble,
+													pending.buf.hasRemaining() ? pending.buf : null,
+													shard,
+													this);
+			sessionPool.dispatch(connection);
+		} catch (IOException e) {
+			pending.close();
+		}
+	}
+
+	private static void closeQuietly(java.nio.channels.Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException toDiscard) {}
+	}
+
+	/**
+	 * A connection whose preamble is still being read.
+	 */
+	private static class PendingConnection {
+		private final SocketChannel channel;
+		private final NGPreamble preamble;
+		private ByteBuffer buf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		/**
+		 * The bytes of the long argument chunk being read that have yet to
+		 * arrive, which are passed on as they do rather than buffered
+		 */
+		private int longArgRemaining = 0;
+
+		/**
+		 * The time by which the connection must send its whole preamble
+		 * (within the preamble timeout of being accepted, or the keep-alive
+		 * timeout of its last command), or zero if there is none
+		 */
+		private long deadline = 0;
+
+		PendingConnection(SocketChannel channel, NGServer server) {
+			this.channel = channel;
+			this.preamble = new NGPreamble(server);
+		}
+
+		/**
+		 * Closes the connection, discarding any long arguments received
+		 */
+		void close() {
+			preamble.releaseLongArgs();
+			closeQuietly(channel);
+		}
+
+		/**
+		 * Adds bytes that were received before this connection was
+		 * registered.  The buffer must be in fill mode.
+		 */
+		void append(ByteBuffer bytes) {
+			if (buf.remaining() < bytes.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(buf.position() + bytes.remaining());
+				buf.flip();
+				bigger.put(buf);
+				buf = bigger;
+			}
+			buf.put(bytes);
+		}
+
+		/**
+		 * Reads whatever is available from the channel and processes
+		 * every complete chunk.  On return the buffer is in fill mode.
+		 * @return true iff the preamble is complete
+		 * @throws IOException if the channel is closed or broken
+		 */
+		boolean read() throws IOException {
+			if (channel.read(buf) == -1) {
+				throw (new IOException("Client disconnected during preamble"));
+			}
+			return (parse());
+		}
+
+		/**
+		 * Processes every complete chunk in the buffer.  The buffer is in
+		 * fill mode before and after.
+		 * @return true iff the preamble is complete
+		 * @throws IOException if a chunk header is invalid
+		 */
+		boolean parse() throws IOException {
+			buf.flip();
+			while (!preamble.isComplete()) {
+				if (longArgRemaining > 0) {
+					int n = Math.min(longArgRemaining, buf.remaining());
+					if (n == 0) break;
+					preamble.addChunk(NGConstants.CHUNKTYPE_LONGARG, buf.array(), buf.arrayOffset() + buf.position(), n);
+					buf.position(buf.position() + n);
+					longArgRemaining -= n;
+					continue;
+				}
+				if (buf.remaining() < HEADER_LEN) break;
+				int pos = buf.position();
+				int len = buf.getInt(pos);
+				byte chunkType = buf.get(pos + 4);
+				NGPreamble.checkChunkLength(chunkType, len);
+				if (chunkType == NGConstants.CHUNKTYPE_LONGARG && len > 0) {
+					buf.position(pos + HEADER_LEN);
+					longArgRemaining = len;
+					continue;
+				}
+				if (buf.remaining() < HEADER_LEN + len) {
+					if (HEADER_LEN + len > buf.capacity()) {
+						ByteBuffer bigger = ByteBuffer.allocate(HEADER_LEN + len);
+						bigger.put(buf);
+						buf = bigger;
+						return (false);
+					}
+					break;
+				}
+				preamble.addChunk(chunkType, buf.array(), buf.arrayOffset() + pos + HEADER_LEN, len);
+				buf.position(pos + HEADER_LEN + len);
+				byte[] reply = preamble.takeReply();
+				if (reply != null) sendReply(reply);
+			}
+			buf.compact();
+			return (preamble.isComplete());
+		}
+
+		/**
+		 * Sends a reply the client is waiting for.  It is tiny, and nothing
+		 * else has been sent, so it will fit in the socket's send buffer.
+		 * @throws IOException if the reply cannot be sent
+		 */
+		private void sendReply(byte[] reply) throws IOException {
+			ByteBuffer chunk = ByteBuffer.allocate(HEADER_LEN + reply.length);
+			chunk.putInt(reply.length);
+			chunk.put(NGConstants.CHUNKTYPE_ENVDIGEST);
+			chunk.put(reply);
+			chunk.flip();
+			channel.write(chunk);
+			if (chunk.hasRemaining()) throw (new IOException("Unable to send reply during preamble"));
+		}
+	}
+}
@@ -17,15 +17,17 @@
 */
 
 package com.martiansoftware.nailgun;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.martiansoftware.nailgun.builtins.DefaultNail;
 
@@ -46,6 +48,108 @@ public class NGServer implements Runnable {
          */
         public static final int DEFAULT_SESSIONPOOLSIZE = 10;
         
+	/**
+	 * Default time, in milliseconds, after which an idle session beyond
+	 * the session pool size lets its thread exit
+	 */
+	public static final int DEFAULT_SESSIONIDLETIMEOUT = 60000;
+	
+	/**
+	 * Default time, in milliseconds, for which a kept-alive connection
+	 * may sit idle between commands
+	 */
+	public static final int DEFAULT_KEEPALIVETIMEOUT = 30000;
+	
+	/**
+	 * Default time, in milliseconds, within which a new connection accepted
+	 * via a selector must send its whole preamble
+	 */
+	public static final int DEFAULT_PREAMBLETIMEOUT = 10000;
+	
+	/**
+	 * Default number of connections that may wait in each shard for a free
+	 * session when the session limit has been reached
+	 */
+	public static final int DEFAULT_MAXPENDING = 100;
+	
+	/**
+	 * Default maximum number of streams open at once on a multiplexed
+	 * connection
+	 */
+	public static final int DEFAULT_MAXSTREAMS = 64;
+	
+	/**
+	 * Default time, in milliseconds, that a connection may wait for a free
+	 * session before the server starts shedding load
+	 */
+	public static final int DEFAULT_SHEDTARGET = 50;
+	
+	/**
+	 * Default time, in milliseconds, for which waits must stay above the
+	 * shedding target before load is shed
+	 */
+	public static final int DEFAULT_SHEDINTERVAL = 500;
+	
+	/**
+	 * Default size, in bytes, of the largest long argument held in memory
+	 * rather than written to a temporary file
+	 */
+	public static final int DEFAULT_LONGARGTHRESHOLD = 65536;
+	
+	/**
+	 * Default limit, in bytes, on the total length of a command's long
+	 * arguments
+	 */
+	public static final long DEFAULT_MAXLONGARGLENGTH = 1024L * 1024 * 1024;
+	
+	/**
+	 * Default number of client environments remembered so that clients
+	 * need not send them again
+	 */
+	public static final int DEFAULT_ENVCACHESIZE = 64;
+	
+	/**
+	 * Default number of classes run by name, and of names found not to be
+	 * classes, remembered so that they need not be looked for again
+	 */
+	public static final int DEFAULT_CLASSCACHESIZE = 256;
+	
+	/**
+	 * Default time, in milliseconds, for which a name is remembered not to
+	 * be a class
+	 */
+	public static final int DEFAULT_CLASSCACHETTL = 5000;
+	
+	/**
+	 * Default size, in bytes, of the shortest output chunk compressed for
+	 * clients that accept compression
+	 */
+	public static final int DEFAULT_COMPRESSIONTHRESHOLD = 512;
+	
+	/**
+	 * Default size, in bytes, of the stdin a client using flow control may
+	 * send before the nail reads it
+	 */
+	public static final int DEFAULT_INPUTWINDOW = 65536;
+	
+	/**
+	 * Default time, in milliseconds, for which a client that sends
+	 * heartbeats may be silent before its command is cancelled
+	 */
+	public static final int DEFAULT_HEARTBEATTIMEOUT = 10000;
+	
+	/**
+	 * Default interval, in milliseconds, between checks for clients that
+	 * have gone
+	 */
+	public static final int DEFAULT_DISCONNECTCHECKINTERVAL = 200;
+	
+	/**
+	 * Default time, in milliseconds, after which the warm-up of aliased
+	 * classes stops
+	 */
+	public static final int DEFAULT_WARMUPBUDGET = 30000;
+	
 	/**
 	 * The address on which to listen, or null to listen on all
 	 * local addresses
@@ -58,9 +162,188 @@ public class NGServer implements Runnable {
 	private int port = 0;
 	
 	/**
-	 * The socket doing the listening
+	 * The listeners accepting connections, one per shard
+	 */
+	private NGListener[] listeners = null;
+	
+	/**
+	 * The number of shards, each with its own listening socket and session pool
+	 */
+	private int shardCount = 1;
+	
+	/**
+	 * The path of a Unix domain socket on which to listen, or null
+	 */
+	private String unixSocketPath = null;
+	
+	/**
+	 * If false, the server listens only on its Unix domain socket
+	 */
+	private boolean listenOnTcp = true;
+	
+	/**
+	 * The number of sessions each shard's pool starts up front and keeps
+	 * even when idle
+	 */
+	private int sessionPoolSize = DEFAULT_SESSIONPOOLSIZE;
+	
+	/**
+	 * The maximum number of sessions in each shard's pool, or zero for no
+	 * limit
+	 */
+	private int maxSessions = 0;
+	
+	/**
+	 * The time, in milliseconds, after which an idle session beyond the
+	 * pool size lets its thread exit
+	 */
+	private int sessionIdleTimeout = DEFAULT_SESSIONIDLETIMEOUT;
+	
+	/**
+	 * The maximum number of connections that may wait in each shard for a
+	 * free session, or zero for admission control to be disabled
+	 */
+	private int maxPending = DEFAULT_MAXPENDING;
+	
+	/**
+	 * The time, in milliseconds, that connections may wait for a free
+	 * session before load is shed, or zero to never shed load
+	 */
+	private int shedTarget = DEFAULT_SHEDTARGET;
+	
+	/**
+	 * The time, in milliseconds, for which waits must stay above
+	 * shedTarget before load is shed
+	 */
+	private int shedInterval = DEFAULT_SHEDINTERVAL;
+	
+	/**
+	 * The maximum number of streams open at once on a multiplexed
+	 * connection
+	 */
+	private int maxStreams = DEFAULT_MAXSTREAMS;
+	
+	/**
+	 * If true, each session runs on a virtual thread of its own rather than
+	 * on a pooled platform thread
+	 */
+	private boolean useVirtualThreads = false;
+	
+	/**
+	 * If true, connections are accepted by an NGSelectorAcceptor rather
+	 * than by a blocking <code>ServerSocket.accept()</code> loop
 	 */
-	private ServerSocket serversocket;
+	private boolean useSelector = false;
+	
+	/**
+	 * The time, in milliseconds, for which a kept-alive connection may sit
+	 * idle between commands.  Zero disables keep-alive.
+	 */
+	private int keepAliveTimeout = DEFAULT_KEEPALIVETIMEOUT;
+	
+	/**
+	 * The time, in milliseconds, within which a new connection accepted via
+	 * a selector must send its whole preamble.  Zero waits indefinitely.
+	 */
+	private int preambleTimeout = DEFAULT_PREAMBLETIMEOUT;
+	
+	/**
+	 * When nails' output is sent to clients, or <code>null</code> to choose
+	 * by whether each client's output is a terminal
+	 */
+	private FlushPolicy flushPolicy = null;
+	
+	/**
+	 * The size, in bytes, of the largest long argument held in memory
+	 * rather than written to a temporary file
+	 */
+	private int longArgThreshold = DEFAULT_LONGARGTHRESHOLD;
+	
+	/**
+	 * The most bytes of long arguments a single command may send
+	 */
+	private long maxLongArgLength = DEFAULT_MAXLONGARGLENGTH;
+	
+	/**
+	 * Client environments recently received, by digest
+	 */
+	private EnvironmentCache environmentCache = new EnvironmentCache(DEFAULT_ENVCACHESIZE);
+	
+	/**
+	 * Classes recently run by name, and names recently found not to be
+	 * classes
+	 */
+	private ClassCache classCache = new ClassCache(DEFAULT_CLASSCACHESIZE, DEFAULT_CLASSCACHETTL);
+	
+	/**
+	 * The shortest output chunk compressed for clients that accept
+	 * compression, or zero to never compress
+	 */
+	private int compressionThreshold = DEFAULT_COMPRESSIONTHRESHOLD;
+	
+	/**
+	 * The stdin a client using flow control may send before the nail reads
+	 * it, or zero to refuse flow control
+	 */
+	private int inputWindow = DEFAULT_INPUTWINDOW;
+
+	/**
+	 * <code>inputWindow</code> as sent to clients, encoded once rather
+	 * than for every command
+	 */
+	private byte[] inputWindowPayload = toPayload(DEFAULT_INPUTWINDOW);
+	
+	/**
+	 * The credit of the running commands whose clients asked for flow
+	 * control
+	 */
+	private Set flowControls = new HashSet();
+	
+	/**
+	 * The time, in milliseconds, for which a client that sends heartbeats
+	 * may be silent before its command is cancelled, or zero to refuse
+	 * heartbeats
+	 */
+	private int heartbeatTimeout = DEFAULT_HEARTBEATTIMEOUT;
+
+	/**
+	 * <code>heartbeatTimeout</code> as sent to clients, encoded once rather
+	 * than for every command
+	 */
+	private byte[] heartbeatTimeoutPayload = toPayload(DEFAULT_HEARTBEATTIMEOUT);
+	
+	/**
+	 * The interval, in milliseconds, between checks for clients that have
+	 * gone
+	 */
+	private int disconnectCheckInterval = DEFAULT_DISCONNECTCHECKINTERVAL;
+	
+	/**
+	 * Cancels the commands of clients that have gone
+	 */
+	private ClientMonitor clientMonitor = new ClientMonitor(this);
+	
+	/**
+	 * The most aliased classes loaded at once in the background after the
+	 * server starts, or zero to load each when it is first used
+	 */
+	private int warmupThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Loads the aliased classes in the background after the server starts
+	 */
+	private AliasWarmup aliasWarmup = new AliasWarmup(this);
+	
+	/**
+	 * The time, in milliseconds, after which the warm-up stops, or zero
+	 * for no limit
+	 */
+	private int warmupBudget = DEFAULT_WARMUPBUDGET;
+	
+	/**
+	 * If true, connections are accepted only once the warm-up has finished
+	 */
+	private boolean waitForWarmup = false;
 	
 	/**
 	 * True if this NGServer has received instructions to shut down
@@ -88,11 +371,6 @@ public class NGServer implements Runnable {
 	 */
 	private Class defaultNailClass = null;
 	
-	/**
-	 * A pool of NGSessions ready to handle client connections
-	 */
-	private NGSessionPool sessionPool = null;
-	
 	/**
 	 * <code>System.out</code> at the time of the NGServer's creation
 	 */
@@ -109,9 +387,10 @@ public class NGServer implements Runnable {
 	public final InputStream in = System.in;
 	
 	/**
-	 * a collection of all classes executed by this server so far
+	 * a collection of all classes executed by this server so far,
+	 * one per shard
 	 */
-	private Map allNailStats = null;
+	private Map[] allNailStats = null;
 	
 	/**
 	 * Remember the security manager we start with so we can restore it later
@@ -127,7 +406,8 @@ public class NGServer implements Runnable {
 	 * @param addr the address at which to listen, or <code>null</code> to bind
 	 * to all local addresses
 	 * @param port the port on which to listen.
-         * @param sessionPoolSize the max number of idle sessions allowed by the pool
+         * @param sessionPoolSize the number of sessions each pool starts up front
+         * and keeps even when idle
 	 */
 	public NGServer(InetAddress addr, int port, int sessionPoolSize) {
 		init(addr, port, sessionPoolSize);
@@ -163,17 +443,101 @@ public class NGServer implements Runnable {
 	 * Sets up the NGServer internals
 	 * @param addr the InetAddress to bind to
 	 * @param port the port on which to listen
-         * @param sessionPoolSize the max number of idle sessions allowed by the pool
+         * @param sessionPoolSize the number of sessions each pool starts up front
+         * and keeps even when idle
 	 */
 	private void init(InetAddress addr, int port, int sessionPoolSize) {
 		this.addr = addr;
 		this.port = port;
 		
+		this.sessionPoolSize = sessionPoolSize;
+		
 		this.aliasManager = new AliasManager();
-		allNailStats = new java.util.HashMap();
-		// allow a maximum of 10 idle threads.  probably too high a number
-		// and definitely should be configurable in the future
-		sessionPool = new NGSessionPool(this, sessionPoolSize);
+		setShardCount(1);
+	}
+
+	/**
+	 * Sets the number of shards.  Each shard has its own listening socket,
+	 * acceptor thread and session pool; all shards listen on the same port
+	 * with <code>SO_REUSEPORT</code> so that the kernel spreads incoming
+	 * connections across them.  Nail statistics are kept per shard (see
+	 * <code>getNailStats(int)</code>).  This must be set before the
+	 * server is started.
+	 * 
+	 * @param shardCount the number of shards (at least one)
+	 */
+	public void setShardCount(int shardCount) {
+		if (shardCount < 1) throw (new IllegalArgumentException("At least one shard is required."));
+		this.shardCount = shardCount;
+		allocateNailStats();
+	}
+	
+	/**
+	 * Returns the number of shards accepting connections.  A Unix domain
+	 * socket, if any, is counted as a shard of its own (the last one).
+	 * @return the number of shards accepting connections.
+	 */
+	public int getShardCount() {
+		return ((listenOnTcp ? shardCount : 0) + ((unixSocketPath == null) ? 0 : 1));
+	}
+	
+	/**
+	 * Sets the path of a Unix domain socket on which the server will listen,
+	 * alongside or (see <code>setListenOnTcp()</code>) instead of its TCP
+	 * port.  Local clients connecting this way skip TCP loopback connection
+	 * setup and teardown.  A socket left at this path by a server that is
+	 * no longer running is replaced when the server starts; if anything
+	 * else is there, including the socket of a running server, the server
+	 * fails to start.  Requires Java 16 or later.  This must be set before
+	 * the server is started.
+	 * 
+	 * @param unixSocketPath the filesystem path of the socket, or
+	 * <code>null</code> for none
+	 */
+	public void setUnixSocketPath(String unixSocketPath) {
+		this.unixSocketPath = unixSocketPath;
+		allocateNailStats();
+	}
+	
+	/**
+	 * Returns the path of the Unix domain socket on which the server listens,
+	 * or <code>null</code> if it doesn't.
+	 * @return the path of the Unix domain socket on which the server listens,
+	 * or <code>null</code> if it doesn't.
+	 */
+	public String getUnixSocketPath() {
+		return (unixSocketPath);
+	}
+	
+	/**
+	 * Sets a flag that determines whether the server listens on its TCP
+	 * address and port.  This may only be turned off if a Unix domain socket
+	 * path has been set.  This must be set before the server is started.
+	 * 
+	 * @param listenOnTcp true iff the server should listen on TCP
+	 */
+	public void setListenOnTcp(boolean listenOnTcp) {
+		this.listenOnTcp = listenOnTcp;
+		allocateNailStats();
+	}
+	
+	/**
+	 * Returns a flag that indicates whether the server listens on TCP.
+	 * @return a flag that indicates whether the server listens on TCP.
+	 */
+	public boolean listensOnTcp() {
+		return (listenOnTcp);
+	}
+	
+	/**
+	 * Creates an empty statistics map for each shard
+	 */
+	private void allocateNailStats() {
+		Map[] newStats = new Map[Math.max(1, getShardCount())];
+		for (int i = 0; i < newStats.length; ++i) {
+			newStats[i] = new java.util.HashMap();
+		}
+		allNailStats = newStats;
 	}
 
 	/**
@@ -197,6 +561,592 @@ public class NGServer implements Runnable {
 		return (allowNailsByClassName);
 	}
 	
+	/**
+	 * Sets a flag that determines whether connections are accepted via a
+	 * non-blocking <code>ServerSocketChannel</code> and <code>Selector</code>.
+	 * In this mode every pending connection is accepted each time the
+	 * acceptor wakes, and client preambles are read without blocking so that
+	 * a connection is only handed to a session once its command has
+	 * arrived.  This must be set before the server is started.
+	 * 
+	 * @param useSelector true iff connections should be accepted via a selector
+	 */
+	public void setUseSelector(boolean useSelector) {
+		this.useSelector = useSelector;
+	}
+	
+	/**
+	 * Returns a flag that indicates whether connections are accepted via a
+	 * non-blocking <code>Selector</code>.
+	 * @return a flag that indicates whether connections are accepted via a
+	 * non-blocking <code>Selector</code>.
+	 */
+	public boolean usesSelector() {
+		return (useSelector);
+	}
+	
+	/**
+	 * Sets the time for which a kept-alive connection may sit idle between
+	 * commands before the server closes it.  Clients request keep-alive by
+	 * sending a <code>NGConstants.CHUNKTYPE_KEEPALIVE</code> chunk with their
+	 * command; a timeout of zero refuses such requests, so every connection
+	 * is closed after a single command.
+	 * 
+	 * @param keepAliveTimeout the idle timeout in milliseconds, or zero to
+	 * disable keep-alive
+	 */
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = Math.max(0, keepAliveTimeout);
+	}
+	
+	/**
+	 * Returns the time, in milliseconds, for which a kept-alive connection
+	 * may sit idle between commands, or zero if keep-alive is disabled.
+	 * @return the keep-alive idle timeout in milliseconds
+	 */
+	public int getKeepAliveTimeout() {
+		return (keepAliveTimeout);
+	}
+	
+	/**
+	 * Sets the time within which a new connection accepted via a selector
+	 * (see <code>setUseSelector()</code>) must send its whole preamble, up
+	 * to and including its command, before the server closes it.  Such a
+	 * connection holds no session while it waits, so without a timeout a
+	 * client that connects and sends nothing would hold its connection
+	 * open for good.  Kept-alive connections are allowed the keep-alive
+	 * timeout instead.
+	 * 
+	 * @param preambleTimeout the timeout in milliseconds, or zero to wait
+	 * indefinitely
+	 */
+	public void setPreambleTimeout(int preambleTimeout) {
+		this.preambleTimeout = Math.max(0, preambleTimeout);
+	}
+	
+	/**
+	 * Returns the time, in milliseconds, within which a new connection
+	 * accepted via a selector must send its whole preamble, or zero if it
+	 * may take as long as it likes
+	 * @return the preamble timeout in milliseconds
+	 */
+	public int getPreambleTimeout() {
+		return (preambleTimeout);
+	}
+	
+	/**
+	 * Sets the maximum number of sessions (and therefore of nails running at
+	 * once) in each shard's session pool.  When every session is busy, new
+	 * connections wait for one to become free, subject to admission control
+	 * (see <code>setAdmissionControl()</code>).  This must be set before the
+	 * server is started.
+	 * 
+	 * @param maxSessions the maximum number of sessions per shard, or zero
+	 * for no limit
+	 */
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = Math.max(0, maxSessions);
+	}
+	
+	/**
+	 * Returns the maximum number of sessions in each shard's session pool,
+	 * or zero if there is no limit.
+	 * @return the maximum number of sessions per shard, or zero
+	 */
+	public int getMaxSessions() {
+		return (maxSessions);
+	}
+	
+	/**
+	 * <p>Configures admission control, which applies when every session
+	 * allowed by <code>setMaxSessions()</code> is busy.  New connections then
+	 * wait for a free session in a queue holding at most
+	 * <code>maxPending</code> connections per shard; any more are turned away
+	 * at once with <code>NGConstants.EXIT_OVERLOADED</code>.</p>
+	 * 
+	 * <p>Connections are also turned away as they leave the queue if waits
+	 * have been longer than <code>shedTarget</code> for at least
+	 * <code>shedInterval</code>, more and more often until the wait falls
+	 * below the target (the CoDel algorithm; see NGAdmissionQueue).  This
+	 * keeps the wait for the connections that are served close to the target
+	 * however overloaded the server becomes, while letting short bursts
+	 * through.  This must be set before the server is started.</p>
+	 * 
+	 * @param maxPending the maximum number of waiting connections per shard,
+	 * or zero to disable admission control, in which case connections wait
+	 * for a free session without limit
+	 * @param shedTarget the acceptable wait in milliseconds, or zero to
+	 * never shed connections that have been queued
+	 * @param shedInterval the time in milliseconds for which waits must
+	 * exceed the target before connections are shed
+	 */
+	public void setAdmissionControl(int maxPending, int shedTarget, int shedInterval) {
+		this.maxPending = Math.max(0, maxPending);
+		this.shedTarget = Math.max(0, shedTarget);
+		this.shedInterval = Math.max(1, shedInterval);
+	}
+	
+	/**
+	 * Returns the maximum number of connections that may wait in each shard
+	 * for a free session, or zero if admission control is disabled.
+	 * @return the maximum number of waiting connections per shard, or zero
+	 */
+	public int getMaxPending() {
+		return (maxPending);
+	}
+	
+	/**
+	 * Returns the time, in milliseconds, that connections may wait for a
+	 * free session before load is shed, or zero if load is never shed.
+	 * @return the load shedding target in milliseconds
+	 */
+	public int getShedTarget() {
+		return (shedTarget);
+	}
+	
+	/**
+	 * Returns the time, in milliseconds, for which waits must exceed the
+	 * target before load is shed.
+	 * @return the load shedding interval in milliseconds
+	 */
+	public int getShedInterval() {
+		return (shedInterval);
+	}
+	
+	/**
+	 * Sets the maximum number of streams that may be open at once on a
+	 * multiplexed connection (see NGMultiplexer), counting both those
+	 * running a nail and those whose preamble is still arriving.  A stream
+	 * started beyond this is turned away with
+	 * <code>NGConstants.EXIT_OVERLOADED</code>.  Admission control bounds
+	 * only the streams waiting for a session; this bounds what a single
+	 * client can make the server hold.
+	 * 
+	 * @param maxStreams the maximum number of open streams per connection
+	 */
+	public void setMaxStreams(int maxStreams) {
+		this.maxStreams = Math.max(1, maxStreams);
+	}
+	
+	/**
+	 * Returns the maximum number of streams that may be open at once on a
+	 * multiplexed connection.
+	 * @return the maximum number of open streams per connection
+	 */
+	public int getMaxStreams() {
+		return (maxStreams);
+	}
+	
+	/**
+	 * Sets the time after which an idle session beyond the session pool
+	 * size lets its thread exit.  Sessions within the pool size are kept
+	 * regardless.  This must be set before the server is started.
+	 * 
+	 * @param sessionIdleTimeout the idle timeout in milliseconds
+	 */
+	public void setSessionIdleTimeout(int sessionIdleTimeout) {
+		this.sessionIdleTimeout = Math.max(1, sessionIdleTimeout);
+	}
+	
+	/**
+	 * Returns the time, in milliseconds, after which an idle session beyond
+	 * the session pool size lets its thread exit.
+	 * @return the session idle timeout in milliseconds
+	 */
+	public int getSessionIdleTimeout() {
+		return (sessionIdleTimeout);
+	}
+	
+	/**
+	 * Sets a flag that determines whether each session runs on a virtual
+	 * thread of its own, created when a connection arrives, instead of on
+	 * a pooled platform thread.  A session blocked on its client then costs
+	 * only a little heap, so very large numbers of slow or idle interactive
+	 * clients can be served.  The session pool size and idle timeout do not
+	 * apply in this mode; <code>setMaxSessions()</code> still does.
+	 * 
+	 * <p>Virtual threads require Java 21 or later.  Note that such JVMs only
+	 * allow <code>System.exit()</code> to be trapped for nails if started
+	 * with <code>-Djava.security.manager=allow</code>.  This must be set
+	 * before the server is started.</p>
+	 * 
+	 * @param useVirtualThreads true iff sessions should run on virtual threads
+	 * @throws UnsupportedOperationException if this JVM does not support
+	 * virtual threads
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		if (useVirtualThreads && NGSessionPool.virtualThreadFactory() == null) {
+			throw (new UnsupportedOperationException("Virtual threads require Java 21 or later."));
+		}
+		this.useVirtualThreads = useVirtualThreads;
+	}
+	
+	/**
+	 * Returns a flag that indicates whether sessions run on virtual threads.
+	 * @return a flag that indicates whether sessions run on virtual threads.
+	 */
+	public boolean usesVirtualThreads() {
+		return (useVirtualThreads);
+	}
+	
+	/**
+	 * Sets the policy that determines when nails' output to stdout and
+	 * stderr is sent to clients, for commands whose alias does not have a
+	 * policy of its own.  A client may still choose a policy for a single
+	 * command (see <a href="FlushPolicy.html">FlushPolicy</a>).
+	 * 
+	 * @param flushPolicy the policy, or <code>null</code> (the default) to
+	 * send output to a terminal line by line and other output within
+	 * <code>FlushPolicy.DEFAULT_MAXDELAY</code>
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+	
+	/**
+	 * Returns the policy that determines when nails' output is sent to
+	 * clients.
+	 * @return the policy, or <code>null</code> if it is chosen by whether
+	 * each client's output is a terminal
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return (flushPolicy);
+	}
+	
+	/**
+	 * Sets the size of the largest long argument (see
+	 * <a href="LongArgument.html">LongArgument</a>) that is held in memory
+	 * while the command runs.  Longer arguments are written to temporary
+	 * files as they arrive, so that a client sending a very large argument
+	 * costs the server disk space rather than heap.
+	 * 
+	 * @param longArgThreshold the threshold in bytes; zero writes every
+	 * long argument to a file
+	 */
+	public void setLongArgThreshold(int longArgThreshold) {
+		this.longArgThreshold = Math.max(0, longArgThreshold);
+	}
+	
+	/**
+	 * Returns the size, in bytes, of the largest long argument that is held
+	 * in memory rather than written to a temporary file.
+	 * @return the long argument threshold in bytes
+	 */
+	public int getLongArgThreshold() {
+		return (longArgThreshold);
+	}
+	
+	/**
+	 * Sets the most bytes of long arguments (see
+	 * <a href="LongArgument.html">LongArgument</a>) that a single command
+	 * may send, counting all of its long arguments together.  Long
+	 * arguments are not counted in the limit on a preamble's length, and
+	 * those past the long argument threshold go to temporary files, so
+	 * without this limit a client could fill the temporary directory.  A
+	 * command that sends more is rejected and its temporary files deleted.
+	 * 
+	 * @param maxLongArgLength the limit in bytes; zero rejects any command
+	 * with a non-empty long argument
+	 */
+	public void setMaxLongArgLength(long maxLongArgLength) {
+		this.maxLongArgLength = Math.max(0, maxLongArgLength);
+	}
+	
+	/**
+	 * Returns the most bytes of long arguments that a single command may
+	 * send.
+	 * @return the limit on a command's long arguments in bytes
+	 */
+	public long getMaxLongArgLength() {
+		return (maxLongArgLength);
+	}
+	
+	/**
+	 * Sets the number of client environments the server remembers.  A
+	 * client that offers the digest of an environment the server remembers
+	 * need not send the environment itself (see
+	 * <a href="EnvironmentCache.html">EnvironmentCache</a>).
+	 * 
+	 * @param size the number of environments to remember, or zero to make
+	 * every client send its environment
+	 */
+	public void setEnvironmentCacheSize(int size) {
+		environmentCache.setCapacity(size);
+	}
+	
+	/**
+	 * Returns the cache of client environments, for its statistics
+	 * @return the cache of client environments
+	 */
+	public EnvironmentCache getEnvironmentCache() {
+		return (environmentCache);
+	}
+	
+	/**
+	 * Sets the number of classes run by name that the server remembers,
+	 * and the number of names it remembers not to be classes (see
+	 * <a href="ClassCache.html">ClassCache</a>).
+	 * 
+	 * @param size the number of classes, and of unknown names, to
+	 * remember, or zero to look for every class run by name
+	 */
+	public void setClassCacheSize(int size) {
+		classCache.setCapacity(size);
+	}
+	
+	/**
+	 * Sets how long the server remembers that a name run as a command is
+	 * not a class, rather than searching the classpath for it again.
+	 * 
+	 * @param ttl the time in milliseconds, or zero to search the classpath
+	 * every time
+	 */
+	public void setClassCacheTtl(int ttl) {
+		classCache.setTtl(ttl);
+	}
+	
+	/**
+	 * Returns the cache of classes run by name, for its statistics, and so
+	 * that it can be invalidated when the classpath changes
+	 * @return the cache of classes run by name
+	 */
+	public ClassCache getClassCache() {
+		return (classCache);
+	}
+	
+	/**
+	 * Sets the size of the shortest stdout or stderr chunk that is
+	 * compressed for clients that ask for compression (as ng does when
+	 * <code>NAILGUN_COMPRESS</code> is set), which is worthwhile over slow
+	 * links.  Shorter chunks, such as interactive output, are sent as they
+	 * are.  A threshold of zero refuses such requests, so output is never
+	 * compressed.
+	 * 
+	 * @param compressionThreshold the threshold in bytes, or zero to
+	 * disable compression
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = Math.max(0, compressionThreshold);
+	}
+	
+	/**
+	 * Returns the size, in bytes, of the shortest output chunk compressed
+	 * for clients that ask for compression, or zero if compression is
+	 * disabled.
+	 * @return the compression threshold in bytes
+	 */
+	public int getCompressionThreshold() {
+		return (compressionThreshold);
+	}
+	
+	/**
+	 * Sets the amount of stdin, in bytes, that a client using flow control
+	 * (as ng does unless <code>NAILGUN_FLOWCONTROL</code> is "0") may send
+	 * before the nail reads it.  Such a client also sends output credit as
+	 * it writes out what it is sent, so a slow client holds up only the
+	 * nail threads writing to it, rather than the connection.  A window of
+	 * zero refuses flow control.
+	 * 
+	 * @param inputWindow the window in bytes, or zero to refuse flow
+	 * control
+	 */
+	public void setInputWindow(int inputWindow) {
+		this.inputWindow = Math.max(0, inputWindow);
+		this.inputWindowPayload = toPayload(this.inputWindow);
+	}
+	
+	/**
+	 * Returns the amount of stdin, in bytes, that a client using flow
+	 * control may send before the nail reads it, or zero if flow control
+	 * is refused
+	 * @return the stdin window in bytes
+	 */
+	public int getInputWindow() {
+		return (inputWindow);
+	}
+
+	/**
+	 * Returns the stdin window as the payload of the
+	 * <code>NGConstants.CHUNKTYPE_CREDIT</code> chunk that grants it.  The
+	 * array is shared, and must not be changed.
+	 * @return the stdin window in decimal US-ASCII digits
+	 */
+	byte[] getInputWindowPayload() {
+		return (inputWindowPayload);
+	}
+	
+	/**
+	 * Registers a command whose client asked for flow control, so that its
+	 * buffer occupancy is reported until it finishes
+	 * @param flowControl the command's credit
+	 */
+	void flowControlStarted(FlowControl flowControl) {
+		synchronized(flowControls) {
+			flowControls.add(flowControl);
+		}
+	}
+	
+	/**
+	 * Unregisters a command registered by <code>flowControlStarted()</code>
+	 * @param flowControl the command's credit
+	 */
+	void flowControlFinished(FlowControl flowControl) {
+		synchronized(flowControls) {
+			flowControls.remove(flowControl);
+		}
+	}
+	
+	/**
+	 * Returns a snapshot of the buffer occupancy of each running command
+	 * whose client asked for flow control
+	 * @return a List of <a href="FlowControlStats.html">FlowControlStats</a>
+	 */
+	public List getFlowControlStats() {
+		List result = new java.util.ArrayList();
+		synchronized(flowControls) {
+			for (Iterator i = flowControls.iterator(); i.hasNext();) {
+				result.add(((FlowControl) i.next()).getStats());
+			}
+		}
+		return (result);
+	}
+	
+	/**
+	 * Sets the time for which a client that sends heartbeats (as ng does
+	 * unless <code>NAILGUN_HEARTBEAT</code> or
+	 * <code>NAILGUN_FLOWCONTROL</code> is "0") may be silent before its
+	 * command is cancelled: the nail's thread, and any threads it started
+	 * on its session's thread, are interrupted.  Commands of clients that
+	 * close or reset the connection are cancelled within about one
+	 * disconnect check interval (see
+	 * <code>setDisconnectCheckInterval()</code>), or one heartbeat interval
+	 * when there are too many to check so often, and need not wait for
+	 * this timeout, which should be longer than clients may be suspended.
+	 * A timeout of zero refuses heartbeats, so that no command is
+	 * cancelled, and with them forwarded signals (see
+	 * <code>NGContext.addSignalListener()</code>).
+	 * 
+	 * @param heartbeatTimeout the timeout in milliseconds, or zero to
+	 * refuse heartbeats
+	 */
+	public void setHeartbeatTimeout(int heartbeatTimeout) {
+		this.heartbeatTimeout = Math.max(0, heartbeatTimeout);
+		this.heartbeatTimeoutPayload = toPayload(this.heartbeatTimeout);
+	}
+	
+	/**
+	 * Returns the time, in milliseconds, for which a client that sends
+	 * heartbeats may be silent before its command is cancelled, or zero if
+	 * heartbeats are refused
+	 * @return the heartbeat timeout in milliseconds
+	 */
+	public int getHeartbeatTimeout() {
+		return (heartbeatTimeout);
+	}
+
+	/**
+	 * Returns the heartbeat timeout as the payload of the
+	 * <code>NGConstants.CHUNKTYPE_HEARTBEAT</code> chunk that accepts a
+	 * client's heartbeats.  The array is shared, and must not be changed.
+	 * @return the heartbeat timeout in decimal US-ASCII digits
+	 */
+	byte[] getHeartbeatTimeoutPayload() {
+		return (heartbeatTimeoutPayload);
+	}
+
+	/**
+	 * Encodes a number as a chunk payload, in decimal US-ASCII digits
+	 */
+	private static byte[] toPayload(int n) {
+		String digits = String.valueOf(n);
+		byte[] result = new byte[digits.length()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = (byte) digits.charAt(i);
+		}
+		return (result);
+	}
+	
+	/**
+	 * Sets the interval between checks for clients that have gone, which
+	 * bounds how long the command of a client that has closed or reset
+	 * its connection may run on.  This must be set before the first
+	 * client that sends heartbeats connects.
+	 * 
+	 * @param disconnectCheckInterval the interval in milliseconds
+	 */
+	public void setDisconnectCheckInterval(int disconnectCheckInterval) {
+		this.disconnectCheckInterval = Math.max(1, disconnectCheckInterval);
+	}
+	
+	/**
+	 * Returns the interval, in milliseconds, between checks for clients
+	 * that have gone
+	 * @return the disconnect check interval in milliseconds
+	 */
+	public int getDisconnectCheckInterval() {
+		return (disconnectCheckInterval);
+	}
+	
+	/**
+	 * Returns the monitor that cancels the commands of clients that have
+	 * gone
+	 * @return the server's ClientMonitor
+	 */
+	ClientMonitor getClientMonitor() {
+		return (clientMonitor);
+	}
+	
+	/**
+	 * <p>Sets the number of aliased classes warmed up at once in the
+	 * background once the server has started listening (see
+	 * <a href="AliasWarmup.html">AliasWarmup</a>).  Each class is loaded,
+	 * and any that provides a
+	 * <pre><code>public static void nailWarmup(NGServer)</code></pre>
+	 * method has it called with this NGServer as its sole parameter.
+	 * Aliases are otherwise loaded by the first command to use them, and
+	 * their hooks are not called.  The default is one per processor.</p>
+	 * 
+	 * @param warmupThreads the most classes to warm up at once, or zero to
+	 * load each class when it is first used
+	 */
+	public void setWarmupThreads(int warmupThreads) {
+		this.warmupThreads = Math.max(0, warmupThreads);
+	}
+	
+	/**
+	 * Sets the time after which the warm-up loads no more classes and
+	 * calls no more <code>nailWarmup()</code> hooks, leaving the rest to
+	 * the first commands that need them.  Hooks already running are left
+	 * to finish.
+	 * 
+	 * @param warmupBudget the time in milliseconds, or zero for no limit
+	 */
+	public void setWarmupBudget(int warmupBudget) {
+		this.warmupBudget = Math.max(0, warmupBudget);
+	}
+	
+	/**
+	 * Sets whether the server waits for the warm-up to finish, or its
+	 * budget to run out, before accepting connections.  The server is
+	 * bound to its address while it waits, so clients that connect are
+	 * made to wait rather than refused.  By default the server accepts
+	 * connections while the warm-up runs.
+	 * 
+	 * @param waitForWarmup true to accept connections only once the
+	 * warm-up has finished
+	 */
+	public void setWaitForWarmup(boolean waitForWarmup) {
+		this.waitForWarmup = waitForWarmup;
+	}
+	
+	/**
+	 * Returns the background loading of aliased classes, for its progress
+	 * @return the server's AliasWarmup
+	 */
+	public AliasWarmup getAliasWarmup() {
+		return (aliasWarmup);
+	}
+	
 	/**
 	 * Sets the default class to use for the Nail if no Nails can
 	 * be found via alias or classname. (may be <code>null</code>,
@@ -224,15 +1174,17 @@ public class NGServer implements Runnable {
 	 * Returns the current NailStats object for the specified class, creating
 	 * a new one if necessary
 	 * @param nailClass the class for which we're gathering stats
+	 * @param shard the shard in which the nail is running
 	 * @return a NailStats object for the specified class
 	 */
-	private NailStats getOrCreateStatsFor(Class nailClass) {
+	private NailStats getOrCreateStatsFor(Class nailClass, int shard) {
 		NailStats result = null;
-		synchronized(allNailStats) {
-			result = (NailStats) allNailStats.get(nailClass);
+		Map shardStats = allNailStats[shard];
+		synchronized(shardStats) {
+			result = (NailStats) shardStats.get(nailClass);
 			if (result == null) {
 				result = new NailStats(nailClass);
-				allNailStats.put(nailClass, result);
+				shardStats.put(nailClass, result);
 			}
 		}
 		return (result);
@@ -243,9 +1195,10 @@ public class NGServer implements Runnable {
 	 * a nail execution with the server.
 	 * 
 	 * @param nailClass the nail class that was launched
+	 * @param shard the shard that accepted the nail's connection
 	 */
-	void nailStarted(Class nailClass) {
-		NailStats stats = getOrCreateStatsFor(nailClass);
+	void nailStarted(Class nailClass, int shard) {
+		NailStats stats = getOrCreateStatsFor(nailClass, shard);
 		stats.nailStarted();
 	}
 	
@@ -254,29 +1207,99 @@ public class NGServer implements Runnable {
 	 * a nails execution with the server.
 	 * 
 	 * @param nailClass the nail class that finished
+	 * @param shard the shard that accepted the nail's connection
 	 */
-	void nailFinished(Class nailClass) {
-		NailStats stats = (NailStats) allNailStats.get(nailClass);
+	void nailFinished(Class nailClass, int shard) {
+		NailStats stats = getOrCreateStatsFor(nailClass, shard);
 		stats.nailFinished();
 	}
 	
+	/**
+	 * Provides a means for an NGSession to register the cancellation of
+	 * a nail whose client went away.
+	 * 
+	 * @param nailClass the nail class that was cancelled
+	 * @param shard the shard that accepted the nail's connection
+	 * @param latencyNanos the time, in nanoseconds, from when the client
+	 * was last known to be there until the nail finished
+	 */
+	void nailCancelled(Class nailClass, int shard, long latencyNanos) {
+		NailStats stats = getOrCreateStatsFor(nailClass, shard);
+		stats.nailCancelled(latencyNanos);
+	}
+	
 	/**
 	 * Returns a snapshot of this NGServer's nail statistics.  The result is a <code>java.util.Map</code>,
 	 * keyed by class name, with <a href="NailStats.html">NailStats</a> objects as values.
+	 * If the server is sharded, each value is the total across all shards.
 	 * 
 	 * @return a snapshot of this NGServer's nail statistics.
 	 */
 	public Map getNailStats() {
 		Map result = new java.util.TreeMap();
-		synchronized(allNailStats) {
-			for (Iterator i = allNailStats.keySet().iterator(); i.hasNext();) {
-				Class nailclass = (Class) i.next();
-				result.put(nailclass.getName(), ((NailStats) allNailStats.get(nailclass)).clone());
+		for (int shard = 0; shard < allNailStats.length; ++shard) {
+			synchronized(allNailStats[shard]) {
+				for (Iterator i = allNailStats[shard].values().iterator(); i.hasNext();) {
+					NailStats stats = (NailStats) i.next();
+					String name = stats.getNailClass().getName();
+					NailStats total = (NailStats) result.get(name);
+					if (total == null) {
+						result.put(name, stats.clone());
+					} else {
+						total.add(stats);
+					}
+				}
 			}
 		}
 		return (result);
 	}
 	
+	/**
+	 * Returns a snapshot of the nail statistics for a single shard.  The result
+	 * is keyed by class name, with <a href="NailStats.html">NailStats</a> objects
+	 * as values.
+	 * 
+	 * @param shard the index of the shard (zero-based; see <code>getShardCount()</code>)
+	 * @return a snapshot of the nail statistics for the specified shard.
+	 */
+	public Map getNailStats(int shard) {
+		Map result = new java.util.TreeMap();
+		synchronized(allNailStats[shard]) {
+			for (Iterator i = allNailStats[shard].values().iterator(); i.hasNext();) {
+				NailStats stats = (NailStats) i.next();
+				result.put(stats.getNailClass().getName(), stats.clone());
+			}
+		}
+		return (result);
+	}
+	
+	/**
+	 * Returns a snapshot of the session pool statistics, totalled across all
+	 * shards.  All counts are zero until the server has started.
+	 * @return a snapshot of the session pool statistics
+	 */
+	public SessionPoolStats getSessionPoolStats() {
+		SessionPoolStats result = new SessionPoolStats(0, 0, 0, 0, 0, 0, 0);
+		NGListener[] current = listeners;
+		if (current != null) {
+			for (int shard = 0; shard < current.length; ++shard) {
+				result.add(current[shard].getSessionPool().getStats());
+			}
+		}
+		return (result);
+	}
+	
+	/**
+	 * Returns a snapshot of the session pool statistics for a single shard.
+	 * @param shard the index of the shard (zero-based; see <code>getShardCount()</code>)
+	 * @return a snapshot of the session pool statistics for the specified shard.
+	 */
+	public SessionPoolStats getSessionPoolStats(int shard) {
+		NGListener[] current = listeners;
+		if (current == null) return (new SessionPoolStats(0, 0, 0, 0, 0, 0, 0));
+		return (current[shard].getSessionPool().getStats());
+	}
+	
 	/**
 	 * Returns the AliasManager in use by this NGServer.
 	 * @return the AliasManager in use by this NGServer.
@@ -288,7 +1311,8 @@ public class NGServer implements Runnable {
 	/**
 	 * <p>Shuts down the server.  The server will stop listening
 	 * and its thread will finish.  Any running nails will be allowed
-	 * to finish.</p>
+	 * to finish; kept-alive connections waiting for their clients' next
+	 * commands are closed.</p>
 	 * 
 	 * <p>Any nails that provide a
 	 * <pre><code>public static void nailShutdown(NGServer)</code></pre>
@@ -307,50 +1331,72 @@ public class NGServer implements Runnable {
 			shutdown = true;
 		}
 		
-		try {
-			serversocket.close();
-		} catch (Throwable toDiscard) {}
-		
-		sessionPool.shutdown();
+		NGListener[] toShutdown = listeners;
+		if (toShutdown != null) {
+			for (int i = 0; i < toShutdown.length; ++i) {
+				if (toShutdown[i] != null) toShutdown[i].shutdown();
+			}
+		}
+		clientMonitor.shutdown();
+		aliasWarmup.shutdown();
 		
 		Class[] argTypes = new Class[1];
 		argTypes[0] = NGServer.class;
 		Object[] argValues = new Object[1];
 		argValues[0] = this;
 		
-		// make sure that all aliased classes have associated nailstats
-		// so they can be shut down.
-		for (Iterator i = getAliasManager().getAliases().iterator(); i.hasNext();) {
+		// make sure that all loaded aliased classes have associated
+		// nailstats so they can be shut down.  classes never loaded are
+		// left alone: they have no state to release, and loading them now
+		// would only run their static initializers.
+		for (Iterator i = getAliasManager().getAliasSnapshot().iterator(); i.hasNext();) {
 			Alias alias = (Alias) i.next();
-			getOrCreateStatsFor(alias.getAliasedClass());
+			if (alias.isLoaded()) getOrCreateStatsFor(alias.getAliasedClass(), 0);
 		}
 		
-		synchronized(allNailStats) {
-			for (Iterator i = allNailStats.values().iterator(); i.hasNext();) {
-				NailStats ns = (NailStats) i.next();
-				Class nailClass = ns.getNailClass();
-				
-				// yes, I know this is lazy, relying upon the exception
-				// to handle the case of no nailShutdown method.
-				try {
-					Method nailShutdown = nailClass.getMethod("nailShutdown", argTypes);
-					nailShutdown.invoke(null, argValues);
-				} catch (Throwable toDiscard) {}
+		// every class that has run in any shard is shut down exactly once
+		Set nailClasses = new java.util.HashSet();
+		for (int shard = 0; shard < allNailStats.length; ++shard) {
+			synchronized(allNailStats[shard]) {
+				nailClasses.addAll(allNailStats[shard].keySet());
 			}
 		}
 		
+		for (Iterator i = nailClasses.iterator(); i.hasNext();) {
+			Class nailClass = (Class) i.next();
+			
+			// yes, I know this is lazy, relying upon the exception
+			// to handle the case of no nailShutdown method.
+			try {
+				Method nailShutdown = nailClass.getMethod("nailShutdown", argTypes);
+				nailShutdown.invoke(null, argValues);
+			} catch (Throwable toDiscard) {}
+		}
+		
+		getAliasManager().shutdown();
+		
 		// restore system streams
 		System.setIn(in);
 		System.setOut(out);
 		System.setErr(err);
 		
-		System.setSecurityManager(originalSecurityManager);
+		if (System.getSecurityManager() instanceof NGSecurityManager) {
+			System.setSecurityManager(originalSecurityManager);
+		}
 		
 		if (exitVM) {
 			System.exit(0);
 		}
 	}
 	
+	/**
+	 * Returns true iff the server has been instructed to shut down.
+	 * @return true iff the server has been instructed to shut down.
+	 */
+	boolean isShuttingDown() {
+		return (shutdown);
+	}
+	
 	/**
 	 * Returns true iff the server is currently running.
 	 * @return true iff the server is currently running.
@@ -364,7 +1410,8 @@ public class NGServer implements Runnable {
 	 * @return the port on which this server is (or will be) listening.
 	 */
 	public int getPort() {
-		return ((serversocket == null) ? port : serversocket.getLocalPort());
+		NGListener[] bound = listeners;
+		return ((bound == null || bound[0] == null) ? port : bound[0].getLocalPort());
 	}
 	
 	/**
@@ -373,13 +1420,17 @@ public class NGServer implements Runnable {
 	 */
 	public void run() {
 		running = true;
-		NGSession sessionOnDeck = null;
 		
 		originalSecurityManager = System.getSecurityManager();
-        System.setSecurityManager(
-                new NGSecurityManager(
-                        originalSecurityManager));
-  
+		try {
+			System.setSecurityManager(
+					new NGSecurityManager(
+							originalSecurityManager));
+		} catch (UnsupportedOperationException e) {
+			// Java 18 and later refuse unless run with -Djava.security.manager=allow
+			err.println("NGServer: unable to install NGSecurityManager; nails that call System.exit() will stop the server.");
+		}
+
 
 		synchronized(System.in) {
 			if (!(System.in instanceof ThreadLocalInputStream)) {
@@ -390,43 +1441,139 @@ public class NGServer implements Runnable {
 		}
 		
 		try {
-			if (addr == null) {
-				serversocket = new ServerSocket(port);
-			} else {
-				serversocket = new ServerSocket(port, 0, addr);
+			int listenerCount = getShardCount();
+			if (!listenOnTcp && unixSocketPath == null) {
+				throw (new IllegalStateException("NGServer has nowhere to listen."));
+			}
+			
+			// the first shard determines the port if it is to be
+			// chosen automatically; the rest share it.
+			NGListener[] newListeners = new NGListener[listenerCount];
+			int boundPort = port;
+			int tcpShards = listenOnTcp ? shardCount : 0;
+			try {
+				for (int shard = 0; shard < tcpShards; ++shard) {
+					newListeners[shard] = new NGListener(this, shard, newSessionPool());
+					newListeners[shard].bind(addr, boundPort, shardCount > 1);
+					boundPort = newListeners[shard].getLocalPort();
+				}
+				if (unixSocketPath != null) {
+					newListeners[tcpShards] = new NGListener(this, tcpShards, newSessionPool());
+					newListeners[tcpShards].bindUnix(unixSocketPath);
+				}
+			} catch (IOException e) {
+				// let go of whatever was bound before the failure
+				for (int shard = 0; shard < listenerCount; ++shard) {
+					if (newListeners[shard] != null) newListeners[shard].shutdown();
+				}
+				throw (e);
+			}
+			listeners = newListeners;
+			if (shutdown) {
+				// shutdown() was called while we were binding
+				for (int shard = 0; shard < listenerCount; ++shard) {
+					listeners[shard].shutdown();
+				}
 			}
 			
-			while (!shutdown) {
-				sessionOnDeck = sessionPool.take();
-				Socket socket = serversocket.accept();
-				sessionOnDeck.run(socket);
+			// the aliased classes load while the server listens, unless
+			// it is to wait for them
+			aliasWarmup.start(getAliasManager().getAliasSnapshot(), warmupThreads, warmupBudget);
+			if (waitForWarmup) aliasWarmup.awaitCompletion();
+			
+			for (int shard = 1; shard < listenerCount; ++shard) {
+				Thread t = new Thread(listeners[shard]);
+				t.setName("NGServer shard " + shard);
+				t.start();
 			}
+			listeners[0].run();
 
 		} catch (Throwable t) {
-			// if shutdown is called while the accept() method is blocking,
-			// an exception will be thrown that we don't care about.  filter
-			// those out.
 			if (!shutdown) {
 				t.printStackTrace();
 			}
 		}
-		if (sessionOnDeck != null) {
-			sessionOnDeck.shutdown();
-		}
 		running = false;
 	}
 	
+	/**
+	 * Creates a session pool for a shard
+	 */
+	private NGSessionPool newSessionPool() {
+		return (new NGSessionPool(this, sessionPoolSize, maxSessions, sessionIdleTimeout,
+				useVirtualThreads ? NGSessionPool.virtualThreadFactory() : null,
+				(maxPending > 0) ? new NGAdmissionQueue(maxPending, shedTarget, shedInterval) : null));
+	}
+	
 	private static void usage() {
 		System.err.println("Usage: java com.martiansoftware.nailgun.NGServer");
 		System.err.println("   or: java com.martiansoftware.nailgun.NGServer port");
 		System.err.println("   or: java com.martiansoftware.nailgun.NGServer IPAddress");
 		System.err.println("   or: java com.martiansoftware.nailgun.NGServer IPAddress:port");
+		System.err.println("   or: java com.martiansoftware.nailgun.NGServer /path/to/unix/socket");
 	}
 	
 	/**
 	 * Creates and starts a new <code>NGServer</code>.  A single optional
 	 * argument is valid, specifying the port on which this <code>NGServer</code>
 	 * should listen.  If omitted, <code>NGServer.DEFAULT_PORT</code> will be used.
+	 * If the argument is a path (i.e., contains a '/'), the server listens on
+	 * a Unix domain socket at that path instead of on TCP.
+	 * 
+	 * <p>Setting the system property <code>nailgun.selector</code> to
+	 * <code>true</code> accepts connections via a non-blocking selector
+	 * (see <code>setUseSelector()</code>).  Setting <code>nailgun.shards</code>
+	 * to a number greater than one opens that many listening sockets on
+	 * the same port (see <code>setShardCount()</code>).
+	 * <code>nailgun.keepalive</code> sets the keep-alive idle timeout in
+	 * milliseconds (see <code>setKeepAliveTimeout()</code>), and
+	 * <code>nailgun.preambletimeout</code> the time in milliseconds within
+	 * which a new connection must send its preamble (see
+	 * <code>setPreambleTimeout()</code>).
+	 * <code>nailgun.poolsize</code>, <code>nailgun.maxsessions</code> and
+	 * <code>nailgun.sessionidletimeout</code> configure each shard's session
+	 * pool (see <code>setMaxSessions()</code> and
+	 * <code>setSessionIdleTimeout()</code>).  Setting
+	 * <code>nailgun.virtualthreads</code> to <code>true</code> runs each
+	 * session on a virtual thread (see <code>setUseVirtualThreads()</code>).
+	 * <code>nailgun.maxpending</code>, <code>nailgun.shedtarget</code> and
+	 * <code>nailgun.shedinterval</code> configure admission control (see
+	 * <code>setAdmissionControl()</code>), and <code>nailgun.maxstreams</code>
+	 * limits the streams open on a multiplexed connection (see
+	 * <code>setMaxStreams()</code>).  <code>nailgun.flush</code> sets
+	 * the flush policy for nails' output (see <code>setFlushPolicy()</code>).
+	 * <code>nailgun.longargthreshold</code> sets the size in bytes beyond
+	 * which long arguments are written to temporary files (see
+	 * <code>setLongArgThreshold()</code>), and
+	 * <code>nailgun.maxlongarglength</code> limits the total length of a
+	 * command's long arguments (see <code>setMaxLongArgLength()</code>).
+	 * <code>nailgun.envcachesize</code>
+	 * sets the number of client environments remembered (see
+	 * <code>setEnvironmentCacheSize()</code>).
+	 * <code>nailgun.classcachesize</code> and <code>nailgun.classcachettl</code>
+	 * set the number of classes run by name remembered, and how long in
+	 * milliseconds names that are not classes are remembered (see
+	 * <code>setClassCacheSize()</code> and <code>setClassCacheTtl()</code>).
+	 * <code>nailgun.compressthreshold</code> sets the size in bytes of the
+	 * shortest output chunk compressed for clients that ask for compression
+	 * (see <code>setCompressionThreshold()</code>).
+	 * <code>nailgun.inputwindow</code> sets the stdin window in bytes for
+	 * clients that ask for flow control (see <code>setInputWindow()</code>).
+	 * <code>nailgun.heartbeattimeout</code> and
+	 * <code>nailgun.disconnectcheck</code> set in milliseconds how long a
+	 * client that sends heartbeats may be silent, and how often clients
+	 * are checked, before the commands of clients that have gone are
+	 * cancelled (see <code>setHeartbeatTimeout()</code> and
+	 * <code>setDisconnectCheckInterval()</code>).
+	 * <code>nailgun.warmupthreads</code> sets the number of aliased classes
+	 * warmed up at once in the background after the server starts, zero
+	 * leaving each to load when first used (see
+	 * <code>setWarmupThreads()</code>).  <code>nailgun.warmupbudget</code>
+	 * sets in milliseconds how long the warm-up may take (see
+	 * <code>setWarmupBudget()</code>), and setting
+	 * <code>nailgun.warmupwait</code> to <code>true</code> makes the server
+	 * wait for it before accepting connections (see
+	 * <code>setWaitForWarmup()</code>).</p>
 	 * @param args a single optional argument specifying the port on which to listen.
 	 * @throws NumberFormatException if a non-numeric port is specified
 	 */
@@ -440,12 +1587,15 @@ public class NGServer implements Runnable {
 		// null server address means bind to everything local
 		InetAddress serverAddress = null;
 		int port = NGConstants.DEFAULT_PORT;
+		String unixSocketPath = null;
 		
 		// parse the sole command line parameter, which
 		// may be an inetaddress to bind to, a port number,
-		// or an inetaddress followed by a port, separated
-		// by a colon
-		if (args.length != 0) {
+		// an inetaddress followed by a port, separated
+		// by a colon, or the path of a unix domain socket
+		if (args.length != 0 && args[0].indexOf('/') >= 0) {
+			unixSocketPath = args[0];
+		} else if (args.length != 0) {
 			String[] argParts = args[0].split(":");
 			String addrPart = null;
 			String portPart = null;
@@ -465,13 +1615,48 @@ public class NGServer implements Runnable {
 			}
 		}
 
-		NGServer server = new NGServer(serverAddress, port, DEFAULT_SESSIONPOOLSIZE);
+		NGServer server = new NGServer(serverAddress, port, Integer.getInteger("nailgun.poolsize", DEFAULT_SESSIONPOOLSIZE).intValue());
+		server.setUseSelector(Boolean.getBoolean("nailgun.selector"));
+		server.setShardCount(Integer.getInteger("nailgun.shards", 1).intValue());
+		server.setKeepAliveTimeout(Integer.getInteger("nailgun.keepalive", DEFAULT_KEEPALIVETIMEOUT).intValue());
+		server.setPreambleTimeout(Integer.getInteger("nailgun.preambletimeout", DEFAULT_PREAMBLETIMEOUT).intValue());
+		server.setMaxSessions(Integer.getInteger("nailgun.maxsessions", 0).intValue());
+		server.setSessionIdleTimeout(Integer.getInteger("nailgun.sessionidletimeout", DEFAULT_SESSIONIDLETIMEOUT).intValue());
+		server.setUseVirtualThreads(Boolean.getBoolean("nailgun.virtualthreads"));
+		server.setAdmissionControl(Integer.getInteger("nailgun.maxpending", DEFAULT_MAXPENDING).intValue(),
+									Integer.getInteger("nailgun.shedtarget", DEFAULT_SHEDTARGET).intValue(),
+									Integer.getInteger("nailgun.shedinterval", DEFAULT_SHEDINTERVAL).intValue());
+		server.setMaxStreams(Integer.getInteger("nailgun.maxstreams", DEFAULT_MAXSTREAMS).intValue());
+		server.setLongArgThreshold(Integer.getInteger("nailgun.longargthreshold", DEFAULT_LONGARGTHRESHOLD).intValue());
+		server.setMaxLongArgLength(Long.getLong("nailgun.maxlongarglength", DEFAULT_MAXLONGARGLENGTH).longValue());
+		server.setEnvironmentCacheSize(Integer.getInteger("nailgun.envcachesize", DEFAULT_ENVCACHESIZE).intValue());
+		server.setClassCacheSize(Integer.getInteger("nailgun.classcachesize", DEFAULT_CLASSCACHESIZE).intValue());
+		server.setClassCacheTtl(Integer.getInteger("nailgun.classcachettl", DEFAULT_CLASSCACHETTL).intValue());
+		server.setCompressionThreshold(Integer.getInteger("nailgun.compressthreshold", DEFAULT_COMPRESSIONTHRESHOLD).intValue());
+		server.setInputWindow(Integer.getInteger("nailgun.inputwindow", DEFAULT_INPUTWINDOW).intValue());
+		server.setHeartbeatTimeout(Integer.getInteger("nailgun.heartbeattimeout", DEFAULT_HEARTBEATTIMEOUT).intValue());
+		server.setDisconnectCheckInterval(Integer.getInteger("nailgun.disconnectcheck", DEFAULT_DISCONNECTCHECKINTERVAL).intValue());
+		server.setWarmupThreads(Integer.getInteger("nailgun.warmupthreads", Runtime.getRuntime().availableProcessors()).intValue());
+		server.setWarmupBudget(Integer.getInteger("nailgun.warmupbudget", DEFAULT_WARMUPBUDGET).intValue());
+		server.setWaitForWarmup(Boolean.getBoolean("nailgun.warmupwait"));
+		if (System.getProperty("nailgun.flush") != null) {
+			server.setFlushPolicy(FlushPolicy.forName(System.getProperty("nailgun.flush")));
+		}
+		if (unixSocketPath != null) {
+			server.setUnixSocketPath(unixSocketPath);
+			server.setListenOnTcp(false);
+		}
 		Thread t = new Thread(server);
-		t.setName("NGServer(" + serverAddress + ", " + port + ")");
+		t.setName("NGServer(" + ((unixSocketPath != null) ? unixSocketPath : serverAddress + ", " + port) + ")");
 		t.start();
 
 		Runtime.getRuntime().addShutdownHook(new NGServerShutdowner(server));
 		
+		if (unixSocketPath != null) {
+			System.out.println("NGServer started on " + unixSocketPath + ".");
+			return;
+		}
+		
 		// if the port is 0, it will be automatically determined.
 		// add this little wait so the ServerSocket can fully
 		// initialize and we can see what port it chose.
@@ -18,27 +18,28 @@
 
 package com.martiansoftware.nailgun;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.Socket;
-import java.util.List;
+import java.net.InetAddress;
+import java.util.LinkedList;
 import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.tools.ant.ExitException;
 
 /**
  * Reads the NailGun stream from the client through the command,
  * then hands off processing to the appropriate class.  The NGSession
- * obtains its sockets from an NGSessionPool, which created this
- * NGSession.
+ * obtains its connections from an NGSessionPool, which created this
+ * NGSession and supplies the thread on which it runs (a long-lived
+ * platform thread, or a virtual thread per connection).
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
-class NGSession extends Thread {
+class NGSession implements Runnable {
 
 	/**
 	 * The server this NGSession is working for
@@ -52,21 +53,34 @@ class NGSession extends Thread {
 	private NGSessionPool sessionPool = null;
 	
 	/**
-	 * Synchronization object
+	 * The next connection this NGSession has been tasked with processing
+	 * (by NGServer)
 	 */
-	private Object lock = new Object();
-
+	private volatile NGConnection nextConnection = null;
+	
 	/**
-	 * The next socket this NGSession has been tasked with processing
-	 * (by NGServer)
+	 * The time (from <code>System.nanoTime()</code>) at which
+	 * nextConnection was handed over
 	 */
-	private Socket nextSocket = null;
+	private volatile long handoffTime = 0;
 	
 	/**
 	 * True if the server has been shutdown and this NGSession should
 	 * terminate completely
 	 */
-	private boolean done = false;
+	private volatile boolean done = false;
+	
+	/**
+	 * The thread running this NGSession, once started
+	 */
+	private volatile Thread thread = null;
+	
+	/**
+	 * The thread group of this NGSession's own thread, in which threads
+	 * started by its nails are created, or <code>null</code> if it shares
+	 * its group with other sessions
+	 */
+	private ThreadGroup threadGroup = null;
 	
 	/**
 	 * The instance number of this NGSession.  That is, if this is the Nth
@@ -74,6 +88,67 @@ class NGSession extends Thread {
 	 */
 	private long instanceNumber = 0;
 
+	/**
+	 * This NGSession's thread name when idle, and when last busy with the
+	 * specified command from the specified client
+	 */
+	private String idleThreadName = null;
+	private String busyThreadName = null;
+	private String busyThreadCommand = null;
+	private InetAddress busyThreadAddress = null;
+
+	/**
+	 * The preamble reader, streams and context given to each command this
+	 * NGSession runs.  They are reset for each command rather than
+	 * allocated afresh, except for streams a nail has closed or broken.
+	 */
+	private NGPreamble recycledPreamble = new NGPreamble();
+	private NGInputStream stdin = null;
+	private NGOutputStream stdout = null;
+	private NGOutputStream stderr = null;
+	private NGOutputStream stdexit = null;
+	private PrintStream out = null;
+	private PrintStream err = null;
+	private PrintStream exit = null;
+	private NGContext context = null;
+
+	/**
+	 * The credit for commands whose clients ask for flow control, created
+	 * when first needed and reset for each such command
+	 */
+	private FlowControl flowControl = null;
+
+	/**
+	 * For a command whose client is watched by the ClientMonitor: the
+	 * FlowControl generation identifying the command, the thread running
+	 * its nail (while it runs), the threads in this session's thread group
+	 * before the nail started, and when its client went, if it has.  All
+	 * guarded by <code>cancelLock</code>.
+	 */
+	private Object cancelLock = new Object();
+	private int watchedGeneration = 0;
+	private Thread nailThread = null;
+	private Thread[] threadsBefore = null;
+	private long clientGoneAt = 0;
+
+	/**
+	 * For a watched command: whether its client forwards signals, the
+	 * nail's invocation (while it runs), and the number of the signal that
+	 * interrupted the nail, if one has.  Also guarded by
+	 * <code>cancelLock</code>.
+	 */
+	private boolean signalsForwarded = false;
+	private NailInvocation runningNail = null;
+	private int interruptedBy = 0;
+
+	/**
+	 * For a watched command: the signals forwarded by its client and not
+	 * yet delivered, oldest first, and whether a thread is delivering
+	 * them.  Also guarded by <code>cancelLock</code>.
+	 */
+	private LinkedList pendingSignals = new LinkedList();
+	private boolean delivering = false;
+
 	/**
 	 * A lock shared among all NGSessions
 	 */
@@ -85,23 +160,22 @@ class NGSession extends Thread {
 	private static long instanceCounter = 0;
 	
 	/**
-	 * signature of main(String[]) for reflection operations
+	 * The payload of the reply to a client that accepts Deflate
 	 */
-	private static Class[] mainSignature;
+	private static final byte[] DEFLATE = {'d', 'e', 'f', 'l', 'a', 't', 'e'};
 
 	/**
-	 * signature of nailMain(NGContext) for reflection operations
+	 * The numbers of the signals ng forwards
 	 */
-	private static Class[] nailMainSignature;
-	
-	static {
-		// initialize the signatures
-		mainSignature = new Class[1];
-		mainSignature[0] = String[].class;
-		
-		nailMainSignature = new Class[1];
-		nailMainSignature[0] = NGContext.class;
-	}
+	private static final int SIGINT = 2;
+	private static final int SIGQUIT = 3;
+	private static final int SIGTERM = 15;
+
+	/**
+	 * The longest time, in milliseconds, that a stack dump requested by
+	 * SIGQUIT waits for the client to grant credit for it
+	 */
+	static final int DUMP_TIMEOUT = 1000;
 	
 	/**
 	 * Creates a new NGSession running for the specified NGSessionPool and
@@ -110,7 +184,6 @@ class NGSession extends Thread {
 	 * @param server The NGServer we're working for
 	 */
 	NGSession(NGSessionPool sessionPool, NGServer server) {
-		super();
 		this.sessionPool = sessionPool;
 		this.server = server;
 	
@@ -125,213 +198,704 @@ class NGSession extends Thread {
 	 */
 	void shutdown() {
 		done = true;
-		synchronized(lock) {
-			nextSocket = null;
-			lock.notifyAll();
-		}
+		Thread t = thread;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	/**
+	 * Starts this NGSession on the specified thread, which must have been
+	 * created to run this NGSession
+	 * @param thread the thread on which to run
+	 * @param threadGroup the thread's group if it is the thread's alone,
+	 * or <code>null</code>
+	 */
+	void start(Thread thread, ThreadGroup threadGroup) {
+		this.thread = thread;
+		this.threadGroup = threadGroup;
+		thread.start();
 	}
 
 	/**
-	 * Instructs this NGSession to process the specified socket, after which
-	 * this NGSession will return itself to the pool from which it came.
-	 * @param socket the socket (connected to a client) to process
+	 * Instructs this NGSession to process the specified connection, after which
+	 * this NGSession will return itself to the pool from which it came.  The
+	 * connection is handed directly to the (parked) session thread.
+	 * @param connection the connection (to a client) to process
 	 */
-	public void run(Socket socket) {
-		synchronized(lock) {
-			nextSocket = socket;
-			lock.notify();
+	public void run(NGConnection connection) {
+		handoffTime = System.nanoTime();
+		nextConnection = connection;
+		Thread t = thread;
+		if (t == null) {
+			// not pooled; gets a thread of its own for this connection
+			sessionPool.startSession(this);
+		} else {
+			LockSupport.unpark(t);
 		}
-		Thread.yield();
 	}
 	
 	/**
-	 * Returns the next socket to process.  This will block the NGSession
-	 * thread until there's a socket to process or the NGSession has been
-	 * shut down.
+	 * Returns the next connection to process.  This will block the NGSession
+	 * thread until there's a connection to process, the NGSession has been
+	 * shut down, or the pool has reaped this NGSession for being idle too long.
 	 * 
-	 * @return the next socket to process, or <code>null</code> if the NGSession
-	 * has been shut down.
-	 */
-	private Socket nextSocket() {
-		Socket result = null;
-		synchronized(lock) {
-			result = nextSocket;
-			while (!done && result == null) {
-				try {
-					lock.wait();
-				} catch (InterruptedException e) {
-					done = true;
-				}
-				result = nextSocket;
+	 * @return the next connection to process, or <code>null</code> if the NGSession
+	 * has been shut down or reaped.
+	 */
+	private NGConnection nextConnection() {
+		long idleTimeout = sessionPool.getIdleTimeoutNanos();
+		long idleSince = System.nanoTime();
+		while (true) {
+			NGConnection result = nextConnection;
+			if (result != null) {
+				nextConnection = null;
+				sessionPool.handoffCompleted(System.nanoTime() - handoffTime);
+				return (result);
 			}
-			nextSocket = null;
+			if (done) return (null);
+
+			long idleTime = System.nanoTime() - idleSince;
+			if (idleTime >= idleTimeout) {
+				if (sessionPool.retire(this)) return (null);
+				// either a core session or about to be given a connection
+				idleSince = System.nanoTime();
+				idleTime = 0;
+			}
+			LockSupport.parkNanos(this, idleTimeout - idleTime);
+
+			// a nail may have left this thread interrupted; that must not
+			// cut short the wait for the next connection
+			Thread.interrupted();
 		}
-		return (result);
 	}
 	
 	/**
-	 * The main NGSession loop.  This gets the next socket to process, runs
-	 * the nail for the socket, and loops until shut down.
+	 * The main NGSession loop.  This gets the next connection to process, runs
+	 * the nail for the connection, and loops until shut down.
 	 */
 	public void run() {
 	
 		updateThreadName(null);
 		
-		Socket socket = nextSocket();
-		while (socket != null) {
+		NGConnection connection = nextConnection();
+		while (connection != null) {
+			NGPreamble preamble = null;
+			NGMultiplexer multiplexer = null;
+			Bulkhead admitted = null;
 			try {
-				DataInputStream sockin = new DataInputStream(socket.getInputStream());
-				DataOutputStream sockout = new DataOutputStream(socket.getOutputStream());
+				ChunkReader sockin = connection.getChunkReader();
+				ChunkWriter sockout = connection.getChunkWriter();
 	
-				// client info - command line arguments and environment
-				List remoteArgs = new java.util.ArrayList();
-				Properties remoteEnv = new Properties();
-				
-				String cwd = null;			// working directory
-				String command = null;		// alias or class name
+				preamble = connection.getPreamble();
+				boolean keepAlive = true;
+				while (keepAlive) {
+					// read everything from the client up to and including the command,
+					// unless the acceptor has already done so
+					if (preamble == null) {
+						preamble = recycledPreamble;
+						preamble.reset();
+						preamble.configure(server);
+						preamble.readFrom(sockin, sockout);
+					}
 				
-				// read everything from the client up to and including the command
-				while (command == null) {
-                    int bytesToRead = sockin.readInt();
-                    byte chunkType = sockin.readByte();
-					
-					byte[] b = new byte[(int) bytesToRead];
-					sockin.readFully(b);
-					String line = new String(b, "US-ASCII");
-	
-					switch(chunkType) {
-									
-						case NGConstants.CHUNKTYPE_ARGUMENT:
-									//	command line argument
-									remoteArgs.add(line);
-									break;
-
-						case NGConstants.CHUNKTYPE_ENVIRONMENT:
-									//	parse environment into property
-									int equalsIndex = line.indexOf('=');
-									if (equalsIndex > 0) {
-										remoteEnv.setProperty(
-												line.substring(0, equalsIndex),
-												line.substring(equalsIndex + 1));
-									}
-									String key = line.substring(0, equalsIndex);
-									break;
-									
-						case NGConstants.CHUNKTYPE_COMMAND:
-									// 	command (alias or classname)
-									command = line;
-									break;
-									
-						case NGConstants.CHUNKTYPE_WORKINGDIRECTORY:
-									//	client working directory
-									cwd = line;
-									break;
-									
-						default:	// freakout?
+					if (preamble.isMultiplex()) {
+						sockout.writeChunk(NGConstants.CHUNKTYPE_MULTIPLEX);
+						sockout.flush();
+						// read on a thread of its own, once this session is
+						// free to run one of its streams
+						multiplexer = new NGMultiplexer(connection, sessionPool);
+						break;
 					}
-				}
+
+					// a command with no room in its bulkhead waits there
+					// rather than in this session, before anything is sent
+					// to the client, so that whichever session takes it up
+					// again starts afresh
+					String command = preamble.getCommand();		// alias or class name
+					Alias alias = server.getAliasManager().getAlias(command);
+					Bulkhead bulkhead = (alias == null) ? null : alias.getBulkhead();
+					admitted = connection.takeAdmission();
+					if (admitted != bulkhead) {
+						// the alias has been moved to another bulkhead meanwhile
+						if (admitted != null) admitted.release();
+						admitted = null;
+						if (bulkhead != null && !bulkhead.admit(connection, preamble, sessionPool)) {
+							// the connection and preamble are the bulkhead's now
+							if (preamble == recycledPreamble) recycledPreamble = new NGPreamble();
+							preamble = null;
+							break;
+						}
+						admitted = bulkhead;
+					}
+
+					keepAlive = preamble.isKeepAlive() && server.getKeepAliveTimeout() > 0;
+					if (keepAlive) {
+						sockout.writeChunk(NGConstants.CHUNKTYPE_KEEPALIVE);
+					}
+					if (preamble.acceptsDeflate() && server.getCompressionThreshold() > 0) {
+						sockout.writeChunk(NGConstants.CHUNKTYPE_COMPRESSION, DEFLATE, 0, DEFLATE.length);
+						sockout.setCompressionThreshold(server.getCompressionThreshold());
+					}
+					boolean flowControlled = (preamble.getOutputWindow() > 0 && server.getInputWindow() > 0);
+					if (flowControlled) {
+						byte[] window = server.getInputWindowPayload();
+						sockout.writeChunk(NGConstants.CHUNKTYPE_CREDIT, window, 0, window.length);
+					}
+					// heartbeats need flow control, so that the monitor can
+					// read them without limit to the stdin it must hold
+					boolean watched = (flowControlled && preamble.getHeartbeatInterval() > 0 && server.getHeartbeatTimeout() > 0);
+					if (watched) {
+						byte[] timeout = server.getHeartbeatTimeoutPayload();
+						sockout.writeChunk(NGConstants.CHUNKTYPE_HEARTBEAT, timeout, 0, timeout.length);
+					}
+					// signals likewise, as the monitor reads them while the
+					// nail is not reading stdin
+					boolean signalled = (watched && preamble.offersSignals());
+					if (signalled) {
+						sockout.writeChunk(NGConstants.CHUNKTYPE_SIGNAL);
+					}
+
+					// client info - command line arguments and environment
+					Properties remoteEnv = preamble.getEnv();
+					String cwd = preamble.getWorkingDirectory();	// working directory
 	
-				updateThreadName(socket.getInetAddress().getHostAddress() + ": " + command);
+					updateThreadName(connection, command);
 				
-				// can't create NGInputStream until we've received a command, because at
-				// that point the stream from the client will only include stdin and stdin-eof
-				// chunks
-				InputStream in = new NGInputStream(sockin, sockout);
-				PrintStream out = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDOUT));
-				PrintStream err = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDERR));
-				PrintStream exit = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_EXIT));
+					// can't create NGInputStream until we've received a command, because at
+					// that point the stream from the client will only include stdin and stdin-eof
+					// chunks
+					FlushPolicy flushPolicy = (alias == null) ? null : alias.getFlushPolicy();
+					if (flushPolicy == null) flushPolicy = server.getFlushPolicy();
+					prepareStreams(sockin, sockout,
+									FlushPolicy.forClient(flushPolicy, remoteEnv, 1),
+									FlushPolicy.forClient(flushPolicy, remoteEnv, 2));
+					if (flowControlled) {
+						if (flowControl == null) {
+							flowControl = new FlowControl();
+							flowControl.setSession(this);
+						}
+						flowControl.reset(stdin, Thread.currentThread().getName(), command,
+											preamble.getOutputWindow(), server.getInputWindow());
+						stdin.setFlowControl(flowControl);
+						sockout.setFlowControl(flowControl);
+						server.flowControlStarted(flowControl);
+					}
+					if (watched) {
+						synchronized(cancelLock) {
+							watchedGeneration = flowControl.getGeneration();
+							signalsForwarded = signalled;
+						}
+						server.getClientMonitor().watch(flowControl, connection, this, preamble.getHeartbeatInterval());
+					}
+					if ((alias != null && alias.isEagerStdin()) || wantsEagerStdin(remoteEnv)) {
+						// before the nail is even found, so that its input is
+						// on the way while it starts up
+						stdin.startInput();
+					}
+					InputStream in = stdin;
+					PrintStream out = this.out;
+					PrintStream err = this.err;
+					PrintStream exit = this.exit;
 	
-				// ThreadLocal streams for System.in/out/err redirection
-				((ThreadLocalInputStream) System.in).init(in);
-				((ThreadLocalPrintStream) System.out).init(out);
-				((ThreadLocalPrintStream) System.err).init(err);
+					// ThreadLocal streams for System.in/out/err redirection
+					((ThreadLocalInputStream) System.in).init(in);
+					((ThreadLocalPrintStream) System.out).init(out);
+					((ThreadLocalPrintStream) System.err).init(err);
 				
-				try {
-					Alias alias = server.getAliasManager().getAlias(command);
-					Class cmdclass = null;
-					if (alias != null) {
-						cmdclass = alias.getAliasedClass();
-					} else if (server.allowsNailsByClassName()) {
-						cmdclass = Class.forName(command);
-					} else {
-						cmdclass = server.getDefaultNailClass();
-					}
-
-					Object[] methodArgs = new Object[1];
-					Method mainMethod = null; // will be either main(String[]) or nailMain(NGContext)
-					String[] cmdlineArgs = (String[]) remoteArgs.toArray(new String[remoteArgs.size()]);
-					
 					try {
-						mainMethod = cmdclass.getMethod("nailMain", nailMainSignature);
-						NGContext context = new NGContext();
-						context.setArgs(cmdlineArgs);
-						context.in = in;
-						context.out = out;
-						context.err = err;
-						context.setCommand(command);
-						context.setExitStream(exit);
-						context.setNGServer(server);
-						context.setEnv(remoteEnv);
-						context.setInetAddress(socket.getInetAddress());
-						context.setPort(socket.getPort());
-						context.setWorkingDirectory(cwd);
-						methodArgs[0] = context;
-					} catch (NoSuchMethodException toDiscard) {
-						// that's ok - we'll just try main(String[]) next.
-					}
+						Class cmdclass = null;
+						if (alias != null) {
+							cmdclass = alias.getAliasedClass();
+						} else if (server.allowsNailsByClassName()) {
+							cmdclass = server.getClassCache().forName(command);
+						} else {
+							cmdclass = server.getDefaultNailClass();
+						}
+
+						// either nailMain(NGContext) or main(String[])
+						NailEntryPoint entryPoint = NailEntryPoint.forClass(cmdclass);
+						Object nailArg;
+						String[] cmdlineArgs = preamble.getArgs();
+						LongArgument[] longArgs = preamble.getLongArgs();
 					
-					if (mainMethod == null) {
-						mainMethod = cmdclass.getMethod("main", mainSignature);
-						methodArgs[0] = cmdlineArgs;
-					}
+						if (entryPoint.takesContext()) {
+							if (context == null) context = new NGContext();
+							context.setArgs(cmdlineArgs);
+							context.setLongArgs(longArgs);
+							context.in = in;
+							context.out = out;
+							context.err = err;
+							context.setCommand(command);
+							context.setExitStream(exit);
+							context.setNGServer(server);
+							context.setChunkWriter(sockout);
+							context.setEnv(remoteEnv);
+							context.setInetAddress(connection.getInetAddress());
+							context.setPort(connection.getPort());
+							context.setWorkingDirectory(cwd);
+							nailArg = context;
+						} else {
+							if (longArgs != null) LongArgument.decodeInto(cmdlineArgs, longArgs);
+							nailArg = cmdlineArgs;
+						}
 					
-					if (mainMethod != null) {
-						server.nailStarted(cmdclass);
-                        NGSecurityManager.setExit(exit);
-
-						try {
-							mainMethod.invoke(null, methodArgs);
-						} catch (InvocationTargetException ite) {
-							throw(ite.getCause());
-						} catch (Throwable t) {
-							throw(t);
-						} finally {
-							server.nailFinished(cmdclass);
+						NailInvocation nail = new NailInvocation(cmdclass, entryPoint, nailArg,
+																connection.getShard(), in, out, err, exit);
+						if (admitted == null) {
+							nail.run();
+						} else {
+							admitted.execute(nail);
 						}
-						exit.println(0);
+						if (nail.thrown != null) throw (nail.thrown);
+						exit.println(signalExitStatus());
+
+					} catch (ExitException exitEx) {
+	                    exit.println(exitEx.getStatus());
+	                    server.out.println(Thread.currentThread().getName() + " exited with status " + exitEx.getStatus());
+					} catch (Throwable t) {
+						// a nail interrupted by a forwarded signal exits as
+						// if killed by it
+						int status = signalExitStatus();
+						if (status == 0 || !(t instanceof InterruptedException || t instanceof InterruptedIOException)) {
+							t.printStackTrace();
+						}
+						exit.println((status == 0) ? NGConstants.EXIT_EXCEPTION : status); // remote exception constant
 					}
 
-				} catch (ExitException exitEx) {
-                    exit.println(exitEx.getStatus());
-                    server.out.println(Thread.currentThread().getName() + " exited with status " + exitEx.getStatus());
-				} catch (Throwable t) {
-					t.printStackTrace();
-					exit.println(NGConstants.EXIT_EXCEPTION); // remote exception constant
-				}
+					if (admitted != null) {
+						// lets in the next command waiting for the bulkhead
+						admitted.release();
+						admitted = null;
+					}
+	                sockout.flush();
+
+					// the next command on a kept-alive connection must not see
+					// this one's streams
+					sockout.setCompressionThreshold(0);
+					if (watched) unwatch();
+					if (flowControlled) {
+						sockout.setFlowControl(null);
+						server.flowControlFinished(flowControl);
+					}
+					boolean unreadInput = stdin.mayHaveUnreadInput();
+					resetStreams();
+					updateThreadName(null);
+					preamble.releaseLongArgs();
+					preamble = null;
 
-                sockout.flush();
-				socket.close();
+					if (keepAlive && !server.isShuttingDown()) {
+						if (connection.resume()) {
+							// the acceptor will find a session for the next command
+							keepAlive = false;
+						} else if (!sessionPool.awaitInput(connection, server.getKeepAliveTimeout())) {
+							keepAlive = false;
+							connection.close();
+						}
+					} else if (unreadInput) {
+						keepAlive = false;
+						connection.closeGracefully();
+					} else {
+						keepAlive = false;
+						connection.close();
+					}
+				}
 	
 			} catch (Throwable t) {
-				t.printStackTrace();
+				// the client of a cancelled command is known to have gone
+				if (!unwatch()) t.printStackTrace();
+				try {
+					connection.close();
+				} catch (Throwable toDiscard) {}
+				if (flowControl != null) server.flowControlFinished(flowControl);
+				if (preamble != null) preamble.releaseLongArgs();
+				if (admitted != null) admitted.release();
 			}
 
-			((ThreadLocalInputStream) System.in).init(null);
-			((ThreadLocalPrintStream) System.out).init(null);
-			((ThreadLocalPrintStream) System.err).init(null);
-			
+			resetStreams();
 			updateThreadName(null);
-			sessionPool.give(this);
-			socket = nextSocket();
+			// a connection may already be waiting for this session
+			connection = sessionPool.give(this);
+			if (multiplexer != null) multiplexer.start();
+			if (connection == null) connection = nextConnection();
 		}
 
 //		server.out.println("Shutdown NGSession " + instanceNumber);
 	}
 	
+	/**
+	 * Cancels the running command, if it is still the specified one,
+	 * because its client has gone: the nail's thread is interrupted, as
+	 * are any threads it started on this session's thread (if this session
+	 * has a thread group of its own), and output waiting for credit gives
+	 * up.  Called by the ClientMonitor.
+	 * @param flowControl the command's credit
+	 * @param generation the FlowControl generation identifying the command
+	 * @param goneSince when, by <code>System.nanoTime()</code>, the client
+	 * was last known to be there
+	 * @param reason what the client did, for the server's log
+	 */
+	void cancel(FlowControl flowControl, int generation, long goneSince, String reason) {
+		synchronized(cancelLock) {
+			if (flowControl != this.flowControl || generation != watchedGeneration || clientGoneAt != 0) return;
+			clientGoneAt = goneSince;
+			server.out.println(thread.getName() + ": client " + reason + ", cancelling");
+			flowControl.fail(new IOException("Client has gone"));
+			// while holding the lock, so that the interrupt cannot outlive
+			// the nail
+			interrupt(nailThreads());
+		}
+	}
+
+	/**
+	 * Returns the running nail's thread, and any threads it has started on
+	 * this session's thread group (if it has one of its own).  Called
+	 * holding <code>cancelLock</code>.
+	 * @return the nail's threads, or none if no nail is running
+	 */
+	private Thread[] nailThreads() {
+		if (nailThread == null) return (new Thread[0]);
+		if (threadsBefore == null) return (new Thread[] {nailThread});
+		Thread[] now = new Thread[threadGroup.activeCount() + 16];
+		int count = threadGroup.enumerate(now);
+		Thread[] found = new Thread[count + 1];
+		found[0] = nailThread;
+		int n = 1;
+		for (int i = 0; i < count; ++i) {
+			if (now[i] != nailThread && !contains(threadsBefore, now[i])) found[n++] = now[i];
+		}
+		Thread[] result = new Thread[n];
+		System.arraycopy(found, 0, result, 0, n);
+		return (result);
+	}
+
+	private static void interrupt(Thread[] threads) {
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i].interrupt();
+		}
+	}
+
+	/**
+	 * Passes on a signal forwarded by the client of the running command, if
+	 * it is still the specified one, to be delivered in turn on a thread of
+	 * the ClientMonitor's (but not the one that checks the clients).
+	 * Called by whichever thread read the signal from the client.
+	 * @param flowControl the command's credit
+	 * @param generation the FlowControl generation identifying the command
+	 * @param signal the signal's name
+	 */
+	void signalled(FlowControl flowControl, int generation, String signal) {
+		synchronized(cancelLock) {
+			if (flowControl != this.flowControl || generation != watchedGeneration || !signalsForwarded) return;
+			pendingSignals.add(signal);
+			if (delivering) return;
+			delivering = true;
+		}
+		boolean started = server.getClientMonitor().execute(new Runnable() {
+			public void run() {
+				deliverPending();
+			}
+		});
+		if (!started) {
+			synchronized(cancelLock) {
+				pendingSignals.clear();
+				delivering = false;
+			}
+		}
+	}
+
+	/**
+	 * Delivers the pending signals one at a time, until there are none
+	 */
+	private void deliverPending() {
+		while (true) {
+			String signal;
+			int generation;
+			synchronized(cancelLock) {
+				if (pendingSignals.isEmpty()) {
+					delivering = false;
+					return;
+				}
+				signal = (String) pendingSignals.removeFirst();
+				// pending signals are discarded when the command ends
+				generation = watchedGeneration;
+			}
+			try {
+				deliver(generation, signal);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Delivers a forwarded signal to the nail's listeners, applying the
+	 * default policy if there are none or none dealt with it
+	 */
+	private void deliver(int generation, String signal) {
+		NGContext nailContext = null;
+		NGSignalListener[] listeners = null;
+		synchronized(cancelLock) {
+			if (generation != watchedGeneration || clientGoneAt != 0) return;
+			server.out.println(thread.getName() + ": client forwarded SIG" + signal);
+			if (runningNail != null && runningNail.nailArg instanceof NGContext) {
+				nailContext = (NGContext) runningNail.nailArg;
+				listeners = nailContext.getSignalListeners();
+			}
+		}
+		boolean handled = false;
+		for (int i = 0; listeners != null && i < listeners.length; ++i) {
+			try {
+				if (listeners[i].signalReceived(nailContext, signal)) handled = true;
+			} catch (Throwable t) {
+				// a broken listener leaves the signal to the default policy
+				t.printStackTrace();
+			}
+		}
+		if (!handled) applyDefaultPolicy(generation, signal);
+	}
+
+	/**
+	 * Applies the default policy for a forwarded signal: "INT" and "TERM"
+	 * interrupt the nail's threads (or stop the nail from starting), and
+	 * "QUIT" prints their stacks to the client's stderr.  Other signals
+	 * are ignored.
+	 */
+	private void applyDefaultPolicy(int generation, String signal) {
+		int number = signalNumber(signal);
+		Thread[] threads;
+		NGOutputStream dumpTo;
+		synchronized(cancelLock) {
+			if (number == 0 || generation != watchedGeneration || clientGoneAt != 0) return;
+			if (number != SIGQUIT) {
+				if (interruptedBy == 0) interruptedBy = number;
+				interrupt(nailThreads());
+				return;
+			}
+			if (runningNail == null) return;
+			threads = nailThreads();
+			dumpTo = stderr;
+		}
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		PrintStream dump = new PrintStream(bout);
+		dump.println("Threads of " + thread.getName() + ":");
+		for (int i = 0; i < threads.length; ++i) {
+			StackTraceElement[] stack = threads[i].getStackTrace();
+			dump.println();
+			dump.println("\"" + threads[i].getName() + "\" " + threads[i].getState());
+			for (int j = 0; j < stack.length; ++j) {
+				dump.println("\tat " + stack[j]);
+			}
+		}
+		dump.flush();
+		// outside the lock, and without waiting long for credit, so that a
+		// client that has stopped reading holds up only this dump
+		byte[] b = bout.toByteArray();
+		try {
+			dumpTo.tryWrite(b, 0, b.length, DUMP_TIMEOUT);
+		} catch (IOException e) {
+			// the nail's next write will fail in the same way
+		}
+	}
+
+	private static int signalNumber(String signal) {
+		if (signal.equals("INT")) return (SIGINT);
+		if (signal.equals("QUIT")) return (SIGQUIT);
+		if (signal.equals("TERM")) return (SIGTERM);
+		return (0);
+	}
+
+	/**
+	 * Returns the exit status for a nail interrupted by a forwarded signal:
+	 * 128 plus the signal's number, as a shell reports a process killed by
+	 * it
+	 * @return the exit status, or zero if no signal interrupted the nail
+	 */
+	private int signalExitStatus() {
+		synchronized(cancelLock) {
+			return ((interruptedBy == 0) ? 0 : 128 + interruptedBy);
+		}
+	}
+
+	private static boolean contains(Thread[] threads, Thread t) {
+		for (int i = 0; i < threads.length && threads[i] != null; ++i) {
+			if (threads[i] == t) return (true);
+		}
+		return (false);
+	}
+
+	/**
+	 * Stops the ClientMonitor watching the current command, waiting for
+	 * any check it has begun to finish
+	 * @return true if the command was cancelled
+	 */
+	private boolean unwatch() {
+		long goneAt;
+		synchronized(cancelLock) {
+			if (watchedGeneration == 0) return (false);
+			goneAt = clientGoneAt;
+			watchedGeneration = 0;
+			clientGoneAt = 0;
+			threadsBefore = null;
+			signalsForwarded = false;
+			interruptedBy = 0;
+			pendingSignals.clear();
+		}
+		server.getClientMonitor().unwatch(flowControl);
+		flowControl.close();
+		return (goneAt != 0);
+	}
+
+	/**
+	 * Returns true if the client asked for eager stdin
+	 */
+	private static boolean wantsEagerStdin(Properties remoteEnv) {
+		String eager = remoteEnv.getProperty(NGConstants.ENV_EAGER_STDIN);
+		return (eager != null && !eager.trim().equals("0"));
+	}
+	
+	/**
+	 * Readies the streams for the next command, creating them the first
+	 * time and again if a nail has closed or broken them.
+	 */
+	private void prepareStreams(ChunkReader sockin, ChunkWriter sockout,
+								FlushPolicy outPolicy, FlushPolicy errPolicy) {
+		if (stdout == null || stdout.isClosed() || stderr.isClosed() || stdexit.isClosed()
+				|| out.checkError() || err.checkError() || exit.checkError()) {
+			stdout = new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDOUT, outPolicy);
+			stderr = new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDERR, errPolicy);
+			stdexit = new NGOutputStream(sockout, NGConstants.CHUNKTYPE_EXIT);
+			NGOutputStream[] outputStreams = {stdout, stderr};
+			stdexit.setPrecedingStreams(outputStreams);
+			out = new PrintStream(stdout);
+			err = new PrintStream(stderr);
+			exit = new PrintStream(stdexit);
+			stdin = new NGInputStream(sockin, sockout);
+			stdin.setOutputStreams(outputStreams);
+		} else {
+			stdout.reset(sockout, outPolicy);
+			stderr.reset(sockout, errPolicy);
+			stdexit.reset(sockout, null);
+			stdin.reset(sockin, sockout);
+		}
+	}
+	
+	/**
+	 * Runs a nail's main method and records how it ended.  This usually
+	 * happens on the session thread, but a bulkhead with threads of its own
+	 * runs it on one of those, in which case that thread is given the
+	 * connection's streams for the duration.
+	 */
+	private class NailInvocation implements Runnable {
+		private Class cmdclass;
+		private NailEntryPoint entryPoint;
+		private Object nailArg;
+		private int shard;
+		private InputStream in;
+		private PrintStream out;
+		private PrintStream err;
+		private PrintStream exit;
+
+		/**
+		 * whatever the nail threw, if anything
+		 */
+		Throwable thrown = null;
+
+		NailInvocation(Class cmdclass, NailEntryPoint entryPoint, Object nailArg, int shard,
+						InputStream in, PrintStream out, PrintStream err, PrintStream exit) {
+			this.cmdclass = cmdclass;
+			this.entryPoint = entryPoint;
+			this.nailArg = nailArg;
+			this.shard = shard;
+			this.in = in;
+			this.out = out;
+			this.err = err;
+			this.exit = exit;
+		}
+
+		public void run() {
+			boolean borrowedThread = (Thread.currentThread() != thread);
+			if (borrowedThread) {
+				((ThreadLocalInputStream) System.in).init(in);
+				((ThreadLocalPrintStream) System.out).init(out);
+				((ThreadLocalPrintStream) System.err).init(err);
+			}
+			server.nailStarted(cmdclass, shard);
+			NGSecurityManager.setExit(exit);
+			boolean cancelled;
+			synchronized(cancelLock) {
+				cancelled = (clientGoneAt != 0 || interruptedBy != 0);
+				if (watchedGeneration != 0) {
+					nailThread = Thread.currentThread();
+					runningNail = this;
+					if (threadGroup != null && !borrowedThread) {
+						threadsBefore = new Thread[threadGroup.activeCount() + 16];
+						threadGroup.enumerate(threadsBefore);
+					}
+				}
+			}
+
+			try {
+				// no sense in starting a nail whose client has already gone,
+				// or sent a signal to stop it
+				if (!cancelled) entryPoint.invoke(nailArg);
+			} catch (Throwable t) {
+				thrown = t;
+			} finally {
+				long goneAt;
+				boolean interrupted;
+				synchronized(cancelLock) {
+					nailThread = null;
+					runningNail = null;
+					goneAt = clientGoneAt;
+					interrupted = (goneAt != 0 || interruptedBy != 0);
+				}
+				if (goneAt != 0) server.nailCancelled(cmdclass, shard, System.nanoTime() - goneAt);
+				// the interrupt was for the nail alone
+				if (interrupted) Thread.interrupted();
+				if (nailArg instanceof NGContext) ((NGContext) nailArg).clearSignalListeners();
+				server.nailFinished(cmdclass, shard);
+				if (borrowedThread) {
+					NGSecurityManager.setExit(null);
+					resetStreams();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Detaches System.in/out/err from the current connection.  Once the
+	 * server has shut down and restored the system streams there is
+	 * nothing to detach.
+	 */
+	private void resetStreams() {
+		if (System.in instanceof ThreadLocalInputStream) ((ThreadLocalInputStream) System.in).init(null);
+		if (System.out instanceof ThreadLocalPrintStream) ((ThreadLocalPrintStream) System.out).init(null);
+		if (System.err instanceof ThreadLocalPrintStream) ((ThreadLocalPrintStream) System.err).init(null);
+	}
+	
 	/**
 	 * Updates the current thread name (useful for debugging).
 	 */
 	private void updateThreadName(String detail) {
-		setName("NGSession " + instanceNumber + ": " + ((detail == null) ? "(idle)" : detail));
+		if (detail == null) {
+			if (idleThreadName == null) idleThreadName = "NGSession " + instanceNumber + ": (idle)";
+			Thread.currentThread().setName(idleThreadName);
+		} else {
+			Thread.currentThread().setName("NGSession " + instanceNumber + ": " + detail);
+		}
 	}
+
+	/**
+	 * Updates the current thread name to show the command being run, reusing
+	 * the name from the previous command if it is the same.
+	 */
+	private void updateThreadName(NGConnection connection, String command) {
+		InetAddress address = connection.getInetAddress();
+		if (busyThreadName == null || !command.equals(busyThreadCommand) || !address.equals(busyThreadAddress)) {
+			busyThreadCommand = command;
+			busyThreadAddress = address;
+			busyThreadName = "NGSession " + instanceNumber + ": " + address.getHostAddress() + ": " + command;
+		}
+		Thread.currentThread().setName(busyThreadName);
+	}
+
 }
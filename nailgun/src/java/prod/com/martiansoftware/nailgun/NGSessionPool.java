@@ -18,106 +18,468 @@
 
 package com.martiansoftware.nailgun;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
 /**
- * Provides NGSession pooling functionality.  One parameter, "maxIdle",
- * governs its behavior by setting the maximum number of idle NGSession
- * threads it will allow.  It creates a pool of size maxIdle - 1, because
- * one NGSession is kept "on deck" by the NGServer in order to eke out
- * a little extra responsiveness.
- * 
+ * Provides NGSession pooling functionality.  Three parameters govern its
+ * behavior:
+ *
+ * <ul>
+ *   <li><b>coreSize</b> - the number of NGSession threads started up front
+ *       and kept alive even when idle.</li>
+ *   <li><b>maxSize</b> - the maximum number of NGSession threads in
+ *       existence at once.  When all of them are busy, <code>take()</code>
+ *       waits for one to be returned.</li>
+ *   <li><b>idleTimeout</b> - the time after which an idle NGSession beyond
+ *       the core size lets its thread exit.</li>
+ * </ul>
+ *
+ * <p>Idle sessions are reused most-recently-returned first, so that the
+ * busiest threads stay warm and the rest age out.</p>
+ *
+ * <p>Connections are given to the pool with <code>dispatch()</code>.  If it
+ * has an NGAdmissionQueue, connections arriving while every session is busy
+ * wait there, and are turned away with <code>NGConstants.EXIT_OVERLOADED</code>
+ * if the queue is full or they have waited too long; a session that finishes
+ * a connection takes the next waiting one directly.  Without one,
+ * <code>dispatch()</code> waits for a session to become free.  Connections
+ * that have waited in a Bulkhead come back with
+ * <code>dispatchAdmitted()</code>, and are served first.</p>
+ *
+ * <p>Alternatively, the pool may be given a <code>ThreadFactory</code> (such
+ * as one producing virtual threads), in which case nothing is pooled: every
+ * session gets a new thread from the factory when it is handed its
+ * connection, and that thread ends with the connection.  Only maxSize
+ * applies in this mode.</p>
+ *
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 class NGSessionPool {
 
 	/**
-	 * number of sessions to store in the pool
+	 * number of sessions to keep even when idle
+	 */
+	int coreSize = 0;
+
+	/**
+	 * maximum number of sessions in existence at once
+	 */
+	int maxSize = Integer.MAX_VALUE;
+
+	/**
+	 * time, in nanoseconds, after which a non-core idle session is reaped
+	 */
+	long idleTimeoutNanos = 0;
+
+	/**
+	 * if non-null, sessions are not pooled, and each runs on a new thread
+	 * from this factory
+	 */
+	ThreadFactory threadFactory = null;
+
+	/**
+	 * connections waiting for a session, or <code>null</code> if
+	 * <code>dispatch()</code> should wait for a session instead
 	 */
-	int poolSize = 0;
+	private NGAdmissionQueue pending = null;
 
 	/**
-	 * the pool itself
+	 * connections admitted by a bulkhead that found every session busy,
+	 * served before those in the admission queue
 	 */
-	NGSession[] pool = null;
-	
+	private LinkedList admitted = new LinkedList();
+
 	/**
-	 * The number of sessions currently in the pool
+	 * the idle sessions, most recently returned last
 	 */
-	int poolEntries = 0;
+	LinkedList idle = new LinkedList();
+
+	/**
+	 * The number of sessions currently in existence, idle or not
+	 */
+	int sessionCount = 0;
 
 	/**
 	 * reference to server we're working for
 	 */
 	NGServer server = null;
-	
+
 	/**
 	 * have we been shut down?
 	 */
 	boolean done = false;
-	
+
+	/**
+	 * kept-alive connections whose sessions are waiting for the client's
+	 * next command, closed if the pool is shut down meanwhile
+	 */
+	private java.util.Set keptAlive = new java.util.HashSet();
+
 	/**
 	 * synchronization object
 	 */
 	private Object lock = new Object();
-	
+
+	/**
+	 * statistics, guarded by <code>lock</code>
+	 */
+	private long threadsCreated = 0;
+	private long handoffCount = 0;
+	private long handoffNanos = 0;
+	private long blockedTakeCount = 0;
+	private long blockedTakeNanos = 0;
+
+	/**
+	 * Creates a new NGSessionPool operating for the specified server
+	 * @param server the server to work for
+	 * @param coreSize the number of sessions to keep even when idle
+	 * @param maxSize the maximum number of sessions in existence at once,
+	 * or zero for no limit
+	 * @param idleTimeout the time, in milliseconds, after which an idle
+	 * session beyond the core size is reaped
+	 * @param threadFactory if non-null, sessions are not pooled and each is
+	 * run on a new thread from this factory
+	 */
+	NGSessionPool(NGServer server, int coreSize, int maxSize, int idleTimeout, ThreadFactory threadFactory) {
+		this(server, coreSize, maxSize, idleTimeout, threadFactory, null);
+	}
+
 	/**
-	 * Creates a new NGSessionRunner operating for the specified server, with
-	 * the specified number of threads
+	 * Creates a new NGSessionPool operating for the specified server, with
+	 * admission control
 	 * @param server the server to work for
-	 * @param poolsize the maximum number of idle threads to allow
+	 * @param coreSize the number of sessions to keep even when idle
+	 * @param maxSize the maximum number of sessions in existence at once,
+	 * or zero for no limit
+	 * @param idleTimeout the time, in milliseconds, after which an idle
+	 * session beyond the core size is reaped
+	 * @param threadFactory if non-null, sessions are not pooled and each is
+	 * run on a new thread from this factory
+	 * @param pending the queue in which connections wait while every
+	 * session is busy, or <code>null</code> to wait for a session instead
 	 */
-	NGSessionPool(NGServer server, int poolsize) {
+	NGSessionPool(NGServer server, int coreSize, int maxSize, int idleTimeout, ThreadFactory threadFactory, NGAdmissionQueue pending) {
 		this.server = server;
-		this.poolSize = Math.min(0, poolsize);
-	
-		pool = new NGSession[poolSize];
-		poolEntries = 0;
+		this.pending = pending;
+		this.coreSize = (threadFactory == null) ? Math.max(0, coreSize) : 0;
+		this.maxSize = (maxSize <= 0) ? Integer.MAX_VALUE : Math.max(maxSize, 1);
+		this.idleTimeoutNanos = Math.max(1, idleTimeout) * 1000000L;
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Returns a <code>ThreadFactory</code> that creates virtual threads, or
+	 * <code>null</code> if this JVM does not support them.  Virtual threads
+	 * were added in Java 21, so the factory is obtained reflectively.
+	 * @return a factory for virtual threads, or <code>null</code>
+	 */
+	static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual", new Class[0]).invoke(null, new Object[0]);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory", new Class[0]);
+			return ((ThreadFactory) factory.invoke(builder, new Object[0]));
+		} catch (Exception e) {
+			return (null);
+		}
+	}
+
+	/**
+	 * Starts the core sessions, so that the first connections don't pay for
+	 * thread creation
+	 */
+	void prestart() {
+		synchronized(lock) {
+			while (!done && sessionCount < Math.min(coreSize, maxSize)) {
+				idle.addLast(newSession());
+			}
+		}
+	}
+
+	/**
+	 * Creates and starts a new session.  Must be called while holding
+	 * <code>lock</code>.
+	 */
+	private NGSession newSession() {
+		NGSession result = new NGSession(this, server);
+		++sessionCount;
+		if (threadFactory == null) {
+			// a group of its own, so that the threads its nails start can
+			// be told apart if a command is cancelled
+			ThreadGroup group = new ThreadGroup("NGSession");
+			result.start(new Thread(group, result), group);
+			++threadsCreated;
+		}
+		return (result);
+	}
+
+	/**
+	 * Starts an unpooled session on a new thread from the thread factory.
+	 * Called by the session when it is handed its connection.
+	 * @param session the session to start
+	 */
+	void startSession(NGSession session) {
+		session.start(threadFactory.newThread(session), null);
+		synchronized(lock) {
+			++threadsCreated;
+		}
+	}
+
+	/**
+	 * Hands a connection to a session.  If every session is busy, the
+	 * connection waits in the admission queue, or is rejected if the queue
+	 * will not take it; without an admission queue, this waits for a
+	 * session to become free.
+	 * @param connection the connection to process
+	 */
+	void dispatch(NGConnection connection) {
+		if (pending == null) {
+			take().run(connection);
+		} else {
+			dispatchNow(connection);
+		}
+	}
+
+	/**
+	 * Hands a connection to a session without waiting for one.  If every
+	 * session is busy, the connection waits in the admission queue, or is
+	 * rejected if the queue will not take it or there is none.  For
+	 * callers that must not wait, such as the reader of a multiplexed
+	 * connection, whose other streams may hold the sessions it would wait
+	 * for.
+	 * @param connection the connection to process
+	 */
+	void dispatchNow(NGConnection connection) {
+		NGSession session = null;
+		synchronized(lock) {
+			if (!idle.isEmpty()) {
+				session = (NGSession) idle.removeLast();
+			} else if (sessionCount < maxSize && !done) {
+				session = newSession();
+			} else if (done || pending == null || !pending.offer(connection, System.nanoTime())) {
+				session = null;
+			} else {
+				return;
+			}
+		}
+		if (session != null) {
+			session.run(connection);
+		} else {
+			connection.reject(NGConstants.EXIT_OVERLOADED);
+		}
+	}
+
+	/**
+	 * Hands a connection whose command a bulkhead has admitted to a
+	 * session, without waiting for one.  If every session is busy, the
+	 * connection goes to the next session to be returned, ahead of the
+	 * admission queue; it has already waited its turn in the bulkhead, and
+	 * is not subject to admission control again.  Called by whichever
+	 * thread gave up the bulkhead's place, which may be a session.
+	 * @param connection the connection to process
+	 */
+	void dispatchAdmitted(NGConnection connection) {
+		NGSession session = null;
+		synchronized(lock) {
+			if (done) {
+				session = null;
+			} else if (!idle.isEmpty()) {
+				session = (NGSession) idle.removeLast();
+			} else if (sessionCount < maxSize) {
+				session = newSession();
+			} else {
+				admitted.addLast(connection);
+				return;
+			}
+		}
+		if (session != null) {
+			session.run(connection);
+		} else {
+			connection.reject(NGConstants.EXIT_OVERLOADED);
+		}
 	}
 
 	/**
-	 * Returns an NGSession from the pool, or creates one if necessary
+	 * Rejects connections that the admission queue has shed
+	 */
+	private static void rejectAll(List connections) {
+		for (Iterator i = connections.iterator(); i.hasNext();) {
+			((NGConnection) i.next()).reject(NGConstants.EXIT_OVERLOADED);
+		}
+	}
+
+	/**
+	 * Returns an NGSession from the pool, or creates one if necessary.  If
+	 * the pool is at its maximum size, waits for a session to be returned.
 	 * @return an NGSession ready to work
 	 */
 	NGSession take() {
-		NGSession result;
 		synchronized(lock) {
-			if (poolEntries == 0) {
-				result = new NGSession(this, server);
-				result.start();
-			} else {
-				--poolEntries;
-				result = pool[poolEntries];
+			if (idle.isEmpty() && sessionCount >= maxSize && !done) {
+				long start = System.nanoTime();
+				try {
+					while (idle.isEmpty() && sessionCount >= maxSize && !done) {
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					// exceed the maximum rather than lose the connection
+					Thread.currentThread().interrupt();
+				}
+				++blockedTakeCount;
+				blockedTakeNanos += System.nanoTime() - start;
 			}
+			return (idle.isEmpty() ? newSession() : (NGSession) idle.removeLast());
 		}
-		return (result);
 	}
-	
+
 	/**
-	 * Returns an NGSession to the pool.  The pool may choose to shutdown
-	 * the thread if the pool is full
+	 * Returns an NGSession to the pool, unless a connection is waiting for
+	 * it in the admission queue.  If the pool has been shut down, or does
+	 * not pool sessions, the session is shut down instead.
 	 * @param session the NGSession to return to the pool
+	 * @return the next connection for the session to process, or
+	 * <code>null</code> if it has been returned to the pool or shut down
+	 */
+	NGConnection give(NGSession session) {
+		boolean shutdown = false;
+		NGConnection next = null;
+		List shed = new java.util.ArrayList(0);
+		synchronized(lock) {
+			if (!admitted.isEmpty() && !done) {
+				next = (NGConnection) admitted.removeFirst();
+			} else if (pending != null && !done) {
+				next = pending.poll(System.nanoTime(), shed);
+			}
+			if (next != null) {
+				// stays active
+			} else if (done || threadFactory != null) {
+				shutdown = true;
+				--sessionCount;
+				lock.notifyAll();
+			} else {
+				idle.addLast(session);
+				lock.notifyAll();
+			}
+		}
+		rejectAll(shed);
+		if (shutdown) session.shutdown();
+		return (next);
+	}
+
+	/**
+	 * Waits for the client of a kept-alive connection to send its next
+	 * command, unless the pool is shut down first: shutting down closes
+	 * the connection and ends the wait.  Called by the session holding the
+	 * connection.
+	 * @param connection the kept-alive connection
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return true if the next command has begun to arrive, false if the
+	 * timeout elapsed, the client closed the connection or the pool has
+	 * been shut down
+	 * @throws IOException if thrown by the underlying socket
+	 */
+	boolean awaitInput(NGConnection connection, int timeout) throws IOException {
+		synchronized(lock) {
+			if (done) return (false);
+			keptAlive.add(connection);
+		}
+		boolean arrived = false;
+		try {
+			arrived = connection.awaitInput(timeout);
+		} finally {
+			synchronized(lock) {
+				keptAlive.remove(connection);
+				arrived = arrived && !done;
+			}
+		}
+		return (arrived);
+	}
+
+	/**
+	 * Called by an idle session whose idle timeout has elapsed.  The
+	 * session is removed from the pool if there are more than
+	 * <code>coreSize</code> sessions and it has not just been taken.
+	 * @param session the idle session
+	 * @return true if the session has been removed and should exit
 	 */
-	void give(NGSession session) {
-            boolean shutdown = false;
-            synchronized(lock) {
-		if (done || poolEntries == poolSize) {
-                    shutdown = true;
-                } else {
-                    pool[poolEntries] = session;
-                    ++poolEntries;
+	boolean retire(NGSession session) {
+		synchronized(lock) {
+			if (sessionCount > coreSize && idle.remove(session)) {
+				--sessionCount;
+				lock.notifyAll();
+				return (true);
+			}
+			return (false);
 		}
-            }
-            if (shutdown) session.shutdown();
 	}
-	
+
 	/**
-	 * Shuts down the pool.  Running nails are allowed to finish.
+	 * Records the time taken for a session to start work on a connection
+	 * after it was handed over
+	 * @param nanos the time taken, in nanoseconds
+	 */
+	void handoffCompleted(long nanos) {
+		synchronized(lock) {
+			++handoffCount;
+			handoffNanos += nanos;
+		}
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, after which an idle session beyond
+	 * the core size is reaped
+	 * @return the idle timeout in nanoseconds
+	 */
+	long getIdleTimeoutNanos() {
+		return (idleTimeoutNanos);
+	}
+
+	/**
+	 * Returns a snapshot of this pool's statistics
+	 * @return a snapshot of this pool's statistics
+	 */
+	SessionPoolStats getStats() {
+		synchronized(lock) {
+			SessionPoolStats result = new SessionPoolStats(threadsCreated, sessionCount - idle.size(), idle.size(),
+										handoffCount, handoffNanos,
+										blockedTakeCount, blockedTakeNanos);
+			if (pending != null) {
+				result.setAdmissionStats(pending.size(), pending.getQueuedCount(), pending.getQueueNanos(),
+										pending.getRejectedCount(), pending.getShedCount());
+			}
+			return (result);
+		}
+	}
+
+	/**
+	 * Shuts down the pool.  Running nails are allowed to finish; connections
+	 * still waiting for a session are rejected, and kept-alive connections
+	 * waiting for their clients' next commands are closed.
 	 */
 	void shutdown() {
-		done = true;
+		List waiting = new java.util.ArrayList(0);
+		NGConnection[] idleConnections;
 		synchronized(lock) {
-			while (poolEntries > 0) {
-				take().shutdown();
+			done = true;
+			while (!idle.isEmpty()) {
+				((NGSession) idle.removeLast()).shutdown();
+				--sessionCount;
 			}
+			if (pending != null) pending.clear(waiting);
+			waiting.addAll(admitted);
+			admitted.clear();
+			idleConnections = (NGConnection[]) keptAlive.toArray(new NGConnection[keptAlive.size()]);
+			keptAlive.clear();
+			lock.notifyAll();
+		}
+		rejectAll(waiting);
+		// their sessions then find the pool shut down, and exit
+		for (int i = 0; i < idleConnections.length; ++i) {
+			idleConnections[i].abandon();
 		}
 	}
 
@@ -0,0 +1,46 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+/**
+ * <p>Receives the signals a client forwards to a running nail (see
+ * <code>NGContext.addSignalListener()</code>).  ng forwards SIGINT, SIGTERM
+ * and SIGQUIT as "INT", "TERM" and "QUIT" (and on Windows, Ctrl-C, closing
+ * the console and Ctrl-Break likewise).</p>
+ *
+ * <p>Listeners are called on a server thread apart from the nail's, one
+ * signal at a time, so a command's later signals wait for its listeners
+ * to return: to stop a nail, set a flag or interrupt a thread rather than
+ * waiting for it to finish.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public interface NGSignalListener {
+
+	/**
+	 * Called when the client forwards a signal
+	 * @param context the context of the nail to which the signal was sent
+	 * @param signal the signal's name, such as "INT"
+	 * @return true if the signal has been dealt with, or false for the
+	 * server's default policy to be applied to it as well: interrupting
+	 * the nail for "INT" and "TERM", and printing its threads' stacks to
+	 * the client's stderr for "QUIT"
+	 */
+	public boolean signalReceived(NGContext context, String signal);
+}
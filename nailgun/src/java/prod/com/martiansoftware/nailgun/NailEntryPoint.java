@@ -0,0 +1,140 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * <p>The method through which a nail class is run: its
+ * <code>public static void nailMain(NGContext)</code> if it has one, or
+ * else its <code>public static void main(String[])</code>.  Each class's
+ * entry point is looked up once, the first time the class is run, and
+ * kept as a <code>MethodHandle</code>, so that running a nail again costs
+ * neither the lookups (nor, for <code>main(String[])</code> nails, the
+ * <code>NoSuchMethodException</code> thrown looking for
+ * <code>nailMain</code>) nor reflective invocation.</p>
+ *
+ * <p>Entry points are kept by class, alongside the class itself (in a
+ * <code>ClassValue</code>), so they never outlive it: a class loaded
+ * again by a new class loader, or a different class given to an alias,
+ * is looked up afresh, and classes can still be unloaded.  Classes with
+ * neither method are remembered as such.</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NailEntryPoint {
+
+	/**
+	 * The entry points of the classes run so far
+	 */
+	private static final ClassValue entryPoints = new ClassValue() {
+		protected Object computeValue(Class nailClass) {
+			return (new NailEntryPoint(nailClass));
+		}
+	};
+
+	/**
+	 * The type to which every entry point is adapted, taking its one
+	 * argument as an Object
+	 */
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object.class);
+
+	/**
+	 * The entry point, adapted to <code>INVOKER_TYPE</code>, or
+	 * <code>null</code> if the class has none
+	 */
+	private MethodHandle handle = null;
+
+	/**
+	 * True if the entry point is <code>nailMain(NGContext)</code>
+	 */
+	private boolean takesContext = false;
+
+	/**
+	 * The entry point looked for last, if the class has none
+	 */
+	private String missing = null;
+
+	/**
+	 * Why the entry point could not be used, if it could not
+	 */
+	private IllegalAccessException failure = null;
+
+	private NailEntryPoint(Class nailClass) {
+		try {
+			Method method = findStatic(nailClass, "nailMain", NGContext.class);
+			takesContext = (method != null);
+			if (method == null) method = findStatic(nailClass, "main", String[].class);
+			if (method == null) {
+				missing = nailClass.getName() + ".main(java.lang.String[])";
+			} else {
+				handle = MethodHandles.lookup().unreflect(method).asType(INVOKER_TYPE);
+			}
+		} catch (IllegalAccessException e) {
+			failure = e;
+		}
+	}
+
+	private static Method findStatic(Class nailClass, String name, Class argType) {
+		try {
+			Method result = nailClass.getMethod(name, new Class[] {argType});
+			return (Modifier.isStatic(result.getModifiers()) ? result : null);
+		} catch (NoSuchMethodException e) {
+			return (null);
+		}
+	}
+
+	/**
+	 * Returns the entry point of the specified class
+	 * @param nailClass the nail class
+	 * @return the class's entry point
+	 * @throws NoSuchMethodException if the class has neither
+	 * <code>nailMain(NGContext)</code> nor <code>main(String[])</code>
+	 * @throws IllegalAccessException if the entry point is not accessible
+	 */
+	static NailEntryPoint forClass(Class nailClass) throws NoSuchMethodException, IllegalAccessException {
+		NailEntryPoint result = (NailEntryPoint) entryPoints.get(nailClass);
+		// thrown afresh, so the stack trace is the caller's
+		if (result.missing != null) throw (new NoSuchMethodException(result.missing));
+		if (result.failure != null) throw (new IllegalAccessException(result.failure.getMessage()));
+		return (result);
+	}
+
+	/**
+	 * Returns true if the entry point is <code>nailMain(NGContext)</code>,
+	 * or false if it is <code>main(String[])</code>
+	 * @return true if the entry point takes an NGContext
+	 */
+	boolean takesContext() {
+		return (takesContext);
+	}
+
+	/**
+	 * Runs the nail.  Whatever the nail throws is thrown on, unwrapped.
+	 * @param arg the NGContext or String[] for the entry point
+	 * @throws Throwable if the nail throws anything
+	 */
+	void invoke(Object arg) throws Throwable {
+		handle.invokeExact(arg);
+	}
+}
@@ -29,6 +29,9 @@ public class NailStats implements Cloneable {
 	private Class nailclass;
 	private long runCounter;
 	private long refCounter;
+	private long cancelCounter;
+	private long cancelNanos;
+	private long maxCancelNanos;
 	private Object lock;
 	
 	/**
@@ -61,6 +64,35 @@ public class NailStats implements Cloneable {
 		}
 	}
 
+	/**
+	 * Logs the fact that an instance of this nail was cancelled because
+	 * its client went away (see <code>ClientMonitor</code>)
+	 * @param latencyNanos the time, in nanoseconds, from when the client
+	 * was last known to be there until the nail finished
+	 */
+	void nailCancelled(long latencyNanos) {
+		synchronized(lock) {
+			++cancelCounter;
+			cancelNanos += latencyNanos;
+			maxCancelNanos = Math.max(maxCancelNanos, latencyNanos);
+		}
+	}
+
+	/**
+	 * Adds another NailStats object's counts to this one's.  Used to
+	 * total the statistics of a nail across shards.
+	 * @param other the NailStats to add
+	 */
+	void add(NailStats other) {
+		synchronized(lock) {
+			runCounter += other.getRunCount();
+			refCounter += other.getRefCount();
+			cancelCounter += other.getCancelCount();
+			cancelNanos += other.getCancelNanos();
+			maxCancelNanos = Math.max(maxCancelNanos, other.getMaxCancelNanos());
+		}
+	}
+	
 	/**
 	 * Returns the number of times this nail has been run.  Nails
 	 * that have started but not yet finished are included in this
@@ -79,6 +111,34 @@ public class NailStats implements Cloneable {
 		return (refCounter);
 	}
 	
+	/**
+	 * Returns the number of times this nail has been cancelled because its
+	 * client went away
+	 * @return the number of times this nail has been cancelled
+	 */
+	public long getCancelCount() {
+		return (cancelCounter);
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, from clients going away to
+	 * their cancelled nails finishing.  This includes the time taken to
+	 * notice that the clients had gone.
+	 * @return the total cancellation latency in nanoseconds
+	 */
+	public long getCancelNanos() {
+		return (cancelNanos);
+	}
+
+	/**
+	 * Returns the longest time, in nanoseconds, from a client going away
+	 * to its cancelled nail finishing
+	 * @return the longest cancellation latency in nanoseconds
+	 */
+	public long getMaxCancelNanos() {
+		return (maxCancelNanos);
+	}
+
 	/**
 	 * Returns the class for which we're tracking statistics
 	 * @return the class for which we're tracking statistics
@@ -120,11 +180,15 @@ public class NailStats implements Cloneable {
 	
 	/**
 	 * Returns a String representation of this <code>NailStats</code>
-	 * object, in the form "classname: runcount/refcount".
+	 * object, in the form "classname: runcount/refcount", followed by
+	 * ", N cancelled (avg Nms, max Nms)" if the nail has been cancelled.
 	 * *return a String representation of this <code>NailStats</code>
 	 * object. 
 	 */
 	public String toString() {
-		return (nailclass.getName() + ": " + getRunCount() + "/" + getRefCount());
+		String result = nailclass.getName() + ": " + getRunCount() + "/" + getRefCount();
+		if (cancelCounter == 0) return (result);
+		return (result + ", " + cancelCounter + " cancelled (avg " + (cancelNanos / cancelCounter / 1000000)
+				+ "ms, max " + (maxCancelNanos / 1000000) + "ms)");
 	}
 }
@@ -0,0 +1,231 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+/**
+ * <p>A snapshot of the statistics kept by a session pool (or the total
+ * across all of a server's pools).</p>
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class SessionPoolStats {
+
+	private long threadsCreated;
+	private int activeSessions;
+	private int idleSessions;
+	private long handoffCount;
+	private long handoffNanos;
+	private long blockedTakeCount;
+	private long blockedTakeNanos;
+	private int pendingCount;
+	private long queuedCount;
+	private long queueNanos;
+	private long rejectedCount;
+	private long shedCount;
+
+	SessionPoolStats(long threadsCreated, int activeSessions, int idleSessions,
+					long handoffCount, long handoffNanos,
+					long blockedTakeCount, long blockedTakeNanos) {
+		this.threadsCreated = threadsCreated;
+		this.activeSessions = activeSessions;
+		this.idleSessions = idleSessions;
+		this.handoffCount = handoffCount;
+		this.handoffNanos = handoffNanos;
+		this.blockedTakeCount = blockedTakeCount;
+		this.blockedTakeNanos = blockedTakeNanos;
+	}
+
+	/**
+	 * Sets the statistics of the pool's admission queue, if it has one
+	 */
+	void setAdmissionStats(int pendingCount, long queuedCount, long queueNanos,
+							long rejectedCount, long shedCount) {
+		this.pendingCount = pendingCount;
+		this.queuedCount = queuedCount;
+		this.queueNanos = queueNanos;
+		this.rejectedCount = rejectedCount;
+		this.shedCount = shedCount;
+	}
+
+	/**
+	 * Adds another SessionPoolStats object's counts to this one's.  Used to
+	 * total the statistics of all shards.
+	 * @param other the SessionPoolStats to add
+	 */
+	void add(SessionPoolStats other) {
+		threadsCreated += other.threadsCreated;
+		activeSessions += other.activeSessions;
+		idleSessions += other.idleSessions;
+		handoffCount += other.handoffCount;
+		handoffNanos += other.handoffNanos;
+		blockedTakeCount += other.blockedTakeCount;
+		blockedTakeNanos += other.blockedTakeNanos;
+		pendingCount += other.pendingCount;
+		queuedCount += other.queuedCount;
+		queueNanos += other.queueNanos;
+		rejectedCount += other.rejectedCount;
+		shedCount += other.shedCount;
+	}
+
+	/**
+	 * Returns the number of session threads that have been created,
+	 * including any that have since been reaped
+	 * @return the number of session threads that have been created
+	 */
+	public long getThreadsCreated() {
+		return (threadsCreated);
+	}
+
+	/**
+	 * Returns the number of sessions currently serving a connection
+	 * @return the number of sessions currently serving a connection
+	 */
+	public int getActiveSessions() {
+		return (activeSessions);
+	}
+
+	/**
+	 * Returns the number of sessions waiting in the pool for a connection
+	 * @return the number of sessions waiting in the pool for a connection
+	 */
+	public int getIdleSessions() {
+		return (idleSessions);
+	}
+
+	/**
+	 * Returns the number of connections handed to sessions
+	 * @return the number of connections handed to sessions
+	 */
+	public long getHandoffCount() {
+		return (handoffCount);
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, between connections being
+	 * handed to sessions and those sessions starting work on them
+	 * @return the total handoff wait time in nanoseconds
+	 */
+	public long getHandoffNanos() {
+		return (handoffNanos);
+	}
+
+	/**
+	 * Returns the number of times a session was requested while the pool
+	 * was at its maximum size, so that the request had to wait for a
+	 * session to be returned
+	 * @return the number of times a session request had to wait
+	 */
+	public long getBlockedTakeCount() {
+		return (blockedTakeCount);
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that session requests have
+	 * waited for the pool to drop below its maximum size
+	 * @return the total time session requests have waited, in nanoseconds
+	 */
+	public long getBlockedTakeNanos() {
+		return (blockedTakeNanos);
+	}
+
+	/**
+	 * Returns the number of connections currently waiting in the admission
+	 * queue for a free session
+	 * @return the number of connections waiting for a free session
+	 */
+	public int getPendingCount() {
+		return (pendingCount);
+	}
+
+	/**
+	 * Returns the number of connections that waited in the admission queue
+	 * and were then served
+	 * @return the number of connections that waited and were then served
+	 */
+	public long getQueuedCount() {
+		return (queuedCount);
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that served connections spent
+	 * in the admission queue
+	 * @return the total admission queue wait in nanoseconds
+	 */
+	public long getQueueNanos() {
+		return (queueNanos);
+	}
+
+	/**
+	 * Returns the number of connections rejected because the admission
+	 * queue was full
+	 * @return the number of connections rejected because the queue was full
+	 */
+	public long getRejectedCount() {
+		return (rejectedCount);
+	}
+
+	/**
+	 * Returns the number of connections shed from the admission queue
+	 * because connections had been waiting too long
+	 * @return the number of connections shed from the admission queue
+	 */
+	public long getShedCount() {
+		return (shedCount);
+	}
+
+	/**
+	 * Returns a String representation of this <code>SessionPoolStats</code>
+	 * object, in the form "Sessions: created/active/idle, handoff avg Nus".
+	 * @return a String representation of this <code>SessionPoolStats</code>
+	 * object.
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		buf.append("Sessions: ");
+		buf.append(threadsCreated);
+		buf.append(" created, ");
+		buf.append(activeSessions);
+		buf.append(" active, ");
+		buf.append(idleSessions);
+		buf.append(" idle, handoff avg ");
+		buf.append((handoffCount == 0) ? 0 : handoffNanos / handoffCount / 1000);
+		buf.append("us");
+		if (blockedTakeCount > 0) {
+			buf.append(", ");
+			buf.append(blockedTakeCount);
+			buf.append(" waited for a free session (avg ");
+			buf.append(blockedTakeNanos / blockedTakeCount / 1000);
+			buf.append("us)");
+		}
+		if (pendingCount > 0 || queuedCount > 0 || rejectedCount > 0 || shedCount > 0) {
+			buf.append(", ");
+			buf.append(pendingCount);
+			buf.append(" pending, ");
+			buf.append(queuedCount);
+			buf.append(" queued (avg ");
+			buf.append((queuedCount == 0) ? 0 : queueNanos / queuedCount / 1000);
+			buf.append("us), overloaded: ");
+			buf.append(rejectedCount);
+			buf.append(" rejected, ");
+			buf.append(shedCount);
+			buf.append(" shed");
+		}
+		return (buf.toString());
+	}
+}
@@ -56,7 +56,7 @@ public class NGAlias {
 		NGServer server = context.getNGServer();
 		
 		if (args.length == 0) {
-			Set aliases = server.getAliasManager().getAliases();
+			Set aliases = server.getAliasManager().getAliasSnapshot();
 			
 			// let's pad this nicely.  first, find the longest alias
 			// name.  then pad the others to that width.
@@ -65,13 +65,13 @@ public class NGAlias {
 			for (Iterator i = aliases.iterator(); i.hasNext();) {
 				Alias alias = (Alias) i.next();
 				maxAliasLength = Math.max(maxAliasLength, alias.getName().length());
-				maxClassnameLength = Math.max(maxClassnameLength, alias.getAliasedClass().getName().length());
+				maxClassnameLength = Math.max(maxClassnameLength, alias.getAliasedClassName().length());
 			}
 			for (Iterator i = aliases.iterator(); i.hasNext();) {
 				Alias alias = (Alias) i.next();
 				context.out.println(padl(alias.getName(), maxAliasLength) 
 										+ "\t" 
-										+ padl(alias.getAliasedClass().getName(), maxClassnameLength));
+										+ padl(alias.getAliasedClassName(), maxClassnameLength));
 				context.out.println(padl("", maxAliasLength) + "\t" + alias.getDescription());
 				context.out.println();
 			}
@@ -29,7 +29,8 @@ import com.martiansoftware.nailgun.NGContext;
  * If called with no arguments, the classpath is displayed.  Otherwise, each
  * argument is turned into a java.io.File and added to the classpath.  Relative
  * paths will be resolved relative to the directory in which the nailgun server
- * is running.  This is very likely to change in the future.</p>
+ * is running.  This is very likely to change in the future.  Adding to the
+ * classpath empties the server's <a href="../ClassCache.html">ClassCache</a>.</p>
  * 
  * <p>This is aliased by default to the command "<code>ng-cp</code>".</p>
  * 
@@ -72,6 +73,8 @@ public class NGClasspath {
 				File file = new File(args[i]);
 				addToSystemClassLoader(file.toURL());
 			}
+			// names that were not classes before may be now
+			context.getNGServer().getClassCache().invalidate();
 		}
 	}
 }
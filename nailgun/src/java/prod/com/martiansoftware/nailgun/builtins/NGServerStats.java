@@ -25,7 +25,14 @@ import com.martiansoftware.nailgun.NGServer;
 import com.martiansoftware.nailgun.NGContext;
 
 /**
- * <p>Displays all <a href="NailStats.html">NailStats</a> tracked by the server.</p>
+ * <p>Displays all <a href="NailStats.html">NailStats</a> tracked by the server,
+ * followed by its <a href="SessionPoolStats.html">SessionPoolStats</a>,
+ * the state of any <a href="Bulkhead.html">Bulkheads</a>, its
+ * <a href="EnvironmentCache.html">EnvironmentCache</a> and
+ * <a href="ClassCache.html">ClassCache</a>, the progress of its
+ * <a href="AliasWarmup.html">AliasWarmup</a>, and the
+ * <a href="FlowControlStats.html">FlowControlStats</a> of any running
+ * commands whose clients use flow control.</p>
  * 
  * <p>This can be run standalone with no arguments.  It will also run automatically
  * upon <code>NGServer</code> shutdown, sending its output to the server's <code>System.out</code>.</p>
@@ -49,6 +56,29 @@ public class NGServerStats {
 		for (Iterator i = stats.values().iterator(); i.hasNext();) {
 			out.println(i.next());
 		}
+		out.println(server.getSessionPoolStats());
+		for (Iterator i = server.getAliasManager().getBulkheads().iterator(); i.hasNext();) {
+			out.println(i.next());
+		}
+		out.println(server.getEnvironmentCache());
+		out.println(server.getClassCache());
+		out.println(server.getAliasWarmup());
+		for (Iterator i = server.getFlowControlStats().iterator(); i.hasNext();) {
+			out.println(i.next());
+		}
+		
+		// break the totals down by shard if there's more than one
+		if (server.getShardCount() > 1) {
+			for (int shard = 0; shard < server.getShardCount(); ++shard) {
+				out.println();
+				out.println("Shard " + shard + ":");
+				stats = server.getNailStats(shard);
+				for (Iterator i = stats.values().iterator(); i.hasNext();) {
+					out.println("  " + i.next());
+				}
+				out.println("  " + server.getSessionPoolStats(shard));
+			}
+		}
 	}
 
 }
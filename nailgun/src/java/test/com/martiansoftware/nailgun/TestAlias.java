@@ -36,5 +36,165 @@ public class TestAlias extends TestCase {
 		Alias alias2 = new Alias("testAlias", "tests the alias class", TestAlias.class);
 		assertEquals(alias, alias2);
 		assertEquals(0, alias.compareTo(alias2));
+		assertTrue(alias.isLoaded());
+		assertEquals(0, alias.getLoadNanos());
+	}
+
+	static boolean lazyInitialized = false;
+
+	public static class LazyNail {
+		static {
+			lazyInitialized = true;
+		}
+
+		public static void main(String[] args) {
+		}
+	}
+
+	public void testLazyLoading() {
+		Alias alias = new Alias("lazy", "", "com.martiansoftware.nailgun.TestAlias$LazyNail", null, null, false);
+		assertFalse(alias.isLoaded());
+		assertEquals(-1, alias.getLoadNanos());
+		assertEquals("com.martiansoftware.nailgun.TestAlias$LazyNail", alias.getAliasedClassName());
+		assertFalse(lazyInitialized);
+
+		assertEquals(LazyNail.class, alias.getAliasedClass());
+		assertTrue(lazyInitialized);
+		assertTrue(alias.isLoaded());
+		assertTrue(alias.getLoadNanos() >= 0);
+	}
+
+	public void testUnknownClass() {
+		Alias alias = new Alias("missing", "", "no.such.Class", null, null, false);
+		for (int i = 0; i < 2; ++i) {
+			try {
+				alias.getAliasedClass();
+				fail("loaded a class that does not exist");
+			} catch (NoClassDefFoundError e) {
+				assertEquals("Unable to locate class no.such.Class for alias missing", e.getMessage());
+				assertTrue(e.getCause() instanceof ClassNotFoundException);
+			}
+		}
+		assertFalse(alias.isLoaded());
+	}
+
+	public void testWarmup() throws Exception {
+		java.util.List aliases = new java.util.ArrayList();
+		aliases.add(new Alias("string", "", "java.lang.String", null, null, false));
+		aliases.add(new Alias("integer", "", "java.lang.Integer", null, null, false));
+		aliases.add(new Alias("loaded", "", TestAlias.class));
+		aliases.add(new Alias("missing", "", "no.such.Class", null, null, false));
+		AliasWarmup warmup = new AliasWarmup(new NGServer());
+		assertEquals("Alias warm-up: not started", warmup.toString());
+		warmup.start(aliases, 2, 0);
+		warmup.awaitCompletion();
+		assertTrue(warmup.isFinished());
+		assertEquals(3, warmup.getTotal());
+		assertEquals(2, warmup.getLoaded());
+		assertEquals(1, warmup.getFailed());
+		assertTrue(((Alias) aliases.get(0)).isLoaded());
+		assertTrue(((Alias) aliases.get(1)).isLoaded());
+		assertTrue(warmup.toString().startsWith("Alias warm-up: 2/3 classes loaded, 1 failed, 0 skipped, 0 hooks called (0 failed) in "));
+	}
+
+	static int warmups = 0;
+
+	public static class WarmNail {
+		public static void nailWarmup(NGServer server) {
+			++warmups;
+		}
+
+		public static void main(String[] args) {
+		}
+	}
+
+	public static class BrokenWarmNail {
+		public static void nailWarmup(NGServer server) {
+			throw (new IllegalStateException("cold"));
+		}
+
+		public static void main(String[] args) {
+		}
+	}
+
+	public static class SlowWarmNail {
+		public static void nailWarmup(NGServer server) throws InterruptedException {
+			Thread.sleep(200);
+		}
+
+		public static void main(String[] args) {
+		}
+	}
+
+	public void testWarmupHooks() throws Exception {
+		java.util.List aliases = new java.util.ArrayList();
+		aliases.add(new Alias("warm", "", "com.martiansoftware.nailgun.TestAlias$WarmNail", null, null, false));
+		aliases.add(new Alias("warm2", "", WarmNail.class));
+		aliases.add(new Alias("broken", "", "com.martiansoftware.nailgun.TestAlias$BrokenWarmNail", null, null, false));
+		AliasWarmup warmup = new AliasWarmup(new NGServer());
+		warmup.start(aliases, 2, 0);
+		warmup.awaitCompletion();
+		assertTrue(warmup.isFinished());
+		assertEquals(3, warmup.getLoaded());
+		assertEquals(1, warmups);
+		assertEquals(2, warmup.getHooks());
+		assertEquals(1, warmup.getHooksFailed());
+	}
+
+	public void testWarmupBudget() throws Exception {
+		java.util.List aliases = new java.util.ArrayList();
+		aliases.add(new Alias("slow", "", SlowWarmNail.class));
+		aliases.add(new Alias("string", "", "java.lang.String", null, null, false));
+		AliasWarmup warmup = new AliasWarmup(new NGServer());
+		long start = System.currentTimeMillis();
+		warmup.start(aliases, 1, 50);
+		warmup.awaitCompletion();
+		assertTrue(System.currentTimeMillis() - start < 190);
+		assertFalse(warmup.isFinished());
+		for (int i = 0; i < 100 && !warmup.isFinished(); ++i) {
+			Thread.sleep(10);
+		}
+		assertTrue(warmup.isFinished());
+		assertEquals(1, warmup.getLoaded());
+		assertEquals(1, warmup.getSkipped());
+		assertFalse(((Alias) aliases.get(1)).isLoaded());
+	}
+
+	static boolean unusedInitialized = false;
+
+	static int shutdowns = 0;
+
+	public static class UnusedNail {
+		static {
+			unusedInitialized = true;
+		}
+
+		public static void nailShutdown(NGServer server) {
+			++shutdowns;
+		}
+
+		public static void main(String[] args) {
+		}
+	}
+
+	public static class UsedNail {
+		public static void nailShutdown(NGServer server) {
+			++shutdowns;
+		}
+
+		public static void main(String[] args) {
+		}
+	}
+
+	public void testShutdownLeavesUnloadedAliases() {
+		NGServer server = new NGServer();
+		server.getAliasManager().addAlias(new Alias("unused", "", "com.martiansoftware.nailgun.TestAlias$UnusedNail", null, null, false));
+		Alias used = new Alias("used", "", "com.martiansoftware.nailgun.TestAlias$UsedNail", null, null, false);
+		server.getAliasManager().addAlias(used);
+		used.getAliasedClass();
+		server.shutdown(false);
+		assertFalse(unusedInitialized);
+		assertFalse(server.getAliasManager().getAlias("unused").isLoaded());
+		assertEquals(1, shutdowns);
 	}
 }
@@ -19,6 +19,7 @@
 package com.martiansoftware.nailgun;
 
 import java.util.Iterator;
+import java.util.Properties;
 import java.util.Set;
 
 import junit.framework.TestCase;
@@ -42,4 +43,105 @@ public class TestAliasManager extends TestCase {
 		aliases = amgr.getAliases();
 		assertEquals(0, aliases.size());
 	}
+
+	public void testSnapshots() {
+		AliasManager amgr = new AliasManager();
+		Set before = amgr.getAliasSnapshot();
+		int count = before.size();
+		Properties props = new Properties();
+		props.setProperty("zzz", "java.lang.String");
+		props.setProperty("aaa", "java.lang.String");
+		amgr.loadFromProperties(props);
+
+		assertEquals(count, before.size());
+		assertFalse(before.contains(amgr.getAlias("aaa")));
+		Set after = amgr.getAliasSnapshot();
+		assertEquals(count + 2, after.size());
+		assertEquals("aaa", ((Alias) after.iterator().next()).getName());
+		assertSame(after, amgr.getAliasSnapshot());
+		try {
+			after.clear();
+			fail("alias snapshot was modifiable");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+
+		// getAliases() still returns a copy that callers may change
+		Set copy = amgr.getAliases();
+		assertEquals(after, copy);
+		copy.clear();
+		assertEquals(count + 2, amgr.getAliases().size());
+
+		amgr.removeAlias("no such alias");
+		assertSame(after, amgr.getAliasSnapshot());
+		amgr.removeAlias("aaa");
+		assertEquals(count + 1, amgr.getAliases().size());
+		assertNull(amgr.getAlias("aaa"));
+		assertNotNull(amgr.getAlias("zzz"));
+	}
+
+	public void testBulkheads() {
+		AliasManager amgr = new AliasManager();
+		Properties props = new Properties();
+		props.setProperty("first", "java.lang.String");
+		props.setProperty("first.bulkhead", "shared");
+		props.setProperty("second", "java.lang.String");
+		props.setProperty("second.bulkhead", "shared");
+		props.setProperty("bulkhead.shared", "3");
+		props.setProperty("bulkhead.shared.dedicated", "true");
+		props.setProperty("third", "java.lang.String");
+		props.setProperty("third.limit", "1");
+		props.setProperty("fourth", "java.lang.String");
+		amgr.loadFromProperties(props);
+
+		Bulkhead shared = amgr.getBulkhead("shared");
+		assertNotNull(shared);
+		assertEquals(3, shared.getMaxConcurrent());
+		assertTrue(shared.hasDedicatedThreads());
+		assertSame(shared, amgr.getAlias("first").getBulkhead());
+		assertSame(shared, amgr.getAlias("second").getBulkhead());
+
+		Bulkhead third = amgr.getAlias("third").getBulkhead();
+		assertNotNull(third);
+		assertEquals("third", third.getName());
+		assertEquals(1, third.getMaxConcurrent());
+		assertFalse(third.hasDedicatedThreads());
+
+		assertNull(amgr.getAlias("fourth").getBulkhead());
+		assertNull(amgr.getAlias("shared"));
+		assertEquals(2, amgr.getBulkheads().size());
+		amgr.shutdown();
+	}
+
+	public void testFlushPolicies() {
+		AliasManager amgr = new AliasManager();
+		Properties props = new Properties();
+		props.setProperty("first", "java.lang.String");
+		props.setProperty("first.flush", "line");
+		props.setProperty("second", "java.lang.String");
+		props.setProperty("second.flush", "5ms");
+		props.setProperty("third", "java.lang.String");
+		amgr.loadFromProperties(props);
+
+		assertSame(FlushPolicy.LINE, amgr.getAlias("first").getFlushPolicy());
+		assertEquals(5, amgr.getAlias("second").getFlushPolicy().getMaxDelay());
+		assertNull(amgr.getAlias("third").getFlushPolicy());
+		assertNull(amgr.getAlias("first.flush"));
+	}
+
+	public void testEagerStdin() {
+		AliasManager amgr = new AliasManager();
+		Properties props = new Properties();
+		props.setProperty("first", "java.lang.String");
+		props.setProperty("first.stdin", "eager");
+		props.setProperty("second", "java.lang.String");
+		props.setProperty("second.stdin", "lazy");
+		props.setProperty("third", "java.lang.String");
+		amgr.loadFromProperties(props);
+
+		assertTrue(amgr.getAlias("first").isEagerStdin());
+		assertFalse(amgr.getAlias("second").isEagerStdin());
+		assertFalse(amgr.getAlias("third").isEagerStdin());
+		assertNull(amgr.getAlias("first.stdin"));
+	}
 }
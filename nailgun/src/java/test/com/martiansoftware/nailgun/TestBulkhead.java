@@ -0,0 +1,250 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestBulkhead extends TestCase {
+
+	/**
+	 * A nail that runs until the test lets it go
+	 */
+	public static class Held {
+		static final Object lock = new Object();
+		static int started = 0;
+		static boolean released = false;
+
+		public static void nailMain(NGContext context) throws InterruptedException {
+			synchronized(lock) {
+				++started;
+				lock.notifyAll();
+				while (!released) lock.wait();
+			}
+		}
+
+		static void reset() {
+			synchronized(lock) {
+				started = 0;
+				released = false;
+			}
+		}
+
+		static void release() {
+			synchronized(lock) {
+				released = true;
+				lock.notifyAll();
+			}
+		}
+
+		static void awaitStarted(int n) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			synchronized(lock) {
+				while (started < n && System.currentTimeMillis() < deadline) lock.wait(100);
+				assertEquals(n, started);
+			}
+		}
+	}
+
+	/**
+	 * A nail that remembers its thread
+	 */
+	private static class RecordingNail implements Runnable {
+		Thread ranOn = null;
+
+		public void run() {
+			ranOn = Thread.currentThread();
+		}
+	}
+
+	private NGServer server = null;
+
+	protected void setUp() {
+		Held.reset();
+	}
+
+	protected void tearDown() {
+		Held.release();
+		if (server != null) server.shutdown(false);
+	}
+
+	/**
+	 * Starts a server whose "held" alias runs in the specified bulkhead,
+	 * and waits for it to be listening
+	 */
+	private void startServer(Bulkhead bulkhead, int maxSessions) throws Exception {
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.setMaxSessions(maxSessions);
+		server.getAliasManager().addAlias(new Alias("held", "", Held.class, bulkhead));
+		new Thread(server).start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Sends a command on a new connection, returning at once
+	 */
+	private Socket start(String command) throws IOException {
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(5000);
+		byte[] b = command.getBytes("US-ASCII");
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeInt(b.length);
+		out.writeByte(NGConstants.CHUNKTYPE_COMMAND);
+		out.write(b);
+		out.flush();
+		return (socket);
+	}
+
+	/**
+	 * Reads a command's response up to its exit chunk, and closes the
+	 * connection
+	 * @return the exit status
+	 */
+	private static String awaitExit(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		try {
+			while (true) {
+				int len = in.readInt();
+				byte chunkType = in.readByte();
+				byte[] payload = new byte[len];
+				in.readFully(payload);
+				if (chunkType == NGConstants.CHUNKTYPE_EXIT) return (new String(payload, "US-ASCII").trim());
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void awaitQueueDepth(Bulkhead bulkhead, int depth) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (bulkhead.getQueueDepth() < depth && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(depth, bulkhead.getQueueDepth());
+	}
+
+	public void testLimit() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("test", 1);
+		startServer(bulkhead, 0);
+
+		Socket first = start("held");
+		Held.awaitStarted(1);
+		Socket second = start("held");
+		awaitQueueDepth(bulkhead, 1);
+		assertEquals(1, bulkhead.getActiveCount());
+		Thread.sleep(50);
+		assertEquals(1, Held.started);
+
+		Held.release();
+		assertEquals("0", awaitExit(first));
+		assertEquals("0", awaitExit(second));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (bulkhead.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, bulkhead.getActiveCount());
+		assertEquals(0, bulkhead.getQueueDepth());
+		assertEquals(1, bulkhead.getMaxQueueDepth());
+		assertEquals(2, bulkhead.getRunCount());
+		assertEquals(1, bulkhead.getQueuedCount());
+		assertTrue(bulkhead.getQueueNanos() > 0);
+		assertEquals(bulkhead.getQueueNanos(), bulkhead.getMaxQueueNanos());
+	}
+
+	public void testFullBulkheadHoldsNoSessions() throws Exception {
+		// two sessions in all, and three commands for a bulkhead of one
+		Bulkhead bulkhead = new Bulkhead("test", 1);
+		startServer(bulkhead, 2);
+		Socket[] held = new Socket[3];
+		held[0] = start("held");
+		Held.awaitStarted(1);
+		held[1] = start("held");
+		held[2] = start("held");
+		awaitQueueDepth(bulkhead, 2);
+
+		// the commands waiting for the bulkhead leave a session free
+		assertEquals("0", awaitExit(start("ng-version")));
+		assertEquals(1, Held.started);
+
+		Held.release();
+		for (int i = 0; i < held.length; ++i) {
+			assertEquals("0", awaitExit(held[i]));
+		}
+		assertEquals(3, bulkhead.getRunCount());
+		assertEquals(2, bulkhead.getQueuedCount());
+	}
+
+	public void testShutdownTurnsAwayWaiting() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("test", 1);
+		startServer(bulkhead, 0);
+		Socket running = start("held");
+		Held.awaitStarted(1);
+		Socket waiting = start("held");
+		awaitQueueDepth(bulkhead, 1);
+
+		server.shutdown(false);
+		assertEquals(String.valueOf(NGConstants.EXIT_OVERLOADED), awaitExit(waiting));
+		assertEquals(0, bulkhead.getQueueDepth());
+
+		// the running nail is left to finish
+		Held.release();
+		assertEquals("0", awaitExit(running));
+	}
+
+	public void testDedicatedThreads() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("dedicated", 2, true);
+		try {
+			RecordingNail nail = new RecordingNail();
+			assertTrue(bulkhead.admit(null, null, null));
+			bulkhead.execute(nail);
+			bulkhead.release();
+			assertNotNull(nail.ranOn);
+			assertNotSame(Thread.currentThread(), nail.ranOn);
+			assertTrue(nail.ranOn.getName().startsWith("NGBulkhead dedicated"));
+			assertEquals(0, bulkhead.getActiveCount());
+			assertEquals(1, bulkhead.getRunCount());
+		} finally {
+			bulkhead.shutdown();
+		}
+	}
+
+	public void testInvalid() {
+		try {
+			new Bulkhead("none", 0);
+			fail("zero limit accepted");
+		} catch (IllegalArgumentException expected) {}
+		try {
+			new Bulkhead(" ", 1);
+			fail("blank name accepted");
+		} catch (IllegalArgumentException expected) {}
+	}
+}
@@ -0,0 +1,259 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+/**
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestChunkWriter extends TestCase {
+
+	/**
+	 * Counts the writes made to it
+	 */
+	private static class CountingOutputStream extends ByteArrayOutputStream {
+		int writes = 0;
+		public synchronized void write(byte[] b, int off, int len) {
+			++writes;
+			super.write(b, off, len);
+		}
+		public synchronized void write(int b) {
+			++writes;
+			super.write(b);
+		}
+	}
+
+	public void testOneWritePerChunk() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		ChunkWriter writer = new ChunkWriter(out, 4);
+		writer.writeChunk(NGConstants.CHUNKTYPE_STARTINPUT);
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDOUT, "hello".getBytes("US-ASCII"), 0, 5);
+		assertEquals(3, out.writes);
+
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(NGConstants.CHUNKTYPE_STARTINPUT, reader.readHeader());
+		assertEquals(0, reader.getChunkLength());
+
+		// payloads larger than the buffer are split
+		byte[] b = new byte[5];
+		assertEquals(NGConstants.CHUNKTYPE_STDOUT, reader.readHeader());
+		assertEquals(4, reader.getChunkLength());
+		reader.readFully(b, 0, 4);
+		assertEquals(NGConstants.CHUNKTYPE_STDOUT, reader.readHeader());
+		assertEquals(1, reader.getChunkLength());
+		reader.readFully(b, 4, 1);
+		assertEquals("hello", new String(b, "US-ASCII"));
+		assertEquals(-1, reader.read());
+	}
+
+	public void testTryWriteChunk() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkWriter writer = new ChunkWriter(out);
+		// the client has already granted a second window's worth
+		byte[] credit = {0, 0, 0, 1, NGConstants.CHUNKTYPE_CREDIT, '4'};
+		NGInputStream stdin = new NGInputStream(new ChunkReader(new ByteArrayInputStream(credit)), writer);
+		final FlowControl flowControl = new FlowControl();
+		flowControl.reset(stdin, "test", "test", 4, 0);
+		stdin.setFlowControl(flowControl);
+		writer.setFlowControl(flowControl);
+		byte[] b = "hello, world".getBytes("US-ASCII");
+
+		// two windows' worth is sent, without waiting long for more
+		long start = System.currentTimeMillis();
+		assertEquals(8, writer.tryWriteChunk(NGConstants.CHUNKTYPE_STDOUT, b, 0, b.length, 50));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(0, writer.tryWriteChunk(NGConstants.CHUNKTYPE_STDOUT, b, 8, b.length - 8, 0));
+
+		// credit granted while waiting is used
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {}
+				flowControl.grantOutput(4);
+			}
+		}.start();
+		assertEquals(4, writer.tryWriteChunk(NGConstants.CHUNKTYPE_STDOUT, b, 8, b.length - 8, 5000));
+
+		// other chunks are not subject to credit
+		assertEquals(2, writer.tryWriteChunk(NGConstants.CHUNKTYPE_EXIT, "0\n".getBytes("US-ASCII"), 0, 2, 0));
+
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(out.toByteArray()));
+		byte[] sent = new byte[12];
+		for (int i = 0; i < 3; ++i) {
+			assertEquals(NGConstants.CHUNKTYPE_STDOUT, reader.readHeader());
+			assertEquals(4, reader.getChunkLength());
+			reader.readFully(sent, i * 4, 4);
+		}
+		assertEquals("hello, world", new String(sent, "US-ASCII"));
+		assertEquals(NGConstants.CHUNKTYPE_EXIT, reader.readHeader());
+	}
+
+	public void testDrainBuffer() throws IOException {
+		byte[] data = {0x00, 0x00, 0x00, 0x02, 'M', 0x00, 0x00, 0x00, 0x07, 'a', 'b'};
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(data));
+		assertEquals('M', reader.readHeader());
+		assertEquals(7, reader.readInt());
+		assertEquals(2, reader.buffered());
+		byte[] rest = reader.drainBuffer();
+		assertEquals(2, rest.length);
+		assertEquals('a', rest[0]);
+		assertEquals(0, reader.buffered());
+	}
+
+	public void testCompression() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkWriter writer = new ChunkWriter(out);
+		writer.setCompressionThreshold(100);
+		StringBuffer sbuf = new StringBuffer();
+		for (int i = 0; i < 1000; ++i) {
+			sbuf.append("line ").append(i).append('\n');
+		}
+		byte[] text = sbuf.toString().getBytes("US-ASCII");
+		byte[] random = new byte[1000];
+		new java.util.Random(1).nextBytes(random);
+
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDERR, text, 0, text.length);
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDOUT, text, 0, 99);		// too short
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDOUT, random, 0, 1000);	// incompressible
+		writer.writeChunk(NGConstants.CHUNKTYPE_EXIT, text, 0, 200);		// not output
+		writer.setCompressionThreshold(1);
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDOUT, text, 0, 1);		// too short to shrink
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDERR, text, 0, 2);
+		writer.setCompressionThreshold(0);
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDOUT, text, 0, 200);
+
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(out.toByteArray()));
+		// the text is split into chunks of 8192 bytes, each compressed by itself
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+		int compressedBytes = 0;
+		while (inflated.size() < text.length) {
+			assertEquals(NGConstants.CHUNKTYPE_COMPRESSED, reader.readHeader());
+			byte[] payload = new byte[reader.getChunkLength() + 1];
+			reader.readFully(payload, 0, payload.length - 1);
+			compressedBytes += payload.length - 1;
+			assertEquals(NGConstants.CHUNKTYPE_STDERR, payload[0]);
+			Inflater inflater = new Inflater(true);
+			inflater.setInput(payload, 1, payload.length - 1);
+			byte[] b = new byte[8192];
+			int n = inflater.inflate(b);
+			assertTrue(inflater.finished());
+			inflated.write(b, 0, n);
+		}
+		assertEquals(sbuf.toString(), inflated.toString("US-ASCII"));
+		assertTrue(compressedBytes < text.length / 3);
+
+		byte[] rawTypes = {NGConstants.CHUNKTYPE_STDOUT, NGConstants.CHUNKTYPE_STDOUT,
+							NGConstants.CHUNKTYPE_EXIT, NGConstants.CHUNKTYPE_STDOUT,
+							NGConstants.CHUNKTYPE_STDERR, NGConstants.CHUNKTYPE_STDOUT};
+		int[] rawLengths = {99, 1000, 200, 1, 2, 200};
+		for (int i = 0; i < rawTypes.length; ++i) {
+			assertEquals(rawTypes[i], reader.readHeader());
+			assertEquals(rawLengths[i], reader.getChunkLength());
+			reader.readFully(new byte[rawLengths[i]], 0, rawLengths[i]);
+		}
+		assertEquals(-1, reader.read());
+	}
+
+	private static File tempFile(byte[] contents) throws IOException {
+		File file = File.createTempFile("nailgun-test", null);
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(contents);
+		out.close();
+		return (file);
+	}
+
+	/**
+	 * Reads stdout chunks, checking that none is longer than maxPayload,
+	 * and returns their payloads and lengths
+	 */
+	private static byte[] readStdout(byte[] chunks, int maxPayload, StringBuffer lengths) throws IOException {
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(chunks));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		while (reader.available() > 0) {
+			assertEquals(NGConstants.CHUNKTYPE_STDOUT, reader.readHeader());
+			int len = reader.getChunkLength();
+			assertTrue(len <= maxPayload);
+			lengths.append(len).append(' ');
+			byte[] b = new byte[len];
+			reader.readFully(b, 0, len);
+			result.write(b);
+		}
+		return (result.toByteArray());
+	}
+
+	public void testTransferFrom() throws IOException {
+		byte[] contents = new byte[ChunkWriter.MAX_TRANSFER_PAYLOAD * 2 + 1000];
+		new java.util.Random(2).nextBytes(contents);
+		File file = tempFile(contents);
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			// payloads go to the channel, in chunks as large as allowed
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ChunkWriter writer = new ChunkWriter(out);
+			writer.setChannel(Channels.newChannel(out));
+			assertEquals(contents.length, writer.transferFrom(NGConstants.CHUNKTYPE_STDOUT, channel, 0, Long.MAX_VALUE));
+			StringBuffer lengths = new StringBuffer();
+			assertTrue(java.util.Arrays.equals(contents, readStdout(out.toByteArray(), ChunkWriter.MAX_TRANSFER_PAYLOAD, lengths)));
+			assertEquals(ChunkWriter.MAX_TRANSFER_PAYLOAD + " " + ChunkWriter.MAX_TRANSFER_PAYLOAD + " 1000 ", lengths.toString());
+			assertEquals(0, channel.position());
+
+			// part of the file
+			out.reset();
+			assertEquals(10, writer.transferFrom(NGConstants.CHUNKTYPE_STDOUT, channel, contents.length - 10, 20));
+			byte[] tail = readStdout(out.toByteArray(), 10, new StringBuffer());
+			assertEquals(10, tail.length);
+			assertEquals(contents[contents.length - 1], tail[9]);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public void testCopyFrom() throws IOException {
+		byte[] contents = new byte[100000];
+		new java.util.Random(3).nextBytes(contents);
+		File file = tempFile(contents);
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			// without a channel, the file is copied into ordinary chunks
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ChunkWriter writer = new ChunkWriter(out);
+			assertEquals(contents.length - 5, writer.transferFrom(NGConstants.CHUNKTYPE_STDOUT, channel, 5, Long.MAX_VALUE));
+			byte[] sent = readStdout(out.toByteArray(), ChunkWriter.DEFAULT_BUFFERSIZE, new StringBuffer());
+			assertEquals(contents.length - 5, sent.length);
+			assertEquals(contents[5], sent[0]);
+			assertEquals(contents[contents.length - 1], sent[sent.length - 1]);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestClassCache extends TestCase {
+
+	private void assertUnknown(ClassCache cache, String name) {
+		try {
+			cache.forName(name);
+			fail("found " + name);
+		} catch (ClassNotFoundException e) {
+			assertEquals(name, e.getMessage());
+		}
+	}
+
+	public void testClasses() throws Exception {
+		ClassCache cache = new ClassCache(2, 60000);
+		assertEquals(String.class, cache.forName("java.lang.String"));
+		assertEquals(String.class, cache.forName("java.lang.String"));
+		assertEquals(Integer.class, cache.forName("java.lang.Integer"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		// String is used more recently than Integer, which is forgotten
+		cache.forName("java.lang.String");
+		cache.forName("java.lang.Long");
+		assertEquals(2, cache.size());
+		cache.forName("java.lang.Integer");
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+
+		assertEquals("Class cache: 2/2 classes, 0 unknown names, 2 hits, 0 negative hits, 4 misses", cache.toString());
+	}
+
+	public void testUnknownNames() throws Exception {
+		ClassCache cache = new ClassCache(2, 60000);
+		assertUnknown(cache, "no.such.Class");
+		assertUnknown(cache, "no.such.Class");
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getNegativeHits());
+		assertEquals(1, cache.unknownSize());
+
+		cache.invalidate();
+		assertEquals(0, cache.unknownSize());
+		assertUnknown(cache, "no.such.Class");
+		assertEquals(2, cache.getMisses());
+	}
+
+	public void testUnknownNamesExpire() throws Exception {
+		ClassCache cache = new ClassCache(2, 20);
+		assertUnknown(cache, "no.such.Class");
+		Thread.sleep(50);
+		assertUnknown(cache, "no.such.Class");
+		assertEquals(0, cache.getNegativeHits());
+		assertEquals(2, cache.getMisses());
+
+		cache.setTtl(0);
+		assertUnknown(cache, "no.such.Class");
+		assertEquals(0, cache.unknownSize());
+
+		// a negative ttl is taken as zero, and forgets the unknown names too
+		cache.setTtl(60000);
+		assertUnknown(cache, "no.such.Class");
+		assertEquals(1, cache.unknownSize());
+		cache.setTtl(-1);
+		assertEquals(0, cache.unknownSize());
+	}
+
+	public void testDisabled() throws Exception {
+		ClassCache cache = new ClassCache(0, 60000);
+		cache.forName("java.lang.String");
+		cache.forName("java.lang.String");
+		assertUnknown(cache, "no.such.Class");
+		assertUnknown(cache, "no.such.Class");
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getNegativeHits());
+		assertEquals(4, cache.getMisses());
+	}
+}
@@ -0,0 +1,110 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGAdmissionQueue extends TestCase {
+
+	private static final long MS = 1000000L;
+
+	private static NGConnection newConnection() {
+		return (new NGConnection(new NGPreamble(), 0, null, 0));
+	}
+
+	public void testBounded() {
+		NGAdmissionQueue queue = new NGAdmissionQueue(2, 0, 100);
+		NGConnection first = newConnection();
+		assertTrue(queue.offer(first, 0));
+		assertTrue(queue.offer(newConnection(), 0));
+		assertFalse(queue.offer(newConnection(), 0));
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.getRejectedCount());
+
+		// without a target, nothing is shed however long it waits
+		List shed = new java.util.ArrayList();
+		assertSame(first, queue.poll(10000 * MS, shed));
+		assertNotNull(queue.poll(10000 * MS, shed));
+		assertNull(queue.poll(10000 * MS, shed));
+		assertEquals(0, shed.size());
+		assertEquals(2, queue.getQueuedCount());
+		assertEquals(20000 * MS, queue.getQueueNanos());
+	}
+
+	public void testBurstAbsorbed() {
+		// waits above the target for less than an interval shed nothing
+		NGAdmissionQueue queue = new NGAdmissionQueue(100, 5, 100);
+		for (int i = 0; i < 10; ++i) queue.offer(newConnection(), 0);
+		List shed = new java.util.ArrayList();
+		for (int i = 0; i < 10; ++i) {
+			assertNotNull(queue.poll((10 + i * 5) * MS, shed));
+		}
+		assertEquals(0, shed.size());
+		assertEquals(0, queue.getShedCount());
+	}
+
+	public void testStandingQueueShed() {
+		NGAdmissionQueue queue = new NGAdmissionQueue(1000, 5, 100);
+		List shed = new java.util.ArrayList();
+		long now = 0;
+
+		// a standing queue: one connection arrives and one is served every
+		// millisecond, with fifty always waiting
+		for (int i = 0; i < 50; ++i) queue.offer(newConnection(), now);
+		int served = 0;
+		for (int i = 0; i < 1000; ++i) {
+			now += MS;
+			queue.offer(newConnection(), now);
+			if (queue.poll(now, shed) != null) ++served;
+		}
+		assertTrue(queue.getShedCount() > 0);
+		assertEquals(shed.size(), queue.getShedCount());
+		assertEquals(1050, served + queue.getShedCount() + queue.size());
+
+		// shedding has drained the backlog down towards the target
+		assertTrue("backlog " + queue.size(), queue.size() < 50);
+	}
+
+	public void testRecovery() {
+		NGAdmissionQueue queue = new NGAdmissionQueue(1000, 5, 100);
+		List shed = new java.util.ArrayList();
+		long now = 0;
+		for (int i = 0; i < 100; ++i) queue.offer(newConnection(), now);
+		now = 200 * MS;
+		queue.poll(now, shed);
+		now += 101 * MS;
+		queue.poll(now, shed);
+		assertEquals(1, queue.getShedCount());
+
+		// once the queue has emptied, new connections are served again
+		while (queue.poll(now, shed) != null) {}
+		long shedSoFar = queue.getShedCount();
+		queue.offer(newConnection(), now);
+		queue.offer(newConnection(), now);
+		assertNotNull(queue.poll(now + MS, shed));
+		assertNotNull(queue.poll(now + MS, shed));
+		assertEquals(shedSoFar, queue.getShedCount());
+	}
+}
@@ -0,0 +1,108 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the ng client built from src/c against a server.  The client is
+ * built by the compile target (see the Makefile); without it, or on
+ * Windows, there is nothing to test.
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGClient extends TestCase {
+
+	/**
+	 * A nail that writes nothing until the client forwards a signal, then
+	 * exits with a status of its own
+	 */
+	public static class Quiet {
+		static CountDownLatch started;
+		static CountDownLatch signalled;
+		static volatile String received;
+
+		public static void nailMain(NGContext context) throws InterruptedException {
+			context.addSignalListener(new NGSignalListener() {
+				public boolean signalReceived(NGContext context, String signal) {
+					received = signal;
+					signalled.countDown();
+					return (true);
+				}
+			});
+			started.countDown();
+			if (signalled.await(10, TimeUnit.SECONDS)) context.exit(42);
+		}
+	}
+
+	private NGServer server = null;
+
+	protected void tearDown() {
+		if (server != null) server.shutdown(false);
+	}
+
+	/**
+	 * Returns the ng client, if it has been built
+	 */
+	private static File client() {
+		if (System.getProperty("os.name").startsWith("Windows")) return (null);
+		File result = new File(System.getProperty("nailgun.client", "ng"));
+		return (result.isFile() && result.canExecute() ? result : null);
+	}
+
+	public void testForwardedSignal() throws Exception {
+		File ng = client();
+		if (ng == null) return;
+
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.getAliasManager().addAlias(new Alias("quiet", "", Quiet.class));
+		new Thread(server).start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		Quiet.started = new CountDownLatch(1);
+		Quiet.signalled = new CountDownLatch(1);
+		Quiet.received = null;
+		ProcessBuilder builder = new ProcessBuilder(ng.getAbsolutePath(), "quiet");
+		builder.environment().put("NAILGUN_SERVER", "127.0.0.1");
+		builder.environment().put("NAILGUN_PORT", String.valueOf(server.getPort()));
+		Process client = builder.start();
+		try {
+			assertTrue(Quiet.started.await(10, TimeUnit.SECONDS));
+			// the server agreed to signals before starting the nail; give
+			// the client time to take that in while the nail is quiet
+			Thread.sleep(200);
+			new ProcessBuilder("kill", "-INT", String.valueOf(client.pid())).start().waitFor();
+
+			// forwarded, rather than ending the client
+			assertTrue(client.waitFor(10, TimeUnit.SECONDS));
+			assertEquals("INT", Quiet.received);
+			assertEquals(42, client.exitValue());
+		} finally {
+			client.destroy();
+		}
+	}
+}
@@ -21,7 +21,10 @@ package com.martiansoftware.nailgun;
 import java.io.ByteArrayInputStream;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.util.zip.Deflater;
+
 import junit.framework.TestCase;
 
 /**
@@ -40,8 +43,7 @@ public class TestNGInputStream extends TestCase {
 	
 	public void testNGInputStreamIntoArray() throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        DataOutputStream dout = new DataOutputStream(out);
-		NGInputStream in = new NGInputStream(new ByteArrayInputStream(TESTDATA), dout);
+		NGInputStream in = new NGInputStream(new ChunkReader(new ByteArrayInputStream(TESTDATA)), new ChunkWriter(out));
 		
 		assertTrue(in.available() > 0);
 		assertFalse(in.markSupported());
@@ -68,7 +70,7 @@ public class TestNGInputStream extends TestCase {
 	
 	public void testNGInputStreamCharByChar() throws Exception {
 		StringBuffer buf = new StringBuffer();
-		NGInputStream in = new NGInputStream(new ByteArrayInputStream(TESTDATA), new DataOutputStream(new ByteArrayOutputStream()));
+		NGInputStream in = new NGInputStream(new ChunkReader(new ByteArrayInputStream(TESTDATA)), new ChunkWriter(new ByteArrayOutputStream()));
 		int c = in.read();
 		while (c != -1) {
 			buf.append((char) c);
@@ -76,4 +78,139 @@ public class TestNGInputStream extends TestCase {
 		}
 		assertEquals(TESTSTRING, buf.toString());
 	}
+
+	public void testCompressedStdin() throws Exception {
+		StringBuffer sbuf = new StringBuffer();
+		for (int i = 0; i < 2000; ++i) {
+			sbuf.append("input ").append(i).append('\n');
+		}
+		byte[] text = sbuf.toString().getBytes("US-ASCII");
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(text);
+		deflater.finish();
+		byte[] compressed = new byte[text.length];
+		int compressedLen = deflater.deflate(compressed);
+		assertTrue(deflater.finished());
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		dout.writeInt(compressedLen + 1);
+		dout.writeByte(NGConstants.CHUNKTYPE_COMPRESSED);
+		dout.writeByte(NGConstants.CHUNKTYPE_STDIN);
+		dout.write(compressed, 0, compressedLen);
+		dout.write(TESTDATA);
+
+		NGInputStream in = new NGInputStream(new ChunkReader(new ByteArrayInputStream(bout.toByteArray())), new ChunkWriter(new ByteArrayOutputStream()));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[1000];
+		int bytesRead;
+		while ((bytesRead = in.read(buf)) != -1) {
+			result.write(buf, 0, bytesRead);
+		}
+		assertEquals(sbuf.toString() + TESTSTRING, result.toString("US-ASCII"));
+	}
+
+	public void testStartInput() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NGInputStream in = new NGInputStream(new ChunkReader(new ByteArrayInputStream(TESTDATA)), new ChunkWriter(out));
+		in.startInput();
+		assertEquals(5, out.size());
+		assertEquals(NGConstants.CHUNKTYPE_STARTINPUT, out.toByteArray()[4]);
+
+		byte[] buf = new byte[1024];
+		while (in.read(buf) != -1);
+		// already asked for
+		assertEquals(5, out.size());
+	}
+
+	private static void writeChunk(DataOutputStream out, byte chunkType, String payload) throws Exception {
+		byte[] b = payload.getBytes("US-ASCII");
+		out.writeInt(b.length);
+		out.writeByte(chunkType);
+		out.write(b);
+	}
+
+	public void testFlowControl() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		writeChunk(dout, NGConstants.CHUNKTYPE_STDIN, "Hello");
+		writeChunk(dout, NGConstants.CHUNKTYPE_CREDIT, "4");
+		writeChunk(dout, NGConstants.CHUNKTYPE_STDIN, ", world");
+		writeChunk(dout, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkWriter writer = new ChunkWriter(out);
+		NGInputStream in = new NGInputStream(new ChunkReader(new ByteArrayInputStream(bout.toByteArray())), writer);
+		FlowControl flowControl = new FlowControl();
+		flowControl.reset(in, "session", "command", 4, 8);
+		in.setFlowControl(flowControl);
+		writer.setFlowControl(flowControl);
+
+		// the second half waits for credit, reading (and holding) stdin to find it
+		byte[] output = "abcdefgh".getBytes("US-ASCII");
+		writer.writeChunk(NGConstants.CHUNKTYPE_STDOUT, output, 0, output.length);
+		FlowControlStats stats = flowControl.getStats();
+		assertEquals(1, stats.getCreditWaits());
+		assertEquals(4, stats.getOutputUnacknowledged());
+		assertEquals(5, stats.getInputBuffered());
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[3];
+		int bytesRead;
+		while ((bytesRead = in.read(buf)) != -1) {
+			result.write(buf, 0, bytesRead);
+		}
+		assertEquals("Hello, world", result.toString("US-ASCII"));
+		assertEquals(0, flowControl.getStats().getInputBuffered());
+
+		// stdout in credit-sized chunks, then credit granted back for stdin
+		// as it was read, half a window at a time
+		DataInputStream sent = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		StringBuffer chunks = new StringBuffer();
+		while (sent.available() > 0) {
+			byte[] payload = new byte[sent.readInt()];
+			chunks.append((char) sent.readByte());
+			sent.readFully(payload);
+			chunks.append(new String(payload, "US-ASCII")).append(' ');
+		}
+		assertEquals("1abcd 1efgh S W5 W6 ", chunks.toString());
+	}
+
+	public void testHeartbeats() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		writeChunk(dout, NGConstants.CHUNKTYPE_HEARTBEAT, "");
+		writeChunk(dout, NGConstants.CHUNKTYPE_STDIN, "Hello");
+		writeChunk(dout, NGConstants.CHUNKTYPE_HEARTBEAT, "");
+		writeChunk(dout, NGConstants.CHUNKTYPE_SIGNAL, "INT");
+		writeChunk(dout, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+		writeChunk(dout, NGConstants.CHUNKTYPE_HEARTBEAT, "");
+		writeChunk(dout, NGConstants.CHUNKTYPE_SIGNAL, "QUIT");
+
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(bout.toByteArray()));
+		ChunkWriter writer = new ChunkWriter(new ByteArrayOutputStream());
+		NGInputStream in = new NGInputStream(reader, writer);
+		FlowControl flowControl = new FlowControl();
+		flowControl.reset(in, "session", "command", 1024, 1024);
+		in.setFlowControl(flowControl);
+		writer.setFlowControl(flowControl);
+		long started = flowControl.getLastHeard();
+		Thread.sleep(20);
+
+		// heartbeats and signals are taken in passing, and not seen as stdin
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buf = new byte[16];
+		int bytesRead;
+		while ((bytesRead = in.read(buf)) != -1) {
+			result.write(buf, 0, bytesRead);
+		}
+		assertEquals("Hello", result.toString("US-ASCII"));
+		// heard from after the pause, not just when the command started
+		assertTrue(flowControl.getLastHeard() - started >= 20000000L);
+
+		// including those that arrive after stdin has ended
+		in.pump();
+		in.pump();
+		assertEquals(0, reader.available());
+	}
 }
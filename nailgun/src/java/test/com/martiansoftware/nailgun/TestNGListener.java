@@ -0,0 +1,207 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests listening on a Unix domain socket.  Such sockets need Java 16 or
+ * later, so they are created reflectively, and without them there is
+ * nothing to test.
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGListener extends TestCase {
+
+	private File dir = null;
+	private String path = null;
+	private NGServer server = null;
+	private NGServer other = null;
+
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("nailgun-test", null);
+		dir.delete();
+		dir.mkdir();
+		path = new File(dir, "ng.sock").getPath();
+	}
+
+	protected void tearDown() {
+		if (other != null) other.shutdown(false);
+		if (server != null) server.shutdown(false);
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; ++i) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	private static boolean supported() {
+		try {
+			Class.forName("java.net.UnixDomainSocketAddress");
+			return (!System.getProperty("os.name").startsWith("Windows"));
+		} catch (ClassNotFoundException e) {
+			return (false);
+		}
+	}
+
+	private static ProtocolFamily unix() throws Exception {
+		return ((ProtocolFamily) StandardProtocolFamily.class.getField("UNIX").get(null));
+	}
+
+	private static SocketAddress address(String path) throws Exception {
+		Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", new Class[] {String.class});
+		return ((SocketAddress) of.invoke(null, new Object[] {path}));
+	}
+
+	private static NGServer newServer(String path) {
+		NGServer result = new NGServer();
+		result.setUnixSocketPath(path);
+		result.setListenOnTcp(false);
+		return (result);
+	}
+
+	/**
+	 * Opens a channel to the socket at the specified path
+	 */
+	private static SocketChannel connect(String path) throws Exception {
+		Method open = SocketChannel.class.getMethod("open", new Class[] {ProtocolFamily.class});
+		SocketChannel channel = (SocketChannel) open.invoke(null, new Object[] {unix()});
+		try {
+			channel.connect(address(path));
+		} catch (IOException e) {
+			channel.close();
+			throw (e);
+		}
+		return (channel);
+	}
+
+	/**
+	 * Starts a server and waits until it accepts connections.  The socket
+	 * file appears when it is bound, slightly before it is listened on.
+	 */
+	private static void start(NGServer server, String path) throws Exception {
+		new Thread(server).start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				connect(path).close();
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) throw (e);
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * Runs ng-version over the socket at the specified path
+	 * @return the exit status
+	 */
+	private static String runVersion(String path) throws Exception {
+		SocketChannel channel = connect(path);
+		try {
+			DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+			byte[] command = "ng-version".getBytes("US-ASCII");
+			out.writeInt(command.length);
+			out.writeByte(NGConstants.CHUNKTYPE_COMMAND);
+			out.write(command);
+			out.flush();
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			while (true) {
+				int len = in.readInt();
+				byte chunkType = in.readByte();
+				byte[] payload = new byte[len];
+				in.readFully(payload);
+				if (chunkType == NGConstants.CHUNKTYPE_EXIT) return (new String(payload, "US-ASCII").trim());
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	public void testRunsCommand() throws Exception {
+		if (!supported()) return;
+		server = newServer(path);
+		start(server, path);
+		assertEquals("0", runVersion(path));
+
+		// the socket is the server's, and goes with it
+		server.shutdown(false);
+		assertFalse(new File(path).exists());
+	}
+
+	public void testReplacesStaleSocket() throws Exception {
+		if (!supported()) return;
+		// left behind, with nothing listening
+		Method open = ServerSocketChannel.class.getMethod("open", new Class[] {ProtocolFamily.class});
+		ServerSocketChannel stale = (ServerSocketChannel) open.invoke(null, new Object[] {unix()});
+		stale.bind(address(path));
+		stale.close();
+		assertTrue(new File(path).exists());
+
+		server = newServer(path);
+		start(server, path);
+		assertEquals("0", runVersion(path));
+	}
+
+	public void testRefusesOtherFiles() throws Exception {
+		if (!supported()) return;
+		FileOutputStream out = new FileOutputStream(path);
+		out.write("keep me".getBytes("US-ASCII"));
+		out.close();
+
+		// run on this thread, returning as soon as the bind fails
+		server = newServer(path);
+		server.run();
+		assertFalse(server.isRunning());
+		assertTrue(new File(path).isFile());
+		assertEquals(7, new File(path).length());
+
+		// nor does shutting down remove it
+		server.shutdown(false);
+		assertTrue(new File(path).isFile());
+	}
+
+	public void testRefusesRunningServersSocket() throws Exception {
+		if (!supported()) return;
+		server = newServer(path);
+		start(server, path);
+
+		other = newServer(path);
+		other.run();
+		assertFalse(other.isRunning());
+		// shutting down the server that failed leaves the socket alone
+		other.shutdown(false);
+		assertTrue(new File(path).exists());
+		assertEquals("0", runVersion(path));
+	}
+}
@@ -0,0 +1,326 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGMultiplexer extends TestCase {
+
+	/**
+	 * A nail that copies its stdin to stdout
+	 */
+	public static class Cat {
+		public static void nailMain(NGContext context) throws IOException {
+			byte[] buf = new byte[1024];
+			for (int n = context.in.read(buf); n != -1; n = context.in.read(buf)) {
+				context.out.write(buf, 0, n);
+			}
+			context.out.flush();
+		}
+	}
+
+	/**
+	 * A nail that exits with the status given as its argument
+	 */
+	public static class Exit {
+		public static void nailMain(NGContext context) {
+			context.exit(Integer.parseInt(context.getArgs()[0]));
+		}
+	}
+
+	/**
+	 * A nail that reads nothing until it is let go, and exits with status
+	 * 3 if its stdin then fails
+	 */
+	public static class Late {
+		static final Object lock = new Object();
+		static boolean go = false;
+
+		public static void nailMain(NGContext context) throws InterruptedException {
+			synchronized(lock) {
+				while (!go) lock.wait();
+			}
+			try {
+				while (context.in.read() != -1) {}
+			} catch (IOException e) {
+				context.exit(3);
+			}
+		}
+	}
+
+	private NGServer server = null;
+	private Socket socket = null;
+	private DataOutputStream out = null;
+	private DataInputStream in = null;
+
+	/**
+	 * The output and exit status of each stream, by stream id
+	 */
+	private Map output = new HashMap();
+	private Map status = new HashMap();
+
+	protected void tearDown() throws IOException {
+		synchronized(Late.lock) {
+			Late.go = true;
+			Late.lock.notifyAll();
+		}
+		if (socket != null) socket.close();
+		if (server != null) server.shutdown(false);
+	}
+
+	private void startServer(int maxSessions, int maxPending) throws Exception {
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.setMaxSessions(maxSessions);
+		server.setAdmissionControl(maxPending, 0, 100);
+		server.getAliasManager().addAlias(new Alias("cat", "", Cat.class));
+		server.getAliasManager().addAlias(new Alias("exit", "", Exit.class));
+		server.getAliasManager().addAlias(new Alias("late", "", Late.class));
+		new Thread(server).start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(10000);
+		out = new DataOutputStream(socket.getOutputStream());
+		in = new DataInputStream(new java.io.BufferedInputStream(socket.getInputStream()));
+		out.writeInt(0);
+		out.writeByte(NGConstants.CHUNKTYPE_MULTIPLEX);
+		out.flush();
+		assertEquals(0, in.readInt());
+		assertEquals(NGConstants.CHUNKTYPE_MULTIPLEX, in.readByte());
+	}
+
+	private void send(int id, byte chunkType, byte[] payload) throws IOException {
+		out.writeInt(payload.length);
+		out.writeByte(chunkType);
+		out.writeInt(id);
+		out.write(payload);
+		out.flush();
+	}
+
+	private void send(int id, byte chunkType, String payload) throws IOException {
+		send(id, chunkType, payload.getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Reads chunks until the specified stream has exited, collecting every
+	 * stream's output and exit status
+	 * @return the stream's exit status
+	 */
+	private int awaitExit(int id) throws IOException {
+		Integer key = Integer.valueOf(id);
+		while (!status.containsKey(key)) {
+			int len = in.readInt();
+			byte chunkType = in.readByte();
+			Integer streamId = Integer.valueOf(in.readInt());
+			byte[] payload = new byte[len];
+			in.readFully(payload);
+			if (chunkType == NGConstants.CHUNKTYPE_STDOUT) {
+				ByteArrayOutputStream bout = (ByteArrayOutputStream) output.get(streamId);
+				if (bout == null) {
+					bout = new ByteArrayOutputStream();
+					output.put(streamId, bout);
+				}
+				bout.write(payload);
+			} else if (chunkType == NGConstants.CHUNKTYPE_EXIT) {
+				status.put(streamId, Integer.valueOf(new String(payload, "US-ASCII").trim()));
+			}
+		}
+		return (((Integer) status.get(key)).intValue());
+	}
+
+	private String outputOf(int id) {
+		ByteArrayOutputStream bout = (ByteArrayOutputStream) output.get(Integer.valueOf(id));
+		return ((bout == null) ? "" : bout.toString());
+	}
+
+	public void testInterleavedStreams() throws Exception {
+		startServer(0, NGServer.DEFAULT_MAXPENDING);
+
+		// chunks of two preambles, interleaved
+		send(1, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/tmp");
+		send(2, NGConstants.CHUNKTYPE_ARGUMENT, "7");
+		send(2, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/tmp");
+		send(1, NGConstants.CHUNKTYPE_COMMAND, "cat");
+		send(1, NGConstants.CHUNKTYPE_STDIN, "one ");
+		send(2, NGConstants.CHUNKTYPE_COMMAND, "exit");
+
+		// the second exits while the first still waits for its input
+		assertEquals(7, awaitExit(2));
+		assertFalse(status.containsKey(Integer.valueOf(1)));
+
+		send(1, NGConstants.CHUNKTYPE_STDIN, "two");
+		send(1, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+		assertEquals(0, awaitExit(1));
+		assertEquals("one two", outputOf(1));
+
+		// a finished stream's id may be used again
+		status.clear();
+		send(2, NGConstants.CHUNKTYPE_ARGUMENT, "9");
+		send(2, NGConstants.CHUNKTYPE_COMMAND, "exit");
+		assertEquals(9, awaitExit(2));
+
+		// the connection closes once the client is done and no stream runs
+		socket.shutdownOutput();
+		try {
+			in.readInt();
+			fail("connection still open");
+		} catch (EOFException e) {
+		}
+	}
+
+	public void testStreamsNeedNoSpareSession() throws Exception {
+		// one session and no admission queue: the reader must not need a
+		// session, nor wait for one
+		startServer(1, 0);
+
+		send(1, NGConstants.CHUNKTYPE_COMMAND, "cat");
+		send(1, NGConstants.CHUNKTYPE_STDIN, "running");
+		send(2, NGConstants.CHUNKTYPE_ARGUMENT, "5");
+		send(2, NGConstants.CHUNKTYPE_COMMAND, "exit");
+		assertEquals(NGConstants.EXIT_OVERLOADED, awaitExit(2));
+
+		// the first is still read for
+		send(1, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+		assertEquals(0, awaitExit(1));
+		assertEquals("running", outputOf(1));
+	}
+
+	public void testInputBeyondWindow() throws Exception {
+		Late.go = false;
+		startServer(0, NGServer.DEFAULT_MAXPENDING);
+		int limit = Math.max(server.getInputWindow(), NGConstants.EAGER_STDIN_WINDOW) + NGMultiplexer.CONTROL_ALLOWANCE;
+
+		send(1, NGConstants.CHUNKTYPE_COMMAND, "late");
+		send(2, NGConstants.CHUNKTYPE_COMMAND, "cat");
+		byte[] chunk = new byte[4096];
+		for (int sent = 0; sent <= limit; sent += chunk.length + 5) {
+			send(1, NGConstants.CHUNKTYPE_STDIN, chunk);
+		}
+		send(1, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+
+		// the other stream is unaffected
+		send(2, NGConstants.CHUNKTYPE_STDIN, "fine");
+		send(2, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+		assertEquals(0, awaitExit(2));
+		assertEquals("fine", outputOf(2));
+
+		synchronized(Late.lock) {
+			Late.go = true;
+			Late.lock.notifyAll();
+		}
+		assertEquals(3, awaitExit(1));
+	}
+
+	public void testStreamLimit() throws Exception {
+		startServer(0, NGServer.DEFAULT_MAXPENDING);
+		server.setMaxStreams(2);
+
+		// one stream running, one still sending its preamble
+		send(1, NGConstants.CHUNKTYPE_COMMAND, "cat");
+		send(2, NGConstants.CHUNKTYPE_ARGUMENT, "4");
+
+		// a third is turned away, once, however long its preamble
+		send(3, NGConstants.CHUNKTYPE_ARGUMENT, "5");
+		send(3, NGConstants.CHUNKTYPE_ENVIRONMENT, "A=B");
+		send(3, NGConstants.CHUNKTYPE_COMMAND, "exit");
+		assertEquals(NGConstants.EXIT_OVERLOADED, awaitExit(3));
+
+		send(2, NGConstants.CHUNKTYPE_COMMAND, "exit");
+		assertEquals(4, awaitExit(2));
+
+		// with a stream finished, another may start
+		send(1, NGConstants.CHUNKTYPE_STDIN, "still here");
+		send(4, NGConstants.CHUNKTYPE_ARGUMENT, "6");
+		send(4, NGConstants.CHUNKTYPE_COMMAND, "exit");
+		assertEquals(6, awaitExit(4));
+		send(1, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+		assertEquals(0, awaitExit(1));
+		assertEquals("still here", outputOf(1));
+
+		// no stray exit chunks followed the first for the refused stream
+		socket.shutdownOutput();
+		int exits = 0;
+		try {
+			while (true) {
+				int len = in.readInt();
+				byte chunkType = in.readByte();
+				in.readInt();
+				in.skipBytes(len);
+				if (chunkType == NGConstants.CHUNKTYPE_EXIT) ++exits;
+			}
+		} catch (EOFException e) {
+		}
+		assertEquals(0, exits);
+	}
+
+	public void testPreambleTooLong() throws Exception {
+		startServer(0, NGServer.DEFAULT_MAXPENDING);
+		send(1, NGConstants.CHUNKTYPE_COMMAND, "cat");
+
+		// a stream whose preamble is too long is turned away alone
+		byte[] arg = new byte[NGPreamble.MAX_CHUNK_LENGTH];
+		java.util.Arrays.fill(arg, (byte) 'x');
+		for (int sent = 0; sent <= NGPreamble.MAX_PREAMBLE_LENGTH; sent += arg.length) {
+			send(2, NGConstants.CHUNKTYPE_ARGUMENT, arg);
+		}
+		send(2, NGConstants.CHUNKTYPE_COMMAND, "exit");
+		assertEquals(NGConstants.EXIT_EXCEPTION, awaitExit(2));
+
+		// the rest of its preamble was discarded, and its id may be reused
+		status.clear();
+		send(2, NGConstants.CHUNKTYPE_ARGUMENT, "7");
+		send(2, NGConstants.CHUNKTYPE_COMMAND, "exit");
+		assertEquals(7, awaitExit(2));
+
+		send(1, NGConstants.CHUNKTYPE_STDIN, "still here");
+		send(1, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+		assertEquals(0, awaitExit(1));
+		assertEquals("still here", outputOf(1));
+	}
+
+	public void testInvalidChunkLength() throws Exception {
+		startServer(0, NGServer.DEFAULT_MAXPENDING);
+		out.writeInt(-1);
+		out.writeByte(NGConstants.CHUNKTYPE_STDIN);
+		out.writeInt(1);
+		out.flush();
+		try {
+			in.readInt();
+			fail("connection still open");
+		} catch (EOFException e) {
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGOutputStream extends TestCase {
+
+	private ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	private ChunkWriter writer = new ChunkWriter(bout);
+
+	/**
+	 * Returns the chunks written so far, as "type:payload" strings
+	 */
+	private List chunks() throws IOException {
+		List result = new ArrayList();
+		byte[] data;
+		synchronized(bout) {
+			data = bout.toByteArray();
+		}
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(data));
+		while (reader.available() > 0) {
+			byte chunkType = reader.readHeader();
+			byte[] b = new byte[reader.getChunkLength()];
+			reader.readFully(b, 0, b.length);
+			result.add((char) chunkType + ":" + new String(b, "US-ASCII"));
+		}
+		return (result);
+	}
+
+	public void testImmediate() throws IOException {
+		PrintStream out = new PrintStream(new NGOutputStream(writer, NGConstants.CHUNKTYPE_STDOUT));
+		out.print("a");
+		out.write('b');
+		assertEquals(2, chunks().size());
+		assertEquals("1:b", chunks().get(1));
+	}
+
+	public void testLine() throws IOException {
+		PrintStream out = new PrintStream(new NGOutputStream(writer, NGConstants.CHUNKTYPE_STDOUT, FlushPolicy.LINE));
+		out.print("partial");
+		assertEquals(0, chunks().size());
+		out.println(" line");
+		out.println("second");
+		assertEquals(2, chunks().size());
+		assertEquals("1:partial line\n", chunks().get(0));
+		out.print("prompt: ");
+		out.flush();
+		assertEquals("1:prompt: ", chunks().get(2));
+	}
+
+	public void testBlockAndExit() throws IOException {
+		NGOutputStream stdout = new NGOutputStream(writer, NGConstants.CHUNKTYPE_STDOUT, FlushPolicy.BLOCK);
+		NGOutputStream stderr = new NGOutputStream(writer, NGConstants.CHUNKTYPE_STDERR, FlushPolicy.BLOCK);
+		NGOutputStream exit = new NGOutputStream(writer, NGConstants.CHUNKTYPE_EXIT, FlushPolicy.BLOCK);
+		exit.setPrecedingStreams(new NGOutputStream[] {stdout, stderr});
+
+		PrintStream out = new PrintStream(stdout);
+		for (int i = 0; i < 1000; ++i) {
+			out.println(i);
+		}
+		new PrintStream(stderr).print("oops");
+		assertEquals(0, chunks().size());
+
+		new PrintStream(exit).println(0);
+		List chunks = chunks();
+		assertTrue(((String) chunks.get(chunks.size() - 1)).startsWith("X:0"));
+		assertEquals("2:oops", chunks.get(chunks.size() - 2));
+		assertTrue(((String) chunks.get(0)).startsWith("1:0\n1\n2\n"));
+		// the 3890 bytes of stdout fit in a single chunk
+		assertEquals(3, chunks.size());
+	}
+
+	public void testWithin() throws Exception {
+		PrintStream out = new PrintStream(new NGOutputStream(writer, NGConstants.CHUNKTYPE_STDOUT, FlushPolicy.within(20)));
+		out.println("one");
+		out.println("two");
+		assertEquals(0, chunks().size());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (chunks().size() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, chunks().size());
+		assertEquals("1:one\ntwo\n", chunks().get(0));
+	}
+
+	public void testPolicyForClient() {
+		Properties env = new Properties();
+		assertSame(FlushPolicy.IMMEDIATE, FlushPolicy.forClient(null, env, 1));
+		env.setProperty("NAILGUN_TTY_1", "1");
+		env.setProperty("NAILGUN_TTY_2", "0");
+		assertSame(FlushPolicy.LINE, FlushPolicy.forClient(null, env, 1));
+		assertEquals(FlushPolicy.DEFAULT_MAXDELAY, FlushPolicy.forClient(null, env, 2).getMaxDelay());
+		assertSame(FlushPolicy.BLOCK, FlushPolicy.forClient(FlushPolicy.BLOCK, env, 1));
+		env.setProperty("NAILGUN_FLUSH", "2ms");
+		assertEquals(2, FlushPolicy.forClient(FlushPolicy.BLOCK, env, 1).getMaxDelay());
+		env.setProperty("NAILGUN_FLUSH", "bogus");
+		assertSame(FlushPolicy.BLOCK, FlushPolicy.forClient(FlushPolicy.BLOCK, env, 1));
+
+		assertSame(FlushPolicy.LINE, FlushPolicy.forName(" Line"));
+		assertEquals("5ms", FlushPolicy.forName("5").toString());
+		try {
+			FlushPolicy.forName("0ms");
+			fail("accepted a zero delay");
+		} catch (IllegalArgumentException expected) {}
+	}
+}
@@ -0,0 +1,412 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGPreamble extends TestCase {
+
+	private static void writeChunk(DataOutputStream out, byte chunkType, String payload) throws Exception {
+		byte[] b = payload.getBytes("US-ASCII");
+		out.writeInt(b.length);
+		out.writeByte(chunkType);
+		out.write(b);
+	}
+
+	public void testReadFrom() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		writeChunk(out, NGConstants.CHUNKTYPE_ARGUMENT, "one");
+		writeChunk(out, NGConstants.CHUNKTYPE_ARGUMENT, "two");
+		writeChunk(out, NGConstants.CHUNKTYPE_ENVIRONMENT, "HOME=/home/test");
+		writeChunk(out, NGConstants.CHUNKTYPE_ENVIRONMENT, "EQUATION=a=b");
+		writeChunk(out, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/tmp");
+		writeChunk(out, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		writeChunk(out, NGConstants.CHUNKTYPE_STDIN, "not part of the preamble");
+
+		ChunkReader in = new ChunkReader(new ByteArrayInputStream(bout.toByteArray()));
+		NGPreamble preamble = new NGPreamble();
+		assertFalse(preamble.isComplete());
+		preamble.readFrom(in, new ChunkWriter(new ByteArrayOutputStream()));
+
+		assertTrue(preamble.isComplete());
+		assertEquals(2, preamble.getArgs().length);
+		assertEquals("two", preamble.getArgs()[1]);
+		assertEquals("/home/test", preamble.getEnv().getProperty("HOME"));
+		assertEquals("a=b", preamble.getEnv().getProperty("EQUATION"));
+		assertEquals("/tmp", preamble.getWorkingDirectory());
+		assertEquals("ng-version", preamble.getCommand());
+
+		// the stdin chunk must be left unread
+		assertEquals(5 + "not part of the preamble".length(), in.available());
+	}
+
+	public void testAddChunk() throws Exception {
+		NGPreamble preamble = new NGPreamble();
+		byte[] b = "xxcommandxx".getBytes("US-ASCII");
+		assertFalse(preamble.addChunk(NGConstants.CHUNKTYPE_WORKINGDIRECTORY, b, 0, 2));
+		assertTrue(preamble.addChunk(NGConstants.CHUNKTYPE_COMMAND, b, 2, 7));
+		assertEquals("command", preamble.getCommand());
+		assertEquals(0, preamble.getArgs().length);
+	}
+
+	public void testKeepAlive() throws Exception {
+		NGPreamble preamble = new NGPreamble();
+		byte[] b = "ng-version".getBytes("US-ASCII");
+		assertFalse(preamble.isKeepAlive());
+
+		// stdin left over from a previous command is ignored
+		preamble.addChunk(NGConstants.CHUNKTYPE_STDIN, b, 0, 2);
+		preamble.addChunk(NGConstants.CHUNKTYPE_STDIN_EOF, b, 0, 0);
+		preamble.addChunk(NGConstants.CHUNKTYPE_KEEPALIVE, b, 0, 0);
+		assertTrue(preamble.addChunk(NGConstants.CHUNKTYPE_COMMAND, b, 0, b.length));
+		assertTrue(preamble.isKeepAlive());
+		assertEquals("ng-version", preamble.getCommand());
+		assertEquals(0, preamble.getArgs().length);
+	}
+
+	public void testCompression() throws Exception {
+		NGPreamble preamble = new NGPreamble();
+		assertFalse(preamble.acceptsDeflate());
+		addText(preamble, NGConstants.CHUNKTYPE_COMPRESSION, "lz4, deflate");
+		assertTrue(preamble.acceptsDeflate());
+		preamble.reset();
+		addText(preamble, NGConstants.CHUNKTYPE_COMPRESSION, "deflate64");
+		assertFalse(preamble.acceptsDeflate());
+	}
+
+	public void testOutputWindow() throws Exception {
+		NGPreamble preamble = new NGPreamble();
+		assertEquals(0, preamble.getOutputWindow());
+		addText(preamble, NGConstants.CHUNKTYPE_CREDIT, "262144");
+		assertEquals(262144, preamble.getOutputWindow());
+		preamble.reset();
+		assertEquals(0, preamble.getOutputWindow());
+		addText(preamble, NGConstants.CHUNKTYPE_CREDIT, "lots");
+		assertEquals(0, preamble.getOutputWindow());
+	}
+
+	public void testHeartbeatInterval() throws Exception {
+		NGPreamble preamble = new NGPreamble();
+		assertEquals(0, preamble.getHeartbeatInterval());
+		addText(preamble, NGConstants.CHUNKTYPE_HEARTBEAT, "1000");
+		assertEquals(1000, preamble.getHeartbeatInterval());
+		// a late heartbeat from the previous command is not an offer
+		addText(preamble, NGConstants.CHUNKTYPE_HEARTBEAT, "");
+		assertEquals(1000, preamble.getHeartbeatInterval());
+		preamble.reset();
+		assertEquals(0, preamble.getHeartbeatInterval());
+		addText(preamble, NGConstants.CHUNKTYPE_HEARTBEAT, "often");
+		assertEquals(0, preamble.getHeartbeatInterval());
+	}
+
+	public void testSignals() throws Exception {
+		NGPreamble preamble = new NGPreamble();
+		assertFalse(preamble.offersSignals());
+		// a late signal from the previous command is not an offer
+		addText(preamble, NGConstants.CHUNKTYPE_SIGNAL, "INT");
+		assertFalse(preamble.offersSignals());
+		addText(preamble, NGConstants.CHUNKTYPE_SIGNAL, "");
+		assertTrue(preamble.offersSignals());
+		preamble.reset();
+		assertFalse(preamble.offersSignals());
+	}
+
+	private static void addText(NGPreamble preamble, byte chunkType, String text) throws Exception {
+		byte[] b = text.getBytes("US-ASCII");
+		preamble.addChunk(chunkType, b, 0, b.length);
+	}
+
+	private static void addRequest(NGPreamble preamble, String home) throws Exception {
+		preamble.reset();
+		addText(preamble, NGConstants.CHUNKTYPE_ARGUMENT, "one");
+		addText(preamble, NGConstants.CHUNKTYPE_ENVIRONMENT, "HOME=" + home);
+		addText(preamble, NGConstants.CHUNKTYPE_ENVIRONMENT, "USER=test");
+		addText(preamble, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+	}
+
+	public void testReuse() throws Exception {
+		NGPreamble preamble = new NGPreamble();
+		addRequest(preamble, "/home/test");
+		String command = preamble.getCommand();
+		String[] args = preamble.getArgs();
+		Properties env = preamble.getEnv();
+
+		// the same preamble again yields the same objects
+		addRequest(preamble, "/home/test");
+		assertSame(command, preamble.getCommand());
+		assertSame(args, preamble.getArgs());
+		assertSame(env, preamble.getEnv());
+
+		// but not once a nail has changed them
+		args[0] = "changed";
+		env.setProperty("USER", "changed");
+		addRequest(preamble, "/home/test");
+		assertNotSame(args, preamble.getArgs());
+		assertEquals("one", preamble.getArgs()[0]);
+		assertNotSame(env, preamble.getEnv());
+		assertEquals("test", preamble.getEnv().getProperty("USER"));
+
+		// nor when the client sends something different
+		env = preamble.getEnv();
+		addRequest(preamble, "/home/other");
+		assertNotSame(env, preamble.getEnv());
+		assertEquals("/home/other", preamble.getEnv().getProperty("HOME"));
+		assertEquals(2, preamble.getEnv().size());
+	}
+
+	private static String read(InputStream in) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1) bout.write(c);
+		return (bout.toString("US-ASCII"));
+	}
+
+	public void testLongArgs() throws Exception {
+		NGPreamble preamble = new NGPreamble(16);
+		addText(preamble, NGConstants.CHUNKTYPE_ARGUMENT, "one");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "0123456789");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "abcdefghij");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "ABCDEFGHIJ");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "short");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "");
+		addText(preamble, NGConstants.CHUNKTYPE_ARGUMENT, "two");
+		addText(preamble, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+
+		String[] args = preamble.getArgs();
+		LongArgument[] longArgs = preamble.getLongArgs();
+		assertEquals(5, args.length);
+		assertEquals(5, longArgs.length);
+		assertEquals("one", args[0]);
+		assertNull(longArgs[0]);
+		assertNull(args[1]);
+		assertEquals("two", args[4]);
+
+		// the first is past the threshold, so went to a file
+		assertTrue(longArgs[1].isSpilled());
+		assertEquals(30, longArgs[1].length());
+		assertEquals("0123456789abcdefghijABCDEFGHIJ", read(longArgs[1].getInputStream()));
+		assertEquals(30, longArgs[1].map().remaining());
+		assertEquals('a', longArgs[1].map().get(10));
+		assertFalse(longArgs[2].isSpilled());
+		assertEquals("short", read(longArgs[2].getInputStream()));
+		assertEquals(5, longArgs[2].map().remaining());
+		assertEquals(0, longArgs[3].length());
+
+		LongArgument.decodeInto(args, longArgs);
+		assertEquals("0123456789abcdefghijABCDEFGHIJ", args[1]);
+		assertEquals("short", args[2]);
+		assertEquals("", args[3]);
+
+		preamble.releaseLongArgs();
+		try {
+			longArgs[1].getInputStream();
+			fail("long argument still readable after release");
+		} catch (IOException expected) {}
+
+		// a command without long arguments has none to report
+		addRequest(preamble, "/home/test");
+		assertNull(preamble.getLongArgs());
+		assertEquals("one", preamble.getArgs()[0]);
+	}
+
+	public void testChunkLengths() throws Exception {
+		// an HTTP request, say, read as a chunk header
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		bout.write("GET / HTTP/1.1\r\n".getBytes("US-ASCII"));
+		try {
+			new NGPreamble().readFrom(new ChunkReader(new ByteArrayInputStream(bout.toByteArray())), new ChunkWriter(new ByteArrayOutputStream()));
+			fail("accepted a chunk of " + 0x47455420 + " bytes");
+		} catch (IOException e) {
+			assertEquals("Invalid chunk length " + 0x47455420, e.getMessage());
+		}
+
+		// a long argument may be longer, and is taken a piece at a time
+		char[] c = new char[NGPreamble.MAX_CHUNK_LENGTH + 1];
+		java.util.Arrays.fill(c, 'x');
+		String longArg = new String(c);
+		bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		writeChunk(out, NGConstants.CHUNKTYPE_LONGARG, longArg);
+		writeChunk(out, NGConstants.CHUNKTYPE_LONGARG, "");
+		writeChunk(out, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		NGPreamble preamble = new NGPreamble(16);
+		preamble.readFrom(new ChunkReader(new ByteArrayInputStream(bout.toByteArray())), new ChunkWriter(new ByteArrayOutputStream()));
+		assertEquals(longArg.length(), preamble.getLongArgs()[0].length());
+		preamble.releaseLongArgs();
+	}
+
+	public void testPreambleLength() throws Exception {
+		// each chunk is short enough, but there is no end to them
+		NGPreamble preamble = new NGPreamble();
+		byte[] b = new byte[1000];
+		java.util.Arrays.fill(b, (byte) 'x');
+		b[0] = 'A';
+		b[1] = '=';
+		int added = 0;
+		try {
+			while (true) {
+				preamble.addChunk(NGConstants.CHUNKTYPE_ENVIRONMENT, b, 0, b.length);
+				added += 5 + b.length;
+				assertTrue(added <= NGPreamble.MAX_PREAMBLE_LENGTH);
+			}
+		} catch (IOException e) {
+			assertEquals("Preamble longer than " + NGPreamble.MAX_PREAMBLE_LENGTH + " bytes", e.getMessage());
+		}
+		assertTrue(added > NGPreamble.MAX_PREAMBLE_LENGTH - 5 - b.length);
+
+		// the count starts again with the next preamble
+		preamble.reset();
+		assertFalse(preamble.addChunk(NGConstants.CHUNKTYPE_ARGUMENT, b, 0, b.length));
+	}
+
+	public void testLongArgLength() throws Exception {
+		NGServer server = new NGServer();
+		server.setLongArgThreshold(4);
+		server.setMaxLongArgLength(25);
+		NGPreamble preamble = new NGPreamble(server);
+
+		// the limit covers all of a command's long arguments together
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "0123456789");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "abcdefghij");
+		LongArgument spilled = preamble.getLongArgs()[0];
+		assertTrue(spilled.isSpilled());
+		try {
+			addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "ABCDEFGHIJ");
+			fail("long arguments past the limit were accepted");
+		} catch (IOException e) {
+			assertEquals("Long arguments longer than 25 bytes", e.getMessage());
+		}
+
+		// the rejected command's files are deleted by whoever was reading it
+		preamble.releaseLongArgs();
+		try {
+			spilled.getInputStream();
+			fail("long argument still readable after release");
+		} catch (IOException expected) {}
+
+		// the count starts again with the next preamble
+		preamble.reset();
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "0123456789abcdefghij");
+		addText(preamble, NGConstants.CHUNKTYPE_LONGARG, "");
+		addText(preamble, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		assertEquals(20, preamble.getLongArgs()[0].length());
+		preamble.releaseLongArgs();
+	}
+
+	private static String digest(String[] env) throws Exception {
+		MessageDigest hash = MessageDigest.getInstance("SHA-256");
+		for (int i = 0; i < env.length; ++i) {
+			hash.update(env[i].getBytes("US-ASCII"));
+			hash.update((byte) 0);
+		}
+		StringBuffer result = new StringBuffer();
+		byte[] b = hash.digest();
+		for (int i = 0; i < b.length; ++i) {
+			result.append(Integer.toHexString((b[i] & 0xff) | 0x100).substring(1));
+		}
+		return (result.toString());
+	}
+
+	private static String addEnvRequest(NGPreamble preamble, String digest, String[] env) throws Exception {
+		preamble.reset();
+		addText(preamble, NGConstants.CHUNKTYPE_ENVDIGEST, digest);
+		byte[] reply = preamble.takeReply();
+		for (int i = 0; env != null && i < env.length; ++i) {
+			addText(preamble, NGConstants.CHUNKTYPE_ENVIRONMENT, env[i]);
+		}
+		addText(preamble, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		assertNull(preamble.takeReply());
+		return (new String(reply, "US-ASCII"));
+	}
+
+	public void testEnvDigest() throws Exception {
+		NGServer server = new NGServer();
+		server.setEnvironmentCacheSize(2);
+		EnvironmentCache cache = server.getEnvironmentCache();
+		NGPreamble preamble = new NGPreamble(server);
+		String[] env = {"HOME=/home/test", "USER=test"};
+		String digest = digest(env);
+
+		// the first time, the client must send its environment
+		assertEquals("0", addEnvRequest(preamble, digest, env));
+		assertEquals("test", preamble.getEnv().getProperty("USER"));
+		assertEquals(1, cache.size());
+
+		// after which the digest alone will do
+		assertEquals("1", addEnvRequest(preamble, digest, null));
+		assertEquals(2, preamble.getEnv().size());
+		assertEquals("/home/test", preamble.getEnv().getProperty("HOME"));
+		assertEquals(1, cache.getHits());
+
+		// even in a different session
+		NGPreamble other = new NGPreamble(server);
+		assertEquals("1", addEnvRequest(other, digest, null));
+		assertEquals("test", other.getEnv().getProperty("USER"));
+
+		// an environment sent despite a hit takes precedence
+		assertEquals("1", addEnvRequest(preamble, digest, new String[] {"USER=other"}));
+		assertEquals(1, preamble.getEnv().size());
+		assertEquals("other", preamble.getEnv().getProperty("USER"));
+
+		// an environment that doesn't match its digest isn't cached
+		assertEquals("0", addEnvRequest(preamble, "0123456789abcdef", env));
+		assertEquals("0", addEnvRequest(preamble, "0123456789abcdef", null));
+		assertEquals(0, preamble.getEnv().size());
+		assertEquals(1, cache.size());
+
+		// the least recently used environment is forgotten
+		String[] env2 = {"USER=two"};
+		String[] env3 = {"USER=three"};
+		addEnvRequest(preamble, digest(env2), env2);
+		addEnvRequest(preamble, digest(env3), env3);
+		assertEquals(2, cache.size());
+		assertEquals("0", addEnvRequest(preamble, digest, env));
+	}
+
+	public void testEnvDigestReply() throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bout);
+		writeChunk(out, NGConstants.CHUNKTYPE_ENVDIGEST, "0123456789abcdef");
+		writeChunk(out, NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+
+		ByteArrayOutputStream replies = new ByteArrayOutputStream();
+		NGPreamble preamble = new NGPreamble(new NGServer());
+		preamble.readFrom(new ChunkReader(new ByteArrayInputStream(bout.toByteArray())), new ChunkWriter(replies));
+		byte[] reply = replies.toByteArray();
+		assertEquals(6, reply.length);
+		assertEquals(NGConstants.CHUNKTYPE_ENVDIGEST, reply[4]);
+		assertEquals('0', reply[5]);
+	}
+}
@@ -0,0 +1,413 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGSession extends TestCase {
+
+	/**
+	 * The most a session may allocate, in bytes, to serve a command that
+	 * does nothing on a kept-alive connection
+	 */
+	private static final long ALLOCATION_BUDGET = 1024;
+
+	private static final int REQUESTS = 2000;
+
+	/**
+	 * A nail that does nothing
+	 */
+	public static class NoOp {
+		public static void nailMain(NGContext context) {
+		}
+	}
+
+	/**
+	 * A nail that waits until it is interrupted
+	 */
+	public static class Blocker {
+		static CountDownLatch started;
+		static CountDownLatch interrupted;
+
+		public static void nailMain(NGContext context) {
+			started.countDown();
+			try {
+				Thread.sleep(30000);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+		}
+	}
+
+	/**
+	 * A nail that listens for a signal, and deals with it itself
+	 */
+	public static class Listener {
+		static CountDownLatch started;
+		static CountDownLatch signalled;
+		static volatile String received;
+
+		public static void nailMain(NGContext context) throws InterruptedException {
+			context.addSignalListener(new NGSignalListener() {
+				public boolean signalReceived(NGContext context, String signal) {
+					received = signal;
+					signalled.countDown();
+					return (true);
+				}
+			});
+			started.countDown();
+			// interrupted, and so failed, if the default policy is applied
+			signalled.await(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private NGServer server = null;
+
+	protected void tearDown() {
+		if (server != null) server.shutdown(false);
+	}
+
+	/**
+	 * Starts the server, and waits for it to be listening
+	 */
+	private void startServer() throws InterruptedException {
+		new Thread(server).start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static void writeChunk(DataOutputStream out, byte chunkType, String payload) throws IOException {
+		byte[] b = payload.getBytes("US-ASCII");
+		out.writeInt(b.length);
+		out.writeByte(chunkType);
+		out.write(b);
+	}
+
+	/**
+	 * Sends a command and reads the response up to its exit chunk
+	 */
+	private static void runCommand(OutputStream out, byte[] request, DataInputStream in) throws IOException {
+		out.write(request);
+		out.flush();
+		while (true) {
+			int len = in.readInt();
+			byte chunkType = in.readByte();
+			in.skipBytes(len);
+			if (chunkType == NGConstants.CHUNKTYPE_EXIT) return;
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the server's session threads
+	 */
+	private static long sessionAllocatedBytes(com.sun.management.ThreadMXBean threads) {
+		long result = 0;
+		for (Iterator i = Thread.getAllStackTraces().keySet().iterator(); i.hasNext();) {
+			Thread t = (Thread) i.next();
+			if (t.getName().startsWith("NGSession")) {
+				result += threads.getThreadAllocatedBytes(t.getId());
+			}
+		}
+		return (result);
+	}
+
+	public void testAllocationPerRequest() throws Exception {
+		measureAllocationPerRequest(false);
+	}
+
+	public void testAllocationPerFlowControlledRequest() throws Exception {
+		measureAllocationPerRequest(true);
+	}
+
+	/**
+	 * Runs many commands on one kept-alive connection, and checks what the
+	 * server's sessions allocate for each
+	 * @param flowControlled true if the client asks for flow control and
+	 * offers heartbeats
+	 */
+	private void measureAllocationPerRequest(boolean flowControlled) throws Exception {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) return;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) return;
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.getAliasManager().addAlias(new Alias("noop", "", NoOp.class));
+		startServer();
+
+		// a request much like ng's, with a typical environment
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		writeChunk(dout, NGConstants.CHUNKTYPE_KEEPALIVE, "");
+		if (flowControlled) {
+			writeChunk(dout, NGConstants.CHUNKTYPE_CREDIT, "65536");
+			writeChunk(dout, NGConstants.CHUNKTYPE_HEARTBEAT, "1000");
+		}
+		writeChunk(dout, NGConstants.CHUNKTYPE_ARGUMENT, "--verbose");
+		writeChunk(dout, NGConstants.CHUNKTYPE_ARGUMENT, "file.txt");
+		for (int i = 0; i < 40; ++i) {
+			writeChunk(dout, NGConstants.CHUNKTYPE_ENVIRONMENT, "VARIABLE_" + i + "=/some/value/" + i);
+		}
+		writeChunk(dout, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/home/test");
+		writeChunk(dout, NGConstants.CHUNKTYPE_COMMAND, "noop");
+		byte[] request = bout.toByteArray();
+
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		OutputStream out = socket.getOutputStream();
+		DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(socket.getInputStream()));
+		for (int i = 0; i < REQUESTS; ++i) {
+			runCommand(out, request, in);
+		}
+
+		long before = sessionAllocatedBytes(threads);
+		for (int i = 0; i < REQUESTS; ++i) {
+			runCommand(out, request, in);
+		}
+		long perRequest = (sessionAllocatedBytes(threads) - before) / REQUESTS;
+		socket.close();
+
+		assertTrue("allocated " + perRequest + " bytes per request", perRequest <= ALLOCATION_BUDGET);
+	}
+
+	/**
+	 * Starts a command from a client that offers heartbeats, and signals if
+	 * asked, and waits for its nail to start
+	 * @return the client's connection
+	 */
+	private Socket startCommand(String command, boolean signals, CountDownLatch started) throws Exception {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		writeChunk(dout, NGConstants.CHUNKTYPE_CREDIT, "65536");
+		writeChunk(dout, NGConstants.CHUNKTYPE_HEARTBEAT, "1000");
+		if (signals) writeChunk(dout, NGConstants.CHUNKTYPE_SIGNAL, "");
+		writeChunk(dout, NGConstants.CHUNKTYPE_COMMAND, command);
+
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		socket.getOutputStream().write(bout.toByteArray());
+		socket.getOutputStream().flush();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		return (socket);
+	}
+
+	/**
+	 * Starts a command that runs a Blocker
+	 */
+	private Socket startBlocker(boolean signals) throws Exception {
+		Blocker.started = new CountDownLatch(1);
+		Blocker.interrupted = new CountDownLatch(1);
+		return (startCommand("block", signals, Blocker.started));
+	}
+
+	/**
+	 * Forwards a signal as ng does
+	 */
+	private static void sendSignal(Socket socket, String signal) throws IOException {
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		writeChunk(out, NGConstants.CHUNKTYPE_SIGNAL, signal);
+		out.flush();
+	}
+
+	/**
+	 * Reads the response up to the first chunk of the specified type
+	 * @return that chunk's payload
+	 */
+	private static String readUntil(Socket socket, byte chunkType) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		while (true) {
+			byte[] payload = new byte[in.readInt()];
+			byte type = in.readByte();
+			in.readFully(payload);
+			if (type == chunkType) return (new String(payload, "US-ASCII"));
+		}
+	}
+
+	public void testDroppedClientCancelsNail() throws Exception {
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.getAliasManager().addAlias(new Alias("block", "", Blocker.class));
+		server.setDisconnectCheckInterval(50);
+		startServer();
+
+		startBlocker(false).close();
+		assertTrue("nail was not interrupted", Blocker.interrupted.await(5, TimeUnit.SECONDS));
+
+		// recorded as the nail finishes
+		long deadline = System.currentTimeMillis() + 5000;
+		NailStats stats = null;
+		while (System.currentTimeMillis() < deadline) {
+			stats = (NailStats) server.getNailStats().get(Blocker.class.getName());
+			if (stats != null && stats.getCancelCount() > 0) break;
+			Thread.sleep(10);
+		}
+		assertEquals(1, stats.getCancelCount());
+		assertEquals(1, stats.getRunCount());
+	}
+
+	/**
+	 * Starts a server that checks its clients often, with the test nails
+	 */
+	private void startSignalServer() throws Exception {
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.getAliasManager().addAlias(new Alias("block", "", Blocker.class));
+		server.getAliasManager().addAlias(new Alias("listen", "", Listener.class));
+		server.setDisconnectCheckInterval(50);
+		startServer();
+	}
+
+	public void testSignalListener() throws Exception {
+		startSignalServer();
+		Listener.started = new CountDownLatch(1);
+		Listener.signalled = new CountDownLatch(1);
+		Listener.received = null;
+		Socket socket = startCommand("listen", true, Listener.started);
+		sendSignal(socket, "INT");
+		assertTrue("listener was not called", Listener.signalled.await(5, TimeUnit.SECONDS));
+		assertEquals("INT", Listener.received);
+		// handled by the listener, so the nail finishes normally
+		assertEquals("0", readUntil(socket, NGConstants.CHUNKTYPE_EXIT).trim());
+		socket.close();
+	}
+
+	public void testSignalInterruptsNail() throws Exception {
+		startSignalServer();
+		Socket socket = startBlocker(true);
+		sendSignal(socket, "TERM");
+		assertTrue("nail was not interrupted", Blocker.interrupted.await(5, TimeUnit.SECONDS));
+		// as a shell reports a process killed by SIGTERM
+		assertEquals("143", readUntil(socket, NGConstants.CHUNKTYPE_EXIT).trim());
+		socket.close();
+	}
+
+	public void testQuitDumpsStacks() throws Exception {
+		startSignalServer();
+		Socket socket = startBlocker(true);
+		// no longer than the dump may wait for credit, and a check interval
+		socket.setSoTimeout(NGSession.DUMP_TIMEOUT + 1000);
+		sendSignal(socket, "QUIT");
+		String dump = readUntil(socket, NGConstants.CHUNKTYPE_STDERR);
+		assertTrue(dump, dump.startsWith("Threads of NGSession "));
+		assertTrue(dump, dump.indexOf("TestNGSession$Blocker.nailMain") != -1);
+		assertEquals(1, Blocker.interrupted.getCount());
+		socket.close();
+		assertTrue(Blocker.interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testSelectorClosesSilentConnections() throws Exception {
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.setUseSelector(true);
+		server.setPreambleTimeout(100);
+		startServer();
+
+		// a client that connects and sends nothing
+		Socket silent = new Socket("127.0.0.1", server.getPort());
+		silent.setSoTimeout(5000);
+		// and one that sends part of its preamble
+		Socket partial = new Socket("127.0.0.1", server.getPort());
+		partial.setSoTimeout(5000);
+		DataOutputStream out = new DataOutputStream(partial.getOutputStream());
+		writeChunk(out, NGConstants.CHUNKTYPE_ARGUMENT, "one");
+		out.flush();
+
+		long start = System.currentTimeMillis();
+		assertEquals(-1, silent.getInputStream().read());
+		assertEquals(-1, partial.getInputStream().read());
+		assertTrue(System.currentTimeMillis() - start < 4000);
+		silent.close();
+		partial.close();
+
+		// a prompt client is still served
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		socket.setSoTimeout(5000);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		writeChunk(new DataOutputStream(bout), NGConstants.CHUNKTYPE_COMMAND, "ng-version");
+		runCommand(socket.getOutputStream(), bout.toByteArray(), new DataInputStream(socket.getInputStream()));
+		socket.close();
+	}
+
+	/**
+	 * Returns the session threads now alive
+	 */
+	private static java.util.Set sessionThreads() {
+		java.util.Set result = new java.util.HashSet();
+		for (Iterator i = Thread.getAllStackTraces().keySet().iterator(); i.hasNext();) {
+			Thread t = (Thread) i.next();
+			if (t.getName().startsWith("NGSession")) result.add(t);
+		}
+		return (result);
+	}
+
+	public void testShutdownClosesKeptAliveConnections() throws Exception {
+		checkShutdownClosesKeptAliveConnection(false);
+	}
+
+	public void testShutdownClosesSelectorKeptAliveConnections() throws Exception {
+		checkShutdownClosesKeptAliveConnection(true);
+	}
+
+	/**
+	 * Runs a command on a kept-alive connection, shuts the server down
+	 * while the connection waits for the next, and checks that the
+	 * connection is closed and the server's sessions exit
+	 */
+	private void checkShutdownClosesKeptAliveConnection(boolean useSelector) throws Exception {
+		java.util.Set before = sessionThreads();
+		server = new NGServer(InetAddress.getByName("127.0.0.1"), 0, 1);
+		server.getAliasManager().addAlias(new Alias("noop", "", NoOp.class));
+		server.setUseSelector(useSelector);
+		startServer();
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bout);
+		writeChunk(dout, NGConstants.CHUNKTYPE_KEEPALIVE, "");
+		writeChunk(dout, NGConstants.CHUNKTYPE_COMMAND, "noop");
+		Socket socket = new Socket("127.0.0.1", server.getPort());
+		runCommand(socket.getOutputStream(), bout.toByteArray(), new DataInputStream(socket.getInputStream()));
+
+		server.shutdown(false);
+		socket.setSoTimeout(5000);
+		assertEquals(-1, socket.getInputStream().read());
+		socket.close();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		java.util.Set remaining = sessionThreads();
+		remaining.removeAll(before);
+		while (!remaining.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			remaining.retainAll(sessionThreads());
+		}
+		assertTrue("sessions outlived the server: " + remaining, remaining.isEmpty());
+	}
+}
@@ -0,0 +1,108 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNGSessionPool extends TestCase {
+
+	private NGSessionPool pool = null;
+
+	protected void tearDown() {
+		if (pool != null) pool.shutdown();
+	}
+
+	public void testReuse() {
+		pool = new NGSessionPool(new NGServer(), 2, 0, 60000, null);
+		pool.prestart();
+		assertEquals(2, pool.getStats().getThreadsCreated());
+		assertEquals(2, pool.getStats().getIdleSessions());
+
+		NGSession session = pool.take();
+		assertEquals(1, pool.getStats().getActiveSessions());
+		pool.give(session);
+		assertSame(session, pool.take());
+		pool.give(session);
+		assertEquals(2, pool.getStats().getThreadsCreated());
+		assertEquals(0, pool.getStats().getActiveSessions());
+	}
+
+	public void testMaxSize() throws Exception {
+		pool = new NGSessionPool(new NGServer(), 0, 2, 60000, null);
+		final NGSession first = pool.take();
+		pool.take();
+
+		final NGSession[] third = new NGSession[1];
+		Thread taker = new Thread() {
+			public void run() {
+				third[0] = pool.take();
+			}
+		};
+		taker.start();
+		taker.join(200);
+		assertTrue(taker.isAlive());
+
+		pool.give(first);
+		taker.join(5000);
+		assertSame(first, third[0]);
+
+		SessionPoolStats stats = pool.getStats();
+		assertEquals(2, stats.getThreadsCreated());
+		assertEquals(1, stats.getBlockedTakeCount());
+		assertTrue(stats.getBlockedTakeNanos() > 0);
+	}
+
+	public void testIdleReaping() throws Exception {
+		pool = new NGSessionPool(new NGServer(), 1, 0, 50, null);
+		NGSession a = pool.take();
+		NGSession b = pool.take();
+		NGSession c = pool.take();
+		pool.give(a);
+		pool.give(b);
+		pool.give(c);
+		assertEquals(3, pool.getStats().getIdleSessions());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getStats().getIdleSessions() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, pool.getStats().getIdleSessions());
+		assertEquals(0, pool.getStats().getActiveSessions());
+	}
+
+	public void testUnpooled() {
+		pool = new NGSessionPool(new NGServer(), 5, 1, 60000, Executors.defaultThreadFactory());
+		pool.prestart();
+		assertEquals(0, pool.getStats().getThreadsCreated());
+		assertEquals(0, pool.getStats().getIdleSessions());
+
+		NGSession session = pool.take();
+		assertEquals(1, pool.getStats().getActiveSessions());
+		pool.give(session);
+		assertEquals(0, pool.getStats().getActiveSessions());
+		assertEquals(0, pool.getStats().getIdleSessions());
+		assertNotSame(session, pool.take());
+	}
+}
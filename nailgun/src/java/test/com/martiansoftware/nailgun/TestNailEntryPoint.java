@@ -0,0 +1,107 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+public class TestNailEntryPoint extends TestCase {
+
+	static Object lastArg = null;
+
+	public static class MainNail {
+		public static void main(String[] args) {
+			lastArg = args;
+		}
+	}
+
+	public static class ContextNail {
+		public static void nailMain(NGContext context) {
+			lastArg = context;
+		}
+
+		public static void main(String[] args) {
+			fail("main(String[]) called instead of nailMain(NGContext)");
+		}
+	}
+
+	public static class InstanceNail {
+		public void nailMain(NGContext context) {
+			fail("instance nailMain(NGContext) called");
+		}
+
+		public static void main(String[] args) {
+			lastArg = args;
+		}
+	}
+
+	public static class ThrowingNail {
+		public static void main(String[] args) throws Exception {
+			throw (new java.io.IOException(args[0]));
+		}
+	}
+
+	public void testMain() throws Throwable {
+		NailEntryPoint entryPoint = NailEntryPoint.forClass(MainNail.class);
+		assertFalse(entryPoint.takesContext());
+		String[] args = {"a", "b"};
+		entryPoint.invoke(args);
+		assertSame(args, lastArg);
+		assertSame(entryPoint, NailEntryPoint.forClass(MainNail.class));
+	}
+
+	public void testNailMain() throws Throwable {
+		NailEntryPoint entryPoint = NailEntryPoint.forClass(ContextNail.class);
+		assertTrue(entryPoint.takesContext());
+		NGContext context = new NGContext();
+		entryPoint.invoke(context);
+		assertSame(context, lastArg);
+	}
+
+	public void testInstanceNailMain() throws Throwable {
+		NailEntryPoint entryPoint = NailEntryPoint.forClass(InstanceNail.class);
+		assertFalse(entryPoint.takesContext());
+		String[] args = new String[0];
+		entryPoint.invoke(args);
+		assertSame(args, lastArg);
+	}
+
+	public void testThrown() throws Throwable {
+		try {
+			NailEntryPoint.forClass(ThrowingNail.class).invoke(new String[] {"oops"});
+			fail("nail did not throw");
+		} catch (java.io.IOException e) {
+			assertEquals("oops", e.getMessage());
+		}
+	}
+
+	public void testNoEntryPoint() throws Throwable {
+		for (int i = 0; i < 2; ++i) {
+			try {
+				NailEntryPoint.forClass(TestNailEntryPoint.class);
+				fail("found an entry point in a class without one");
+			} catch (NoSuchMethodException e) {
+				assertEquals("com.martiansoftware.nailgun.TestNailEntryPoint.main(java.lang.String[])", e.getMessage());
+			}
+		}
+	}
+}
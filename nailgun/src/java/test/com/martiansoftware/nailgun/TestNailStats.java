@@ -46,4 +46,40 @@ public class TestNailStats extends TestCase {
 		
 		assertEquals("com.martiansoftware.nailgun.TestNailStats: 1000/0", ns.toString());
 	}
+
+	public void testNailCancelled() {
+		NailStats ns = new NailStats(TestNailStats.class);
+		ns.nailStarted();
+		ns.nailFinished();
+		ns.nailStarted();
+		ns.nailCancelled(2000000);
+		ns.nailFinished();
+		ns.nailStarted();
+		ns.nailCancelled(4000000);
+		ns.nailFinished();
+		assertEquals(2, ns.getCancelCount());
+		assertEquals(6000000, ns.getCancelNanos());
+		assertEquals(4000000, ns.getMaxCancelNanos());
+		assertEquals("com.martiansoftware.nailgun.TestNailStats: 3/0, 2 cancelled (avg 3ms, max 4ms)", ns.toString());
+
+		NailStats other = new NailStats(TestNailStats.class);
+		other.nailCancelled(5000000);
+		ns.add(other);
+		assertEquals(3, ns.getCancelCount());
+		assertEquals(5000000, ns.getMaxCancelNanos());
+	}
+
+	public void testNailStatsAdd() {
+		NailStats ns = new NailStats(TestNailStats.class);
+		NailStats other = new NailStats(TestNailStats.class);
+		ns.nailStarted();
+		other.nailStarted();
+		other.nailStarted();
+		other.nailFinished();
+		
+		ns.add(other);
+		assertEquals(3, ns.getRunCount());
+		assertEquals(2, ns.getRefCount());
+		assertEquals(2, other.getRunCount());
+	}
 }